@@ -37,6 +37,7 @@ import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -620,14 +621,17 @@ public class BlobStore {
         return total;
     }
 
-    public int deleteBlobsExceptWithKeys(List<BlobKey> keysToKeep) {
+    public int deleteBlobsExceptWithKeys(Collection<BlobKey> keysToKeep) {
+        // Looked up once per file, so make sure that's a hash lookup rather than a linear search:
+        Set<BlobKey> keys = keysToKeep instanceof Set ?
+                (Set<BlobKey>) keysToKeep : new HashSet<BlobKey>(keysToKeep);
         int numDeleted = 0;
         File file = new File(path);
         File[] contents = file.listFiles();
         for (File attachment : contents) {
             BlobKey attachmentKey = new BlobKey();
             if (getKeyForFilename(attachmentKey, attachment.getPath())) {
-                if (!keysToKeep.contains(attachmentKey)) {
+                if (!keys.contains(attachmentKey)) {
                     boolean result = attachment.delete();
                     if (result) {
                         ++numDeleted;
@@ -0,0 +1,17 @@
+package com.couchbase.lite;
+
+/**
+ * Progress callback of an incremental compaction (Database.compactIncrementally).
+ */
+public interface CompactionListener {
+    /**
+     * Called after each chunk of documents has been compacted and committed.
+     *
+     * @param docsCompacted The number of documents compacted so far, including those of
+     *                      earlier, interrupted runs.
+     * @param totalDocs     The number of documents in the database.
+     * @return true to go on, or false to stop now. A stopped compaction picks up where it left
+     * off the next time compactIncrementally() is called.
+     */
+    boolean compactionProgress(long docsCompacted, long totalDocs);
+}
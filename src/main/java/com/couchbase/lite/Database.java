@@ -29,6 +29,7 @@ import com.couchbase.lite.store.SQLiteStore;
 import com.couchbase.lite.store.StorageValidation;
 import com.couchbase.lite.store.Store;
 import com.couchbase.lite.store.StoreDelegate;
+import com.couchbase.lite.store.ViewStore;
 import com.couchbase.lite.support.Base64;
 import com.couchbase.lite.support.FileDirUtils;
 import com.couchbase.lite.support.HttpClientFactory;
@@ -39,6 +40,7 @@ import com.couchbase.lite.support.action.ActionBlock;
 import com.couchbase.lite.support.action.ActionException;
 import com.couchbase.lite.support.security.SymmetricKey;
 import com.couchbase.lite.support.security.SymmetricKeyException;
+import com.couchbase.lite.util.CloseableIterator;
 import com.couchbase.lite.util.CollectionUtils;
 import com.couchbase.lite.util.CollectionUtils.Functor;
 import com.couchbase.lite.util.Log;
@@ -52,6 +54,7 @@ import java.lang.reflect.Constructor;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -106,6 +109,15 @@ public class Database implements StoreDelegate {
     final private CopyOnWriteArrayList<DatabaseListener> databaseListeners;
     private Cache<String, Document> docCache;
     private List<DocumentChange> changesToNotify;
+    // Size of changesToNotify when each of the calling thread's currently open (possibly nested)
+    // transactions began. Per thread, since the Store reports the end of a transaction after
+    // releasing the storage engine, when another thread may already have begun one.
+    private final ThreadLocal<List<Integer>> transactionMarks = new ThreadLocal<List<Integer>>() {
+        @Override
+        protected List<Integer> initialValue() {
+            return new ArrayList<Integer>();
+        }
+    };
     private boolean postingChangeNotifications;
     private long startTime;
 
@@ -203,6 +215,14 @@ public class Database implements StoreDelegate {
         return store.getDocumentCount();
     }
 
+    /**
+     * Statistics about the documents and revisions in the database.
+     */
+    @InterfaceAudience.Public
+    public DatabaseStats getStats() {
+        return store.getStats();
+    }
+
     /**
      * The latest sequence number used.  Every new revision is assigned a new sequence number,
      * so this property increases monotonically as changes are made to the database. It can be
@@ -252,6 +272,28 @@ public class Database implements StoreDelegate {
         garbageCollectAttachments();
     }
 
+    /**
+     * Compacts the database like compact(), but a chunk of documents at a time, committing after
+     * each chunk, so the database stays usable by other threads throughout. Freed space is
+     * returned to the file system a little at a time instead of by rewriting the whole file.
+     * <p/>
+     * The listener is told the progress after each chunk and can stop the compaction; the next
+     * call then resumes it where it stopped. Unused attachment files are deleted once the
+     * compaction is complete.
+     *
+     * @param docsPerChunk The number of documents to compact per transaction, or 0 for the default.
+     * @param listener     Progress listener, or null.
+     * @return true if the compaction is complete, false if the listener stopped it.
+     */
+    @InterfaceAudience.Public
+    public boolean compactIncrementally(int docsPerChunk, CompactionListener listener)
+            throws CouchbaseLiteException {
+        if (!store.compactIncrementally(docsPerChunk, listener))
+            return false;
+        garbageCollectAttachments();
+        return true;
+    }
+
     /**
      * Changes the database's encryption key, or removes encryption if the new key is null.
      *
@@ -431,6 +473,33 @@ public class Database implements StoreDelegate {
         }
     }
 
+    /**
+     * Updates the indexes of several views of this database together. Each document changed
+     * since the least recently updated of them is read and parsed once, and passed to the map
+     * function of each view that hasn't indexed it yet; views already up to date are skipped.
+     * This is much faster than updating the views one after another when there are many.
+     * @param views Views of this database, all of which must have map functions.
+     */
+    @InterfaceAudience.Public
+    public void updateIndexes(List<View> views) throws CouchbaseLiteException {
+        if (views.isEmpty())
+            return;
+        List<ViewStore> viewStores = new ArrayList<ViewStore>(views.size());
+        for (View view : views) {
+            if (view.getDatabase() != this) {
+                String msg = String.format("View %s belongs to another database", view.getName());
+                throw new CouchbaseLiteException(msg, Status.BAD_REQUEST);
+            }
+            if (view.getMap() == null) {
+                String msg = String.format("Cannot index view %s: no map function",
+                        view.getName());
+                throw new CouchbaseLiteException(msg, Status.BAD_REQUEST);
+            }
+            viewStores.add(view.getViewStore());
+        }
+        viewStores.get(0).updateIndexes(viewStores);
+    }
+
     /**
      * Returns the existing filter function (block) registered with the given name.
      * Note that filters are not persistent -- you have to re-register them on every launch.
@@ -558,13 +627,76 @@ public class Database implements StoreDelegate {
      * <p/>
      * Does not commit the transaction if the code throws an Exception.
      * <p/>
-     * TODO: the iOS version has a retry loop, so there should be one here too
+     * If the database is busy (locked by another connection), the transaction is rolled back and
+     * the code is run again, a few times, with a growing delay in between; see
+     * ManagerOptions.setBusyRetryMaxAttempts(). So the code should have no side effects outside
+     * the database that can't safely be repeated.
      */
     @InterfaceAudience.Public
     public boolean runInTransaction(TransactionalTask task) {
         return store.runInTransaction(task);
     }
 
+    /**
+     * Creates or updates many documents at once, in a single transaction, and posts a single
+     * ChangeEvent for all of them. Each map holds the properties of a new revision: "_id" is the
+     * document ID (a random one is generated if it's missing), "_rev" is the ID of the revision
+     * being replaced (missing for a new document), and "_deleted": true makes it a deletion.
+     * On success, each map's "_id" and "_rev" are set to those of the new revision.
+     *
+     * @return The status of each document, in the same order: 201 for a created revision, 200
+     * for a deletion, or an error such as 409 for a conflict.
+     * @throws CouchbaseLiteException if the batch couldn't be saved; then no document is saved.
+     */
+    @InterfaceAudience.Public
+    public List<Status> putDocuments(List<Map<String, Object>> documents)
+            throws CouchbaseLiteException {
+
+        Status[] statuses = new Status[documents.size()];
+        List<Map<String, Object>> docsToAdd = new ArrayList<Map<String, Object>>(documents.size());
+        List<Integer> indexes = new ArrayList<Integer>(documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            Map<String, Object> properties = documents.get(i);
+
+            // Attachments
+            if (properties.containsKey("_attachments")) {
+                // Add any new attachment data to the blob-store, and turn all of them into stubs:
+                String prevRevID = (String) properties.get("_rev");
+                boolean deleting = Boolean.TRUE.equals(properties.get("_deleted"));
+                RevisionInternal tmpRev = new RevisionInternal(
+                        (String) properties.get("_id"), prevRevID, deleting);
+                tmpRev.setProperties(properties);
+                List<String> ancestry = new ArrayList<String>();
+                if (prevRevID != null)
+                    ancestry.add(prevRevID);
+                Status status = new Status(Status.OK);
+                if (!processAttachmentsForRevision(tmpRev, ancestry, status)) {
+                    statuses[i] = status;
+                    continue;
+                }
+                properties = tmpRev.getProperties();
+            }
+            docsToAdd.add(properties);
+            indexes.add(i);
+        }
+
+        List<Status> addStatuses = new ArrayList<Status>(docsToAdd.size());
+        List<RevisionInternal> newRevs = store.addDocuments(
+                docsToAdd, false, getValidationBlock(), addStatuses);
+
+        for (int i = 0; i < indexes.size(); i++) {
+            int index = indexes.get(i);
+            statuses[index] = addStatuses.get(i);
+            RevisionInternal newRev = newRevs.get(i);
+            if (newRev != null) {
+                Map<String, Object> properties = documents.get(index);
+                properties.put("_id", newRev.getDocID());
+                properties.put("_rev", newRev.getRevID());
+            }
+        }
+        return Arrays.asList(statuses);
+    }
+
     /**
      * Define or clear a named filter function.
      * <p/>
@@ -674,21 +806,36 @@ public class Database implements StoreDelegate {
     // Implementation of StorageDelegate
     ///////////////////////////////////////////////////////////////////////////
 
+    @InterfaceAudience.Private
+    public void storageEnteredTransaction() {
+        transactionMarks.get().add(changesToNotify.size());
+    }
+
     /**
      * in CBLDatabase+Internal.m
      * - (void) storageExitedTransaction: (BOOL)committed
      */
     @InterfaceAudience.Private
     public void storageExitedTransaction(boolean committed) {
+        // The Store reports the end of every transaction it reported the start of, on the same
+        // thread:
+        List<Integer> marks = transactionMarks.get();
+        assert (!marks.isEmpty());
+        int mark = marks.remove(marks.size() - 1);
+        if (marks.isEmpty())
+            transactionMarks.remove();
         if (!committed) {
+            // Only the changes made since this (possibly nested) transaction began are undone.
             // I already told cached CBLDocuments about these new revisions. Back that out:
-            for (DocumentChange change : changesToNotify) {
+            List<DocumentChange> undone = changesToNotify.subList(
+                    Math.min(mark, changesToNotify.size()), changesToNotify.size());
+            for (DocumentChange change : undone) {
                 Document doc = cachedDocumentWithID(change.getDocumentId());
                 if (doc != null) {
                     doc.forgetCurrentRevision();
                 }
             }
-            changesToNotify.clear();
+            undone.clear();
         }
         postChangeNotifications();
     }
@@ -1332,6 +1479,18 @@ public class Database implements StoreDelegate {
         return store.changesSince(lastSeq, options, filter, filterParams);
     }
 
+    /**
+     * Iterates over the revisions of changesSince() as they're read from the database. The
+     * iterator must be closed, on the thread that called this method.
+     */
+    @InterfaceAudience.Private
+    public CloseableIterator<RevisionInternal> changesSinceIterator(long lastSeq,
+                                                                    ChangesOptions options,
+                                                                    ReplicationFilter filter,
+                                                                    Map<String, Object> filterParams) {
+        return store.changesSinceIterator(lastSeq, options, filter, filterParams);
+    }
+
     @InterfaceAudience.Private
     public RevisionList unpushedRevisionsSince(String sequence,
                                                ReplicationFilter filter,
@@ -1350,6 +1509,16 @@ public class Database implements StoreDelegate {
         return store.getAllDocs(options);
     }
 
+    /**
+     * Iterates over the rows of getAllDocs() as they're read from the database. The iterator
+     * must be closed, on the thread that called this method.
+     */
+    @InterfaceAudience.Private
+    public CloseableIterator<QueryRow> getAllDocsIterator(QueryOptions options)
+            throws CouchbaseLiteException {
+        return store.getAllDocsIterator(options);
+    }
+
     public AttachmentInternal getAttachment(Map info, String filename)
             throws CouchbaseLiteException {
         if (info == null)
@@ -1576,6 +1745,27 @@ public class Database implements StoreDelegate {
             properties = tmpRev.getProperties();
         }
 
+        StorageValidation validationBlock = getValidationBlock();
+
+        RevisionInternal putRev = store.add(
+                docID,
+                prevRevID,
+                properties,
+                deleting,
+                allowConflict,
+                validationBlock,
+                outStatus);
+
+        if (putRev != null)
+            Log.v(TAG, "--> created %s", putRev);
+
+        return putRev;
+    }
+
+    /**
+     * Returns a block that runs the registered validation functions, or null if there are none.
+     */
+    private StorageValidation getValidationBlock() {
         // TODO: Need to implement Shared (Manager.shared)
         StorageValidation validationBlock = null;
         if (validations != null && validations.size() > 0) {
@@ -1592,20 +1782,7 @@ public class Database implements StoreDelegate {
                 }
             };
         }
-
-        RevisionInternal putRev = store.add(
-                docID,
-                prevRevID,
-                properties,
-                deleting,
-                allowConflict,
-                validationBlock,
-                outStatus);
-
-        if (putRev != null)
-            Log.v(TAG, "--> created %s", putRev);
-
-        return putRev;
+        return validationBlock;
     }
 
     /**
@@ -1655,23 +1832,7 @@ public class Database implements StoreDelegate {
             inRev = updatedRev;
         }
 
-        // TODO: Need to implement Shared (Manager.shared)
-        StorageValidation validationBlock = null;
-        if (validations != null && validations.size() > 0) {
-            validationBlock = new StorageValidation() {
-                @Override
-                public Status validate(RevisionInternal newRev, RevisionInternal prevRev, String parentRevID) {
-                    try {
-                        validateRevision(newRev, prevRev, parentRevID);
-                    } catch (CouchbaseLiteException e) {
-                        return new Status(Status.FORBIDDEN);
-                    }
-                    return new Status(Status.OK);
-                }
-            };
-        }
-
-        store.forceInsert(inRev, history, validationBlock, source);
+        store.forceInsert(inRev, history, getValidationBlock(), source);
     }
 
     @InterfaceAudience.Private
@@ -1894,6 +2055,15 @@ public class Database implements StoreDelegate {
         views.remove(name);
     }
 
+    /**
+     * The views opened so far by getView() or getExistingView().
+     */
+    protected List<View> getOpenViews() {
+        if (views == null)
+            return new ArrayList<View>();
+        return new ArrayList<View>(views.values());
+    }
+
     private View registerView(View view) {
         if (view == null)
             return null;
@@ -1938,11 +2108,17 @@ public class Database implements StoreDelegate {
             rows = view.query(options);
         } else {
             // nil view means query _all_docs
-            // note: this is a little kludgy, but we have to pull out the "rows" field from the
-            // result dictionary because that's what we want.  should be refactored, but
-            // it's a little tricky, so postponing.
-            Map<String, Object> allDocsResult = getAllDocs(options);
-            rows = (List<QueryRow>) allDocsResult.get("rows");
+            // QueryEnumerator needs all the rows (for getCount(), getRow() and reset()), but
+            // they're collected straight from the cursor, without building the full
+            // getAllDocs() result first.
+            rows = new ArrayList<QueryRow>();
+            CloseableIterator<QueryRow> iterator = getAllDocsIterator(options);
+            try {
+                while (iterator.hasNext())
+                    rows.add(iterator.next());
+            } finally {
+                iterator.close();
+            }
             lastSequence = getLastSequenceNumber();
         }
         outLastSequence.add(lastSequence);
@@ -2183,13 +2359,12 @@ public class Database implements StoreDelegate {
     }
 
     private boolean garbageCollectAttachments() throws CouchbaseLiteException {
-        Log.v(TAG, "Scanning database revisions for attachments...");
+        Log.v(TAG, "Looking up the attachments in use...");
         Set<BlobKey> keys = store.findAllAttachmentKeys();
         if(keys == null)
             return false;
         Log.v(TAG, "    ...found %d attachments", keys.size());
-        List<BlobKey> keysToKeep = new ArrayList<BlobKey>(keys);
-        int deleted = attachments.deleteBlobsExceptWithKeys(keysToKeep);
+        int deleted = attachments.deleteBlobsExceptWithKeys(keys);
         Log.v(TAG, "    ... deleted %d obsolete attachment files.", deleted);
         return deleted >= 0;
     }
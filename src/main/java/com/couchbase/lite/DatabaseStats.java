@@ -0,0 +1,77 @@
+package com.couchbase.lite;
+
+import com.couchbase.lite.internal.InterfaceAudience;
+
+/**
+ * Statistics about the contents of a Database, as of the last committed change.
+ */
+public class DatabaseStats {
+    private long documentCount;
+    private long deletedDocumentCount;
+    private long conflictedDocumentCount;
+    private long revisionCount;
+    private long bodySize;
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public DatabaseStats(long documentCount,
+                         long deletedDocumentCount,
+                         long conflictedDocumentCount,
+                         long revisionCount,
+                         long bodySize) {
+        this.documentCount = documentCount;
+        this.deletedDocumentCount = deletedDocumentCount;
+        this.conflictedDocumentCount = conflictedDocumentCount;
+        this.revisionCount = revisionCount;
+        this.bodySize = bodySize;
+    }
+
+    /**
+     * The number of documents whose current revision isn't a deletion.
+     */
+    @InterfaceAudience.Public
+    public long getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * The number of documents whose current revision is a deletion.
+     */
+    @InterfaceAudience.Public
+    public long getDeletedDocumentCount() {
+        return deletedDocumentCount;
+    }
+
+    /**
+     * The number of (undeleted) documents with conflicting revisions.
+     */
+    @InterfaceAudience.Public
+    public long getConflictedDocumentCount() {
+        return conflictedDocumentCount;
+    }
+
+    /**
+     * The number of revisions stored, including ones whose bodies have been compacted away.
+     */
+    @InterfaceAudience.Public
+    public long getRevisionCount() {
+        return revisionCount;
+    }
+
+    /**
+     * The total size in bytes of the stored revision bodies.
+     */
+    @InterfaceAudience.Public
+    public long getBodySize() {
+        return bodySize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DatabaseStats[docs=%d, deleted=%d, conflicted=%d, revs=%d, bodySize=%d]",
+                documentCount, deletedDocumentCount, conflictedDocumentCount, revisionCount,
+                bodySize);
+    }
+}
@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -60,6 +61,7 @@ public final class Manager {
     private Map<String, Object> encryptionKeys;
     private List<Replication> replications;
     private ScheduledExecutorService workExecutor;
+    private ExecutorService mapExecutor;
     private HttpClientFactory defaultHttpClientFactory;
     private Context context;
     private String storeClassName;
@@ -242,6 +244,12 @@ public final class Manager {
         if (workExecutor != null && !workExecutor.isShutdown()) {
             Utils.shutdownAndAwaitTermination(workExecutor);
         }
+        synchronized (this) {
+            if (mapExecutor != null) {
+                Utils.shutdownAndAwaitTermination(mapExecutor);
+                mapExecutor = null;
+            }
+        }
         Log.d(Database.TAG, "Closed " + this);
     }
 
@@ -446,6 +454,105 @@ public final class Manager {
         return options.isEnableStorageEncryption();
     }
 
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getDocIDCacheSize() {
+        return options.getDocIDCacheSize();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getRevTreeCacheSize() {
+        return options.getRevTreeCacheSize();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean isEnableWriteAheadLog() {
+        return options.isEnableWriteAheadLog();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getReaderConnectionPoolSize() {
+        return options.getReaderConnectionPoolSize();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public long getGroupCommitWindowMs() {
+        return options.getGroupCommitWindowMs();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public boolean isEnableBodyCompression() {
+        return options.isEnableBodyCompression();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public String getBodyEncoding() {
+        return options.getBodyEncoding();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public int getBusyRetryMaxAttempts() {
+        return options.getBusyRetryMaxAttempts();
+    }
+
+    /**
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public long getBusyRetryBaseDelayMs() {
+        return options.getBusyRetryBaseDelayMs();
+    }
+
+    /**
+     * The pool that runs thread-safe map functions while views are indexed, started on first
+     * use; or null if they're to be run on the indexing thread.
+     * @exclude
+     */
+    @InterfaceAudience.Private
+    public synchronized ExecutorService getMapExecutor() {
+        if (mapExecutor == null) {
+            int size = options.getMapThreadPoolSize();
+            if (size <= 0)
+                size = Runtime.getRuntime().availableProcessors();
+            if (size <= 1)
+                return null;
+            mapExecutor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLMapExecutor-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mapExecutor;
+    }
+
     /**
      * @exclude
      */
@@ -24,11 +24,80 @@ public class ManagerOptions {
 
     private String storeClassName = null;
 
+    /**
+     * Max number of docID to numeric doc_id mappings each database keeps in memory.
+     */
+    private int docIDCacheSize = DEFAULT_DOC_ID_CACHE_SIZE;
+
+    public static final int DEFAULT_DOC_ID_CACHE_SIZE = 1000;
+
+    /**
+     * Max number of documents whose revision trees each database keeps in memory, for
+     * replication of documents that are updated often. 0 disables the cache.
+     */
+    private int revTreeCacheSize = DEFAULT_REV_TREE_CACHE_SIZE;
+
+    public static final int DEFAULT_REV_TREE_CACHE_SIZE = 100;
+
     /**
      * Enable data storage encryption.
      */
     private boolean enableStorageEncryption = false;
 
+    /**
+     * Open databases in write-ahead logging (WAL) mode, with a pool of read-only connections
+     * so that reads don't wait for a transaction on another thread to finish.
+     */
+    private boolean enableWriteAheadLog = false;
+
+    /**
+     * The number of read-only connections per database when enableWriteAheadLog is set.
+     */
+    private int readerConnectionPoolSize = DEFAULT_READER_CONNECTION_POOL_SIZE;
+
+    public static final int DEFAULT_READER_CONNECTION_POOL_SIZE = 2;
+
+    /**
+     * How long, in milliseconds, a write waits for writes from other threads to share its commit.
+     * 0 (the default) disables group commit.
+     */
+    private long groupCommitWindowMs = 0;
+
+    /**
+     * Store revision bodies Deflate-compressed, with a preset dictionary built from a sample of
+     * each database's documents.
+     */
+    private boolean enableBodyCompression = false;
+
+    /**
+     * The format revision bodies are stored in, in databases created from now on.
+     */
+    private String bodyEncoding = BODY_ENCODING_JSON;
+
+    public static final String BODY_ENCODING_JSON = "json";
+    public static final String BODY_ENCODING_SMILE = "smile";
+
+    /**
+     * How many times a transaction is attempted when the database is busy or locked by another
+     * connection. 1 disables retrying.
+     */
+    private int busyRetryMaxAttempts = DEFAULT_BUSY_RETRY_MAX_ATTEMPTS;
+
+    public static final int DEFAULT_BUSY_RETRY_MAX_ATTEMPTS = 5;
+
+    /**
+     * The delay before the first retry of a busy transaction; it doubles with each further retry.
+     */
+    private long busyRetryBaseDelayMs = DEFAULT_BUSY_RETRY_BASE_DELAY_MS;
+
+    public static final long DEFAULT_BUSY_RETRY_BASE_DELAY_MS = 10;
+
+    /**
+     * The number of threads that run thread-safe map functions (see ThreadSafeMapper) while
+     * views are indexed. 0 means one per available processor; 1 maps on the indexing thread.
+     */
+    private int mapThreadPoolSize = 0;
+
     public ManagerOptions() {
     }
 
@@ -64,6 +133,22 @@ public class ManagerOptions {
         this.storeClassName = storeClassName;
     }
 
+    public int getDocIDCacheSize() {
+        return docIDCacheSize;
+    }
+
+    public void setDocIDCacheSize(int docIDCacheSize) {
+        this.docIDCacheSize = docIDCacheSize;
+    }
+
+    public int getRevTreeCacheSize() {
+        return revTreeCacheSize;
+    }
+
+    public void setRevTreeCacheSize(int revTreeCacheSize) {
+        this.revTreeCacheSize = revTreeCacheSize;
+    }
+
     public boolean isEnableStorageEncryption() {
         return enableStorageEncryption;
     }
@@ -77,4 +162,108 @@ public class ManagerOptions {
     public void setEnableStorageEncryption(boolean enableStorageEncryption) {
         this.enableStorageEncryption = enableStorageEncryption;
     }
+
+    public boolean isEnableWriteAheadLog() {
+        return enableWriteAheadLog;
+    }
+
+    /**
+     * Opens databases in SQLite's WAL journal mode, with one connection for writing and a pool
+     * of readerConnectionPoolSize connections for reading. Note that the WAL mode is persistent:
+     * a database file switched to it stays in it.
+     * @param enableWriteAheadLog
+     */
+    public void setEnableWriteAheadLog(boolean enableWriteAheadLog) {
+        this.enableWriteAheadLog = enableWriteAheadLog;
+    }
+
+    public int getReaderConnectionPoolSize() {
+        return readerConnectionPoolSize;
+    }
+
+    public void setReaderConnectionPoolSize(int readerConnectionPoolSize) {
+        this.readerConnectionPoolSize = readerConnectionPoolSize;
+    }
+
+    public long getGroupCommitWindowMs() {
+        return groupCommitWindowMs;
+    }
+
+    /**
+     * Enables group commit: transactions and document writes started on different threads
+     * within groupCommitWindowMs of each other are run in one shared transaction, so that
+     * concurrent writers pay for one commit instead of one each. Each write still succeeds or
+     * fails on its own, and returns once the shared transaction has been committed.
+     * @param groupCommitWindowMs the window in milliseconds, or 0 to disable group commit.
+     */
+    public void setGroupCommitWindowMs(long groupCommitWindowMs) {
+        this.groupCommitWindowMs = groupCommitWindowMs;
+    }
+
+    public boolean isEnableBodyCompression() {
+        return enableBodyCompression;
+    }
+
+    /**
+     * Enables compression of newly stored revision bodies. Bodies that are already stored stay as
+     * they are, and compressed bodies can still be read after compression is disabled again.
+     * Opening a database with compression enabled upgrades it to a version that older releases
+     * refuse to open.
+     * @param enableBodyCompression
+     */
+    public void setEnableBodyCompression(boolean enableBodyCompression) {
+        this.enableBodyCompression = enableBodyCompression;
+    }
+
+    public String getBodyEncoding() {
+        return bodyEncoding;
+    }
+
+    /**
+     * Sets the format revision bodies are stored in: BODY_ENCODING_JSON (the default) or
+     * BODY_ENCODING_SMILE, a binary JSON format that is faster to parse. The encoding is recorded
+     * in each database when it is created, and the database keeps using it afterwards. Databases
+     * created with BODY_ENCODING_SMILE can't be opened by older releases.
+     * @param bodyEncoding
+     */
+    public void setBodyEncoding(String bodyEncoding) {
+        this.bodyEncoding = bodyEncoding;
+    }
+
+    public int getBusyRetryMaxAttempts() {
+        return busyRetryMaxAttempts;
+    }
+
+    /**
+     * Sets how many times beginning or running a transaction is attempted when SQLite reports
+     * that the database is busy or locked. Retries wait for an exponentially growing delay,
+     * randomized to keep competing writers from retrying in lockstep.
+     * @param busyRetryMaxAttempts the maximum number of attempts, or 1 to never retry.
+     */
+    public void setBusyRetryMaxAttempts(int busyRetryMaxAttempts) {
+        this.busyRetryMaxAttempts = busyRetryMaxAttempts;
+    }
+
+    public long getBusyRetryBaseDelayMs() {
+        return busyRetryBaseDelayMs;
+    }
+
+    public void setBusyRetryBaseDelayMs(long busyRetryBaseDelayMs) {
+        this.busyRetryBaseDelayMs = busyRetryBaseDelayMs;
+    }
+
+    public int getMapThreadPoolSize() {
+        return mapThreadPoolSize;
+    }
+
+    /**
+     * Sets how many threads a Manager uses to run the map functions of views that implement
+     * ThreadSafeMapper. The threads are shared by all of its databases, and only started when
+     * such a view is first indexed.
+     * @param mapThreadPoolSize the number of threads; 0 (the default) for one per available
+     *                          processor, or 1 to never map in parallel.
+     */
+    public void setMapThreadPoolSize(int mapThreadPoolSize) {
+        this.mapThreadPoolSize = mapThreadPoolSize;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package com.couchbase.lite;
+
+/**
+ * A Mapper whose map() can be called on several threads at once. When a view's map function
+ * implements this, its index is updated by mapping batches of documents in parallel (on a pool
+ * of ManagerOptions.getMapThreadPoolSize() threads) instead of one document at a time.
+ * The emitted rows are the same either way.
+ * <p/>
+ * The map function must not depend on the order documents are mapped in, and the Emitter it
+ * is given may only be called before map() returns.
+ */
+public interface ThreadSafeMapper extends Mapper {
+}
@@ -23,6 +23,7 @@ import com.couchbase.lite.store.ViewStoreDelegate;
 import com.couchbase.lite.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +43,7 @@ public final class View implements ViewStoreDelegate {
     private Mapper mapBlock;
     private Reducer reduceBlock;
     private String version; // TODO: iOS version store version information in CBL_Shared.
+    private String documentType;
     private static ViewCompiler compiler;
     private ViewStore viewStore;
 
@@ -102,8 +104,18 @@ public final class View implements ViewStoreDelegate {
      * the view is queried. And if its value changes, the view's version also needs to change.
      */
     @Override
+    @InterfaceAudience.Public
     public String getDocumentType() {
-        return null;
+        return documentType;
+    }
+
+    /**
+     * Sets the "type" property value of the only documents to index; null (the default) indexes
+     * all documents. See getDocumentType().
+     */
+    @InterfaceAudience.Public
+    public void setDocumentType(String documentType) {
+        this.documentType = documentType;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -146,6 +158,9 @@ public final class View implements ViewStoreDelegate {
      * might do it inadvertently!  The callback may be called on any thread, or on
      * multiple threads simultaneously. This won't be a problem if the code is "pure" as
      * described above, since it will as a consequence also be thread-safe.
+     * <p/>
+     * A map block that implements ThreadSafeMapper is run on several documents in parallel
+     * when the view's index is updated, which makes indexing many documents much faster.
      */
     @InterfaceAudience.Public
     public boolean setMapReduce(Mapper mapBlock, Reducer reduceBlock, String version) {
@@ -269,13 +284,47 @@ public final class View implements ViewStoreDelegate {
     }
 
     /**
-     * Updates the view's index (incrementally) if necessary.
+     * Updates the view's index (incrementally) if necessary, together with those of the other
+     * views in its group (see getViewsInGroup()), so that the changed documents are read once
+     * for all of them.
      *
      * @return 200 if updated, 304 if already up-to-date, else an error code
      */
     @InterfaceAudience.Private
     public void updateIndex() throws CouchbaseLiteException {
-        viewStore.updateIndex();
+        database.updateIndexes(getViewsInGroup());
+    }
+
+    /**
+     * Updates only this view's index, not those of the other views in its group.
+     */
+    @InterfaceAudience.Private
+    public void updateIndexAlone() throws CouchbaseLiteException {
+        database.updateIndexes(Collections.singletonList(this));
+    }
+
+    /**
+     * This view, and the other open views with map functions that are defined in the same
+     * design document: those whose names have the same prefix up to a '/', like "ddoc/" in
+     * "ddoc/byDate". A view whose name has no '/' is in a group of its own.
+     */
+    @InterfaceAudience.Private
+    protected List<View> getViewsInGroup() {
+        List<View> group = new ArrayList<View>();
+        group.add(this);
+        int slash = name.indexOf('/');
+        if (slash < 0)
+            return group;
+        String prefix = name.substring(0, slash + 1);
+        for (View view : database.getOpenViews()) {
+            if (view != this && view.getName().startsWith(prefix) && view.getMap() != null)
+                group.add(view);
+        }
+        return group;
+    }
+
+    ViewStore getViewStore() {
+        return viewStore;
     }
 
     /**
@@ -46,14 +46,8 @@ public class Body {
 
     public Body(byte[] json, String docID, String revID, boolean deleted) {
 
-        Map<String, Object> extra = new HashMap<String, Object>();
-        extra.put("_id", docID);
-        extra.put("_rev", revID);
-        if (deleted)
-            extra.put("_deleted", true);
-
         if (json.length < 2) {
-            this.object = extra;
+            this.object = specialProperties(docID, revID, deleted);
             return;
         }
 
@@ -63,10 +57,35 @@ public class Body {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        props.putAll(extra);
+        props.putAll(specialProperties(docID, revID, deleted));
         this.object = props;
     }
 
+    /**
+     * Same as above, for a stored body that has already been parsed (e.g. from a binary
+     * encoding.) The properties are the body as stored, without the special "_id", "_rev" and
+     * "_deleted" keys; they're added here just as for JSON.
+     */
+    public Body(Map<String, Object> properties, String docID, String revID, boolean deleted) {
+        Map<String, Object> extra = specialProperties(docID, revID, deleted);
+        if (properties == null) {
+            this.object = extra;
+            return;
+        }
+        properties.putAll(extra);
+        this.object = properties;
+    }
+
+    private static Map<String, Object> specialProperties(String docID, String revID,
+                                                         boolean deleted) {
+        Map<String, Object> extra = new HashMap<String, Object>();
+        extra.put("_id", docID);
+        extra.put("_rev", revID);
+        if (deleted)
+            extra.put("_deleted", true);
+        return extra;
+    }
+
     public byte[] getJson() {
         if (json == null) {
             lazyLoadJsonFromObject();
@@ -5,6 +5,7 @@ import com.couchbase.lite.BlobStoreWriter;
 import com.couchbase.lite.ChangesOptions;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
+import com.couchbase.lite.DatabaseStats;
 import com.couchbase.lite.Document;
 import com.couchbase.lite.DocumentChange;
 import com.couchbase.lite.Manager;
@@ -32,8 +33,10 @@ import com.couchbase.lite.storage.SQLException;
 import com.couchbase.lite.store.Store;
 import com.couchbase.lite.support.RevisionUtils;
 import com.couchbase.lite.support.Version;
+import com.couchbase.lite.util.CloseableIterator;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.StreamUtils;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import org.apache.http.client.HttpResponseException;
 
@@ -87,6 +90,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
     Map<String, Object> changesFilterParams = null;
     private boolean longpoll = false;
     private boolean waiting = false;
+    private boolean responseStreamed = false;
 
     public static String getVersionString() {
         return Version.getVersion();
@@ -541,7 +545,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
 
             setResponse();
             sendResponse();
-        } else {
+        } else if (!responseStreamed) {
             // NOTE code == 0
             waiting = true;
         }
@@ -975,13 +979,14 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         if (!status.isSuccessful()) {
             return status;
         }
-        int num_docs = db.getDocumentCount();
+        DatabaseStats stats = db.getStats();
         long update_seq = db.getLastSequenceNumber();
         long instanceStartTimeMicroseconds = db.getStartTime() * 1000;
         Map<String, Object> result = new HashMap<String, Object>();
         result.put("db_name", db.getName());
         result.put("db_uuid", db.publicUUID());
-        result.put("doc_count", num_docs);
+        result.put("doc_count", stats.getDocumentCount());
+        result.put("doc_del_count", stats.getDeletedDocumentCount());
         result.put("update_seq", update_seq);
         result.put("disk_size", db.totalDataSize());
         result.put("instance_start_time", instanceStartTimeMicroseconds);
@@ -1013,21 +1018,6 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         return new Status(Status.OK);
     }
 
-    /**
-     * This is a hack to deal with the fact that there is currently no custom
-     * serializer for QueryRow.  Instead, just convert everything to generic Maps.
-     */
-    private void convertCBLQueryRowsToMaps(Map<String, Object> allDocsResult) {
-        List<Map<String, Object>> rowsAsMaps = new ArrayList<Map<String, Object>>();
-        List<QueryRow> rows = (List<QueryRow>) allDocsResult.get("rows");
-        if (rows != null) {
-            for (QueryRow row : rows) {
-                rowsAsMaps.add(row.asJSONDictionary());
-            }
-        }
-        allDocsResult.put("rows", rowsAsMaps);
-    }
-
     public Status do_POST_Database(Database _db, String _docID, String _attachmentName) {
         Status status = openDB();
         if (!status.isSuccessful()) {
@@ -1045,13 +1035,7 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         if (!getQueryOptions(options)) {
             return new Status(Status.BAD_REQUEST);
         }
-        Map<String, Object> result = db.getAllDocs(options);
-        convertCBLQueryRowsToMaps(result);
-        if (result == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
-        }
-        connection.setResponseBody(new Body(result));
-        return new Status(Status.OK);
+        return sendAllDocs(options);
     }
 
     public Status do_POST_Document_all_docs(Database _db, String _docID, String _attachmentName) throws CouchbaseLiteException {
@@ -1068,17 +1052,82 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         List<Object> keys = (List<Object>) body.get("keys");
         options.setKeys(keys);
 
-        Map<String, Object> result = null;
-        result = db.getAllDocs(options);
-        convertCBLQueryRowsToMaps(result);
+        return sendAllDocs(options);
+    }
 
-        if (result == null) {
-            return new Status(Status.INTERNAL_SERVER_ERROR);
+    /**
+     * Writes the _all_docs response while the rows are read from the database, instead of
+     * building it in memory first, so it works for databases of any size.
+     */
+    private Status sendAllDocs(QueryOptions options) throws CouchbaseLiteException {
+        long updateSeq = options.isUpdateSeq() ? db.getLastSequenceNumber() : 0;
+        CloseableIterator<QueryRow> rows = db.getAllDocsIterator(options);
+        try {
+            Status status = startStreamedResponse();
+            if (!status.isSuccessful()) {
+                return status;
+            }
+            OutputStream os = connection.getResponseOutputStream();
+            try {
+                JsonGenerator generator = Manager.getObjectMapper().getFactory().createGenerator(os);
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("rows");
+                int nRows = 0;
+                while (rows.hasNext()) {
+                    generator.writeObject(rows.next().asJSONDictionary());
+                    nRows++;
+                }
+                generator.writeEndArray();
+                generator.writeNumberField("total_rows", nRows);
+                generator.writeNumberField("offset", options.getSkip());
+                if (updateSeq != 0) {
+                    generator.writeNumberField("update_seq", updateSeq);
+                }
+                generator.writeEndObject();
+                generator.close();
+            } catch (IOException e) {
+                Log.e(Log.TAG_ROUTER, "IOException writing _all_docs response", e);
+                closeQuietly(os);
+            } catch (SQLException e) {
+                // Too late to send an error status; cut the response short
+                Log.e(Log.TAG_ROUTER, "Error getting all docs", e);
+                closeQuietly(os);
+            }
+        } finally {
+            rows.close();
         }
-        connection.setResponseBody(new Body(result));
+        return new Status(0);
+    }
+
+    /**
+     * Sends the headers of a 200 response whose JSON body will be written directly to the
+     * response output stream, in chunks. Afterwards the handler must return a Status with code 0.
+     */
+    private Status startStreamedResponse() {
+        // Check for a mismatch between the Accept request header and the response type:
+        String accept = connection.getRequestProperty("Accept");
+        if (accept != null && !"*/*".equals(accept) && accept.indexOf("application/json") < 0) {
+            Log.e(Log.TAG_ROUTER, "Error 406: Can't satisfy request Accept: %s", accept);
+            return new Status(Status.NOT_ACCEPTABLE);
+        }
+        Header resHeader = connection.getResHeader();
+        resHeader.add("Server", String.format("Couchbase Lite %s", getVersionString()));
+        resHeader.add("Content-Type", "application/json");
+        connection.setChunked(true);
+        connection.setResponseCode(Status.OK);
+        responseStreamed = true;
+        sendResponse();
         return new Status(Status.OK);
     }
 
+    private static void closeQuietly(OutputStream os) {
+        try {
+            os.close();
+        } catch (IOException e) {
+            Log.e(Log.TAG_ROUTER, "Error closing output stream", e);
+        }
+    }
+
     public Status do_POST_facebook_token(Database _db, String _docID, String _attachmentName) {
 
         Map<String, Object> body = getBodyAsDictionary();
@@ -1401,6 +1450,52 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
         return result;
     }
 
+    /**
+     * Writes a normal (non-continuous, no conflicts) _changes response while the changes are
+     * read from the database, with the same content as responseBodyForChanges().
+     */
+    private Status sendChanges(long since, ChangesOptions options) {
+        CloseableIterator<RevisionInternal> changes;
+        try {
+            changes = db.changesSinceIterator(since, options, changesFilter, changesFilterParams);
+        } catch (SQLException e) {
+            Log.e(Log.TAG_ROUTER, "Error looking for changes", e);
+            return new Status(Status.INTERNAL_SERVER_ERROR);
+        }
+        try {
+            Status status = startStreamedResponse();
+            if (!status.isSuccessful()) {
+                return status;
+            }
+            OutputStream os = connection.getResponseOutputStream();
+            try {
+                JsonGenerator generator = Manager.getObjectMapper().getFactory().createGenerator(os);
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("results");
+                long lastSeq = since;
+                while (changes.hasNext()) {
+                    RevisionInternal rev = changes.next();
+                    generator.writeObject(changesDictForRevision(rev));
+                    lastSeq = rev.getSequence();
+                }
+                generator.writeEndArray();
+                generator.writeNumberField("last_seq", lastSeq);
+                generator.writeEndObject();
+                generator.close();
+            } catch (IOException e) {
+                Log.e(Log.TAG_ROUTER, "IOException writing _changes response", e);
+                closeQuietly(os);
+            } catch (SQLException e) {
+                // Too late to send an error status; cut the response short
+                Log.e(Log.TAG_ROUTER, "Error looking for changes", e);
+                closeQuietly(os);
+            }
+        } finally {
+            changes.close();
+        }
+        return new Status(0);
+    }
+
     private Map<String, Object> responseBodyForChangesWithConflicts(List<RevisionInternal> changes, long since) {
         // Assumes the changes are grouped by docID so that conflicts will be adjacent.
         List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
@@ -1530,16 +1625,20 @@ public class Router implements Database.ChangeListener, Database.DatabaseListene
             Log.v(Log.TAG_ROUTER, "Filter params=" + changesFilterParams);
         }
 
+        String feed = getQuery("feed");
+        longpoll = "longpoll".equals(feed);
+        boolean continuous = !longpoll && "continuous".equals(feed);
+
+        if (!continuous && !longpoll && !options.isIncludeConflicts()) {
+            return sendChanges(since, options);
+        }
+
         RevisionList changes = db.changesSince(since, options, changesFilter, changesFilterParams);
 
         if (changes == null) {
             return new Status(Status.INTERNAL_SERVER_ERROR);
         }
 
-        String feed = getQuery("feed");
-        longpoll = "longpoll".equals(feed);
-        boolean continuous = !longpoll && "continuous".equals(feed);
-
         if (continuous || (longpoll && changes.size() == 0)) {
             connection.setChunked(true);
             connection.setResponseCode(Status.OK);
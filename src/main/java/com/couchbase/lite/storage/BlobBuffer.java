@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable buffer for reading blob columns, filled by Cursor.copyBlobToBuffer().
+ * Modeled on android.database.CharArrayBuffer: the array is only reallocated when a blob
+ * doesn't fit, so reading many rows into the same buffer doesn't allocate per row.
+ */
+public final class BlobBuffer {
+    public byte[] data;
+    public int sizeCopied;
+
+    public BlobBuffer(int size) {
+        data = new byte[size];
+    }
+
+    public BlobBuffer(byte[] buf) {
+        data = buf;
+    }
+
+    /**
+     * Makes sure the buffer can hold at least the given number of bytes, growing it if needed.
+     * The previous contents are not preserved.
+     */
+    public void ensureCapacity(int size) {
+        if (data == null || data.length < size)
+            data = new byte[Math.max(size, data == null ? 0 : data.length * 2)];
+    }
+
+    /**
+     * Wraps the copied bytes without copying them. Only valid until the buffer is refilled.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, 0, sizeCopied);
+    }
+}
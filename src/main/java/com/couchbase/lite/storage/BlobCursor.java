@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+import java.nio.ByteBuffer;
+
+/**
+ * A Cursor that can also read columns without allocating per row, returned by a
+ * StatementStorageEngine.
+ */
+public interface BlobCursor extends Cursor {
+    double getDouble(int columnIndex);
+
+    /**
+     * Copies the blob in the column into the buffer, growing buffer.data only if it is too small,
+     * and sets buffer.sizeCopied. A NULL column sets sizeCopied to 0.
+     */
+    void copyBlobToBuffer(int columnIndex, BlobBuffer buffer);
+
+    /**
+     * Copies the blob in the column into the ByteBuffer at its current position.
+     *
+     * @return the number of bytes copied, or -1 (copying nothing) if the blob is larger than
+     *         buffer.remaining(). A NULL column copies nothing and returns 0.
+     */
+    int copyBlobToBuffer(int columnIndex, ByteBuffer buffer);
+}
@@ -0,0 +1,454 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bridges a SQLiteStorageEngine that doesn't implement StatementStorageEngine, emulating the
+ * newer methods with the plain ones:
+ * <ul>
+ * <li>Typed bind arguments of queries are passed as strings, so they only compare as numbers
+ * against columns with numeric affinity. Blobs and NULLs can't be bound in a query.</li>
+ * <li>A compiled statement just holds its SQL and bindings; every execution is parsed again.
+ * A single-row "INSERT [OR IGNORE|REPLACE] INTO table (columns) VALUES (?, ...)" is run by
+ * executeInsert() through the engine's insertOrThrow() or insertWithOnConflict(), so it takes
+ * one call and gets the row ID from the same connection; other statements are run with
+ * execSQL(), followed by "SELECT changes()" (and "last_insert_rowid()") if their results are
+ * needed, which is only correct if the engine has a single connection.</li>
+ * <li>A failure whose message reports a constraint violation is rethrown with the
+ * SQLException.SQLITE_CONSTRAINT code, in case the engine doesn't set it.</li>
+ * <li>Cursors read doubles from the column's string value and copy blobs from getBlob().</li>
+ * </ul>
+ */
+public final class LegacyStorageEngineAdapter implements StatementStorageEngine {
+    private final SQLiteStorageEngine engine;
+
+    private static final Pattern SIMPLE_INSERT = Pattern.compile(
+            "\\s*INSERT\\s+(?:OR\\s+(IGNORE|REPLACE)\\s+)?INTO\\s+('[^']+'|\"[^\"]+\"|\\w+)" +
+                    "\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\(([\\s?,]*)\\)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Returns the engine itself if it already implements StatementStorageEngine, else a bridge.
+     */
+    public static StatementStorageEngine adapt(SQLiteStorageEngine engine) {
+        if (engine instanceof StatementStorageEngine)
+            return (StatementStorageEngine) engine;
+        return new LegacyStorageEngineAdapter(engine);
+    }
+
+    private LegacyStorageEngineAdapter(SQLiteStorageEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public BlobCursor rawQuery(String sql, String[] selectionArgs) {
+        Cursor cursor = engine.rawQuery(sql, selectionArgs);
+        return cursor != null ? new LegacyCursor(cursor) : null;
+    }
+
+    @Override
+    public BlobCursor rawQuery(String sql, Object[] bindArgs) {
+        return rawQuery(sql, toSelectionArgs(bindArgs));
+    }
+
+    @Override
+    public SQLiteStatement compileStatement(String sql) throws SQLException {
+        return new LegacyStatement(sql);
+    }
+
+    /**
+     * Returns the exception with the SQLITE_CONSTRAINT code if its message says it's a
+     * constraint violation (as SQLite's "UNIQUE constraint failed: ..." does.)
+     */
+    static SQLException withConstraintCode(SQLException e) {
+        if (e.getCode() == SQLException.SQLITE_CONSTRAINT)
+            return e;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message != null && message.toLowerCase(Locale.US).contains("constraint"))
+                return new SQLException(SQLException.SQLITE_CONSTRAINT, e);
+            if (t.getCause() == t)
+                break;
+        }
+        return e;
+    }
+
+    private static String[] toSelectionArgs(Object[] bindArgs) {
+        if (bindArgs == null)
+            return null;
+        String[] args = new String[bindArgs.length];
+        for (int i = 0; i < bindArgs.length; i++) {
+            Object arg = bindArgs[i];
+            if (arg == null || arg instanceof byte[])
+                throw new SQLException("Storage engine can't bind " +
+                        (arg == null ? "NULL" : "a blob") + " to a query");
+            else if (arg instanceof Boolean)
+                args[i] = ((Boolean) arg) ? "1" : "0";
+            else
+                args[i] = arg.toString();
+        }
+        return args;
+    }
+
+    // #pragma mark - SQLiteStorageEngine:
+
+    @Override
+    public boolean open(String path) throws SQLException {
+        return engine.open(path);
+    }
+
+    @Override
+    public int getVersion() {
+        return engine.getVersion();
+    }
+
+    @Override
+    public void setVersion(int version) {
+        engine.setVersion(version);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return engine.isOpen();
+    }
+
+    @Override
+    public void beginTransaction() {
+        engine.beginTransaction();
+    }
+
+    @Override
+    public void endTransaction() {
+        engine.endTransaction();
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        engine.setTransactionSuccessful();
+    }
+
+    @Override
+    public void execSQL(String sql) throws SQLException {
+        engine.execSQL(sql);
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+        engine.execSQL(sql, bindArgs);
+    }
+
+    @Override
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        return engine.insert(table, nullColumnHack, values);
+    }
+
+    @Override
+    public long insertOrThrow(String table, String nullColumnHack, ContentValues values)
+            throws SQLException {
+        return engine.insertOrThrow(table, nullColumnHack, values);
+    }
+
+    @Override
+    public long insertWithOnConflict(String table, String nullColumnHack,
+                                     ContentValues initialValues, int conflictAlgorithm) {
+        return engine.insertWithOnConflict(table, nullColumnHack, initialValues,
+                conflictAlgorithm);
+    }
+
+    @Override
+    public int update(String table, ContentValues values, String whereClause,
+                      String[] whereArgs) {
+        return engine.update(table, values, whereClause, whereArgs);
+    }
+
+    @Override
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        return engine.delete(table, whereClause, whereArgs);
+    }
+
+    @Override
+    public void close() {
+        engine.close();
+    }
+
+    @Override
+    public boolean supportEncryption() {
+        return engine.supportEncryption();
+    }
+
+    @Override
+    public byte[] derivePBKDF2SHA256Key(String password, byte[] salt, int rounds) {
+        return engine.derivePBKDF2SHA256Key(password, salt, rounds);
+    }
+
+    // #pragma mark - STATEMENTS:
+
+    private final class LegacyStatement implements SQLiteStatement {
+        private final String sql;
+        private Object[] bindings = new Object[0];
+        private int bindingCount;
+        // Set if the statement is a simple insert that executeInsert() can run via the engine:
+        private String insertTable;
+        private String[] insertColumns;
+        private int insertConflictAlgorithm;
+
+        LegacyStatement(String sql) {
+            this.sql = sql;
+            Matcher m = SIMPLE_INSERT.matcher(sql);
+            if (m.matches()) {
+                String[] columns = m.group(3).split(",");
+                int nValues = m.group(4).replaceAll("[^?]", "").length();
+                if (nValues == columns.length) {
+                    for (int i = 0; i < columns.length; i++)
+                        columns[i] = columns[i].trim();
+                    String table = m.group(2);
+                    if (table.charAt(0) == '\'' || table.charAt(0) == '"')
+                        table = table.substring(1, table.length() - 1);
+                    insertTable = table;
+                    insertColumns = columns;
+                    if (m.group(1) == null)
+                        insertConflictAlgorithm = CONFLICT_NONE;
+                    else if (m.group(1).equalsIgnoreCase("IGNORE"))
+                        insertConflictAlgorithm = CONFLICT_IGNORE;
+                    else
+                        insertConflictAlgorithm = CONFLICT_REPLACE;
+                }
+            }
+        }
+
+        private void bind(int index, Object value) {
+            if (index > bindings.length)
+                bindings = Arrays.copyOf(bindings, Math.max(index, bindings.length * 2));
+            bindings[index - 1] = value;
+            bindingCount = Math.max(bindingCount, index);
+        }
+
+        private Object[] getBindArgs() {
+            return Arrays.copyOf(bindings, bindingCount);
+        }
+
+        private long queryForLong(String query) {
+            Cursor cursor = engine.rawQuery(query, null);
+            try {
+                return cursor.moveToNext() ? cursor.getLong(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public void bindNull(int index) {
+            bind(index, null);
+        }
+
+        @Override
+        public void bindLong(int index, long value) {
+            bind(index, value);
+        }
+
+        @Override
+        public void bindDouble(int index, double value) {
+            bind(index, value);
+        }
+
+        @Override
+        public void bindString(int index, String value) {
+            bind(index, value);
+        }
+
+        @Override
+        public void bindBlob(int index, byte[] value) {
+            bind(index, value);
+        }
+
+        @Override
+        public void clearBindings() {
+            Arrays.fill(bindings, null);
+        }
+
+        private void execSQL() throws SQLException {
+            try {
+                engine.execSQL(sql, getBindArgs());
+            } catch (SQLException e) {
+                throw withConstraintCode(e);
+            }
+        }
+
+        private ContentValues getInsertValues() {
+            ContentValues values = new ContentValues(insertColumns.length);
+            for (int i = 0; i < insertColumns.length; i++) {
+                Object value = i < bindingCount ? bindings[i] : null;
+                if (value == null)
+                    values.putNull(insertColumns[i]);
+                else if (value instanceof Long)
+                    values.put(insertColumns[i], (Long) value);
+                else if (value instanceof Double)
+                    values.put(insertColumns[i], (Double) value);
+                else if (value instanceof byte[])
+                    values.put(insertColumns[i], (byte[]) value);
+                else
+                    values.put(insertColumns[i], value.toString());
+            }
+            return values;
+        }
+
+        @Override
+        public void execute() throws SQLException {
+            execSQL();
+        }
+
+        @Override
+        public long executeInsert() throws SQLException {
+            if (insertTable != null) {
+                try {
+                    if (insertConflictAlgorithm == CONFLICT_NONE)
+                        return engine.insertOrThrow(insertTable, null, getInsertValues());
+                    return engine.insertWithOnConflict(insertTable, null, getInsertValues(),
+                            insertConflictAlgorithm);
+                } catch (SQLException e) {
+                    throw withConstraintCode(e);
+                }
+            }
+            execSQL();
+            if (queryForLong("SELECT changes()") == 0)
+                return -1;
+            return queryForLong("SELECT last_insert_rowid()");
+        }
+
+        @Override
+        public int executeUpdateDelete() throws SQLException {
+            execSQL();
+            return (int) queryForLong("SELECT changes()");
+        }
+
+        @Override
+        public long simpleQueryForLong() throws SQLException {
+            Cursor cursor = query();
+            try {
+                return cursor.moveToNext() ? cursor.getLong(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public String simpleQueryForString() throws SQLException {
+            Cursor cursor = query();
+            try {
+                return cursor.moveToNext() ? cursor.getString(0) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public BlobCursor query() throws SQLException {
+            return rawQuery(sql, getBindArgs());
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void close() {
+            bindings = null;
+        }
+    }
+
+    // #pragma mark - CURSORS:
+
+    private static final class LegacyCursor implements BlobCursor {
+        private final Cursor cursor;
+
+        LegacyCursor(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            String value = cursor.getString(columnIndex);
+            return value != null ? Double.parseDouble(value) : 0.0;
+        }
+
+        @Override
+        public void copyBlobToBuffer(int columnIndex, BlobBuffer buffer) {
+            byte[] blob = cursor.getBlob(columnIndex);
+            if (blob == null) {
+                buffer.sizeCopied = 0;
+                return;
+            }
+            buffer.ensureCapacity(blob.length);
+            System.arraycopy(blob, 0, buffer.data, 0, blob.length);
+            buffer.sizeCopied = blob.length;
+        }
+
+        @Override
+        public int copyBlobToBuffer(int columnIndex, ByteBuffer buffer) {
+            byte[] blob = cursor.getBlob(columnIndex);
+            if (blob == null)
+                return 0;
+            if (blob.length > buffer.remaining())
+                return -1;
+            buffer.put(blob);
+            return blob.length;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return cursor.moveToNext();
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return cursor.isAfterLast();
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            return cursor.getString(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return cursor.getInt(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return cursor.getLong(columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return cursor.getBlob(columnIndex);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return cursor.isNull(columnIndex);
+        }
+    }
+}
@@ -22,6 +22,8 @@ public class SQLException extends RuntimeException {
     // Note: needs to define other error code
     public static final int SQLITE_OK = 0;
     public static final int SQLITE_ERROR = 1;
+    public static final int SQLITE_BUSY = 5;
+    public static final int SQLITE_LOCKED = 6;
     public static final int SQLITE_CONSTRAINT = 19;
     
     private int code = SQLITE_ERROR;
@@ -49,4 +51,25 @@ public class SQLException extends RuntimeException {
     public int getCode() {
         return code;
     }
+
+    /**
+     * True if the operation failed because another connection was using the database
+     * (SQLITE_BUSY or SQLITE_LOCKED), so it may succeed if tried again. Storage engines that
+     * don't set the code are recognized by SQLite's error message.
+     */
+    public boolean isBusy() {
+        // (The extended result codes keep the primary code in the low byte)
+        int primaryCode = code & 0xFF;
+        if (primaryCode == SQLITE_BUSY || primaryCode == SQLITE_LOCKED)
+            return true;
+        for (Throwable t = this; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message != null && (message.contains("is locked") ||
+                    message.contains("SQLITE_BUSY") || message.contains("SQLITE_LOCKED")))
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+/**
+ * A pre-compiled SQL statement, created by SQLiteStorageEngine.compileStatement().
+ * <p/>
+ * The statement is parsed and planned once, and can then be bound, stepped and reset any number
+ * of times. Bind indexes are 1-based, as in SQLite. Bindings are kept across executions until
+ * clearBindings() is called or they are overwritten.
+ * <p/>
+ * A statement is not thread-safe; it must only be used by one thread at a time.
+ */
+public interface SQLiteStatement {
+
+    void bindNull(int index);
+
+    void bindLong(int index, long value);
+
+    void bindDouble(int index, double value);
+
+    void bindString(int index, String value);
+
+    void bindBlob(int index, byte[] value);
+
+    /**
+     * Clears all existing bindings. Unset bindings are treated as NULL.
+     */
+    void clearBindings();
+
+    /**
+     * Executes a statement that doesn't return rows (e.g. CREATE, UPDATE, DELETE).
+     */
+    void execute() throws SQLException;
+
+    /**
+     * Executes an INSERT statement.
+     *
+     * @return the row ID of the last row inserted, or -1 if the insert was ignored.
+     * @throws SQLException on failure; a constraint violation is reported with the
+     *                      SQLException.SQLITE_CONSTRAINT code.
+     */
+    long executeInsert() throws SQLException;
+
+    /**
+     * Executes an UPDATE or DELETE statement.
+     *
+     * @return the number of rows affected.
+     */
+    int executeUpdateDelete() throws SQLException;
+
+    /**
+     * Executes a query that returns a single value.
+     *
+     * @return the first column of the first row, or 0 if the query returned no rows.
+     */
+    long simpleQueryForLong() throws SQLException;
+
+    /**
+     * Executes a query that returns a single value.
+     *
+     * @return the first column of the first row, or null if the query returned no rows.
+     */
+    String simpleQueryForString() throws SQLException;
+
+    /**
+     * Steps through the result rows of the statement with the current bindings.
+     * The returned Cursor must be closed before the statement is executed again; closing it
+     * resets the statement but does not release it.
+     */
+    BlobCursor query() throws SQLException;
+
+    /**
+     * Resets the statement so it can be executed again. Bindings are not cleared.
+     */
+    void reset();
+
+    /**
+     * Releases the compiled statement. It cannot be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+/**
+ * A SQLiteStorageEngine that can also compile statements and bind typed arguments to queries.
+ * <p/>
+ * SQLiteStore uses these on its hot paths. An engine that only implements SQLiteStorageEngine
+ * still works: SQLiteStore wraps it in a LegacyStorageEngineAdapter, which emulates them on
+ * top of the plain SQLiteStorageEngine methods (more slowly.)
+ */
+public interface StatementStorageEngine extends SQLiteStorageEngine {
+
+    @Override
+    BlobCursor rawQuery(String sql, String[] selectionArgs);
+
+    /**
+     * Runs the query with typed bind arguments: Long, Integer, Short, Byte and Boolean are bound
+     * as integers, Double and Float as reals, byte[] as a blob, null as NULL, and anything
+     * else as its toString() value.
+     */
+    BlobCursor rawQuery(String sql, Object[] bindArgs);
+
+    /**
+     * Compiles a SQL statement for repeated execution. The caller owns the returned statement
+     * and must close() it when it is no longer needed.
+     */
+    SQLiteStatement compileStatement(String sql) throws SQLException;
+}
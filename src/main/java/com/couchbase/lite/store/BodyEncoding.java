@@ -0,0 +1,126 @@
+//
+//  BodyEncoding.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.util.Log;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The format revision bodies are stored in, in the revs.json column.
+ * <p/>
+ * Revisions are always created from canonical JSON (which is what their revIDs are computed
+ * from); encode() converts that to the stored format. The format of a stored body is recognized
+ * from its first bytes, so rows written in different formats can be mixed in one database and
+ * readProperties() parses any of them. Canonical JSON is only regenerated if something asks
+ * the revision for it.
+ */
+abstract class BodyEncoding {
+    private static final String TAG = Log.TAG_DATABASE;
+
+    /**
+     * Plain canonical JSON; stored as is.
+     */
+    static final BodyEncoding JSON = new BodyEncoding(ManagerOptions.BODY_ENCODING_JSON) {
+        @Override
+        byte[] encode(byte[] json) {
+            return json;
+        }
+    };
+
+    /**
+     * Jackson's binary "Smile" format, which is faster to parse. Keys and short string values
+     * that repeat within a body are written once and back-referenced.
+     */
+    static final BodyEncoding SMILE = new BodyEncoding(ManagerOptions.BODY_ENCODING_SMILE) {
+        @Override
+        byte[] encode(byte[] json) {
+            // Empty and "{}" bodies are special-cased by readers; leave them alone:
+            if (json == null || json.length <= 2)
+                return json;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+            try {
+                JsonParser parser = Manager.getObjectMapper().getFactory().createParser(json);
+                JsonGenerator generator = smileMapper.getFactory().createGenerator(out);
+                try {
+                    parser.nextToken();
+                    generator.copyCurrentStructure(parser);
+                } finally {
+                    generator.close();
+                    parser.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to convert revision body to Smile; storing it as JSON", e);
+                return json;
+            }
+            return out.toByteArray();
+        }
+    };
+
+    // Every Smile document starts with this header (written by default by SmileGenerator)
+    private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+
+    private static final ObjectMapper smileMapper;
+
+    static {
+        SmileFactory factory = new SmileFactory();
+        factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+        smileMapper = new ObjectMapper(factory);
+    }
+
+    private final String name;
+
+    private BodyEncoding(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the encoding with the given name (one of the ManagerOptions.BODY_ENCODING_ values),
+     * or null if there isn't one.
+     */
+    static BodyEncoding forName(String name) {
+        if (JSON.name.equals(name))
+            return JSON;
+        else if (SMILE.name.equals(name))
+            return SMILE;
+        return null;
+    }
+
+    /**
+     * Converts a canonical JSON body to this encoding.
+     */
+    abstract byte[] encode(byte[] json);
+
+    static boolean isSmile(byte[] body, int offset, int length) {
+        return body != null && length >= SMILE_HEADER.length &&
+                body[offset] == SMILE_HEADER[0] &&
+                body[offset + 1] == SMILE_HEADER[1] &&
+                body[offset + 2] == SMILE_HEADER[2];
+    }
+
+    /**
+     * Parses a stored (uncompressed) body, in whichever encoding it was written.
+     */
+    static Map<String, Object> readProperties(byte[] body, int offset, int length)
+            throws IOException {
+        ObjectMapper mapper = isSmile(body, offset, length) ?
+                smileMapper : Manager.getObjectMapper();
+        return mapper.readValue(body, offset, length, Map.class);
+    }
+}
@@ -0,0 +1,100 @@
+//
+//  BusyRetryPolicy.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.storage.SQLException;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether, and after how long, SQLiteStore retries a transaction that failed because the
+ * database was busy or locked. The n-th retry waits for a random delay between half and all of
+ * baseDelayMs * 2^(n-1), capped at MAX_DELAY_MS, so that competing writers spread out.
+ * Also counts the retries, and the transactions that failed even so.
+ */
+public class BusyRetryPolicy {
+
+    public static final long MAX_DELAY_MS = 2000;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final Random random = new Random();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    public BusyRetryPolicy(int maxAttempts, long baseDelayMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = Math.max(0, baseDelayMs);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * The number of times a busy transaction has been retried.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * The number of transactions that were still busy after the last attempt.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Called after attempt number `attempt` (starting at 1) failed because the database was busy.
+     * If it should be retried, waits before returning true.
+     */
+    boolean shouldRetry(int attempt) {
+        if (attempt >= maxAttempts) {
+            failureCount.incrementAndGet();
+            return false;
+        }
+        long delay = delayMs(attempt);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failureCount.incrementAndGet();
+                return false;
+            }
+        }
+        retryCount.incrementAndGet();
+        return true;
+    }
+
+    long delayMs(int attempt) {
+        long delay = Math.min(MAX_DELAY_MS, baseDelayMs << Math.min(attempt - 1, 16));
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    /**
+     * True if the exception, or one it was caused by, reports that the database was busy.
+     */
+    static boolean isBusy(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException && ((SQLException) t).isBusy())
+                return true;
+            if (t instanceof CouchbaseLiteException &&
+                    ((CouchbaseLiteException) t).getCBLStatus().getCode() == Status.DB_BUSY)
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+//
+//  EmitBuffer.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Collects the rows a view's map function emits, with their keys and values already converted
+ * to JSON, until SQLiteViewStore inserts them into the view's index in one go.
+ */
+class EmitBuffer {
+
+    /**
+     * Converts keys and values to JSON, reusing one generator and output buffer instead of
+     * creating new ones for each value as ObjectMapper.writeValueAsString() does.
+     * Not thread-safe.
+     */
+    static final class Serializer {
+        private final StringWriter writer = new StringWriter(256);
+        private JsonGenerator generator;
+
+        String toJSON(Object object) throws IOException {
+            if (generator == null) {
+                generator = Manager.getObjectMapper().getFactory().createGenerator(writer);
+                generator.setRootValueSeparator(null);
+            }
+            writer.getBuffer().setLength(0);
+            boolean ok = false;
+            try {
+                Manager.getObjectMapper().writeValue(generator, object);
+                generator.flush();
+                ok = true;
+            } finally {
+                if (!ok)
+                    generator = null;  // it may be left in the middle of a value
+            }
+            return writer.toString();
+        }
+    }
+
+    private final Serializer serializer;
+    private long[] sequences = new long[16];
+    private String[] keys = new String[16];
+    private String[] values = new String[16];
+    private int count = 0;
+
+    EmitBuffer(Serializer serializer) {
+        this.serializer = serializer;
+    }
+
+    void add(long sequence, Object key, Object value) throws IOException {
+        String keyJson = serializer.toJSON(key);
+        String valueJson = value != null ? serializer.toJSON(value) : null;
+        if (count == sequences.length) {
+            int capacity = count * 2;
+            sequences = Arrays.copyOf(sequences, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        sequences[count] = sequence;
+        keys[count] = keyJson;
+        values[count] = valueJson;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Inserts the rows in the order they were emitted, then empties the buffer.
+     * @param statement "INSERT INTO 'maps_#' (sequence, key, value) VALUES(?,?,?)"
+     */
+    void insertInto(SQLiteStatement statement) {
+        try {
+            for (int i = 0; i < count; i++) {
+                statement.bindLong(1, sequences[i]);
+                statement.bindString(2, keys[i]);
+                if (values[i] != null)
+                    statement.bindString(3, values[i]);
+                else
+                    statement.bindNull(3);
+                // (Not executeInsert(): the row ID isn't needed, and an engine without compiled
+                // statements would need extra queries to find it)
+                statement.execute();
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+    }
+}
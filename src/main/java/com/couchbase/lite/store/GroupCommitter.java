@@ -0,0 +1,193 @@
+//
+//  GroupCommitter.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for SQLiteStore: transactions submitted from any thread are queued, and a single
+ * committer thread runs whatever has arrived within the commit window back-to-back inside one
+ * outer transaction, so they share one commit (and one fsync.) Each task still runs in its own
+ * nested transaction, so a task that fails is rolled back on its own.
+ * <p/>
+ * Callers block until the shared transaction has been committed or rolled back.
+ */
+class GroupCommitter {
+    private static final String TAG = Log.TAG_DATABASE;
+
+    // Max number of tasks that go into one shared transaction
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Runs a batch of tasks in one shared transaction. Implemented by SQLiteStore.
+     */
+    interface Committer {
+        /**
+         * Runs each job's task in its own nested transaction, inside one outer transaction, and
+         * sets each job's result.
+         */
+        void commitGroup(List<Job> jobs);
+    }
+
+    /**
+     * A queued transaction, and its outcome once the group it was part of has ended.
+     */
+    static class Job {
+        final TransactionalTask task;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean committed;
+        private RuntimeException exception;
+
+        Job(TransactionalTask task) {
+            this.task = task;
+        }
+
+        void complete(boolean committed, RuntimeException exception) {
+            this.committed = committed;
+            this.exception = exception;
+            done.countDown();
+        }
+
+        boolean await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (exception != null)
+                throw exception;
+            return committed;
+        }
+    }
+
+    // Queued to tell the committer thread to stop once it has run everything before it
+    private static final Job STOP = new Job(null);
+
+    private final Committer committer;
+    private final long windowMs;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+    private final Thread thread;
+    // Guards stopped, so that no job can be queued after STOP:
+    private final Object lock = new Object();
+    private boolean stopped = false;
+
+    GroupCommitter(String name, Committer committer, long windowMs) {
+        this.committer = committer;
+        this.windowMs = windowMs;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "CBLGroupCommit-" + name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * True if called on the committer thread, i.e. from inside a task or from a change
+     * listener notified after a group commit. Such calls must not be queued, or the thread
+     * would wait for itself.
+     */
+    boolean isCommitterThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queues the task and waits until the group it ends up in has been committed.
+     *
+     * @return true if the task returned true and its changes were committed.
+     */
+    boolean run(TransactionalTask task) {
+        Job job = new Job(task);
+        synchronized (lock) {
+            if (stopped)
+                throw new IllegalStateException("Database is closed");
+            queue.add(job);
+        }
+        return job.await();
+    }
+
+    /**
+     * Runs the tasks that are already queued, then stops the committer thread.
+     */
+    void stop() {
+        synchronized (lock) {
+            if (stopped)
+                return;
+            stopped = true;
+            queue.add(STOP);
+        }
+        if (!isCommitterThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runLoop() {
+        List<Job> jobs = new ArrayList<Job>();
+        boolean stopping = false;
+        while (!stopping) {
+            jobs.clear();
+            try {
+                Job job = queue.take();
+                if (job == STOP)
+                    break;
+                jobs.add(job);
+                // Give other writers until the end of the window to join this group:
+                long deadline = System.currentTimeMillis() + windowMs;
+                while (jobs.size() < MAX_BATCH_SIZE) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    job = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (job == null)
+                        break;
+                    if (job == STOP) {
+                        stopping = true;
+                        break;
+                    }
+                    jobs.add(job);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "%s interrupted", e, thread.getName());
+                if (jobs.isEmpty())
+                    continue;
+            }
+
+            try {
+                committer.commitGroup(jobs);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "%s: group commit of %d transactions failed", e, thread.getName(),
+                        jobs.size());
+                for (Job job : jobs)
+                    job.complete(false, e);
+            }
+        }
+
+        // Anything queued after STOP can't be run any more:
+        Job job;
+        while ((job = queue.poll()) != null) {
+            if (job != STOP)
+                job.complete(false, new IllegalStateException("Database is closed"));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+//
+//  JsonCollator.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.View;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders parsed JSON values (as produced by Jackson) the way the native JSON collators used by
+ * SQLiteViewStore order their JSON text, for view stores that keep their keys in memory.
+ * <p/>
+ * Unicode collation: null < false < true < numbers < strings < arrays < objects. Strings are
+ * compared a character at a time; ASCII characters by the same priority table as the native
+ * collator (whitespace, then punctuation, then digits, then letters with lowercase first), and
+ * all other characters after ASCII, by code unit. ASCII collation compares strings by code unit.
+ * Raw collation orders types as numbers < false < null < true < objects < arrays < strings.
+ */
+class JsonCollator implements Comparator<Object> {
+
+    // ASCII characters in collation order; those not listed (controls) sort first:
+    private static final String ASCII_ORDER =
+            "\t\n\u000b\f\r " +
+            "_-,;:!?.'\"()[]{}@*/\\&#%`^+<=>|~$" +
+            "0123456789" +
+            "aAbBcCdDeEfFgGhHiIjJkKlLmMnNoOpPqQrRsStTuUvVwWxXyYzZ";
+
+    private static final int[] CHAR_PRIORITY = new int[128];
+
+    static {
+        for (int i = 0; i < ASCII_ORDER.length(); i++)
+            CHAR_PRIORITY[ASCII_ORDER.charAt(i)] = i + 1;
+    }
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_FALSE = 1;
+    private static final int TYPE_TRUE = 2;
+    private static final int TYPE_NUMBER = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_ARRAY = 5;
+    private static final int TYPE_OBJECT = 6;
+
+    // Position of each type in raw collation, indexed by the TYPE_ constants:
+    private static final int[] RAW_TYPE_ORDER = {1, 0, 2, 3, 6, 5, 4};
+
+    private final View.TDViewCollation collation;
+
+    JsonCollator(View.TDViewCollation collation) {
+        this.collation = collation;
+    }
+
+    View.TDViewCollation getCollation() {
+        return collation;
+    }
+
+    @Override
+    public int compare(Object value1, Object value2) {
+        int type1 = typeOf(value1);
+        int type2 = typeOf(value2);
+        if (type1 != type2) {
+            if (collation == View.TDViewCollation.TDViewCollationRaw)
+                return RAW_TYPE_ORDER[type1] - RAW_TYPE_ORDER[type2];
+            return type1 - type2;
+        }
+        switch (type1) {
+            case TYPE_NUMBER:
+                return Double.compare(((Number) value1).doubleValue(),
+                        ((Number) value2).doubleValue());
+            case TYPE_STRING:
+                return compareStrings((String) value1, (String) value2);
+            case TYPE_ARRAY:
+                return compareArrays((List<?>) value1, (List<?>) value2);
+            case TYPE_OBJECT:
+                return compareObjects((Map<?, ?>) value1, (Map<?, ?>) value2);
+            default:
+                return 0;
+        }
+    }
+
+    private static int typeOf(Object value) {
+        if (value == null)
+            return TYPE_NULL;
+        else if (value instanceof Boolean)
+            return ((Boolean) value) ? TYPE_TRUE : TYPE_FALSE;
+        else if (value instanceof Number)
+            return TYPE_NUMBER;
+        else if (value instanceof List)
+            return TYPE_ARRAY;
+        else if (value instanceof Map)
+            return TYPE_OBJECT;
+        return TYPE_STRING;
+    }
+
+    private int compareStrings(String str1, String str2) {
+        if (collation != View.TDViewCollation.TDViewCollationUnicode)
+            return str1.compareTo(str2);
+        int n = Math.min(str1.length(), str2.length());
+        for (int i = 0; i < n; i++) {
+            char c1 = str1.charAt(i);
+            char c2 = str2.charAt(i);
+            if (c1 == c2)
+                continue;
+            if (c1 < 128 && c2 < 128) {
+                int result = CHAR_PRIORITY[c1] - CHAR_PRIORITY[c2];
+                return result != 0 ? result : c1 - c2;
+            } else if (c1 < 128) {
+                return -1;
+            } else if (c2 < 128) {
+                return 1;
+            }
+            return c1 - c2;
+        }
+        return str1.length() - str2.length();
+    }
+
+    private int compareArrays(List<?> list1, List<?> list2) {
+        int n = Math.min(list1.size(), list2.size());
+        for (int i = 0; i < n; i++) {
+            int result = compare(list1.get(i), list2.get(i));
+            if (result != 0)
+                return result;
+        }
+        return list1.size() - list2.size();
+    }
+
+    private int compareObjects(Map<?, ?> map1, Map<?, ?> map2) {
+        // Keys and values are compared pairwise, in the order they appear:
+        Iterator<? extends Map.Entry<?, ?>> i1 = map1.entrySet().iterator();
+        Iterator<? extends Map.Entry<?, ?>> i2 = map2.entrySet().iterator();
+        while (i1.hasNext() && i2.hasNext()) {
+            Map.Entry<?, ?> entry1 = i1.next();
+            Map.Entry<?, ?> entry2 = i2.next();
+            int result = compare(String.valueOf(entry1.getKey()), String.valueOf(entry2.getKey()));
+            if (result == 0)
+                result = compare(entry1.getValue(), entry2.getValue());
+            if (result != 0)
+                return result;
+        }
+        return map1.size() - map2.size();
+    }
+}
@@ -0,0 +1,602 @@
+//
+//  LogStore.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.CompactionListener;
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A Store that keeps its data in an append-only log file, for write-heavy workloads such as
+ * replication ingest, where SQLite's random B-tree writes are the bottleneck. Select it with
+ * ManagerOptions.setStoreClassName(LogStore.class.getName()).
+ * <p/>
+ * The documents, revision trees and indexes by document ID and sequence are kept in memory, as
+ * by MemoryStore. Every change is also appended to the log; the changes made by a transaction
+ * are buffered and written, followed by a commit record, with a single write and fsync when the
+ * outermost transaction commits, and dropped if it's rolled back. On open the log is
+ * memory-mapped and replayed; anything after the last commit record (a transaction torn by a
+ * crash during a write, or a damaged record) is discarded.
+ * <p/>
+ * Replaced revisions, bodies dropped by compaction and overwritten local documents and info
+ * leave dead records behind, so the log is rewritten from the live contents after compact(),
+ * and in the background whenever it has doubled in size since it was last rewritten.
+ * View indexes aren't logged; they're rebuilt after the database is reopened.
+ */
+public class LogStore extends MemoryStore {
+
+    public static String TAG = Log.TAG_DATABASE;
+
+    public static String kLogFilename = "db.log";
+
+    private static final byte[] MAGIC = "CBLLOG02".getBytes(Charset.forName("UTF-8"));
+
+    // Record types:
+    private static final byte RECORD_REVISION = 1;
+    private static final byte RECORD_DELETION = 2;
+    private static final byte RECORD_LOCAL_DOC = 3;
+    private static final byte RECORD_INFO = 4;
+    // Ends a transaction; the records since the previous one are only applied if it's there:
+    private static final byte RECORD_COMMIT = 5;
+
+    // Each record starts with the length of its payload and the payload's CRC32:
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    // The log isn't rewritten in the background until it's at least this big:
+    private static final long MIN_REWRITE_SIZE = 4 * 1024 * 1024;
+
+    private final String directory;
+    private File logFile;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long sizeAfterRewrite;
+    private boolean rewriteScheduled;
+    private ExecutorService rewriteExecutor;
+    private final LogWriter writer = new LogWriter(true);
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////
+
+    public LogStore(String directory, Manager manager, StoreDelegate delegate) {
+        super(directory, manager, delegate);
+        this.directory = directory;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // INITIALIZATION AND CONFIGURATION:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public boolean databaseExists(String directory) {
+        return new File(directory, kLogFilename).exists();
+    }
+
+    @Override
+    public void open() throws CouchbaseLiteException {
+        lock();
+        try {
+            logFile = new File(directory, kLogFilename);
+            Log.v(TAG, "Opening log %s", logFile);
+            try {
+                openLog();
+                replay();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open log %s", e, logFile);
+                closeLog();
+                throw new CouchbaseLiteException("Unable to open log", e,
+                        Status.DB_ERROR);
+            }
+            setJournal(writer);
+        } finally {
+            unlock();
+        }
+        rewriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CBLLogStoreRewriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        ExecutorService executor;
+        lock();
+        try {
+            executor = rewriteExecutor;
+            rewriteExecutor = null;
+        } finally {
+            unlock();
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted waiting for the log to be rewritten", e);
+            }
+        }
+        lock();
+        try {
+            setJournal(null);
+            closeLog();
+        } finally {
+            unlock();
+        }
+        super.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // DATABASE ATTRIBUTES & OPERATIONS:
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compacts the database, then rewrites the log without the records compaction made dead.
+     */
+    @Override
+    public void compact() throws CouchbaseLiteException {
+        super.compact();
+        rewriteLog();
+    }
+
+    @Override
+    public boolean compactIncrementally(int docsPerChunk, CompactionListener listener)
+            throws CouchbaseLiteException {
+        boolean finished = super.compactIncrementally(docsPerChunk, listener);
+        if (finished)
+            rewriteLog();
+        return finished;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Internal (Private) Instance Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void openLog() throws IOException {
+        file = new RandomAccessFile(logFile, "rw");
+        channel = file.getChannel();
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap(MAGIC), 0);
+            channel.force(true);
+        }
+        channel.position(channel.size());
+    }
+
+    private void closeLog() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing log %s", e, logFile);
+            }
+        }
+        file = null;
+        channel = null;
+    }
+
+    /**
+     * Applies the log's committed records, through the memory-mapped file. Everything after the
+     * last intact commit record (an incomplete transaction, or a damaged record and whatever
+     * follows it) is truncated.
+     */
+    private void replay() throws IOException {
+        long size = channel.size();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        byte[] magic = new byte[MAGIC.length];
+        if (size < MAGIC.length) {
+            throw new IOException("Not a log file");
+        }
+        buffer.get(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i])
+                throw new IOException("Not a log file");
+        }
+
+        // First find where the last complete transaction ends, then apply everything before it:
+        int start = buffer.position();
+        int end = findCommittedEnd(buffer);
+        buffer.position(start);
+        int nRecords = 0;
+        while (buffer.position() < end) {
+            int length = buffer.getInt();
+            buffer.getInt();  // checksum, already verified
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (payload[0] != RECORD_COMMIT)
+                applyRecord(payload);
+            nRecords++;
+        }
+        if (end < size) {
+            Log.w(TAG, "Discarding %d bytes of incomplete or damaged log at offset %d",
+                    size - end, end);
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        sizeAfterRewrite = end;
+        restoreWinners();
+        Log.v(TAG, "Replayed %d log records (%d bytes)", nRecords, end);
+    }
+
+    /**
+     * Checks the records from the buffer's position on.
+     *
+     * @return the offset just past the last commit record that is preceded only by intact
+     * records.
+     */
+    private static int findCommittedEnd(ByteBuffer buffer) {
+        int end = buffer.position();
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[0];
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining())
+                break;
+            if (payload.length < length)
+                payload = new byte[length];
+            buffer.get(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            if (payload[0] == RECORD_COMMIT)
+                end = buffer.position();
+        }
+        return end;
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_REVISION: {
+                String docID = readString(in);
+                String revID = readString(in);
+                long sequence = in.readLong();
+                boolean deleted = in.readBoolean();
+                String parentRevID = readString(in);
+                boolean current = in.readBoolean();
+                byte[] json = readBytes(in);
+                boolean hasAttachments = in.readBoolean();
+                List<String> digests = null;
+                int nDigests = in.readInt();
+                if (nDigests >= 0) {
+                    digests = new ArrayList<String>(nDigests);
+                    for (int i = 0; i < nDigests; i++)
+                        digests.add(readString(in));
+                }
+                restoreRevision(docID, revID, sequence, deleted, parentRevID, current, json,
+                        hasAttachments, digests);
+                break;
+            }
+            case RECORD_DELETION:
+                restoreDeletion(readString(in), readString(in));
+                break;
+            case RECORD_LOCAL_DOC:
+                restoreLocalDoc(readString(in), readString(in), readBytes(in));
+                break;
+            case RECORD_INFO:
+                setInfo(readString(in), readString(in));
+                break;
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    /**
+     * Appends records to the log, and makes them durable. The caller must hold the lock.
+     */
+    private void appendToLog(byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+    }
+
+    private void scheduleRewriteIfNeeded() throws IOException {
+        long size = channel.size();
+        if (rewriteScheduled || rewriteExecutor == null ||
+                size < MIN_REWRITE_SIZE || size < 2 * sizeAfterRewrite)
+            return;
+        rewriteScheduled = true;
+        rewriteExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rewriteLog();
+                } catch (CouchbaseLiteException e) {
+                    Log.e(TAG, "Unable to rewrite log", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the log with one holding only the records needed to recreate the current
+     * contents. It's written to a temporary file that's renamed over the log once it's durable,
+     * so a crash leaves either the old log or the new one.
+     */
+    private void rewriteLog() throws CouchbaseLiteException {
+        lock();
+        try {
+            rewriteScheduled = false;
+            // A snapshot taken in a transaction would include changes that may be rolled back:
+            if (channel == null || inTransaction())
+                return;
+            File tempFile = new File(directory, kLogFilename + ".tmp");
+            long oldSize = channel.size();
+            RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+            try {
+                FileChannel tempChannel = temp.getChannel();
+                tempChannel.truncate(0);
+                tempChannel.write(ByteBuffer.wrap(MAGIC));
+                LogWriter snapshot = new LogWriter(false);
+                journalContents(snapshot);
+                snapshot.writeCommit();
+                ByteBuffer buffer = ByteBuffer.wrap(snapshot.buffer.bytes(), 0,
+                        snapshot.buffer.size());
+                while (buffer.hasRemaining())
+                    tempChannel.write(buffer);
+                tempChannel.force(true);
+            } finally {
+                temp.close();
+            }
+            closeLog();
+            if (!tempFile.renameTo(logFile)) {
+                tempFile.delete();
+                openLog();
+                throw new CouchbaseLiteException("Unable to replace log",
+                        Status.INTERNAL_SERVER_ERROR);
+            }
+            openLog();
+            sizeAfterRewrite = channel.size();
+            Log.v(TAG, "Rewrote log: %d bytes -> %d bytes", oldSize, sizeAfterRewrite);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to rewrite log %s", e, logFile);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            unlock();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s != null ? s.getBytes(Charset.forName("UTF-8")) : null);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, Charset.forName("UTF-8")) : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * A ByteArrayOutputStream that can be truncated, and give access to its buffer.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+
+        void truncate(int size) {
+            count = size;
+        }
+    }
+
+    /**
+     * Encodes the changes journaled by the MemoryStore as log records. Records of a transaction
+     * are buffered until the outermost transaction ends; those of a rolled-back (nested)
+     * transaction are removed from the buffer. Changes made outside of a transaction are written
+     * immediately, each as a transaction of its own.
+     */
+    private final class LogWriter implements Journal {
+        final RecordBuffer buffer = new RecordBuffer();
+        private final DataOutputStream out = new DataOutputStream(buffer);
+        private final boolean writeThrough;
+        private final List<Integer> marks = new ArrayList<Integer>();
+        private final CRC32 crc = new CRC32();
+        private boolean failed;
+
+        /**
+         * @param writeThrough whether records made outside of a transaction are written to the
+         *                     log right away, rather than just buffered.
+         */
+        LogWriter(boolean writeThrough) {
+            this.writeThrough = writeThrough;
+        }
+
+        @Override
+        public void beginTransaction() {
+            marks.add(buffer.size());
+        }
+
+        @Override
+        public boolean endTransaction(boolean commit) {
+            int mark = marks.remove(marks.size() - 1);
+            if (!commit)
+                buffer.truncate(mark);
+            if (marks.isEmpty())
+                return flush();
+            return !failed;
+        }
+
+        @Override
+        public void revisionInserted(Rev rev) {
+            writeRevision(rev);
+        }
+
+        @Override
+        public void revisionUpdated(Rev rev) {
+            writeRevision(rev);
+        }
+
+        @Override
+        public void revisionDeleted(Rev rev) {
+            try {
+                int start = startRecord(RECORD_DELETION);
+                writeString(out, rev.doc.docID);
+                writeString(out, rev.revID);
+                endRecord(start);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+
+        @Override
+        public void localDocChanged(String docID, String revID, byte[] json) {
+            try {
+                int start = startRecord(RECORD_LOCAL_DOC);
+                writeString(out, docID);
+                writeString(out, revID);
+                writeBytes(out, json);
+                endRecord(start);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+
+        @Override
+        public void infoChanged(String key, String value) {
+            try {
+                int start = startRecord(RECORD_INFO);
+                writeString(out, key);
+                writeString(out, value);
+                endRecord(start);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+
+        /**
+         * Ends the buffered records with a commit record.
+         */
+        void writeCommit() throws IOException {
+            int start = startRecord(RECORD_COMMIT);
+            out.flush();
+            finishRecord(start);
+        }
+
+        private void writeRevision(Rev rev) {
+            try {
+                int start = startRecord(RECORD_REVISION);
+                writeString(out, rev.doc.docID);
+                writeString(out, rev.revID);
+                out.writeLong(rev.sequence);
+                out.writeBoolean(rev.deleted);
+                writeString(out, rev.parent != null ? rev.parent.revID : null);
+                out.writeBoolean(rev.current);
+                writeBytes(out, rev.json);
+                out.writeBoolean(rev.hasAttachments);
+                if (rev.attachmentDigests == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(rev.attachmentDigests.size());
+                    for (String digest : rev.attachmentDigests)
+                        writeString(out, digest);
+                }
+                endRecord(start);
+            } catch (IOException e) {
+                recordFailed(e);
+            }
+        }
+
+        private int startRecord(byte type) throws IOException {
+            int start = buffer.size();
+            out.writeLong(0); // header, filled in by endRecord()
+            out.writeByte(type);
+            return start;
+        }
+
+        private void endRecord(int start) throws IOException {
+            out.flush();
+            finishRecord(start);
+            if (marks.isEmpty() && writeThrough)
+                flush();
+        }
+
+        /**
+         * Fills in the header of the record that starts at the given offset of the buffer.
+         */
+        private void finishRecord(int start) {
+            byte[] bytes = buffer.bytes();
+            int length = buffer.size() - start - RECORD_HEADER_SIZE;
+            crc.reset();
+            crc.update(bytes, start + RECORD_HEADER_SIZE, length);
+            ByteBuffer.wrap(bytes, start, RECORD_HEADER_SIZE)
+                    .putInt(length).putInt((int) crc.getValue());
+        }
+
+        private void recordFailed(IOException e) {
+            Log.e(TAG, "Unable to encode log record", e);
+            failed = true;
+        }
+
+        /**
+         * Writes out the buffered records as one transaction. If any of them couldn't be encoded
+         * the transaction would be incomplete, so nothing is written.
+         *
+         * @return false if the records couldn't be encoded or written.
+         */
+        private boolean flush() {
+            boolean ok = !failed;
+            failed = false;
+            try {
+                if (ok && buffer.size() > 0 && channel != null) {
+                    writeCommit();
+                    appendToLog(buffer.bytes(), buffer.size());
+                    scheduleRewriteIfNeeded();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write to log %s", e, logFile);
+                ok = false;
+            } finally {
+                buffer.reset();
+            }
+            return ok;
+        }
+    }
+}
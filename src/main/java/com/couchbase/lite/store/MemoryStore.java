@@ -0,0 +1,1850 @@
+//
+//  MemoryStore.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.BlobKey;
+import com.couchbase.lite.ChangesOptions;
+import com.couchbase.lite.CompactionListener;
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.DatabaseStats;
+import com.couchbase.lite.DocumentChange;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.Misc;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryOptions;
+import com.couchbase.lite.QueryRow;
+import com.couchbase.lite.ReplicationFilter;
+import com.couchbase.lite.RevisionList;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.View;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.RevisionUtils;
+import com.couchbase.lite.util.CloseableIterator;
+import com.couchbase.lite.util.Log;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Store that keeps everything on the Java heap, in sorted maps, with the same revision-tree,
+ * conflict and query semantics as SQLiteStore. It's meant for tests and short-lived scratch
+ * databases, where the cost of SQLite isn't worth paying. Select it with
+ * ManagerOptions.setStoreClassName(MemoryStore.class.getName()).
+ * <p/>
+ * Nothing is written to disk, and the contents are discarded when the store is closed.
+ * (Attachments are still kept in the database directory by the BlobStore.)
+ * <p/>
+ * One lock guards all the data. Readers take it for the duration of a call; a transaction
+ * holds it from beginTransaction() to the matching endTransaction(), so other threads see its
+ * changes only once it has ended. Every change made in a transaction records how to undo it,
+ * and rolling back a (nested) transaction undoes the changes made since it began.
+ */
+public class MemoryStore implements Store {
+
+    public static String TAG = Log.TAG_DATABASE;
+
+    private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
+
+    // Current revisions ordered as SQLiteStore picks the winner: undeleted first, then by
+    // descending revID.
+    private static final Comparator<Rev> WINNER_ORDER = new Comparator<Rev>() {
+        @Override
+        public int compare(Rev rev1, Rev rev2) {
+            if (rev1.deleted != rev2.deleted)
+                return rev1.deleted ? 1 : -1;
+            return RevisionInternal.CBLCollateRevIDs(rev2.revID, rev1.revID);
+        }
+    };
+
+    private static final Comparator<Rev> SEQUENCE_DESC_ORDER = new Comparator<Rev>() {
+        @Override
+        public int compare(Rev rev1, Rev rev2) {
+            return rev1.sequence < rev2.sequence ? 1 : (rev1.sequence > rev2.sequence ? -1 : 0);
+        }
+    };
+
+    private String directory;
+    private StoreDelegate delegate;
+    private int maxRevTreeDepth;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private int transactionLevel;
+    private final List<Runnable> undoLog = new ArrayList<Runnable>();
+    private final List<Integer> savepoints = new ArrayList<Integer>();
+
+    private final TreeMap<String, Doc> docs = new TreeMap<String, Doc>();
+    private final TreeMap<Long, Rev> revsBySequence = new TreeMap<Long, Rev>();
+    private final Map<String, LocalDoc> localDocs = new HashMap<String, LocalDoc>();
+    private final Map<String, String> info = new HashMap<String, String>();
+    private final TreeMap<String, MemoryViewStore.Index> views =
+            new TreeMap<String, MemoryViewStore.Index>();
+    private long nextSequence = 1;
+    private long nextDocNumericID = 1;
+    private String compactionCursor;
+    private Journal journal;
+
+    /**
+     * A document: its revision tree, and its current winning revision.
+     */
+    static final class Doc {
+        final long numericID;
+        final String docID;
+        final Map<String, Rev> revs = new HashMap<String, Rev>();
+        Rev winner;
+        boolean conflicted;
+
+        Doc(long numericID, String docID) {
+            this.numericID = numericID;
+            this.docID = docID;
+        }
+    }
+
+    /**
+     * A revision. json is null if the body is missing (a stub inserted by forceInsert(), or a
+     * non-current revision whose body was compacted away.)
+     */
+    static final class Rev {
+        final Doc doc;
+        final String revID;
+        final long sequence;
+        final boolean deleted;
+        Rev parent;
+        boolean current;
+        byte[] json;
+        boolean hasAttachments;
+        List<String> attachmentDigests;
+
+        Rev(Doc doc, String revID, long sequence, boolean deleted) {
+            this.doc = doc;
+            this.revID = revID;
+            this.sequence = sequence;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * Receives every change to the documents, local documents and info, for a subclass that
+     * keeps them on disk. Calls are made with the lock held; changes made in a transaction
+     * arrive between beginTransaction() and the matching endTransaction(), and must be discarded
+     * if it's rolled back. View indexes aren't journaled.
+     */
+    interface Journal {
+        void beginTransaction();
+
+        /**
+         * @return false if the changes couldn't be made durable.
+         */
+        boolean endTransaction(boolean commit);
+
+        void revisionInserted(Rev rev);
+
+        /**
+         * The revision's current flag or body changed.
+         */
+        void revisionUpdated(Rev rev);
+
+        void revisionDeleted(Rev rev);
+
+        /**
+         * @param revID null if the local document was deleted.
+         */
+        void localDocChanged(String docID, String revID, byte[] json);
+
+        void infoChanged(String key, String value);
+    }
+
+    private static final class LocalDoc {
+        final String revID;
+        final byte[] json;
+
+        LocalDoc(String revID, byte[] json) {
+            this.revID = revID;
+            this.json = json;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////
+
+    public MemoryStore(String directory, Manager manager, StoreDelegate delegate) {
+        this.directory = directory;
+        this.delegate = delegate;
+        this.maxRevTreeDepth = DEFAULT_MAX_REVS;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Implementation of Storage
+    ///////////////////////////////////////////////////////////////////////////
+
+    ///////////////////////////////////////////////////////////////////////////
+    // INITIALIZATION AND CONFIGURATION:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public boolean databaseExists(String directory) {
+        // Nothing outlives the store, so there's never an existing database to open.
+        return false;
+    }
+
+    @Override
+    public void open() throws CouchbaseLiteException {
+        Log.v(TAG, "Opening in-memory database for %s", directory);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            docs.clear();
+            revsBySequence.clear();
+            localDocs.clear();
+            info.clear();
+            views.clear();
+            compactionCursor = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setDelegate(StoreDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public StoreDelegate getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setMaxRevTreeDepth(int maxRevTreeDepth) {
+        this.maxRevTreeDepth = maxRevTreeDepth;
+    }
+
+    @Override
+    public int getMaxRevTreeDepth() {
+        return maxRevTreeDepth;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // DATABASE ATTRIBUTES & OPERATIONS:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public long setInfo(final String key, String value) {
+        lock.lock();
+        try {
+            final String oldValue = info.put(key, value);
+            if (journal != null)
+                journal.infoChanged(key, value);
+            recordUndo(new Runnable() {
+                @Override
+                public void run() {
+                    if (oldValue != null)
+                        info.put(key, oldValue);
+                    else
+                        info.remove(key);
+                }
+            });
+            return Status.OK;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getInfo(String key) {
+        lock.lock();
+        try {
+            return info.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getDocumentCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Doc doc : docs.values()) {
+                if (doc.winner != null && !doc.winner.deleted)
+                    count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DatabaseStats getStats() {
+        lock.lock();
+        try {
+            long nDocs = 0, nDeleted = 0, nConflicted = 0, bodySize = 0;
+            for (Doc doc : docs.values()) {
+                if (doc.winner == null)
+                    continue;
+                if (doc.winner.deleted)
+                    nDeleted++;
+                else
+                    nDocs++;
+                if (doc.conflicted)
+                    nConflicted++;
+            }
+            for (Rev rev : revsBySequence.values()) {
+                if (rev.json != null)
+                    bodySize += rev.json.length;
+            }
+            return new DatabaseStats(nDocs, nDeleted, nConflicted, revsBySequence.size(), bodySize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getLastSequence() {
+        lock.lock();
+        try {
+            return revsBySequence.isEmpty() ? 0 : revsBySequence.lastKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean inTransaction() {
+        return lock.isHeldByCurrentThread() && transactionLevel > 0;
+    }
+
+    /**
+     * Prunes every revision tree to maxRevTreeDepth and drops the bodies of non-current
+     * revisions.
+     */
+    @Override
+    public void compact() throws CouchbaseLiteException {
+        boolean success = false;
+        beginTransaction();
+        try {
+            for (Doc doc : docs.values())
+                compactDoc(doc);
+            compactionCursor = null;
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+        Log.v(TAG, "...Finished database compaction.");
+    }
+
+    /**
+     * Compacts the database like compact(), docsPerChunk documents at a time, in document ID
+     * order. The position is only remembered for as long as the store is open.
+     */
+    @Override
+    public boolean compactIncrementally(int docsPerChunk, CompactionListener listener)
+            throws CouchbaseLiteException {
+        if (docsPerChunk <= 0)
+            docsPerChunk = SQLiteStore.DEFAULT_COMPACTION_CHUNK_SIZE;
+        long totalDocs;
+        long docsDone;
+        lock.lock();
+        try {
+            totalDocs = docs.size();
+            docsDone = compactionCursor != null ? docs.headMap(compactionCursor, true).size() : 0;
+        } finally {
+            lock.unlock();
+        }
+
+        while (true) {
+            int n = compactNextDocs(docsPerChunk);
+            if (n == 0)
+                break;
+            docsDone += n;
+            if (listener != null && !listener.compactionProgress(docsDone, totalDocs)) {
+                Log.v(TAG, "Compaction stopped after doc %s", compactionCursor);
+                return false;
+            }
+        }
+
+        lock.lock();
+        try {
+            compactionCursor = null;
+        } finally {
+            lock.unlock();
+        }
+        Log.v(TAG, "...Finished incremental database compaction.");
+        return true;
+    }
+
+    /**
+     * Compacts the next maxDocs documents after compactionCursor, in one transaction.
+     *
+     * @return the number of documents compacted; 0 if there were none left.
+     */
+    private int compactNextDocs(int maxDocs) {
+        int n = 0;
+        boolean success = false;
+        beginTransaction();
+        try {
+            NavigableMap<String, Doc> next = compactionCursor != null ?
+                    docs.tailMap(compactionCursor, false) : docs;
+            String lastDocID = null;
+            for (Doc doc : next.values()) {
+                if (n >= maxDocs)
+                    break;
+                compactDoc(doc);
+                lastDocID = doc.docID;
+                n++;
+            }
+            if (lastDocID != null)
+                setCompactionCursor(lastDocID);
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+        return n;
+    }
+
+    private void setCompactionCursor(String docID) {
+        final String oldCursor = compactionCursor;
+        compactionCursor = docID;
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                compactionCursor = oldCursor;
+            }
+        });
+    }
+
+    private void compactDoc(Doc doc) {
+        pruneRevTree(doc, maxRevTreeDepth);
+        for (Rev rev : doc.revs.values()) {
+            if (!rev.current && rev.json != null)
+                setBody(rev, null, false, null);
+        }
+    }
+
+    @Override
+    public boolean runInTransaction(TransactionalTask transactionalTask) {
+        boolean shouldCommit = true;
+
+        beginTransaction();
+        try {
+            shouldCommit = transactionalTask.run();
+        } catch (Exception e) {
+            shouldCommit = false;
+            Log.e(TAG, e.toString(), e);
+            throw new RuntimeException(e);
+        } finally {
+            endTransaction(shouldCommit);
+        }
+
+        return shouldCommit;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // DOCUMENTS:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public RevisionInternal getDocument(String docID, String revID, boolean withBody) {
+        lock.lock();
+        try {
+            Doc doc = docs.get(docID);
+            if (doc == null)
+                return null;
+            Rev rev;
+            if (revID != null) {
+                rev = doc.revs.get(revID);
+                if (rev != null && rev.json == null)
+                    rev = null;
+            } else {
+                rev = doc.winner;
+                if (rev != null && rev.deleted)
+                    rev = null;
+            }
+            return rev != null ? revision(rev, withBody) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RevisionInternal loadRevisionBody(RevisionInternal rev)
+            throws CouchbaseLiteException {
+        if (rev.getBody() != null && rev.getSequence() != 0) // no-op
+            return rev;
+
+        assert (rev.getDocID() != null && rev.getRevID() != null);
+
+        lock.lock();
+        try {
+            Rev found = getRev(rev.getDocID(), rev.getRevID());
+            if (found == null || found.json == null)
+                throw new CouchbaseLiteException(Status.NOT_FOUND);
+            rev.setSequence(found.sequence);
+            rev.setJSON(found.json);
+            return rev;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public RevisionInternal getParentRevision(RevisionInternal rev) {
+        lock.lock();
+        try {
+            Rev found = rev.getSequence() > 0 ?
+                    revsBySequence.get(rev.getSequence()) :
+                    getRev(rev.getDocID(), rev.getRevID());
+            if (found == null || found.parent == null)
+                return null;
+            return revision(found.parent, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an array of TDRevs in reverse chronological order, starting with the given revision.
+     */
+    @Override
+    public List<RevisionInternal> getRevisionHistory(RevisionInternal rev) {
+        String docId = rev.getDocID();
+        String revId = rev.getRevID();
+        assert ((docId != null) && (revId != null));
+
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>();
+        lock.lock();
+        try {
+            for (Rev r = getRev(docId, revId); r != null; r = r.parent) {
+                RevisionInternal aRev = revision(r, false);
+                aRev.setMissing(r.json == null);
+                result.add(aRev);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public RevisionList getAllRevisions(String docID, boolean onlyCurrent) {
+        RevisionList result = new RevisionList();
+        lock.lock();
+        try {
+            Doc doc = docs.get(docID);
+            if (doc == null)
+                return result;
+            for (Rev rev : sortedRevs(doc, SEQUENCE_DESC_ORDER)) {
+                if (!onlyCurrent || rev.current)
+                    result.add(revision(rev, false));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> getPossibleAncestorRevisionIDs(RevisionInternal rev, int limit,
+                                                       AtomicBoolean onlyAttachments) {
+        int generation = rev.getGeneration();
+        if (generation <= 1)
+            return null;
+
+        lock.lock();
+        try {
+            Doc doc = docs.get(rev.getDocID());
+            if (doc == null)
+                return null;
+
+            List<String> revIDs = new ArrayList<String>();
+            String maxRevID = generation + "-";
+            for (Rev r : sortedRevs(doc, SEQUENCE_DESC_ORDER)) {
+                if (limit > 0 && revIDs.size() >= limit)
+                    break;
+                if (r.deleted || r.json == null ||
+                        RevisionInternal.CBLCollateRevIDs(r.revID, maxRevID) >= 0)
+                    continue;
+                if (onlyAttachments != null && revIDs.size() == 0)
+                    onlyAttachments.set(r.hasAttachments);
+                revIDs.add(r.revID);
+            }
+            return revIDs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int findMissingRevisions(RevisionList touchRevs) {
+        int numRevisionsRemoved = 0;
+        if (touchRevs.size() == 0)
+            return numRevisionsRemoved;
+
+        List<RevisionInternal> missing = new ArrayList<RevisionInternal>(touchRevs.size());
+        lock.lock();
+        try {
+            for (RevisionInternal rev : touchRevs) {
+                if (getRev(rev.getDocID(), rev.getRevID()) != null)
+                    numRevisionsRemoved += 1;
+                else
+                    missing.add(rev);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (numRevisionsRemoved > 0) {
+            touchRevs.clear();
+            touchRevs.addAll(missing);
+        }
+        return numRevisionsRemoved;
+    }
+
+    @Override
+    public Set<BlobKey> findAllAttachmentKeys() throws CouchbaseLiteException {
+        Set<BlobKey> allKeys = new HashSet<BlobKey>();
+        lock.lock();
+        try {
+            for (Rev rev : revsBySequence.values()) {
+                if (rev.attachmentDigests == null)
+                    continue;
+                for (String digest : rev.attachmentDigests)
+                    allKeys.add(new BlobKey(digest));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return allKeys;
+    }
+
+    @Override
+    public Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException {
+        Map<String, Object> result = new HashMap<String, Object>();
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
+        }
+
+        List<QueryRow> rows;
+        long updateSeq = 0;
+        lock.lock();
+        try {
+            if (options.isUpdateSeq())
+                updateSeq = getLastSequence();
+            if (options.getKeys() == null)
+                rows = allDocsRows(options);
+            else
+                rows = allDocsRowsForKeys(options);
+        } finally {
+            lock.unlock();
+        }
+
+        result.put("rows", rows);
+        result.put("total_rows", rows.size());
+        result.put("offset", options.getSkip());
+        if (updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+        return result;
+    }
+
+    @Override
+    public CloseableIterator<QueryRow> getAllDocsIterator(QueryOptions options)
+            throws CouchbaseLiteException {
+        // The rows are collected under the lock, so that they're consistent:
+        List<QueryRow> rows = (List<QueryRow>) getAllDocs(options).get("rows");
+        return new ListIterator<QueryRow>(rows);
+    }
+
+    /**
+     * The rows of getAllDocs() without options.keys. As in SQLiteStore, skip and limit count
+     * the documents in the key range, before the conflicts mode and postFilter are applied.
+     */
+    private List<QueryRow> allDocsRows(QueryOptions options) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        boolean inclusiveMin = true;
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            minKey = maxKey;
+            maxKey = options.getStartKey();
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+        }
+        NavigableMap<String, Doc> range = docs;
+        if (minKey != null) {
+            assert (minKey instanceof String);
+            range = range.tailMap((String) minKey, inclusiveMin);
+        }
+        if (maxKey != null) {
+            assert (maxKey instanceof String);
+            maxKey = View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel());
+            range = range.headMap((String) maxKey, inclusiveMax);
+        }
+        if (options.isDescending())
+            range = range.descendingMap();
+
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        int skip = options.getSkip();
+        int limit = options.getLimit();
+        for (Doc doc : range.values()) {
+            List<Rev> revs = currentRevs(doc, includeDeletedDocs);
+            if (revs.isEmpty())
+                continue;
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (limit-- <= 0)
+                break;
+            QueryRow row = allDocsRow(revs, options, includeDeletedDocs);
+            if (row == null)
+                continue;
+            if (options.getPostFilter() != null && !options.getPostFilter().apply(row))
+                continue;
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * The rows of getAllDocs() for options.keys, in the order of the keys, with entries for
+     * missing and deleted documents.
+     */
+    private List<QueryRow> allDocsRowsForKeys(QueryOptions options) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        for (Object docIdObject : options.getKeys()) {
+            if (!(docIdObject instanceof String))
+                continue;
+            String docID = (String) docIdObject;
+            Doc doc = docs.get(docID);
+            QueryRow row = null;
+            if (doc != null) {
+                List<Rev> revs = currentRevs(doc, includeDeletedDocs);
+                if (!revs.isEmpty())
+                    row = allDocsRow(revs, options, includeDeletedDocs);
+            }
+            if (row == null) {
+                Map<String, Object> value = new HashMap<String, Object>();
+                if (doc != null && doc.winner != null) {
+                    value.put("rev", doc.winner.revID);
+                    value.put("deleted", true);
+                }
+                row = new QueryRow(docID, 0, docID, value, null, null);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the row of getAllDocs() for a document's current revisions (sorted with the
+     * winner first), or null if the conflicts mode excludes it.
+     */
+    private QueryRow allDocsRow(List<Rev> revs, QueryOptions options, boolean includeDeletedDocs) {
+        Rev rev = revs.get(0);
+        String docID = rev.doc.docID;
+        RevisionInternal docRevision = null;
+        if (options.isIncludeDocs())
+            docRevision = revision(docID, rev.revID, false, rev.sequence, documentProperties(rev));
+
+        List<String> conflicts = new ArrayList<String>();
+        if (revs.size() > 1 && (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
+                options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS)) {
+            for (Rev conflict : revs)
+                conflicts.add(conflict.revID);
+        }
+        if (options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS && conflicts.isEmpty())
+            return null;
+
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("rev", rev.revID);
+        value.put("_conflicts", conflicts);
+        if (includeDeletedDocs) {
+            value.put("deleted", (rev.deleted ? true : null));
+        }
+        return new QueryRow(docID, rev.sequence, docID, value, docRevision, null);
+    }
+
+    @Override
+    public RevisionList changesSince(long lastSequence,
+                                     ChangesOptions options,
+                                     ReplicationFilter filter,
+                                     Map<String, Object> filterParams) {
+        if (options == null) {
+            options = new ChangesOptions();
+        }
+        lock.lock();
+        try {
+            return changes(lastSequence, options, filter, filterParams);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CloseableIterator<RevisionInternal> changesSinceIterator(long lastSequence,
+                                                                    ChangesOptions options,
+                                                                    ReplicationFilter filter,
+                                                                    Map<String, Object> filterParams) {
+        return new ListIterator<RevisionInternal>(
+                changesSince(lastSequence, options, filter, filterParams));
+    }
+
+    /**
+     * The current revisions with sequences after lastSequence, in the same order as
+     * SQLiteStore returns them: by sequence, or grouped by document (in order of creation) with
+     * the highest revID first. Without conflicts each document is reported once, with the
+     * highest revID among its changed leaves.
+     */
+    private RevisionList changes(long lastSequence, ChangesOptions options,
+                                 ReplicationFilter filter, Map<String, Object> filterParams) {
+        boolean includeDocs = options.isIncludeDocs() || (filter != null);
+        boolean includeConflicts = options.isIncludeConflicts();
+        Collection<Rev> since = revsBySequence.tailMap(lastSequence, false).values();
+
+        List<Rev> revs = new ArrayList<Rev>();
+        if (options.isSortBySequence()) {
+            for (Rev rev : since) {
+                if (rev.current && (includeConflicts || !hasHigherChangedLeaf(rev, lastSequence)))
+                    revs.add(rev);
+            }
+        } else {
+            TreeMap<Long, List<Rev>> revsByDoc = new TreeMap<Long, List<Rev>>();
+            for (Rev rev : since) {
+                if (!rev.current)
+                    continue;
+                List<Rev> docRevs = revsByDoc.get(rev.doc.numericID);
+                if (docRevs == null) {
+                    docRevs = new ArrayList<Rev>();
+                    revsByDoc.put(rev.doc.numericID, docRevs);
+                }
+                docRevs.add(rev);
+            }
+            for (List<Rev> docRevs : revsByDoc.values()) {
+                Collections.sort(docRevs, new Comparator<Rev>() {
+                    @Override
+                    public int compare(Rev rev1, Rev rev2) {
+                        return RevisionInternal.CBLCollateRevIDs(rev2.revID, rev1.revID);
+                    }
+                });
+                if (includeConflicts)
+                    revs.addAll(docRevs);
+                else
+                    revs.add(docRevs.get(0));
+            }
+        }
+
+        RevisionList changes = new RevisionList();
+        for (Rev rev : revs) {
+            if (changes.size() >= options.getLimit())
+                break;
+            RevisionInternal change = revision(rev, includeDocs);
+            if (delegate.runFilter(filter, filterParams, change))
+                changes.add(change);
+        }
+        return changes;
+    }
+
+    private static boolean hasHigherChangedLeaf(Rev rev, long lastSequence) {
+        for (Rev other : rev.doc.revs.values()) {
+            if (other.current && other.sequence > lastSequence &&
+                    RevisionInternal.CBLCollateRevIDs(other.revID, rev.revID) > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A CloseableIterator over rows that have already been read.
+     */
+    private static class ListIterator<T> implements CloseableIterator<T> {
+        private final Iterator<T> iterator;
+
+        ListIterator(List<T> list) {
+            this.iterator = list != null ? list.iterator() : Collections.<T>emptyList().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // INSERTION / DELETION:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    @InterfaceAudience.Private
+    public RevisionInternal add(String docID,
+                                String prevRevID,
+                                Map<String, Object> properties,
+                                boolean deleting,
+                                boolean allowConflict,
+                                StorageValidation validationBlock,
+                                Status outStatus)
+            throws CouchbaseLiteException {
+
+        List<DocumentChange> changes = new ArrayList<DocumentChange>(1);
+        RevisionInternal newRev;
+
+        beginTransaction();
+        try {
+            newRev = addRevision(docID, prevRevID, properties, deleting, allowConflict,
+                    validationBlock, outStatus, changes);
+        } finally {
+            endTransaction(outStatus.isSuccessful());
+        }
+
+        for (DocumentChange change : changes)
+            delegate.databaseStorageChanged(change);
+
+        return newRev;
+    }
+
+    @Override
+    @InterfaceAudience.Private
+    public List<RevisionInternal> addDocuments(List<Map<String, Object>> docs,
+                                               boolean allowConflict,
+                                               StorageValidation validationBlock,
+                                               List<Status> outStatuses)
+            throws CouchbaseLiteException {
+
+        List<RevisionInternal> newRevs = new ArrayList<RevisionInternal>(docs.size());
+        List<DocumentChange> changes = new ArrayList<DocumentChange>(docs.size());
+        boolean success = false;
+
+        beginTransaction();
+        try {
+            for (Map<String, Object> properties : docs) {
+                String docID = (String) properties.get("_id");
+                String prevRevID = (String) properties.get("_rev");
+                boolean deleting = Boolean.TRUE.equals(properties.get("_deleted"));
+
+                Status status = new Status(Status.UNKNOWN);
+                RevisionInternal newRev = null;
+                // Each document gets a savepoint, so a failed one leaves nothing behind:
+                beginTransaction();
+                try {
+                    newRev = addRevision(docID, prevRevID, properties, deleting, allowConflict,
+                            validationBlock, status, changes);
+                } catch (CouchbaseLiteException e) {
+                    status = e.getCBLStatus();
+                    if (status.getCode() < 400 || status.getCode() >= 500)
+                        throw e;
+                } finally {
+                    endTransaction(status.isSuccessful());
+                }
+                newRevs.add(status.isSuccessful() ? newRev : null);
+                outStatuses.add(status);
+            }
+
+            // Hand the changes over while still in the transaction, so that the delegate posts
+            // them all together when it ends:
+            for (DocumentChange change : changes)
+                delegate.databaseStorageChanged(change);
+
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+
+        return newRevs;
+    }
+
+    /**
+     * The body of add(), following SQLiteStore.addRevision(). The caller must be in a
+     * transaction, and passes the DocumentChange in outChanges on to the delegate.
+     */
+    private RevisionInternal addRevision(String docID,
+                                         String prevRevID,
+                                         Map<String, Object> properties,
+                                         boolean deleting,
+                                         boolean allowConflict,
+                                         StorageValidation validationBlock,
+                                         Status outStatus,
+                                         List<DocumentChange> outChanges)
+            throws CouchbaseLiteException {
+
+        byte[] json;
+        if (properties != null && properties.size() > 0) {
+            json = RevisionUtils.asCanonicalJSON(properties);
+            if (json == null)
+                throw new CouchbaseLiteException(Status.BAD_JSON);
+        } else {
+            json = "{}".getBytes();
+        }
+
+        //// PART I: In which are performed lookups and validations prior to the insert...
+
+        Doc doc = null;
+        if (docID != null) {
+            doc = docs.get(docID);
+            if (doc == null)
+                doc = createDoc(docID);
+        }
+        boolean isNewDoc = doc == null || doc.revs.isEmpty();
+
+        Rev oldWinner = isNewDoc ? null : doc.winner;
+        String oldWinningRevID = oldWinner != null ? oldWinner.revID : null;
+        boolean wasConflicted = !isNewDoc && doc.conflicted;
+
+        Rev parent = null;
+        if (prevRevID != null) {
+            // Replacing: make sure given prevRevID is current & find its sequence number:
+            if (isNewDoc)
+                throw new CouchbaseLiteException(Status.NOT_FOUND);
+
+            parent = doc.revs.get(prevRevID);
+            if (parent != null && !allowConflict && !parent.current)
+                parent = null;
+            if (parent == null) {
+                // Not found: either a 404 or a 409, depending on whether there is any current revision
+                if (!allowConflict && existsDocument(doc))
+                    throw new CouchbaseLiteException(Status.CONFLICT);
+                else
+                    throw new CouchbaseLiteException(Status.NOT_FOUND);
+            }
+        } else {
+            // Inserting first revision.
+            if (deleting && docID != null) {
+                // Didn't specify a revision to delete: 404 or a 409, depending
+                if (existsDocument(doc))
+                    throw new CouchbaseLiteException(Status.CONFLICT);
+                else
+                    throw new CouchbaseLiteException(Status.NOT_FOUND);
+            }
+
+            if (docID != null) {
+                // Doc ID exists; check whether current winning revision is deleted:
+                if (oldWinner != null && oldWinner.deleted) {
+                    prevRevID = oldWinningRevID;
+                    parent = oldWinner;
+                } else if (oldWinner != null) {
+                    // The current winning revision is not deleted, so this is a conflict
+                    throw new CouchbaseLiteException(Status.CONFLICT);
+                }
+            } else {
+                // Inserting first revision, with no docID given (POST): generate a unique docID:
+                docID = Misc.CreateUUID();
+                doc = createDoc(docID);
+            }
+        }
+
+        // There may be a conflict if (a) the document was already in conflict, or
+        // (b) a conflict is created by adding a non-deletion child of a non-winning rev.
+        boolean inConflict = wasConflicted ||
+                (!deleting &&
+                        prevRevID != null &&
+                        oldWinningRevID != null &&
+                        !prevRevID.equals(oldWinningRevID));
+
+        //// PART II: In which we prepare for insertion...
+
+        // Bump the revID and update the JSON:
+        String newRevId = delegate.generateRevID(json, deleting, prevRevID);
+        if (newRevId == null)
+            throw new CouchbaseLiteException(Status.BAD_ID); // invalid previous revID (no numeric prefix)
+        RevisionInternal newRev = new RevisionInternal(docID, newRevId, deleting);
+        if (properties != null) {
+            properties.put("_id", docID);
+            properties.put("_rev", newRevId);
+            newRev.setProperties(properties);
+        }
+
+        // Validate:
+        if (validationBlock != null) {
+            RevisionInternal prevRev = null;
+            if (prevRevID != null)
+                prevRev = new RevisionInternal(docID, prevRevID, false);
+            Status status = validationBlock.validate(newRev, prevRev, prevRevID);
+            if (status.isError()) {
+                outStatus.setCode(status.getCode());
+                throw new CouchbaseLiteException(status);
+            }
+        }
+
+        //// PART III: In which the actual insertion finally takes place:
+
+        if (doc.revs.containsKey(newRevId)) {
+            // A revision already exists with identical contents and the same parent rev, so
+            // this is a no-op; but update the parent's current just to be sure (see #316)
+            Log.w(TAG, "Duplicate rev insertion: " + docID + " / " + newRevId);
+            newRev.setBody(null);
+            if (parent != null) {
+                setCurrent(parent, false);
+                updateWinner(doc);
+            }
+            outStatus.setCode(Status.OK);
+            return newRev;
+        }
+
+        boolean hasAttachments = properties == null ? false : properties.get("_attachments") != null;
+        insertRevision(doc, newRev, parent, true, hasAttachments, json);
+
+        // Make replaced rev non-current:
+        if (parent != null)
+            setCurrent(parent, false);
+
+        // Figure out what the new winning rev ID is:
+        updateWinner(doc);
+        String winningRevID = null;
+        if (doc.winner != null && !doc.winner.revID.equals(oldWinningRevID))
+            winningRevID = doc.winner.revID;
+        inConflict = doc.conflicted;
+
+        // Keep the revision tree from growing past maxRevTreeDepth:
+        pruneRevTree(doc, maxRevTreeDepth);
+
+        // Success!
+        if (deleting) {
+            outStatus.setCode(Status.OK);
+        } else {
+            outStatus.setCode(Status.CREATED);
+        }
+
+        outChanges.add(new DocumentChange(newRev, winningRevID, inConflict, null));
+        return newRev;
+    }
+
+    @Override
+    @InterfaceAudience.Private
+    public void forceInsert(RevisionInternal inRev,
+                            List<String> history,
+                            StorageValidation validationBlock,
+                            URL source)
+            throws CouchbaseLiteException {
+
+        RevisionInternal rev = inRev.copy();
+        rev.setSequence(0);
+        String docID = rev.getDocID();
+
+        String winningRevID = null;
+        boolean inConflict = false;
+        boolean inserted = false;
+        boolean success = false;
+
+        beginTransaction();
+        try {
+            // First look up the document and its current winning revision:
+            Doc doc = docs.get(docID);
+            if (doc == null)
+                doc = createDoc(docID);
+            String oldWinningRevID = doc.winner != null ? doc.winner.revID : null;
+            inConflict = doc.conflicted;
+
+            // Validate against the latest common ancestor:
+            if (validationBlock != null) {
+                RevisionInternal oldRev = null;
+                for (int i = 1; i < history.size(); i++) {
+                    Rev localRev = doc.revs.get(history.get(i));
+                    if (localRev != null) {
+                        oldRev = revision(localRev, false);
+                        break;
+                    }
+                }
+                String parentRevId = (history.size() > 1) ? history.get(1) : null;
+                Status tmpStatus = validationBlock.validate(rev, oldRev, parentRevId);
+                if (tmpStatus.isError()) {
+                    throw new CouchbaseLiteException(tmpStatus);
+                }
+            }
+
+            // Walk through the remote history in chronological order, matching each revision ID to
+            // a local revision. When the list diverges, start creating blank local revisions to
+            // fill in the local history:
+            Rev parent = null;
+            Rev localParent = null;
+            for (int i = history.size() - 1; i >= 0; --i) {
+                String revID = history.get(i);
+                Rev localRev = doc.revs.get(revID);
+                if (localRev != null) {
+                    // This revision is known locally. Remember it as the parent of the next one:
+                    parent = localRev;
+                    localParent = localRev;
+                } else if (i == 0) {
+                    // Hey, this is the leaf revision we're inserting:
+                    byte[] json = RevisionUtils.asCanonicalJSON(inRev);
+                    if (json == null)
+                        throw new CouchbaseLiteException(Status.BAD_JSON);
+                    boolean hasAttachments = rev.getAttachments() != null &&
+                            rev.getAttachments().size() > 0;
+                    parent = insertRevision(doc, rev, parent, true, hasAttachments, json);
+                    inserted = true;
+                } else {
+                    // It's an intermediate parent, so insert a stub:
+                    RevisionInternal stub = new RevisionInternal(docID, revID, false);
+                    parent = insertRevision(doc, stub, parent, false, false, null);
+                    inserted = true;
+                }
+            }
+
+            if (inserted) {
+                // Mark the latest local rev as no longer current:
+                if (localParent != null) {
+                    if (localParent.current)
+                        setCurrent(localParent, false);
+                    else
+                        inConflict = true; // local parent wasn't a leaf, ergo we just created a branch
+                }
+
+                // Figure out what the new winning rev ID is:
+                updateWinner(doc);
+                if (doc.winner != null && !doc.winner.revID.equals(oldWinningRevID))
+                    winningRevID = doc.winner.revID;
+                inConflict = doc.conflicted;
+
+                // Keep the revision tree from growing past maxRevTreeDepth:
+                pruneRevTree(doc, maxRevTreeDepth);
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+
+        // Notify:
+        if (inserted)
+            delegate.databaseStorageChanged(new DocumentChange(rev, winningRevID, inConflict, source));
+    }
+
+    @Override
+    @InterfaceAudience.Private
+    public Map<String, Object> purgeRevisions(final Map<String, List<String>> docsToRevs) {
+
+        final Map<String, Object> result = new HashMap<String, Object>();
+        runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                for (String docID : docsToRevs.keySet()) {
+                    Doc doc = docs.get(docID);
+                    if (doc == null) {
+                        continue; // no such document, skip it
+                    }
+                    List<String> revsPurged = new ArrayList<String>();
+                    List<String> revIDs = docsToRevs.get(docID);
+                    if (revIDs == null) {
+                        return false;
+                    } else if (revIDs.size() == 0) {
+                        revsPurged = new ArrayList<String>();
+                    } else if (revIDs.contains("*")) {
+                        // Delete all revisions if magic "*" revision ID is given:
+                        for (Rev rev : new ArrayList<Rev>(doc.revs.values()))
+                            deleteRev(rev);
+                        revsPurged.add("*");
+                    } else {
+                        // Iterate over all the revisions of the doc, in reverse sequence order.
+                        // Keep track of all the revisions to delete, i.e. the given revs and
+                        // ancestors, but not any non-given leaf revs or their ancestors.
+                        if (doc.revs.isEmpty())
+                            return false;
+                        Set<Rev> toPurge = new HashSet<Rev>();
+                        Set<Rev> toKeep = new HashSet<Rev>();
+                        for (Rev rev : sortedRevs(doc, SEQUENCE_DESC_ORDER)) {
+                            if (toPurge.contains(rev) ||
+                                    revIDs.contains(rev.revID) && !toKeep.contains(rev)) {
+                                // Purge it and maybe its parent:
+                                toPurge.add(rev);
+                                if (rev.parent != null)
+                                    toPurge.add(rev.parent);
+                            } else {
+                                // Keep it and its parent:
+                                toPurge.remove(rev);
+                                if (rev.parent != null)
+                                    toKeep.add(rev.parent);
+                            }
+                        }
+                        toPurge.removeAll(toKeep);
+                        for (Rev rev : toPurge) {
+                            revsPurged.add(rev.revID);
+                            deleteRev(rev);
+                        }
+                        Log.i(TAG, "Purging doc '%s' revs (%s); asked for (%s)",
+                                docID, revsPurged, revIDs);
+                    }
+                    if (revsPurged.size() > 0)
+                        updateWinner(doc);
+                    result.put(docID, revsPurged);
+                }
+                return true;
+            }
+        });
+
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // VIEWS:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public ViewStore getViewStorage(String name, boolean create) {
+        lock.lock();
+        try {
+            if (!create && !views.containsKey(name))
+                return null;
+            return new MemoryViewStore(this, name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getAllViewNames() {
+        lock.lock();
+        try {
+            return new ArrayList<String>(views.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // LOCAL DOCS:
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public RevisionInternal getLocalDocument(String docID, String revID) {
+        // docID already should contain "_local/" prefix
+        LocalDoc localDoc;
+        lock.lock();
+        try {
+            localDoc = localDocs.get(docID);
+        } finally {
+            lock.unlock();
+        }
+        if (localDoc == null || (revID != null && !revID.equals(localDoc.revID)))
+            return null;
+        try {
+            Map<String, Object> properties =
+                    Manager.getObjectMapper().readValue(localDoc.json, Map.class);
+            properties.put("_id", docID);
+            properties.put("_rev", localDoc.revID);
+            RevisionInternal result = new RevisionInternal(docID, localDoc.revID, false);
+            result.setProperties(properties);
+            return result;
+        } catch (Exception e) {
+            Log.w(TAG, "Error parsing local doc JSON", e);
+            return null;
+        }
+    }
+
+    @Override
+    public RevisionInternal putLocalRevision(RevisionInternal revision, String prevRevID, boolean obeyMVCC)
+            throws CouchbaseLiteException {
+        String docID = revision.getDocID();
+        if (!docID.startsWith("_local/")) {
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+
+        lock.lock();
+        try {
+            LocalDoc localDoc = localDocs.get(docID);
+            if (!revision.isDeleted()) {
+                // PUT:
+                byte[] json = RevisionUtils.asCanonicalJSON(revision);
+                String newRevID;
+                if (prevRevID != null) {
+                    int generation = RevisionInternal.generationFromRevID(prevRevID);
+                    if (generation == 0) {
+                        throw new CouchbaseLiteException(Status.BAD_REQUEST);
+                    }
+                    if (localDoc == null || !prevRevID.equals(localDoc.revID)) {
+                        throw new CouchbaseLiteException(Status.CONFLICT);
+                    }
+                    newRevID = Integer.toString(++generation) + "-local";
+                    putLocalDoc(docID, new LocalDoc(newRevID, json));
+                } else {
+                    newRevID = "1-local";
+                    // (Like SQLite's INSERT OR IGNORE, this leaves an existing document alone)
+                    if (localDoc == null)
+                        putLocalDoc(docID, new LocalDoc(newRevID, json));
+                }
+                return revision.copyWithDocID(docID, newRevID);
+            } else {
+                // DELETE:
+                if (prevRevID == null || localDoc == null || !prevRevID.equals(localDoc.revID)) {
+                    // Didn't specify the current revision to delete: 404 or a 409, depending
+                    if (localDoc != null)
+                        throw new CouchbaseLiteException(Status.CONFLICT);
+                    else
+                        throw new CouchbaseLiteException(Status.NOT_FOUND);
+                }
+                putLocalDoc(docID, null);
+                return revision;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void putLocalDoc(final String docID, LocalDoc localDoc) {
+        final LocalDoc oldLocalDoc = localDoc != null ?
+                localDocs.put(docID, localDoc) : localDocs.remove(docID);
+        if (journal != null) {
+            if (localDoc != null)
+                journal.localDocChanged(docID, localDoc.revID, localDoc.json);
+            else
+                journal.localDocChanged(docID, null, null);
+        }
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                if (oldLocalDoc != null)
+                    localDocs.put(docID, oldLocalDoc);
+                else
+                    localDocs.remove(docID);
+            }
+        });
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Transactions
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Begins a transaction, or a nested one if this thread is already in a transaction. Blocks
+     * while another thread is in a transaction.
+     */
+    boolean beginTransaction() {
+        lock.lock();
+        savepoints.add(undoLog.size());
+        transactionLevel++;
+        if (journal != null)
+            journal.beginTransaction();
+        Log.v(TAG, "%s Begin transaction (level %d)", Thread.currentThread().getName(),
+                transactionLevel);
+        delegate.storageEnteredTransaction();
+        return true;
+    }
+
+    /**
+     * Ends the innermost transaction. If commit is false, the changes made since it began are
+     * undone.
+     */
+    boolean endTransaction(boolean commit) {
+        assert (lock.isHeldByCurrentThread() && transactionLevel > 0);
+        int savepoint = savepoints.remove(savepoints.size() - 1);
+        if (commit) {
+            Log.v(TAG, "%s Committing transaction (level %d)",
+                    Thread.currentThread().getName(), transactionLevel);
+        } else {
+            Log.v(TAG, "%s CANCEL transaction (level %d)",
+                    Thread.currentThread().getName(), transactionLevel);
+            for (int i = undoLog.size() - 1; i >= savepoint; i--)
+                undoLog.remove(i).run();
+        }
+        boolean result = true;
+        if (journal != null)
+            result = journal.endTransaction(commit);
+        if (--transactionLevel == 0)
+            undoLog.clear();
+        lock.unlock();
+        delegate.storageExitedTransaction(commit);
+        return result;
+    }
+
+    /**
+     * Remembers how to undo a change just made, if it was made in a transaction.
+     * The caller must hold the lock.
+     */
+    void recordUndo(Runnable undo) {
+        if (transactionLevel > 0)
+            undoLog.add(undo);
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Access for MemoryViewStore (the caller must hold the lock)
+    ///////////////////////////////////////////////////////////////////////////
+
+    Rev getRevBySequence(long sequence) {
+        return revsBySequence.get(sequence);
+    }
+
+    /**
+     * The revisions with sequences after the given one, in sequence order.
+     */
+    Collection<Rev> getRevsSince(long sequence) {
+        return revsBySequence.tailMap(sequence, false).values();
+    }
+
+    MemoryViewStore.Index getViewIndex(String name) {
+        return views.get(name);
+    }
+
+    void setViewIndex(final String name, MemoryViewStore.Index index) {
+        final MemoryViewStore.Index oldIndex = index != null ?
+                views.put(name, index) : views.remove(name);
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                if (oldIndex != null)
+                    views.put(name, oldIndex);
+                else
+                    views.remove(name);
+            }
+        });
+    }
+
+    /**
+     * The properties of a revision, as SQLiteStore.documentPropertiesFromJSON() returns them.
+     */
+    Map<String, Object> documentProperties(Rev rev) {
+        Map<String, Object> docProperties = null;
+        byte[] json = rev.json;
+        if (json == null || json.length == 0 ||
+                (json.length == 2 && json[0] == '{' && json[1] == '}')) {
+            docProperties = new HashMap<String, Object>();
+        } else {
+            try {
+                docProperties = Manager.getObjectMapper().readValue(json, Map.class);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("Unparseable JSON for doc=%s, rev=%s: %s",
+                        rev.doc.docID, rev.revID, new String(json)), e);
+                docProperties = new HashMap<String, Object>();
+            }
+        }
+        docProperties.put("_id", rev.doc.docID);
+        docProperties.put("_rev", rev.revID);
+        return docProperties;
+    }
+
+    RevisionInternal revision(String docID, String revID,
+                              boolean deleted, long sequence,
+                              Map<String, Object> properties) {
+        RevisionInternal rev = new RevisionInternal(docID, revID, deleted);
+        rev.setSequence(sequence);
+        if (properties != null)
+            rev.setProperties(properties);
+        return rev;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Journaling (the caller must hold the lock, outside of any transaction)
+    ///////////////////////////////////////////////////////////////////////////
+
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Passes the current contents to a journal, as the changes that would recreate them:
+     * every revision in sequence order, then the local documents and the info.
+     */
+    void journalContents(Journal journal) {
+        for (Rev rev : revsBySequence.values())
+            journal.revisionInserted(rev);
+        for (Map.Entry<String, LocalDoc> entry : localDocs.entrySet())
+            journal.localDocChanged(entry.getKey(), entry.getValue().revID, entry.getValue().json);
+        for (Map.Entry<String, String> entry : info.entrySet())
+            journal.infoChanged(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Applies a journaled revision insertion or update. Call restoreWinners() once done.
+     */
+    void restoreRevision(String docID, String revID, long sequence, boolean deleted,
+                         String parentRevID, boolean current, byte[] json,
+                         boolean hasAttachments, List<String> attachmentDigests) {
+        Doc doc = docs.get(docID);
+        if (doc == null)
+            doc = createDoc(docID);
+        Rev rev = doc.revs.get(revID);
+        if (rev == null) {
+            rev = new Rev(doc, revID, sequence, deleted);
+            rev.parent = parentRevID != null ? doc.revs.get(parentRevID) : null;
+            doc.revs.put(revID, rev);
+            revsBySequence.put(sequence, rev);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+        }
+        rev.current = current;
+        rev.json = json;
+        rev.hasAttachments = hasAttachments;
+        rev.attachmentDigests = attachmentDigests;
+    }
+
+    void restoreDeletion(String docID, String revID) {
+        Rev rev = getRev(docID, revID);
+        if (rev != null)
+            deleteRev(rev);
+    }
+
+    void restoreLocalDoc(String docID, String revID, byte[] json) {
+        putLocalDoc(docID, revID != null ? new LocalDoc(revID, json) : null);
+    }
+
+    void restoreWinners() {
+        for (Doc doc : docs.values())
+            updateWinner(doc);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Internal (Private) Instance Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    private RevisionInternal revision(Rev rev, boolean withBody) {
+        RevisionInternal result = new RevisionInternal(rev.doc.docID, rev.revID, rev.deleted);
+        result.setSequence(rev.sequence);
+        if (withBody)
+            result.setJSON(rev.json);
+        return result;
+    }
+
+    private Rev getRev(String docID, String revID) {
+        Doc doc = docs.get(docID);
+        return doc != null ? doc.revs.get(revID) : null;
+    }
+
+    private boolean existsDocument(Doc doc) {
+        return doc != null && doc.winner != null && !doc.winner.deleted;
+    }
+
+    private static List<Rev> sortedRevs(Doc doc, Comparator<Rev> order) {
+        List<Rev> revs = new ArrayList<Rev>(doc.revs.values());
+        Collections.sort(revs, order);
+        return revs;
+    }
+
+    /**
+     * The document's current revisions, winner first, optionally without deletions.
+     */
+    private static List<Rev> currentRevs(Doc doc, boolean includeDeleted) {
+        List<Rev> revs = new ArrayList<Rev>(1);
+        for (Rev rev : doc.revs.values()) {
+            if (rev.current && (includeDeleted || !rev.deleted))
+                revs.add(rev);
+        }
+        if (revs.size() > 1)
+            Collections.sort(revs, WINNER_ORDER);
+        return revs;
+    }
+
+    private Doc createDoc(String docID) {
+        final Doc doc = new Doc(nextDocNumericID++, docID);
+        docs.put(docID, doc);
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                docs.remove(doc.docID);
+            }
+        });
+        return doc;
+    }
+
+    /**
+     * Adds a revision to a document's tree, and sets rev's sequence. A null json means the
+     * revision's body is missing.
+     */
+    private Rev insertRevision(Doc doc, RevisionInternal rev, Rev parent, boolean current,
+                               boolean hasAttachments, byte[] json) {
+        final Rev newRev = new Rev(doc, rev.getRevID(), nextSequence++, rev.isDeleted());
+        newRev.parent = parent;
+        newRev.current = current;
+        newRev.json = json;
+        newRev.hasAttachments = hasAttachments;
+        if (hasAttachments && json != null)
+            newRev.attachmentDigests = attachmentDigests(rev.getAttachments());
+        doc.revs.put(newRev.revID, newRev);
+        revsBySequence.put(newRev.sequence, newRev);
+        if (journal != null)
+            journal.revisionInserted(newRev);
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                newRev.doc.revs.remove(newRev.revID);
+                revsBySequence.remove(newRev.sequence);
+            }
+        });
+        rev.setSequence(newRev.sequence);
+        return newRev;
+    }
+
+    private static List<String> attachmentDigests(Map<String, Object> attachments) {
+        if (attachments == null || attachments.isEmpty())
+            return null;
+        List<String> digests = new ArrayList<String>(attachments.size());
+        for (Object attachment : attachments.values()) {
+            if (!(attachment instanceof Map))
+                continue;
+            Object digest = ((Map<String, Object>) attachment).get("digest");
+            if (digest instanceof String)
+                digests.add((String) digest);
+        }
+        return digests;
+    }
+
+    /**
+     * Removes a revision; like SQLite's ON DELETE SET NULL, its children lose their parent.
+     */
+    private void deleteRev(final Rev rev) {
+        final Doc doc = rev.doc;
+        doc.revs.remove(rev.revID);
+        revsBySequence.remove(rev.sequence);
+        if (journal != null)
+            journal.revisionDeleted(rev);
+        final List<Rev> children = new ArrayList<Rev>();
+        for (Rev child : doc.revs.values()) {
+            if (child.parent == rev) {
+                child.parent = null;
+                children.add(child);
+            }
+        }
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                doc.revs.put(rev.revID, rev);
+                revsBySequence.put(rev.sequence, rev);
+                for (Rev child : children)
+                    child.parent = rev;
+            }
+        });
+    }
+
+    private void setCurrent(final Rev rev, boolean current) {
+        final boolean oldCurrent = rev.current;
+        if (oldCurrent == current)
+            return;
+        rev.current = current;
+        if (journal != null)
+            journal.revisionUpdated(rev);
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                rev.current = oldCurrent;
+            }
+        });
+    }
+
+    private void setBody(final Rev rev, byte[] json, boolean hasAttachments,
+                         List<String> attachmentDigests) {
+        final byte[] oldJson = rev.json;
+        final boolean oldHasAttachments = rev.hasAttachments;
+        final List<String> oldDigests = rev.attachmentDigests;
+        rev.json = json;
+        rev.hasAttachments = hasAttachments;
+        rev.attachmentDigests = attachmentDigests;
+        if (journal != null)
+            journal.revisionUpdated(rev);
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                rev.json = oldJson;
+                rev.hasAttachments = oldHasAttachments;
+                rev.attachmentDigests = oldDigests;
+            }
+        });
+    }
+
+    /**
+     * Picks the document's winning revision the way SQLiteStore does: the current revision that
+     * comes first in WINNER_ORDER. The document is in conflict if there are two or more current
+     * revisions that aren't deletions.
+     */
+    private void updateWinner(final Doc doc) {
+        final Rev oldWinner = doc.winner;
+        final boolean oldConflicted = doc.conflicted;
+        Rev winner = null;
+        Rev runnerUp = null;
+        for (Rev rev : doc.revs.values()) {
+            if (!rev.current)
+                continue;
+            if (winner == null || WINNER_ORDER.compare(rev, winner) < 0) {
+                runnerUp = winner;
+                winner = rev;
+            } else if (runnerUp == null || WINNER_ORDER.compare(rev, runnerUp) < 0) {
+                runnerUp = rev;
+            }
+        }
+        doc.winner = winner;
+        doc.conflicted = winner != null && !winner.deleted && runnerUp != null && !runnerUp.deleted;
+        recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                doc.winner = oldWinner;
+                doc.conflicted = oldConflicted;
+            }
+        });
+    }
+
+    /**
+     * Deletes the revisions that aren't among the last maxDepth revisions of some branch of the
+     * document's tree, as SQLiteStore.pruneRevTree() does.
+     */
+    private int pruneRevTree(Doc doc, int maxDepth) {
+        if (maxDepth <= 0 || maxDepth == Integer.MAX_VALUE || doc.revs.size() <= maxDepth)
+            return 0;
+
+        // Keep the last maxDepth revisions of each branch:
+        Set<Rev> keep = new HashSet<Rev>();
+        for (Rev leaf : doc.revs.values()) {
+            if (!leaf.current)
+                continue;
+            Rev rev = leaf;
+            for (int depth = 0; depth < maxDepth && rev != null; depth++) {
+                keep.add(rev);
+                rev = rev.parent;
+            }
+        }
+
+        int nPruned = 0;
+        for (Rev rev : new ArrayList<Rev>(doc.revs.values())) {
+            if (!keep.contains(rev)) {
+                deleteRev(rev);
+                nPruned++;
+            }
+        }
+        if (nPruned > 0)
+            Log.v(TAG, "Pruned %d revisions of doc %s", nPruned, doc.docID);
+        return nPruned;
+    }
+}
@@ -0,0 +1,746 @@
+//
+//  MemoryViewStore.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.Predicate;
+import com.couchbase.lite.QueryOptions;
+import com.couchbase.lite.QueryRow;
+import com.couchbase.lite.Reducer;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.View;
+import com.couchbase.lite.internal.InterfaceAudience;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.JsonDocument;
+import com.couchbase.lite.util.Log;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * The ViewStore of a MemoryStore. The index is a set of rows sorted by key (in the view's
+ * collation) and document ID, kept by the MemoryStore so that it lives as long as the
+ * database's documents do. Queries follow SQLiteViewStore's semantics.
+ */
+public class MemoryViewStore implements ViewStore, QueryRowStore {
+
+    public static String TAG = Log.TAG_VIEW;
+
+    private static final int REDUCE_BATCH_SIZE = 100;
+
+    private String name;
+    private ViewStoreDelegate delegate;
+    private MemoryStore store;
+    private View.TDViewCollation collation;
+
+    /**
+     * A view's index: its map version, the last sequence indexed, and the emitted rows, also
+     * grouped by document so that a document's rows can be replaced when it changes.
+     */
+    static final class Index {
+        String version;
+        long lastSequence;
+        JsonCollator collator;
+        TreeSet<Row> rows;
+        Map<String, List<Row>> rowsByDocID = new HashMap<String, List<Row>>();
+        long nextRowID = 1;
+
+        Index(String version, JsonCollator collator) {
+            this.version = version;
+            this.collator = collator;
+            this.rows = new TreeSet<Row>(rowOrder(collator));
+        }
+    }
+
+    /**
+     * An emitted key/value pair. The key is kept parsed, for comparisons, as well as in JSON.
+     * A row with a nonzero bound is a probe that sorts before (-1) or after (1) every row with
+     * the same key.
+     */
+    static final class Row {
+        final Object key;
+        final byte[] keyJSON;
+        final byte[] valueJSON;
+        final String docID;
+        final long sequence;
+        final long rowID;
+        final int bound;
+
+        Row(Object key, byte[] keyJSON, byte[] valueJSON, String docID, long sequence,
+            long rowID, int bound) {
+            this.key = key;
+            this.keyJSON = keyJSON;
+            this.valueJSON = valueJSON;
+            this.docID = docID;
+            this.sequence = sequence;
+            this.rowID = rowID;
+            this.bound = bound;
+        }
+
+        static Row probe(Object key, int bound) {
+            return new Row(key, null, null, null, 0, 0, bound);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////
+
+    protected MemoryViewStore(MemoryStore store, String name) {
+        this.store = store;
+        this.name = name;
+        this.collation = View.TDViewCollation.TDViewCollationUnicode;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Implementation of ViewStorage
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ViewStoreDelegate getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setDelegate(ViewStoreDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void setCollation(View.TDViewCollation collation) {
+        this.collation = collation;
+    }
+
+    @Override
+    public void close() {
+        store = null;
+    }
+
+    @Override
+    public void deleteIndex() {
+        store.lock();
+        try {
+            Index index = store.getViewIndex(name);
+            if (index != null) {
+                clearRows(index);
+                setLastSequence(index, 0);
+            }
+        } finally {
+            store.unlock();
+        }
+    }
+
+    @Override
+    public void deleteView() {
+        store.lock();
+        try {
+            store.setViewIndex(name, null);
+        } finally {
+            store.unlock();
+        }
+    }
+
+    /**
+     * Updates the version of the view. A change in version means the delegate's map block has
+     * changed its semantics, so the _index is reset.
+     */
+    @Override
+    public boolean setVersion(String version) {
+        store.lock();
+        try {
+            Index index = store.getViewIndex(name);
+            if (index == null) {
+                store.setViewIndex(name, new Index(version, new JsonCollator(collation)));
+                return true; // created new view
+            }
+            if (version == null ? index.version == null : version.equals(index.version))
+                return false;
+            final Index changed = index;
+            final String oldVersion = index.version;
+            index.version = version;
+            store.recordUndo(new Runnable() {
+                @Override
+                public void run() {
+                    changed.version = oldVersion;
+                }
+            });
+            clearRows(index);
+            setLastSequence(index, 0);
+            return true;
+        } finally {
+            store.unlock();
+        }
+    }
+
+    @Override
+    public int getTotalRows() {
+        store.lock();
+        try {
+            Index index = store.getViewIndex(name);
+            return index != null ? index.rows.size() : 0;
+        } finally {
+            store.unlock();
+        }
+    }
+
+    @Override
+    public long getLastSequenceIndexed() {
+        store.lock();
+        try {
+            Index index = store.getViewIndex(name);
+            return index != null ? index.lastSequence : -1;
+        } finally {
+            store.unlock();
+        }
+    }
+
+    @Override
+    public long getLastSequenceChangedAt() {
+        // TODO: Implement
+        return 0;
+    }
+
+    /**
+     * Updates the view's _index (incrementally) if necessary: the rows of each document changed
+     * since the last update are replaced by the rows its winning revision emits now.
+     */
+    @Override
+    @InterfaceAudience.Private
+    public void updateIndex() throws CouchbaseLiteException {
+        updateIndexes(Collections.<ViewStore>singletonList(this));
+    }
+
+    /**
+     * Updates the indexes of several views in one pass over the changed documents: each is given
+     * to the map function of every view that hasn't indexed its latest change yet.
+     */
+    @Override
+    @InterfaceAudience.Private
+    public void updateIndexes(List<ViewStore> inputViews) throws CouchbaseLiteException {
+        List<String> names = new ArrayList<String>(inputViews.size());
+        for (ViewStore inputView : inputViews)
+            names.add(inputView.getName());
+        Log.v(Log.TAG_VIEW, "Re-indexing views: %s", names);
+
+        boolean success = false;
+        store.beginTransaction();
+        try {
+            long dbMaxSequence = store.getLastSequence();
+            long minLastSequence = dbMaxSequence;
+            List<Index> indexes = new ArrayList<Index>(inputViews.size());
+            List<MapEmitter> emitters = new ArrayList<MapEmitter>(inputViews.size());
+            List<MemoryViewStore> views = new ArrayList<MemoryViewStore>(inputViews.size());
+            for (ViewStore inputView : inputViews) {
+                MemoryViewStore view = (MemoryViewStore) inputView;
+                assert (view.delegate.getMap() != null);
+                final Index index = store.getViewIndex(view.name);
+                if (index == null) {
+                    String msg = String.format("View %s doesn't exist", view.name);
+                    throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
+                }
+                long last = index.lastSequence;
+                if (last >= dbMaxSequence)
+                    continue;  // up to date
+                if (last == 0)
+                    view.clearRows(index);
+                view.sortRows(index);
+                minLastSequence = Math.min(minLastSequence, last);
+                views.add(view);
+                indexes.add(index);
+                emitters.add(view.new MapEmitter(index));
+            }
+            if (views.isEmpty()) {
+                // nothing to do (eg,  kCBLStatusNotModified)
+                Log.v(Log.TAG_VIEW, "minLastSequence (%s) == dbMaxSequence (%s), nothing to do",
+                        minLastSequence, dbMaxSequence);
+                success = true;
+                return;
+            }
+
+            // The documents that changed since the least recent update, each once, with the
+            // sequence of their latest change:
+            Map<String, MemoryStore.Doc> changedDocs = new LinkedHashMap<String, MemoryStore.Doc>();
+            Map<String, Long> lastChanges = new HashMap<String, Long>();
+            for (MemoryStore.Rev rev : store.getRevsSince(minLastSequence)) {
+                changedDocs.put(rev.doc.docID, rev.doc);
+                lastChanges.put(rev.doc.docID, rev.sequence);
+            }
+
+            for (MemoryStore.Doc doc : changedDocs.values()) {
+                long lastChange = lastChanges.get(doc.docID);
+                MemoryStore.Rev winner = doc.winner;
+                boolean indexed = winner != null && !winner.deleted &&
+                        !doc.docID.startsWith("_design/");  // design docs don't get indexed!
+                Map<String, Object> properties = null;
+                for (int i = 0; i < views.size(); i++) {
+                    if (lastChange <= indexes.get(i).lastSequence)
+                        continue;  // the view has already indexed this change
+                    views.get(i).removeRows(indexes.get(i), doc.docID);
+                    if (!indexed)
+                        continue;
+                    if (properties == null)
+                        properties = store.documentProperties(winner);
+                    String docType = views.get(i).delegate.getDocumentType();
+                    if (docType != null && !docType.equals(properties.get("type")))
+                        continue;  // only documents of that type are indexed
+                    emitters.get(i).setRevision(doc.docID, winner.sequence);
+                    views.get(i).delegate.getMap().map(properties, emitters.get(i));
+                }
+            }
+
+            for (int i = 0; i < views.size(); i++)
+                views.get(i).setLastSequence(indexes.get(i), dbMaxSequence);
+            Log.v(Log.TAG_VIEW, "Finished re-indexing views: %s " + " up to sequence %s",
+                    names, dbMaxSequence);
+            success = true;
+        } finally {
+            if (!success)
+                Log.w(Log.TAG_VIEW, "Failed to rebuild views %s", names);
+            store.endTransaction(success);
+        }
+    }
+
+    /**
+     * Queries the view without performing any reducing or grouping.
+     */
+    @Override
+    public List<QueryRow> regularQuery(QueryOptions options) throws CouchbaseLiteException {
+        final Predicate<QueryRow> postFilter = options.getPostFilter();
+
+        int limit = QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT;
+        int skip = 0;
+        if (postFilter != null) {
+            // #574: Custom post-filter means skip/limit apply to the filtered rows, not to the
+            // underlying query, so handle them specially:
+            limit = options.getLimit();
+            skip = options.getSkip();
+            if (limit == 0)
+                return new ArrayList<QueryRow>(); // empty result set
+            options.setLimit(QueryOptions.QUERY_OPTIONS_DEFAULT_LIMIT);
+            options.setSkip(0);
+        }
+
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        store.lock();
+        try {
+            for (Row indexRow : selectRows(options)) {
+                JsonDocument keyDoc = new JsonDocument(indexRow.keyJSON);
+                JsonDocument valueDoc = new JsonDocument(indexRow.valueJSON);
+                String docID = indexRow.docID;
+                long sequence = indexRow.sequence;
+                RevisionInternal docRevision = null;
+                if (options.isIncludeDocs()) {
+                    Object valueObject = valueDoc.jsonObject();
+                    String linkedID = null;
+                    if (valueObject instanceof Map)
+                        linkedID = (String) ((Map) valueObject).get("_id");
+                    if (linkedID != null) {
+                        // Linked document: http://wiki.apache.org/couchdb/Introduction_to_CouchDB_views#Linked_documents
+                        String linkedRev = (String) ((Map) valueObject).get("_rev");
+                        docRevision = store.getDocument(linkedID, linkedRev, true);
+                        if (docRevision != null)
+                            sequence = docRevision.getSequence();
+                    } else {
+                        MemoryStore.Rev rev = store.getRevBySequence(sequence);
+                        docRevision = store.revision(docID, rev.revID, false, sequence,
+                                store.documentProperties(rev));
+                    }
+                }
+                QueryRow row = new QueryRow(docID, sequence,
+                        keyDoc.jsonObject(), valueDoc.jsonObject(),
+                        docRevision, this);
+                if (postFilter != null) {
+                    if (!postFilter.apply(row))
+                        continue;
+                    if (skip > 0) {
+                        skip--;
+                        continue;
+                    }
+                }
+                rows.add(row);
+                if (--limit == 0)
+                    break;
+            }
+        } finally {
+            store.unlock();
+        }
+
+        // If given keys, sort the output into that order, and add entries for missing keys:
+        if (options.getKeys() != null && options.getKeys().size() > 0) {
+            // Group rows by key:
+            Map<Object, List<QueryRow>> rowsByKey = new HashMap<Object, List<QueryRow>>();
+            for (QueryRow row : rows) {
+                List<QueryRow> rs = rowsByKey.get(row.getKey());
+                if (rs == null) {
+                    rs = new ArrayList<QueryRow>();
+                    rowsByKey.put(row.getKey(), rs);
+                }
+                rs.add(row);
+            }
+
+            // Now concatenate them in the order the keys are given in options:
+            List<QueryRow> sortedRows = new ArrayList<QueryRow>();
+            for (Object key : options.getKeys()) {
+                JsonDocument jsonDoc = null;
+                try {
+                    byte[] keyBytes = Manager.getObjectMapper().writeValueAsBytes(key);
+                    jsonDoc = new JsonDocument(keyBytes);
+                } catch (JsonProcessingException e) {
+                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                }
+                List<QueryRow> rs = rowsByKey.get(jsonDoc.jsonObject());
+                if (rs != null)
+                    sortedRows.addAll(rs);
+            }
+            return sortedRows;
+        }
+
+        return rows;
+    }
+
+    /**
+     * Queries the view, with reducing or grouping as per the options.
+     */
+    @Override
+    public List<QueryRow> reducedQuery(QueryOptions options) throws CouchbaseLiteException {
+        Predicate<QueryRow> postFilter = options.getPostFilter();
+
+        int groupLevel = options.getGroupLevel();
+        boolean group = options.isGroup() || (groupLevel > 0);
+        Reducer reduce = delegate.getReduce();
+        if (options.isReduceSpecified()) {
+            if (options.isReduce() && reduce == null) {
+                Log.w(TAG, String.format(
+                        "Cannot use reduce option in view %s which has no reduce block defined",
+                        name));
+                throw new CouchbaseLiteException(new Status(Status.BAD_PARAM));
+            }
+        }
+
+        List<Object> keysToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        List<Object> valuesToReduce = new ArrayList<Object>(REDUCE_BATCH_SIZE);
+        Object lastKey = null;
+
+        List<QueryRow> rows = new ArrayList<QueryRow>();
+        List<Row> indexRows;
+        store.lock();
+        try {
+            indexRows = selectRows(options);
+        } finally {
+            store.unlock();
+        }
+        for (Row indexRow : indexRows) {
+            Object keyObject = new JsonDocument(indexRow.keyJSON).jsonObject();
+            if (group && !SQLiteViewStore.groupTogether(keyObject, lastKey, groupLevel)) {
+                if (lastKey != null) {
+                    // This pair starts a new group, so reduce & record the last one:
+                    Object key = SQLiteViewStore.groupKey(lastKey, groupLevel);
+                    Object reduced = (reduce != null) ?
+                            reduce.reduce(keysToReduce, valuesToReduce, false) :
+                            null;
+                    QueryRow row = new QueryRow(null, 0, key, reduced, null, this);
+                    if (postFilter == null || postFilter.apply(row))
+                        rows.add(row);
+                    keysToReduce.clear();
+                    valuesToReduce.clear();
+                }
+                lastKey = keyObject;
+            }
+            keysToReduce.add(keyObject);
+            valuesToReduce.add(new JsonDocument(indexRow.valueJSON).jsonObject());
+        }
+
+        if (keysToReduce.size() > 0) {
+            // Finish the last group (or the entire list, if no grouping):
+            Object key = group ? SQLiteViewStore.groupKey(lastKey, groupLevel) : null;
+            Object reduced = (reduce != null) ?
+                    reduce.reduce(keysToReduce, valuesToReduce, false) :
+                    null;
+            Log.v(TAG, String.format("Query %s: Reduced to key=%s, value=%s",
+                    name, key, reduced));
+            QueryRow row = new QueryRow(null, 0, key, reduced, null, this);
+            if (postFilter == null || postFilter.apply(row)) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public List<Map<String, Object>> dump() {
+        store.lock();
+        try {
+            Index index = store.getViewIndex(name);
+            if (index == null)
+                return null;
+            sortRows(index);
+            List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+            for (Row row : index.rows) {
+                Map<String, Object> dumpRow = new HashMap<String, Object>();
+                dumpRow.put("seq", (int) row.sequence);
+                dumpRow.put("key", new String(row.keyJSON));
+                dumpRow.put("value", row.valueJSON != null ? new String(row.valueJSON) : null);
+                result.add(dumpRow);
+            }
+            return result;
+        } finally {
+            store.unlock();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Implementation of QueryRowStorage
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public boolean rowValueIsEntireDoc(byte[] valueData) {
+        return valueData.length == 1 && (new String(valueData)).equals("*");
+    }
+
+    @Override
+    public Object parseRowValue(byte[] valueData) {
+        // TODO: Implement
+        return null;
+    }
+
+    @Override
+    public Map<String, Object> getDocumentProperties(String docID, long sequence) {
+        // TODO: Implement
+        return null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Internal (Private) Instance Methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final class MapEmitter implements Emitter {
+        private final Index index;
+        private String docID;
+        private long sequence;
+
+        MapEmitter(Index index) {
+            this.index = index;
+        }
+
+        void setRevision(String docID, long sequence) {
+            this.docID = docID;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void emit(Object key, Object value) {
+            try {
+                byte[] keyJSON = Manager.getObjectMapper().writeValueAsBytes(key);
+                byte[] valueJSON = value != null ?
+                        Manager.getObjectMapper().writeValueAsBytes(value) : null;
+                addRow(index, new Row(parseKey(keyJSON), keyJSON, valueJSON, docID, sequence,
+                        index.nextRowID++, 0));
+            } catch (Exception e) {
+                Log.e(Log.TAG_VIEW, "Error emitting", e);
+                // find a better way to propagate this back
+            }
+        }
+    }
+
+    /**
+     * Returns the rows matching the options' keys and key range, in order, with skip and limit
+     * applied. Rows of revisions that no longer exist (purged or pruned) are left out, as
+     * SQLiteViewStore's join with the revs table does. The caller must hold the store's lock.
+     */
+    private List<Row> selectRows(QueryOptions options) throws CouchbaseLiteException {
+        List<Row> result = new ArrayList<Row>();
+        Index index = store.getViewIndex(name);
+        if (index == null)
+            return result;
+        sortRows(index);
+        JsonCollator collator = index.collator;
+
+        TreeSet<Object> keys = null;
+        if (options.getKeys() != null) {
+            keys = new TreeSet<Object>(collator);
+            for (Object key : options.getKeys())
+                keys.add(normalizeKey(key));
+        }
+
+        Object minKey = options.getStartKey();
+        Object maxKey = options.getEndKey();
+        String minKeyDocId = options.getStartKeyDocId();
+        String maxKeyDocId = options.getEndKeyDocId();
+        boolean inclusiveMin = options.isInclusiveStart();
+        boolean inclusiveMax = options.isInclusiveEnd();
+        if (options.isDescending()) {
+            Object min = minKey;
+            minKey = maxKey;
+            maxKey = min;
+            inclusiveMin = inclusiveMax;
+            inclusiveMax = true;
+            minKeyDocId = options.getEndKeyDocId();
+            maxKeyDocId = options.getStartKeyDocId();
+        }
+        if (minKey != null)
+            minKey = normalizeKey(minKey);
+        if (maxKey != null)
+            maxKey = normalizeKey(View.keyForPrefixMatch(maxKey, options.getPrefixMatchLevel()));
+        if (minKey != null && maxKey != null && collator.compare(minKey, maxKey) > 0)
+            return result;
+
+        NavigableSet<Row> range = index.rows;
+        if (minKey != null)
+            range = range.tailSet(Row.probe(minKey, -1), true);
+        if (maxKey != null)
+            range = range.headSet(Row.probe(maxKey, 1), true);
+        if (options.isDescending())
+            range = range.descendingSet();
+
+        int skip = options.getSkip();
+        int limit = options.getLimit();
+        for (Row row : range) {
+            if (minKey != null && collator.compare(row.key, minKey) == 0) {
+                if (!inclusiveMin ||
+                        (minKeyDocId != null && row.docID.compareTo(minKeyDocId) < 0))
+                    continue;
+            }
+            if (maxKey != null && collator.compare(row.key, maxKey) == 0) {
+                if (!inclusiveMax ||
+                        (maxKeyDocId != null && row.docID.compareTo(maxKeyDocId) > 0))
+                    continue;
+            }
+            if (keys != null && !keys.contains(row.key))
+                continue;
+            if (store.getRevBySequence(row.sequence) == null)
+                continue;
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (limit-- <= 0)
+                break;
+            result.add(row);
+        }
+        return result;
+    }
+
+    /**
+     * Converts a key given in query options to the form emitted keys are kept in, by way of
+     * JSON.
+     */
+    private static Object normalizeKey(Object key) throws CouchbaseLiteException {
+        try {
+            return parseKey(Manager.getObjectMapper().writeValueAsBytes(key));
+        } catch (IOException e) {
+            Log.w(Log.TAG_VIEW, "Exception serializing object to json: %s", e, key);
+            throw new CouchbaseLiteException(Status.BAD_REQUEST);
+        }
+    }
+
+    private static Object parseKey(byte[] keyJSON) throws IOException {
+        return Manager.getObjectMapper().readValue(keyJSON, Object.class);
+    }
+
+    /**
+     * Re-sorts the index if the view's collation has changed since it was sorted.
+     */
+    private void sortRows(Index index) {
+        if (index.collator.getCollation() == collation)
+            return;
+        index.collator = new JsonCollator(collation);
+        TreeSet<Row> rows = new TreeSet<Row>(rowOrder(index.collator));
+        rows.addAll(index.rows);
+        index.rows = rows;
+    }
+
+    private static Comparator<Row> rowOrder(final JsonCollator collator) {
+        return new Comparator<Row>() {
+            @Override
+            public int compare(Row row1, Row row2) {
+                int result = collator.compare(row1.key, row2.key);
+                if (result != 0)
+                    return result;
+                if (row1.bound != 0 || row2.bound != 0)
+                    return row1.bound - row2.bound;
+                result = row1.docID.compareTo(row2.docID);
+                if (result != 0)
+                    return result;
+                return row1.rowID < row2.rowID ? -1 : (row1.rowID > row2.rowID ? 1 : 0);
+            }
+        };
+    }
+
+    private void addRow(final Index index, final Row row) {
+        index.rows.add(row);
+        List<Row> docRows = index.rowsByDocID.get(row.docID);
+        if (docRows == null) {
+            docRows = new ArrayList<Row>();
+            index.rowsByDocID.put(row.docID, docRows);
+        }
+        docRows.add(row);
+        store.recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                index.rows.remove(row);
+                List<Row> docRows = index.rowsByDocID.get(row.docID);
+                docRows.remove(row);
+                if (docRows.isEmpty())
+                    index.rowsByDocID.remove(row.docID);
+            }
+        });
+    }
+
+    private void removeRows(final Index index, final String docID) {
+        final List<Row> docRows = index.rowsByDocID.remove(docID);
+        if (docRows == null)
+            return;
+        index.rows.removeAll(docRows);
+        store.recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                index.rows.addAll(docRows);
+                index.rowsByDocID.put(docID, docRows);
+            }
+        });
+    }
+
+    private void clearRows(final Index index) {
+        final TreeSet<Row> oldRows = index.rows;
+        final Map<String, List<Row>> oldRowsByDocID = index.rowsByDocID;
+        index.rows = new TreeSet<Row>(rowOrder(index.collator));
+        index.rowsByDocID = new HashMap<String, List<Row>>();
+        store.recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                index.rows = oldRows;
+                index.rowsByDocID = oldRowsByDocID;
+            }
+        });
+    }
+
+    private void setLastSequence(final Index index, long lastSequence) {
+        final long oldLastSequence = index.lastSequence;
+        index.lastSequence = lastSequence;
+        store.recordUndo(new Runnable() {
+            @Override
+            public void run() {
+                index.lastSequence = oldLastSequence;
+            }
+        });
+    }
+}
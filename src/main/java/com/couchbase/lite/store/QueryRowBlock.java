@@ -7,8 +7,8 @@
 package com.couchbase.lite.store;
 
 import com.couchbase.lite.Status;
-import com.couchbase.lite.storage.Cursor;
+import com.couchbase.lite.storage.BlobCursor;
 
 interface QueryRowBlock {
-    Status onRow(byte[] keyData, byte[] valueData, String docID, Cursor cursor);
+    Status onRow(byte[] keyData, byte[] valueData, String docID, BlobCursor cursor);
 }
@@ -0,0 +1,126 @@
+//
+//  RevTreeCache.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.util.LruCache;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Caches the revision trees of recently used documents, keyed by doc_id, for SQLiteStore.
+ * <p/>
+ * The cache has to agree with what a reader would see in the database. So a tree loaded by a
+ * reader is only cached if nothing was invalidated while it was being loaded, and a document
+ * changed in a transaction stays uncacheable until the outermost transaction ends (when its
+ * changes become visible to other connections, or are rolled back.)
+ */
+class RevTreeCache {
+
+    /**
+     * One revision of a tree.
+     */
+    static final class Node {
+        final long sequence;
+        final long parent;  // 0 if none
+        final String revID;
+        final boolean deleted;
+        final boolean missing;  // no body
+        final boolean hasAttachments;
+
+        Node(long sequence, long parent, String revID, boolean deleted, boolean missing,
+             boolean hasAttachments) {
+            this.sequence = sequence;
+            this.parent = parent;
+            this.revID = revID;
+            this.deleted = deleted;
+            this.missing = missing;
+            this.hasAttachments = hasAttachments;
+        }
+    }
+
+    // Trees are lists of nodes in descending sequence order; null if the cache is disabled.
+    private final LruCache<Long, List<Node>> trees;
+    private final Set<Long> changedInTransaction = new HashSet<Long>();
+    private boolean allChangedInTransaction;
+    private long generation;
+
+    RevTreeCache(int maxSize) {
+        this.trees = maxSize > 0 ? new LruCache<Long, List<Node>>(maxSize) : null;
+    }
+
+    synchronized List<Node> get(long docNumericID) {
+        return trees != null ? trees.get(docNumericID) : null;
+    }
+
+    /**
+     * Returns a token to pass to put() along with the tree about to be loaded.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a tree, unless it may be stale: the document was invalidated since generation
+     * was obtained, or has been changed by the transaction in progress.
+     */
+    synchronized void put(long docNumericID, List<Node> tree, long generation) {
+        if (trees == null || generation != this.generation || allChangedInTransaction ||
+                changedInTransaction.contains(docNumericID))
+            return;
+        trees.put(docNumericID, tree);
+    }
+
+    /**
+     * Called when a document's revisions are inserted, deleted or updated.
+     */
+    synchronized void invalidate(long docNumericID, boolean inTransaction) {
+        generation++;
+        if (trees != null)
+            trees.remove(docNumericID);
+        if (inTransaction)
+            changedInTransaction.add(docNumericID);
+    }
+
+    /**
+     * Called when revisions of any number of documents are changed at once.
+     */
+    synchronized void invalidateAll(boolean inTransaction) {
+        generation++;
+        if (trees != null)
+            trees.evictAll();
+        if (inTransaction)
+            allChangedInTransaction = true;
+    }
+
+    /**
+     * Called when the outermost transaction ends, whether it was committed or rolled back.
+     */
+    synchronized void transactionEnded() {
+        if (allChangedInTransaction || !changedInTransaction.isEmpty()) {
+            generation++;
+            if (trees != null) {
+                if (allChangedInTransaction) {
+                    trees.evictAll();
+                } else {
+                    for (Long docNumericID : changedInTransaction)
+                        trees.remove(docNumericID);
+                }
+            }
+        }
+        changedInTransaction.clear();
+        allChangedInTransaction = false;
+    }
+
+    synchronized void clear() {
+        generation++;
+        if (trees != null)
+            trees.evictAll();
+        changedInTransaction.clear();
+        allChangedInTransaction = false;
+    }
+}
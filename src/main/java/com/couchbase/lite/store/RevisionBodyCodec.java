@@ -0,0 +1,218 @@
+//
+//  RevisionBodyCodec.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses revision bodies stored in the revs.json column.
+ * <p/>
+ * Canonical JSON always starts with '{' (or is empty), so an encoded body is marked by its first
+ * byte instead of a separate column: FORMAT_DEFLATE or FORMAT_DEFLATE_DICT, followed by the
+ * 4-byte big-endian length of the JSON and the zlib-compressed JSON. Rows written without
+ * compression, or before it was enabled, are returned unchanged by decode().
+ * <p/>
+ * The preset dictionary is built once per database from a sample of its documents and is never
+ * replaced, since rows encoded with it can't be read without it.
+ */
+class RevisionBodyCodec {
+    private static final String TAG = Log.TAG_DATABASE;
+
+    static final byte FORMAT_DEFLATE = 0x01;
+    static final byte FORMAT_DEFLATE_DICT = 0x02;
+
+    private static final int HEADER_SIZE = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Bodies smaller than this don't compress well enough to be worth it:
+    private static final int MIN_ENCODE_SIZE = 64;
+
+    // Strings longer than this are unlikely to repeat across documents:
+    private static final int MAX_DICTIONARY_TOKEN_SIZE = 64;
+
+    private final byte[] dictionary;
+
+    /**
+     * @param dictionary the database's preset dictionary, or null if it doesn't have one yet.
+     */
+    RevisionBodyCodec(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    byte[] getDictionary() {
+        return dictionary;
+    }
+
+    static boolean isEncoded(byte[] data, int offset, int length) {
+        return data != null && length > HEADER_SIZE &&
+                (data[offset] == FORMAT_DEFLATE || data[offset] == FORMAT_DEFLATE_DICT);
+    }
+
+    /**
+     * Returns the encoded form of a canonical JSON body, or the JSON itself if compressing it
+     * wouldn't save space.
+     */
+    byte[] encode(byte[] json) {
+        if (json == null || json.length < MIN_ENCODE_SIZE)
+            return json;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            if (dictionary != null)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(json);
+            deflater.finish();
+            // Anything that doesn't fit in json.length bytes isn't worth keeping:
+            byte[] buffer = new byte[json.length];
+            int size = HEADER_SIZE;
+            while (!deflater.finished() && size < buffer.length)
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            if (!deflater.finished())
+                return json;
+            buffer[0] = dictionary != null ? FORMAT_DEFLATE_DICT : FORMAT_DEFLATE;
+            buffer[1] = (byte) (json.length >>> 24);
+            buffer[2] = (byte) (json.length >>> 16);
+            buffer[3] = (byte) (json.length >>> 8);
+            buffer[4] = (byte) json.length;
+            byte[] result = new byte[size];
+            System.arraycopy(buffer, 0, result, 0, size);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the JSON of an encoded body, or null if it can't be decoded.
+     * The data must be encoded; see isEncoded().
+     */
+    byte[] decode(byte[] data, int offset, int length) {
+        byte format = data[offset];
+        if (format == FORMAT_DEFLATE_DICT && dictionary == null) {
+            Log.e(TAG, "Revision body needs a compression dictionary, but the database has none");
+            return null;
+        }
+        int jsonLength = ((data[offset + 1] & 0xFF) << 24) | ((data[offset + 2] & 0xFF) << 16) |
+                ((data[offset + 3] & 0xFF) << 8) | (data[offset + 4] & 0xFF);
+        byte[] json = new byte[jsonLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset + HEADER_SIZE, length - HEADER_SIZE);
+            int size = 0;
+            while (size < jsonLength) {
+                int n = inflater.inflate(json, size, jsonLength - size);
+                if (n == 0) {
+                    if (inflater.needsDictionary() && format == FORMAT_DEFLATE_DICT)
+                        inflater.setDictionary(dictionary);
+                    else
+                        break;
+                }
+                size += n;
+            }
+            if (size != jsonLength) {
+                Log.e(TAG, "Truncated revision body: expected %d bytes, got %d", jsonLength, size);
+                return null;
+            }
+            return json;
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Unable to decode revision body", e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Inflater.setDictionary() throws this if the dictionary's checksum doesn't match
+            Log.e(TAG, "Unable to decode revision body", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Builds a preset dictionary from sample bodies: the keys and short string values that occur
+     * in more than one sample, most frequent last (Deflate encodes nearer matches more cheaply),
+     * written the way they appear in canonical JSON.
+     *
+     * @return the dictionary, or null if the samples have nothing in common.
+     */
+    static byte[] trainDictionary(List<byte[]> samples, int maxSize) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (byte[] sample : samples) {
+            Set<String> tokens = new HashSet<String>();
+            try {
+                Object body = BodyEncoding.readProperties(sample, 0, sample.length);
+                collectTokens(body, tokens);
+            } catch (IOException e) {
+                continue;
+            }
+            for (String token : tokens) {
+                Integer count = counts.get(token);
+                counts.put(token, count == null ? 1 : count + 1);
+            }
+        }
+
+        List<String> tokens = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1)
+                tokens.add(entry.getKey());
+        }
+        Collections.sort(tokens, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int result = counts.get(b) - counts.get(a);
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+
+        // Take the most frequent tokens that fit, then lay them out least frequent first:
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (String token : tokens) {
+            byte[] bytes = token.getBytes(UTF8);
+            if (size + bytes.length > maxSize)
+                continue;
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        if (size == 0)
+            return null;
+        byte[] dictionary = new byte[size];
+        int pos = 0;
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            byte[] bytes = chosen.get(i);
+            System.arraycopy(bytes, 0, dictionary, pos, bytes.length);
+            pos += bytes.length;
+        }
+        return dictionary;
+    }
+
+    private static void collectTokens(Object value, Set<String> tokens) throws IOException {
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                tokens.add(Manager.getObjectMapper().writeValueAsString(entry.getKey()) + ":");
+                collectTokens(entry.getValue(), tokens);
+            }
+        } else if (value instanceof List) {
+            for (Object item : (List<?>) value)
+                collectTokens(item, tokens);
+        } else if (value instanceof String && ((String) value).length() <= MAX_DICTIONARY_TOKEN_SIZE) {
+            tokens.add(Manager.getObjectMapper().writeValueAsString(value));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+//
+//  SQLiteConnection.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.storage.StatementStorageEngine;
+
+/**
+ * One open storage engine connection to the database file, along with the compiled statements
+ * that belong to it. SQLiteStore has one of these for writing, and optionally a pool of them
+ * for reading (see SQLiteReaderPool.)
+ */
+class SQLiteConnection {
+    final StatementStorageEngine engine;
+    final StatementCache statements;
+
+    SQLiteConnection(StatementStorageEngine engine, int statementCacheSize) {
+        this.engine = engine;
+        this.statements = new StatementCache(engine, statementCacheSize);
+    }
+
+    /**
+     * Closes the cached statements and then the connection itself.
+     */
+    void close() {
+        statements.clear();
+        if (engine.isOpen())
+            engine.close();
+    }
+}
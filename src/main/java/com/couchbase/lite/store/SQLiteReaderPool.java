@@ -0,0 +1,98 @@
+//
+//  SQLiteReaderPool.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed-size pool of read-only connections to a database in WAL mode. In that mode readers
+ * see the last committed state and don't wait for a writer's transaction, nor block it.
+ * <p/>
+ * A thread checks a connection out with acquire() and returns it with release(). Calls nest:
+ * a thread that already holds a connection (e.g. a filter or query callback reading another
+ * document) gets the same one back, so it can't deadlock waiting for a second one.
+ */
+class SQLiteReaderPool {
+    private static final String TAG = Log.TAG_DATABASE;
+
+    // The connection held by the current thread, and how many times it has been acquired
+    private static class Lease {
+        SQLiteConnection connection;
+        int depth;
+    }
+
+    private final List<SQLiteConnection> connections;
+    private final BlockingQueue<SQLiteConnection> idle;
+    private final ThreadLocal<Lease> lease = new ThreadLocal<Lease>() {
+        @Override
+        protected Lease initialValue() {
+            return new Lease();
+        }
+    };
+
+    SQLiteReaderPool(List<SQLiteConnection> connections) {
+        this.connections = new ArrayList<SQLiteConnection>(connections);
+        this.idle = new ArrayBlockingQueue<SQLiteConnection>(connections.size(), false, connections);
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    /**
+     * Returns a reader for the calling thread, waiting for one to become free if necessary.
+     */
+    SQLiteConnection acquire() {
+        Lease l = lease.get();
+        if (l.connection == null) {
+            boolean interrupted = false;
+            while (l.connection == null) {
+                try {
+                    l.connection = idle.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        l.depth++;
+        return l.connection;
+    }
+
+    /**
+     * Balances a call to acquire().
+     */
+    void release(SQLiteConnection connection) {
+        Lease l = lease.get();
+        if (l.connection != connection || l.depth <= 0) {
+            Log.w(TAG, "%s: releasing a reader this thread doesn't hold", this);
+            return;
+        }
+        if (--l.depth == 0) {
+            l.connection = null;
+            idle.offer(connection);
+        }
+    }
+
+    /**
+     * Closes every connection. The pool must not be used afterwards.
+     */
+    void close() {
+        int busy = connections.size() - idle.size();
+        if (busy > 0)
+            Log.w(TAG, "%s: closing while %d reader(s) are still in use", this, busy);
+        idle.clear();
+        for (SQLiteConnection connection : connections)
+            connection.close();
+        connections.clear();
+    }
+}
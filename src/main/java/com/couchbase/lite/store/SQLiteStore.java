@@ -18,7 +18,9 @@ package com.couchbase.lite.store;
 
 import com.couchbase.lite.BlobKey;
 import com.couchbase.lite.ChangesOptions;
+import com.couchbase.lite.CompactionListener;
 import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.DatabaseStats;
 import com.couchbase.lite.DocumentChange;
 import com.couchbase.lite.Manager;
 import com.couchbase.lite.Misc;
@@ -31,35 +33,47 @@ import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.TransactionalTask;
 import com.couchbase.lite.View;
+import com.couchbase.lite.internal.Body;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.BlobBuffer;
+import com.couchbase.lite.storage.BlobCursor;
 import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatement;
 import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.storage.StatementStorageEngine;
+import com.couchbase.lite.storage.LegacyStorageEngineAdapter;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.support.Base64;
 import com.couchbase.lite.support.RevisionUtils;
 import com.couchbase.lite.support.action.Action;
 import com.couchbase.lite.support.action.ActionBlock;
 import com.couchbase.lite.support.action.ActionException;
 import com.couchbase.lite.support.security.SymmetricKey;
+import com.couchbase.lite.util.CloseableIterator;
 import com.couchbase.lite.util.Log;
-import com.couchbase.lite.util.SQLiteUtils;
+import com.couchbase.lite.util.LruCache;
 import com.couchbase.lite.util.TextUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class SQLiteStore implements Store, EncryptableStore {
+public class SQLiteStore implements Store, EncryptableStore, GroupCommitter.Committer {
     public String TAG = Log.TAG_DATABASE;
 
     public static String kDBFilename = "db.sqlite3";
@@ -67,6 +81,41 @@ public class SQLiteStore implements Store, EncryptableStore {
     // Default value for maxRevTreeDepth, the max rev depth to preserve in a prune operation
     private static final int DEFAULT_MAX_REVS = Integer.MAX_VALUE;
 
+    // Max number of compiled statements kept open per connection
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+
+    // Number of documents compactIncrementally() handles per transaction, by default
+    public static final int DEFAULT_COMPACTION_CHUNK_SIZE = 500;
+    // Max number of free pages given back to the file system per chunk
+    private static final int VACUUM_PAGES_PER_CHUNK = 256;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // Key in the info table of the last doc_id done by an unfinished compactIncrementally()
+    private static final String COMPACTION_CURSOR_KEY = "compaction_cursor";
+
+    // Body compression: the preset dictionary is saved (Base64) in the info table under this key
+    private static final String BODY_DICTIONARY_KEY = "body_dictionary";
+    private static final int BODY_DICTIONARY_SIZE = 16 * 1024;
+    private static final int BODY_DICTIONARY_SAMPLE_SIZE = 500;
+    private static final int BODY_DICTIONARY_MIN_SAMPLES = 50;
+
+    // The encoding new revision bodies are stored in, chosen when the database is created
+    private static final String BODY_ENCODING_KEY = "body_encoding";
+
+    // Counters behind getStats(), saved in the info table under this key
+    private static final String STATS_KEY = "stats";
+
+    // The last sequence stored by a version that keeps the attachments table and the docs'
+    // winning_* columns up to date, saved in the info table under this key. Older versions can
+    // still open 1xx databases, and any revisions they add come after it.
+    private static final String LAST_SEQUENCE_KEY = "last_sequence";
+
+    // Initial size of the reusable buffers that scans read revision bodies into
+    static final int JSON_BUFFER_SIZE = 4 * 1024;
+
+    // Rows read per query by the iterators of getAllDocsIterator() and changesSinceIterator()
+    // when they can't keep a cursor open (see canStream())
+    static final int ITERATOR_PAGE_SIZE = 100;
+
     // First-time initialization:
     // (Note: Declaring revs.sequence as AUTOINCREMENT means the values will always be
     // monotonically increasing, never reused. See <http://www.sqlite.org/autoinc.html>)
@@ -115,6 +164,146 @@ public class SQLiteStore implements Store, EncryptableStore {
     // which only has SQLite 3.7 :(
     // On the revs_parent _index we could add "WHERE parent not null".
 
+    // Hot-path statements, compiled once and kept in the statement cache:
+    private static final String SQL_GET_DOC_NUMERIC_ID =
+            "SELECT doc_id FROM docs WHERE docid=?";
+    private static final String SQL_INSERT_DOC_ID =
+            "INSERT INTO docs (docid) VALUES (?)";
+    private static final String SQL_GET_LAST_SEQUENCE =
+            "SELECT MAX(sequence) FROM revs";
+    private static final String SQL_GET_REV =
+            "SELECT revid, deleted, sequence FROM revs " +
+            "WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";
+    private static final String SQL_GET_REV_WITH_BODY =
+            "SELECT revid, deleted, sequence, json FROM revs " +
+            "WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";
+    private static final String SQL_GET_CURRENT_REV =
+            "SELECT revs.revid, revs.deleted, revs.sequence FROM docs, revs " +
+            "WHERE docs.doc_id=? AND docs.winning_deleted=0 " +
+            "AND revs.sequence=docs.winning_sequence";
+    private static final String SQL_GET_CURRENT_REV_WITH_BODY =
+            "SELECT revs.revid, revs.deleted, revs.sequence, revs.json FROM docs, revs " +
+            "WHERE docs.doc_id=? AND docs.winning_deleted=0 " +
+            "AND revs.sequence=docs.winning_sequence";
+    private static final String SQL_GET_REV_BY_SEQUENCE =
+            "SELECT revid, deleted, json FROM revs WHERE sequence=?";
+    private static final String SQL_LOAD_REV_BODY =
+            "SELECT sequence, json FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
+    private static final String SQL_GET_PARENT_BY_SEQUENCE =
+            "SELECT parent FROM revs WHERE sequence=?";
+    private static final String SQL_GET_PARENT_BY_REVID =
+            "SELECT parent FROM revs WHERE doc_id=? and revid=?";
+    private static final String SQL_GET_REVID_AND_DELETED =
+            "SELECT revid, deleted FROM revs WHERE sequence=?";
+    private static final String SQL_GET_REV_HISTORY =
+            "SELECT sequence, parent, revid, deleted, json isnull, no_attachments FROM revs " +
+            "WHERE doc_id=? ORDER BY sequence DESC";
+    private static final String SQL_GET_CURRENT_REVS =
+            "SELECT sequence, revid, deleted FROM revs " +
+            "WHERE doc_id=? AND current ORDER BY sequence DESC";
+    private static final String SQL_INSERT_ATTACHMENT_REF =
+            "INSERT INTO attachments (sequence, digest) VALUES (?, ?)";
+    private static final String SQL_GET_ATTACHMENT_DIGESTS =
+            "SELECT DISTINCT digest FROM attachments";
+    private static final String SQL_DELETE_NONCURRENT_ATTACHMENT_REFS =
+            "DELETE FROM attachments WHERE sequence IN (SELECT sequence FROM revs WHERE current=0)";
+    private static final String SQL_DELETE_NONCURRENT_ATTACHMENT_REFS_IN_RANGE =
+            "DELETE FROM attachments WHERE sequence IN (SELECT sequence FROM revs " +
+            "WHERE doc_id BETWEEN ? AND ? AND current=0)";
+    private static final String SQL_DELETE_NONCURRENT_JSON_IN_RANGE =
+            "UPDATE revs SET json=null, doc_type=null, no_attachments=1 " +
+            "WHERE doc_id BETWEEN ? AND ? AND current=0 AND json NOT NULL";
+    private static final String SQL_GET_REV_TREE =
+            "SELECT sequence, parent, current, IFNULL(LENGTH(json), 0) FROM revs WHERE doc_id=?";
+    private static final String SQL_COUNT_STATS =
+            "SELECT (SELECT COUNT(*) FROM docs WHERE winning_revid NOT NULL AND winning_deleted=0), " +
+            "(SELECT COUNT(*) FROM docs WHERE winning_revid NOT NULL AND winning_deleted=1), " +
+            "(SELECT COUNT(*) FROM docs WHERE conflicted=1), " +
+            "(SELECT COUNT(*) FROM revs), " +
+            "(SELECT IFNULL(SUM(LENGTH(json)), 0) FROM revs)";
+    private static final String SQL_GET_MIN_GENERATION =
+            "SELECT MIN(CAST(revid AS INTEGER)) FROM revs WHERE doc_id=?";
+    private static final String SQL_DELETE_REV =
+            "DELETE FROM revs WHERE sequence=?";
+    private static final String SQL_GET_BODY_SAMPLES =
+            "SELECT json FROM revs WHERE current=1 AND json NOT NULL ORDER BY sequence DESC LIMIT ?";
+    private static final String SQL_REV_EXISTS =
+            "SELECT sequence FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
+    private static final String SQL_GET_SEQUENCE =
+            "SELECT sequence FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
+    private static final String SQL_GET_CURRENT_SEQUENCE =
+            "SELECT sequence FROM revs WHERE doc_id=? AND revid=? AND current=1 LIMIT 1";
+    private static final String SQL_GET_WINNING_REV =
+            "SELECT winning_revid, winning_deleted, conflicted FROM docs WHERE doc_id=?";
+    private static final String SQL_FIND_WINNING_REV =
+            "SELECT revid, deleted, sequence FROM revs" +
+            " WHERE doc_id=? and current=1" +
+            " ORDER BY deleted asc, revid desc LIMIT 2";
+    private static final String SQL_GET_DOCS_CHANGED_AFTER =
+            "SELECT DISTINCT doc_id FROM revs WHERE sequence > ? " +
+            "UNION SELECT doc_id FROM docs WHERE winning_sequence NOT NULL " +
+            "AND NOT EXISTS (SELECT 1 FROM revs WHERE sequence=docs.winning_sequence)";
+    private static final String SQL_SET_WINNING_REV =
+            "UPDATE docs SET winning_revid=?, winning_sequence=?, winning_deleted=?, conflicted=? " +
+            "WHERE doc_id=?";
+    private static final String SQL_INSERT_REV =
+            "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json, doc_type) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_MAKE_REV_NON_CURRENT =
+            "UPDATE revs SET current=0, doc_type=NULL WHERE sequence=?";
+    private static final String SQL_MAKE_LEAF_REV_NON_CURRENT =
+            "UPDATE revs SET current=0, doc_type=NULL WHERE sequence=? AND current!=0";
+    private static final String SQL_CHANGES =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "ORDER BY revs.doc_id, revid DESC";
+    private static final String SQL_CHANGES_WITH_BODY =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted, json FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "ORDER BY revs.doc_id, revid DESC";
+    // Same, resuming after a given row. Params: lastSequence, doc_id, doc_id, revid
+    private static final String SQL_CHANGES_AFTER_REV =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "AND (revs.doc_id > ? OR (revs.doc_id = ? AND revid < ?)) " +
+            "ORDER BY revs.doc_id, revid DESC";
+    private static final String SQL_CHANGES_AFTER_REV_WITH_BODY =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted, json FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "AND (revs.doc_id > ? OR (revs.doc_id = ? AND revid < ?)) " +
+            "ORDER BY revs.doc_id, revid DESC";
+    // Sequence-ordered changes. Params: lastSequence, limit
+    private static final String SQL_CHANGES_BY_SEQUENCE =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "ORDER BY sequence LIMIT ?";
+    private static final String SQL_CHANGES_BY_SEQUENCE_WITH_BODY =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted, json FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "ORDER BY sequence LIMIT ?";
+    // Same, but only the rev with the highest revID among each doc's changed leaves, as
+    // SQL_CHANGES reports without conflicts. Params: lastSequence, lastSequence, limit
+    private static final String SQL_CHANGES_BY_SEQUENCE_NO_CONFLICTS =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "AND NOT EXISTS (SELECT 1 FROM revs AS other WHERE other.doc_id=revs.doc_id " +
+            "AND other.current=1 AND other.sequence > ? AND other.revid > revs.revid) " +
+            "ORDER BY sequence LIMIT ?";
+    private static final String SQL_CHANGES_BY_SEQUENCE_NO_CONFLICTS_WITH_BODY =
+            "SELECT sequence, revs.doc_id, docid, revid, deleted, json FROM revs, docs " +
+            "WHERE sequence > ? AND current=1 " +
+            "AND revs.doc_id = docs.doc_id " +
+            "AND NOT EXISTS (SELECT 1 FROM revs AS other WHERE other.doc_id=revs.doc_id " +
+            "AND other.current=1 AND other.sequence > ? AND other.revid > revs.revid) " +
+            "ORDER BY sequence LIMIT ?";
+
     // transactionLevel is per thread
     static class TransactionLevel extends ThreadLocal<Integer> {
         @Override
@@ -126,7 +315,20 @@ public class SQLiteStore implements Store, EncryptableStore {
     private String directory;
     private String path;
     private Manager manager;
-    private SQLiteStorageEngine storageEngine;
+    private StatementStorageEngine storageEngine;
+    private SQLiteConnection writer;
+    private SQLiteReaderPool readers;
+    private GroupCommitter groupCommitter;
+    private RevisionBodyCodec bodyCodec = new RevisionBodyCodec(null);
+    private boolean compressBodies;
+    private BodyEncoding bodyEncoding = BodyEncoding.JSON;
+    private LruCache<String, Long> docIDs;
+    private RevTreeCache revTrees;
+    private StatsCounters stats = new StatsCounters();
+    // The value of LAST_SEQUENCE_KEY as last read or saved, or -1 until open() has caught up
+    // with older versions' revisions; only used by the writer:
+    private long savedLastSequence = -1;
+    private BusyRetryPolicy busyRetryPolicy;
     private TransactionLevel transactionLevel;
     private StoreDelegate delegate;
     private int maxRevTreeDepth;
@@ -150,6 +352,10 @@ public class SQLiteStore implements Store, EncryptableStore {
         this.transactionLevel = new TransactionLevel();
         this.delegate = delegate;
         this.maxRevTreeDepth = DEFAULT_MAX_REVS;
+        this.docIDs = new LruCache<String, Long>(Math.max(1, manager.getDocIDCacheSize()));
+        this.revTrees = new RevTreeCache(manager.getRevTreeCacheSize());
+        this.busyRetryPolicy = new BusyRetryPolicy(manager.getBusyRetryMaxAttempts(),
+                manager.getBusyRetryBaseDelayMs());
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -178,8 +384,9 @@ public class SQLiteStore implements Store, EncryptableStore {
         try {
             // Open database:
             storageEngine.open(path);
+            writer = new SQLiteConnection(storageEngine, DEFAULT_STATEMENT_CACHE_SIZE);
             // Try to decrypt or access the database:
-            decrypt(encryptionKey);
+            decrypt(storageEngine, encryptionKey);
             isOpenSuccess = true;
         } catch (SQLException e) {
             String message = "Unable to create a storage engine";
@@ -195,17 +402,24 @@ public class SQLiteStore implements Store, EncryptableStore {
         // Stuff we need to initialize every time the sqliteDb opens:
         try {
             initialize("PRAGMA foreign_keys = ON;");
+            // Let compactIncrementally() hand free pages back a few at a time. (This only takes
+            // effect before the first table is created; compact() converts older files.)
+            if (storageEngine.getVersion() == 0)
+                initialize("PRAGMA auto_vacuum = INCREMENTAL;");
         } catch (SQLException e) {
             String message = "Cannot set enforcement of foreign key constraints";
             Log.e(TAG, message, e);
             throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
         }
 
+        // Write-ahead logging lets readers on other connections carry on during a transaction:
+        boolean walEnabled = manager.isEnableWriteAheadLog() && enableWriteAheadLog();
+
         // Check the user_version number we last stored in the sqliteDb:
         int dbVersion = storageEngine.getVersion();
 
         // Incompatible version changes increment the hundreds' place:
-        if (dbVersion >= 200) {
+        if (dbVersion >= 300) {
             close();
             String message = "Database version " + dbVersion +
                     " is newer than I know how to work with";
@@ -271,8 +485,94 @@ public class SQLiteStore implements Store, EncryptableStore {
                 dbVersion = 101;
             }
 
-            if (isNew)
+            if (dbVersion < 102) {
+                // Version 102: Cache each document's winning revision in its 'docs' row.
+                // (The columns are kept up to date by add, forceInsert and purgeRevisions, and
+                // catchUpWithOlderWriters() fixes them after older versions' changes.)
+                String upgradeSql = "ALTER TABLE docs ADD COLUMN winning_revid TEXT; " +
+                        "ALTER TABLE docs ADD COLUMN winning_sequence INTEGER; " +
+                        "ALTER TABLE docs ADD COLUMN winning_deleted BOOLEAN DEFAULT 0; " +
+                        "ALTER TABLE docs ADD COLUMN conflicted BOOLEAN DEFAULT 0; " +
+                        "UPDATE docs SET winning_sequence=(SELECT sequence FROM revs " +
+                        "    WHERE revs.doc_id=docs.doc_id AND current=1 " +
+                        "    ORDER BY deleted ASC, revid DESC LIMIT 1); " +
+                        "UPDATE docs SET " +
+                        "    winning_revid=(SELECT revid FROM revs WHERE sequence=docs.winning_sequence), " +
+                        "    winning_deleted=IFNULL((SELECT deleted FROM revs " +
+                        "        WHERE sequence=docs.winning_sequence), 0), " +
+                        "    conflicted=((SELECT COUNT(*) FROM revs WHERE revs.doc_id=docs.doc_id " +
+                        "        AND current=1 AND deleted=0) > 1); " +
+                        "PRAGMA user_version = 102";
+                try {
+                    initialize(upgradeSql);
+                } catch (SQLException e) {
+                    String message = "Cannot update docs table";
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 102;
+            }
+
+            if (dbVersion < 103) {
+                // Version 103: Index of the attachment digests referenced by each revision's
+                // JSON, so that finding the attachments in use doesn't have to parse every body.
+                // (Rows go away with their revision via the foreign key; compact() removes the
+                // ones of revisions whose JSON it deletes.)
+                String upgradeSql = "CREATE TABLE attachments ( " +
+                        "    sequence INTEGER NOT NULL REFERENCES revs(sequence) ON DELETE CASCADE, " +
+                        "    digest TEXT NOT NULL); " +
+                        "CREATE INDEX attachments_by_sequence ON attachments(sequence); " +
+                        "CREATE INDEX attachments_by_digest ON attachments(digest); ";
+                try {
+                    initialize(upgradeSql);
+                    if (!isNew)
+                        indexAttachmentsAfter(0);
+                    setInfo(LAST_SEQUENCE_KEY, Long.toString(getLastSequence(writer)));
+                    initialize("PRAGMA user_version = 103");
+                } catch (SQLException e) {
+                    String message = "Cannot create attachments table";
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 103;
+            }
+
+            if (dbVersion < 104) {
+                // Version 104: Index of the current revisions by document type, for indexing
+                // views that only map documents of certain types.
+                String upgradeSql = "CREATE INDEX revs_by_doctype ON revs(doc_type, sequence); " +
+                        "PRAGMA user_version = 104";
+                try {
+                    initialize(upgradeSql);
+                } catch (SQLException e) {
+                    String message = "Cannot create revs_by_doctype index";
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 104;
+            }
+
+            if (isNew) {
+                setInfo(BODY_ENCODING_KEY, manager.getBodyEncoding());
                 optimizeSQLIndexes(); // runs ANALYZE query
+            }
+
+            String encoding = getInfo(BODY_ENCODING_KEY);
+            boolean jsonBodies = encoding == null ||
+                    BodyEncoding.JSON.getName().equals(encoding);
+            if (dbVersion < 200 && (manager.isEnableBodyCompression() || !jsonBodies)) {
+                // Version 200: Revision bodies may be compressed or Smile-encoded, which versions
+                // that only know 1xx databases can't read; they have to refuse to open the
+                // database before the first such body is stored.
+                try {
+                    initialize("PRAGMA user_version = 200");
+                } catch (SQLException e) {
+                    String message = "Cannot update user_version to 200";
+                    Log.e(TAG, message, e);
+                    throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+                }
+                dbVersion = 200;
+            }
 
             // successfully updated storageEngine schema:
             isSuccessful = true;
@@ -284,16 +584,93 @@ public class SQLiteStore implements Store, EncryptableStore {
                 close();
             }
         }
+
+        openBodyCodec();
+        // (Counted from the cached winners, which the catch-up then moves documents between.)
+        openStats();
+        try {
+            catchUpWithOlderWriters();
+        } catch (CouchbaseLiteException e) {
+            close();
+            throw e;
+        }
+        if (walEnabled)
+            openReaders(manager.getReaderConnectionPoolSize());
+        if (manager.getGroupCommitWindowMs() > 0)
+            groupCommitter = new GroupCommitter(new File(path).getName(), this,
+                    manager.getGroupCommitWindowMs());
     }
 
     @Override
     public void close() {
+        // Let already queued transactions finish first:
+        if (groupCommitter != null)
+            groupCommitter.stop();
+        groupCommitter = null;
+        if (readers != null)
+            readers.close();
+        readers = null;
+        if (writer != null)
+            writer.statements.clear();
+        writer = null;
+        docIDs.evictAll();
+        revTrees.clear();
+        savedLastSequence = -1;
         if (storageEngine != null && storageEngine.isOpen())
             storageEngine.close();
         storageEngine = null;
     }
 
-    private SQLiteStorageEngine createStorageEngine() throws CouchbaseLiteException {
+    /**
+     * Switches the database to write-ahead logging. The setting is persistent.
+     *
+     * @return true if the database is now in WAL mode.
+     */
+    private boolean enableWriteAheadLog() {
+        Cursor cursor = null;
+        try {
+            // (This PRAGMA returns the resulting mode as a row, so it can't go through execSQL)
+            cursor = storageEngine.rawQuery("PRAGMA journal_mode = WAL", (String[]) null);
+            if (cursor.moveToNext() && "wal".equalsIgnoreCase(cursor.getString(0)))
+                return true;
+            Log.w(TAG, "SQLiteStore: unable to switch %s to WAL mode; not using readers", path);
+        } catch (SQLException e) {
+            Log.w(TAG, "SQLiteStore: unable to switch %s to WAL mode; not using readers", e, path);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return false;
+    }
+
+    /**
+     * Opens the pool of read-only connections. If they can't be opened, all reads keep going
+     * through the writer connection.
+     */
+    private void openReaders(int count) {
+        if (count <= 0)
+            return;
+        List<SQLiteConnection> connections = new ArrayList<SQLiteConnection>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                StatementStorageEngine engine = createStorageEngine();
+                engine.open(path);
+                connections.add(new SQLiteConnection(engine, DEFAULT_STATEMENT_CACHE_SIZE));
+                decrypt(engine, encryptionKey);
+                // Guard against writes on a reader (a no-op before SQLite 3.8.0):
+                engine.execSQL("PRAGMA query_only = 1");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "SQLiteStore: unable to open reader connections to %s", e, path);
+            for (SQLiteConnection connection : connections)
+                connection.close();
+            return;
+        }
+        readers = new SQLiteReaderPool(connections);
+        Log.v(TAG, "SQLiteStore: opened %d reader connections to %s", count, path);
+    }
+
+    private StatementStorageEngine createStorageEngine() throws CouchbaseLiteException {
         SQLiteStorageEngineFactory factory =
                 manager.getContext().getSQLiteStorageEngineFactory();
         SQLiteStorageEngine engine =
@@ -303,7 +680,7 @@ public class SQLiteStore implements Store, EncryptableStore {
             Log.e(TAG, message);
             throw new CouchbaseLiteException(message, Status.INTERNAL_SERVER_ERROR);
         }
-        return engine;
+        return LegacyStorageEngineAdapter.adapt(engine);
     }
 
     @Override
@@ -340,7 +717,7 @@ public class SQLiteStore implements Store, EncryptableStore {
     // Database Encryption
     ///////////////////////////////////////////////////////////////////////////
 
-    private void decrypt(SymmetricKey encryptionKey) throws CouchbaseLiteException {
+    private void decrypt(SQLiteStorageEngine storageEngine, SymmetricKey encryptionKey) throws CouchbaseLiteException {
         if (encryptionKey != null) {
             if (!storageEngine.supportEncryption()) {
                 Log.w(TAG, "SQLiteStore: encryption not available (app not built with SQLCipher)");
@@ -463,6 +840,10 @@ public class SQLiteStore implements Store, EncryptableStore {
             new ActionBlock() {
                 @Override
                 public void execute() throws ActionException {
+                    if (readers != null)
+                        readers.close();
+                    readers = null;
+                    writer.statements.clear();
                     storageEngine.close();
                     dbWasClosed.set(true);
                 }
@@ -556,22 +937,12 @@ public class SQLiteStore implements Store, EncryptableStore {
 
     @Override
     public int getDocumentCount() {
-        String sql = "SELECT COUNT(DISTINCT doc_id) FROM revs WHERE current=1 AND deleted=0";
-        Cursor cursor = null;
-        int result = 0;
-        try {
-            cursor = storageEngine.rawQuery(sql, null);
-            if (cursor.moveToNext()) {
-                result = cursor.getInt(0);
-            }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error getting document count", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-        return result;
+        return (int) stats.get(StatsCounters.DOCS, inTransaction());
+    }
+
+    @Override
+    public DatabaseStats getStats() {
+        return stats.getStats(inTransaction());
     }
 
     /**
@@ -580,20 +951,24 @@ public class SQLiteStore implements Store, EncryptableStore {
      * used to check whether the storageEngine has changed between two points in time.
      */
     public long getLastSequence() {
-        String sql = "SELECT MAX(sequence) FROM revs";
-        Cursor cursor = null;
+        SQLiteConnection connection = acquireReader();
+        try {
+            return getLastSequence(connection);
+        } finally {
+            releaseReader(connection);
+        }
+    }
+
+    private long getLastSequence(SQLiteConnection connection) {
+        SQLiteStatement statement = null;
         long result = 0;
         try {
-            cursor = storageEngine.rawQuery(sql, null);
-            if (cursor.moveToNext()) {
-                result = cursor.getLong(0);
-            }
+            statement = acquireStatement(connection, SQL_GET_LAST_SEQUENCE);
+            result = statement.simpleQueryForLong();
         } catch (SQLException e) {
             Log.e(TAG, "Error getting last sequence", e);
         } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            releaseStatement(connection, SQL_GET_LAST_SEQUENCE, statement);
         }
         return result;
     }
@@ -614,12 +989,18 @@ public class SQLiteStore implements Store, EncryptableStore {
         // Remove the JSON of non-current revisions, which is most of the space.
         try {
             Log.v(TAG, "Deleting JSON of old revisions...");
+            // (Their attachments aren't referenced anymore)
+            storageEngine.execSQL(SQL_DELETE_NONCURRENT_ATTACHMENT_REFS);
+            revsChanged("current=0 AND json NOT NULL", null, false);
             ContentValues args = new ContentValues();
             args.put("json", (String) null);
             args.put("doc_type", (String) null);
             args.put("no_attachments", 1);
             int changes = storageEngine.update("revs", args, "current=0", null);
+            revTrees.invalidateAll(inTransaction());
             Log.v(TAG, "... deleted %d revisions", changes);
+            // A full compaction supersedes an interrupted incremental one:
+            storageEngine.delete("info", "key=?", new String[]{COMPACTION_CURSOR_KEY});
         } catch (SQLException e) {
             Log.e(TAG, "Error compacting", e);
             throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
@@ -627,6 +1008,8 @@ public class SQLiteStore implements Store, EncryptableStore {
 
         Log.v(TAG, "Vacuuming SQLite database...");
         try {
+            // (The VACUUM also switches files created before incremental auto-vacuum to it)
+            storageEngine.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
             storageEngine.execSQL("VACUUM");
         } catch (SQLException e) {
             Log.e(TAG, "Error vacuuming sqliteDb", e);
@@ -636,23 +1019,195 @@ public class SQLiteStore implements Store, EncryptableStore {
         Log.v(TAG, "...Finished database compaction.");
     }
 
+    /**
+     * Compacts the database like compact(), but docsPerChunk documents at a time, each chunk
+     * in its own transaction, so other readers and writers only ever wait for one chunk. After
+     * each chunk some free pages are returned to the file system with PRAGMA incremental_vacuum,
+     * instead of rewriting the whole file with VACUUM.
+     * <p/>
+     * The position is saved in the info table with each chunk, so a compaction that is stopped
+     * by the listener, or by the app exiting, resumes from there the next time.
+     *
+     * @return true if the compaction is complete, false if the listener stopped it.
+     */
     @Override
-    public boolean runInTransaction(TransactionalTask transactionalTask) {
+    public boolean compactIncrementally(int docsPerChunk, CompactionListener listener)
+            throws CouchbaseLiteException {
+        if (docsPerChunk <= 0)
+            docsPerChunk = DEFAULT_COMPACTION_CHUNK_SIZE;
+        int maxDepth = getMaxRevTreeDepth();
+        try {
+            String savedCursor = getInfo(COMPACTION_CURSOR_KEY);
+            long lastDocID = savedCursor != null ? Long.parseLong(savedCursor) : 0;
+            if (lastDocID > 0)
+                Log.v(TAG, "Resuming compaction after doc_id %d", lastDocID);
+            long totalDocs = simpleQueryForLong("SELECT COUNT(*) FROM docs");
+            long docsDone = simpleQueryForLong("SELECT COUNT(*) FROM docs WHERE doc_id <= ?",
+                    lastDocID);
+
+            boolean canVacuum = simpleQueryForLong("PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+            if (!canVacuum)
+                Log.i(TAG, "%s isn't in incremental auto_vacuum mode; space will only be " +
+                        "returned to the file system by compact()", path);
+
+            while (true) {
+                long[] chunk = compactNextDocs(lastDocID, docsPerChunk, maxDepth);
+                if (chunk == null)
+                    break;
+                lastDocID = chunk[0];
+                docsDone += chunk[1];
+                if (canVacuum)
+                    incrementalVacuum(VACUUM_PAGES_PER_CHUNK);
+                if (listener != null && !listener.compactionProgress(docsDone, totalDocs)) {
+                    Log.v(TAG, "Compaction stopped after doc_id %d", lastDocID);
+                    return false;
+                }
+            }
 
-        boolean shouldCommit = true;
+            // All docs are done; give back the rest of the free pages, still a chunk at a time:
+            while (canVacuum && simpleQueryForLong("PRAGMA freelist_count") > 0) {
+                incrementalVacuum(VACUUM_PAGES_PER_CHUNK);
+                if (listener != null && !listener.compactionProgress(docsDone, totalDocs))
+                    return false;
+            }
 
-        beginTransaction();
+            storageEngine.delete("info", "key=?", new String[]{COMPACTION_CURSOR_KEY});
+        } catch (SQLException e) {
+            Log.e(TAG, "Error compacting", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+        Log.v(TAG, "...Finished incremental database compaction.");
+        return true;
+    }
+
+    /**
+     * Compacts the next maxDocs documents after lastDocID, in one transaction, and saves the
+     * position for resuming.
+     *
+     * @return the last doc_id compacted and the number of documents, or null if there are no
+     * more documents.
+     */
+    private long[] compactNextDocs(long lastDocID, int maxDocs, int maxDepth)
+            throws SQLException, CouchbaseLiteException {
+        boolean shouldCommit = false;
+        if (!beginTransaction())
+            throw new CouchbaseLiteException(Status.DB_ERROR);
         try {
-            shouldCommit = transactionalTask.run();
-        } catch (Exception e) {
-            shouldCommit = false;
-            Log.e(TAG, e.toString(), e);
-            throw new RuntimeException(e);
+            long firstDocID = 0, endDocID = 0, nDocs = 0;
+            Cursor cursor = null;
+            try {
+                cursor = storageEngine.rawQuery(
+                        "SELECT doc_id FROM docs WHERE doc_id > ? ORDER BY doc_id LIMIT ?",
+                        new Object[]{lastDocID, maxDocs});
+                while (cursor.moveToNext()) {
+                    if (nDocs++ == 0)
+                        firstDocID = cursor.getLong(0);
+                    endDocID = cursor.getLong(0);
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            if (nDocs == 0) {
+                shouldCommit = true;
+                return null;
+            }
+
+            pruneRevsToMaxDepth(firstDocID, endDocID, maxDepth);
+            Object[] range = {firstDocID, endDocID};
+            storageEngine.execSQL(SQL_DELETE_NONCURRENT_ATTACHMENT_REFS_IN_RANGE, range);
+            revsChanged("doc_id BETWEEN ? AND ? AND current=0 AND json NOT NULL", range, false);
+            storageEngine.execSQL(SQL_DELETE_NONCURRENT_JSON_IN_RANGE, range);
+            revTrees.invalidateAll(true);
+            setInfo(COMPACTION_CURSOR_KEY, Long.toString(endDocID));
+            shouldCommit = true;
+            return new long[]{endDocID, nDocs};
         } finally {
             endTransaction(shouldCommit);
         }
+    }
+
+    private void incrementalVacuum(int pages) throws SQLException {
+        // (Run as a query so it's stepped to completion, whatever the engine's execSQL does)
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery("PRAGMA incremental_vacuum(" + pages + ")",
+                    (String[]) null);
+            while (cursor.moveToNext()) {
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    private long simpleQueryForLong(String sql, Object... args) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(sql, args);
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    @Override
+    public boolean runInTransaction(TransactionalTask transactionalTask) {
+
+        if (shouldGroupCommit())
+            return groupCommitter.run(transactionalTask);
+
+        // Only a top-level transaction can be retried; a nested one's failure is the outer one's.
+        boolean canRetry = transactionLevel.get() == 0;
+        for (int attempt = 1; ; attempt++) {
+            boolean shouldCommit = false;
+            Exception error = null;
+            SQLException commitError = null;
+
+            if (!beginTransaction())
+                throw new SQLException("Unable to begin transaction");
+            try {
+                shouldCommit = transactionalTask.run();
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                try {
+                    endTransaction(shouldCommit && error == null);
+                } catch (SQLException e) {
+                    if (error == null)
+                        commitError = e;
+                }
+            }
+
+            Exception failure = error != null ? error : commitError;
+            if (failure == null)
+                return shouldCommit;
+            if (canRetry && BusyRetryPolicy.isBusy(failure) &&
+                    busyRetryPolicy.shouldRetry(attempt)) {
+                Log.w(TAG, "Database busy; retrying transaction (attempt %d)", attempt + 1);
+                continue;
+            }
+            if (commitError != null)
+                throw commitError;
+            Log.e(TAG, error.toString(), error);
+            throw new RuntimeException(error);
+        }
+    }
+
+    /**
+     * The policy for retrying transactions when the database is busy, with its counts of
+     * retries and failures.
+     */
+    public BusyRetryPolicy getBusyRetryPolicy() {
+        return busyRetryPolicy;
+    }
 
-        return shouldCommit;
+    /**
+     * The executor SQLiteViewStore maps documents on in parallel, or null to map serially.
+     */
+    ExecutorService getMapExecutor() {
+        return manager.getMapExecutor();
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -661,31 +1216,37 @@ public class SQLiteStore implements Store, EncryptableStore {
 
     @Override
     public RevisionInternal getDocument(String docID, String revID, boolean withBody) {
+        SQLiteConnection connection = acquireReader();
+        try {
+            return getDocument(connection, docID, revID, withBody);
+        } finally {
+            releaseReader(connection);
+        }
+    }
 
-        long docNumericID = getDocNumericID(docID);
+    private RevisionInternal getDocument(SQLiteConnection connection,
+                                         String docID, String revID, boolean withBody) {
+
+        long docNumericID = getDocNumericID(connection, docID);
         if (docNumericID < 0) {
             return null;
         }
 
         RevisionInternal result = null;
         String sql;
+        if (revID != null)
+            sql = withBody ? SQL_GET_REV_WITH_BODY : SQL_GET_REV;
+        else
+            sql = withBody ? SQL_GET_CURRENT_REV_WITH_BODY : SQL_GET_CURRENT_REV;
 
+        SQLiteStatement statement = null;
         Cursor cursor = null;
         try {
-            cursor = null;
-            String cols = "revid, deleted, sequence";
-            if (withBody) {
-                cols += ", json";
-            }
-            if (revID != null) {
-                sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? AND revid=? AND json notnull LIMIT 1";
-                String[] args = {Long.toString(docNumericID), revID};
-                cursor = storageEngine.rawQuery(sql, args);
-            } else {
-                sql = "SELECT " + cols + " FROM revs WHERE revs.doc_id=? and current=1 and deleted=0 ORDER BY revid DESC LIMIT 1";
-                String[] args = {Long.toString(docNumericID)};
-                cursor = storageEngine.rawQuery(sql, args);
-            }
+            statement = acquireStatement(connection, sql);
+            statement.bindLong(1, docNumericID);
+            if (revID != null)
+                statement.bindString(2, revID);
+            cursor = statement.query();
 
             if (cursor.moveToNext()) {
                 if (revID == null) {
@@ -695,8 +1256,7 @@ public class SQLiteStore implements Store, EncryptableStore {
                 result = new RevisionInternal(docID, revID, deleted);
                 result.setSequence(cursor.getLong(2));
                 if (withBody) {
-                    byte[] json = cursor.getBlob(3);
-                    result.setJSON(json);
+                    setRevisionBody(result, decodeBody(cursor.getBlob(3)));
                 }
             } else {
                 // revID != null?Status.NOT_FOUND:Status.DELTED
@@ -707,6 +1267,7 @@ public class SQLiteStore implements Store, EncryptableStore {
             if (cursor != null) {
                 cursor.close();
             }
+            releaseStatement(connection, sql, statement);
         }
         return result;
     }
@@ -723,18 +1284,20 @@ public class SQLiteStore implements Store, EncryptableStore {
         if (docNumericID <= 0)
             throw new CouchbaseLiteException(Status.NOT_FOUND);
 
+        SQLiteStatement statement = null;
         Cursor cursor = null;
         Status result = new Status(Status.NOT_FOUND);
         try {
-            String sql = "SELECT sequence, json FROM revs WHERE doc_id=? AND revid=? LIMIT 1";
-            String[] args = {String.valueOf(docNumericID), rev.getRevID()};
-            cursor = storageEngine.rawQuery(sql, args);
+            statement = acquireStatement(SQL_LOAD_REV_BODY);
+            statement.bindLong(1, docNumericID);
+            statement.bindString(2, rev.getRevID());
+            cursor = statement.query();
             if (cursor.moveToNext()) {
-                byte[] json = cursor.getBlob(1);
+                byte[] json = decodeBody(cursor.getBlob(1));
                 if (json != null) {
                     result.setCode(Status.OK);
                     rev.setSequence(cursor.getLong(0));
-                    rev.setJSON(json);
+                    setRevisionBody(rev, json);
                 }
             }
         } catch (SQLException e) {
@@ -744,6 +1307,7 @@ public class SQLiteStore implements Store, EncryptableStore {
             if (cursor != null) {
                 cursor.close();
             }
+            releaseStatement(SQL_LOAD_REV_BODY, statement);
         }
 
         if (result.getCode() == Status.NOT_FOUND) {
@@ -758,18 +1322,26 @@ public class SQLiteStore implements Store, EncryptableStore {
 
         // First get the parent's sequence:
         long seq = rev.getSequence();
-        if (seq > 0) {
-            seq = SQLiteUtils.longForQuery(storageEngine,
-                    "SELECT parent FROM revs WHERE sequence=?",
-                    new String[]{Long.toString(seq)});
-        } else {
-            long docNumericID = getDocNumericID(rev.getDocID());
-            if (docNumericID <= 0) {
-                return null;
+        SQLiteStatement statement = null;
+        String sql = null;
+        try {
+            if (seq > 0) {
+                sql = SQL_GET_PARENT_BY_SEQUENCE;
+                statement = acquireStatement(sql);
+                statement.bindLong(1, seq);
+            } else {
+                long docNumericID = getDocNumericID(rev.getDocID());
+                if (docNumericID <= 0) {
+                    return null;
+                }
+                sql = SQL_GET_PARENT_BY_REVID;
+                statement = acquireStatement(sql);
+                statement.bindLong(1, docNumericID);
+                statement.bindString(2, rev.getRevID());
             }
-            String[] args = new String[]{Long.toString(docNumericID), rev.getRevID()};
-            seq = SQLiteUtils.longForQuery(storageEngine,
-                    "SELECT parent FROM revs WHERE doc_id=? and revid=?", args);
+            seq = statement.simpleQueryForLong();
+        } finally {
+            releaseStatement(sql, statement);
         }
 
         if (seq == 0) {
@@ -779,12 +1351,12 @@ public class SQLiteStore implements Store, EncryptableStore {
         // Now get its revID and deletion status:
         RevisionInternal result = null;
 
-        String[] args = {Long.toString(seq)};
-        String queryString = "SELECT revid, deleted FROM revs WHERE sequence=?";
         Cursor cursor = null;
-
+        statement = null;
         try {
-            cursor = storageEngine.rawQuery(queryString, args);
+            statement = acquireStatement(SQL_GET_REVID_AND_DELETED);
+            statement.bindLong(1, seq);
+            cursor = statement.query();
             if (cursor.moveToNext()) {
                 String revId = cursor.getString(0);
                 boolean deleted = (cursor.getInt(1) > 0);
@@ -792,7 +1364,9 @@ public class SQLiteStore implements Store, EncryptableStore {
                 result.setSequence(seq);
             }
         } finally {
-            cursor.close();
+            if (cursor != null)
+                cursor.close();
+            releaseStatement(SQL_GET_REVID_AND_DELETED, statement);
         }
         return result;
     }
@@ -813,47 +1387,34 @@ public class SQLiteStore implements Store, EncryptableStore {
             return new ArrayList<RevisionInternal>();
         }
 
-        String sql = "SELECT sequence, parent, revid, deleted, json isnull FROM revs " +
-                "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = {Long.toString(docNumericId)};
-        Cursor cursor = null;
-
-        List<RevisionInternal> result;
+        List<RevTreeCache.Node> tree;
         try {
-            cursor = storageEngine.rawQuery(sql, args);
-
-            cursor.moveToNext();
-            long lastSequence = 0;
-            result = new ArrayList<RevisionInternal>();
-            while (!cursor.isAfterLast()) {
-                long sequence = cursor.getLong(0);
-                boolean matches = false;
-                if (lastSequence == 0) {
-                    matches = revId.equals(cursor.getString(2));
-                } else {
-                    matches = (sequence == lastSequence);
-                }
-                if (matches) {
-                    revId = cursor.getString(2);
-                    boolean deleted = (cursor.getInt(3) > 0);
-                    boolean missing = (cursor.getInt(4) > 0);
-                    RevisionInternal aRev = new RevisionInternal(docId, revId, deleted);
-                    aRev.setMissing(missing);
-                    aRev.setSequence(cursor.getLong(0));
-                    result.add(aRev);
-                    lastSequence = cursor.getLong(1);
-                    if (lastSequence == 0) {
-                        break;
-                    }
-                }
-                cursor.moveToNext();
-            }
+            tree = getRevTree(docNumericId);
         } catch (SQLException e) {
             Log.e(TAG, "Error getting revision history", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+
+        // The tree is in descending sequence order, so children come before their parents, and
+        // each revision's parent is found further down the list:
+        long lastSequence = 0;
+        List<RevisionInternal> result = new ArrayList<RevisionInternal>();
+        for (RevTreeCache.Node node : tree) {
+            boolean matches;
+            if (lastSequence == 0) {
+                matches = revId.equals(node.revID);
+            } else {
+                matches = (node.sequence == lastSequence);
+            }
+            if (matches) {
+                RevisionInternal aRev = new RevisionInternal(docId, node.revID, node.deleted);
+                aRev.setMissing(node.missing);
+                aRev.setSequence(node.sequence);
+                result.add(aRev);
+                lastSequence = node.parent;
+                if (lastSequence == 0) {
+                    break;
+                }
             }
         }
 
@@ -861,17 +1422,27 @@ public class SQLiteStore implements Store, EncryptableStore {
     }
 
     private RevisionList getAllRevisions(String docId, long docNumericID, boolean onlyCurrent) {
-        String sql = null;
-        if (onlyCurrent)
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? AND current ORDER BY sequence DESC";
-        else
-            sql = "SELECT sequence, revid, deleted FROM revs " +
-                    "WHERE doc_id=? ORDER BY sequence DESC";
-        String[] args = {Long.toString(docNumericID)};
-        Cursor cursor = storageEngine.rawQuery(sql, args);
+        if (!onlyCurrent) {
+            try {
+                RevisionList result = new RevisionList();
+                for (RevTreeCache.Node node : getRevTree(docNumericID)) {
+                    RevisionInternal rev = new RevisionInternal(docId, node.revID, node.deleted);
+                    rev.setSequence(node.sequence);
+                    result.add(rev);
+                }
+                return result;
+            } catch (SQLException e) {
+                return null;
+            }
+        }
+
+        SQLiteStatement statement = null;
+        Cursor cursor = null;
         RevisionList result = null;
         try {
+            statement = acquireStatement(SQL_GET_CURRENT_REVS);
+            statement.bindLong(1, docNumericID);
+            cursor = statement.query();
             cursor.moveToNext();
             result = new RevisionList();
             while (!cursor.isAfterLast()) {
@@ -887,6 +1458,7 @@ public class SQLiteStore implements Store, EncryptableStore {
         } finally {
             if (cursor != null)
                 cursor.close();
+            releaseStatement(SQL_GET_CURRENT_REVS, statement);
         }
         return result;
     }
@@ -903,34 +1475,28 @@ public class SQLiteStore implements Store, EncryptableStore {
             return null;
 
         List<String> revIDs = new ArrayList<String>();
-
-        int sqlLimit = limit > 0 ? (int) limit : -1;     // SQL uses -1, not 0, to denote 'no limit'
-        String sql = "SELECT revid, sequence FROM revs WHERE doc_id=? and revid < ?" +
-                " and deleted=0 and json not null" +
-                " ORDER BY sequence DESC LIMIT ?";
-        String[] args = {Long.toString(docNumericID), generation + "-", Integer.toString(sqlLimit)};
-
-        Cursor cursor = null;
         try {
-            cursor = storageEngine.rawQuery(sql, args);
-            cursor.moveToNext();
-            while (!cursor.isAfterLast()) {
-                if (onlyAttachments != null && revIDs.size() == 0) {
-                    onlyAttachments.set(sequenceHasAttachments(cursor.getLong(1)));
-                }
-                revIDs.add(cursor.getString(0));
-                cursor.moveToNext();
+            for (RevTreeCache.Node node : getRevTree(docNumericID)) {
+                if (node.deleted || node.missing ||
+                        RevisionInternal.generationFromRevID(node.revID) >= generation)
+                    continue;
+                if (onlyAttachments != null && revIDs.size() == 0)
+                    onlyAttachments.set(node.hasAttachments);
+                revIDs.add(node.revID);
+                if (limit > 0 && revIDs.size() >= limit)
+                    break;
             }
         } catch (SQLException e) {
             Log.e(TAG, "Error getting all revisions of document", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
         return revIDs;
     }
 
+    /**
+     * Removes the revisions that already exist from touchRevs. Each (docID, revID) pair is looked
+     * up on its own with one cached statement, using the docs.docid and revs(doc_id, revid)
+     * indexes, so the cost is linear in the number of revisions and the SQL doesn't grow with it.
+     */
     @Override
     public int findMissingRevisions(RevisionList touchRevs) throws SQLException {
         int numRevisionsRemoved = 0;
@@ -938,37 +1504,39 @@ public class SQLiteStore implements Store, EncryptableStore {
             return numRevisionsRemoved;
         }
 
-        String quotedDocIds = TextUtils.joinQuoted(touchRevs.getAllDocIds());
-        String quotedRevIds = TextUtils.joinQuoted(touchRevs.getAllRevIds());
-
-        String sql = "SELECT docid, revid FROM revs, docs " +
-                "WHERE docid IN (" +
-                quotedDocIds +
-                ") AND revid in (" +
-                quotedRevIds + ")" +
-                " AND revs.doc_id == docs.doc_id";
-
-        Cursor cursor = null;
+        List<RevisionInternal> missing = new ArrayList<RevisionInternal>(touchRevs.size());
+        Map<String, Long> docNumericIDs = new HashMap<String, Long>();
+        SQLiteConnection connection = acquireReader();
+        SQLiteStatement statement = null;
         try {
-            cursor = storageEngine.rawQuery(sql, null);
-            cursor.moveToNext();
-            while (!cursor.isAfterLast()) {
-                RevisionInternal rev = touchRevs.revWithDocIdAndRevId(cursor.getString(0),
-                        cursor.getString(1));
-
-                if (rev != null) {
-                    touchRevs.remove(rev);
-                    numRevisionsRemoved += 1;
+            statement = acquireStatement(connection, SQL_REV_EXISTS);
+            for (RevisionInternal rev : touchRevs) {
+                Long docNumericID = docNumericIDs.get(rev.getDocID());
+                if (docNumericID == null) {
+                    docNumericID = getDocNumericID(connection, rev.getDocID());
+                    docNumericIDs.put(rev.getDocID(), docNumericID);
                 }
-
-                cursor.moveToNext();
+                boolean exists = false;
+                if (docNumericID > 0) {
+                    statement.bindLong(1, docNumericID);
+                    statement.bindString(2, rev.getRevID());
+                    exists = statement.simpleQueryForLong() > 0;
+                }
+                if (exists)
+                    numRevisionsRemoved += 1;
+                else
+                    missing.add(rev);
             }
         } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            releaseStatement(connection, SQL_REV_EXISTS, statement);
+            releaseReader(connection);
         }
-        return numRevisionsRemoved;
+
+        if (numRevisionsRemoved > 0) {
+            touchRevs.clear();
+            touchRevs.addAll(missing);
+        }
+        return numRevisionsRemoved;
     }
 
     /**
@@ -977,39 +1545,86 @@ public class SQLiteStore implements Store, EncryptableStore {
     @Override
     public Set<BlobKey> findAllAttachmentKeys() throws CouchbaseLiteException {
         Set<BlobKey> allKeys = new HashSet<BlobKey>();
-        String sql = "SELECT json FROM revs WHERE no_attachments != 1";
+        SQLiteConnection connection = acquireReader();
         Cursor cursor = null;
         try {
-            cursor = storageEngine.rawQuery(sql, null);
-            cursor.moveToNext();
-            while (!cursor.isAfterLast()) {
-                byte[] json = cursor.getBlob(0);
+            cursor = connection.engine.rawQuery(SQL_GET_ATTACHMENT_DIGESTS, (String[]) null);
+            while (cursor.moveToNext()) {
+                allKeys.add(new BlobKey(cursor.getString(0)));
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error finding attachment keys", e);
+            throw new CouchbaseLiteException(e, Status.DB_ERROR);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseReader(connection);
+        }
+        return allKeys;
+    }
+
+    /**
+     * Fills the attachments table from the JSON of the existing revisions after the given
+     * sequence: all of them when upgrading a database to version 103, or the ones an older
+     * version added since (see catchUpWithOlderWriters()).
+     */
+    private void indexAttachmentsAfter(long sequence) throws SQLException {
+        Log.v(TAG, "Indexing attachments of existing revisions after sequence %d...", sequence);
+        String sql = "SELECT sequence, json FROM revs " +
+                "WHERE sequence > ? AND no_attachments != 1 AND json NOT NULL";
+        Cursor cursor = null;
+        int nRefs = 0;
+        try {
+            cursor = storageEngine.rawQuery(sql, new Object[]{sequence});
+            while (cursor.moveToNext()) {
+                byte[] json = decodeBody(cursor.getBlob(1));
                 if (json != null && json.length > 0) {
                     try {
-                        Map<String, Object> docProperties = Manager.getObjectMapper().readValue(json, Map.class);
-                        if (docProperties.containsKey("_attachments")) {
-                            Map<String, Object> attachments = (Map<String, Object>) docProperties.get("_attachments");
-                            Iterator<String> itr = attachments.keySet().iterator();
-                            while (itr.hasNext()) {
-                                String name = itr.next();
-                                Map<String, Object> attachment = (Map<String, Object>) attachments.get(name);
-                                String digest = (String) attachment.get("digest");
-                                BlobKey key = new BlobKey(digest);
-                                allKeys.add(key);
-                            }
-                        }
+                        Map<String, Object> docProperties =
+                                BodyEncoding.readProperties(json, 0, json.length);
+                        nRefs += insertAttachmentRefs(cursor.getLong(0),
+                                (Map<String, Object>) docProperties.get("_attachments"));
                     } catch (IOException e) {
                         Log.e(TAG, e.toString(), e);
                     }
                 }
-                cursor.moveToNext();
             }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
-        return allKeys;
+        Log.v(TAG, "    ...indexed %d attachment references", nRefs);
+    }
+
+    /**
+     * Records the digests of a revision's attachments in the attachments table.
+     *
+     * @return the number of rows inserted.
+     */
+    private int insertAttachmentRefs(long sequence, Map<String, Object> attachments)
+            throws SQLException {
+        if (attachments == null || attachments.isEmpty())
+            return 0;
+        int nRefs = 0;
+        SQLiteStatement statement = acquireStatement(SQL_INSERT_ATTACHMENT_REF);
+        try {
+            for (Object attachment : attachments.values()) {
+                if (!(attachment instanceof Map))
+                    continue;
+                Object digest = ((Map<String, Object>) attachment).get("digest");
+                if (!(digest instanceof String))
+                    continue;
+                statement.bindLong(1, sequence);
+                statement.bindString(2, (String) digest);
+                statement.executeInsert();
+                nRefs++;
+            }
+        } finally {
+            releaseStatement(SQL_INSERT_ATTACHMENT_REF, statement);
+        }
+        return nRefs;
     }
 
     /**
@@ -1018,20 +1633,115 @@ public class SQLiteStore implements Store, EncryptableStore {
      */
     @Override
     public Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException {
+        SQLiteConnection connection = acquireReader();
+        try {
+            return getAllDocs(connection, options);
+        } finally {
+            releaseReader(connection);
+        }
+    }
+
+    private Map<String, Object> getAllDocs(SQLiteConnection connection, QueryOptions options)
+            throws CouchbaseLiteException {
 
         Map<String, Object> result = new HashMap<String, Object>();
         List<QueryRow> rows = new ArrayList<QueryRow>();
         if (options == null) {
             options = new QueryOptions();
         }
-        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+        if (options.getKeys() != null && options.getKeys().size() == 0) {
+            return result;
+        }
 
         long updateSeq = 0;
         if (options.isUpdateSeq()) {
-            updateSeq = getLastSequence();  // TODO: needs to be atomic with the following SELECT
+            updateSeq = getLastSequence(connection);  // TODO: needs to be atomic with the following SELECT
         }
 
-        // Generate the SELECT statement, based on the options:
+        // Now run the database query:
+        AllDocsIterator iterator = null;
+        try {
+            iterator = new AllDocsIterator(options, false);
+            if (options.getKeys() == null) {
+                while (iterator.hasNext())
+                    rows.add(iterator.next());
+            } else {
+                Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
+                while (iterator.hasNext()) {
+                    QueryRow change = iterator.next();
+                    docs.put((String) change.getKey(), change);
+                }
+
+                // If given doc IDs, sort the output into that order, and add entries for missing docs:
+                for (Object docIdObject : options.getKeys()) {
+                    if (docIdObject instanceof String) {
+                        String docID = (String) docIdObject;
+                        QueryRow change = docs.get(docID);
+                        if (change == null) {
+                            Map<String, Object> value = new HashMap<String, Object>();
+                            long docNumericID = getDocNumericID(connection, docID);
+                            if (docNumericID > 0) {
+                                AtomicBoolean outIsDeleted = new AtomicBoolean(false);
+                                String revID = winningRevIDOfDocNumericID(connection, docNumericID, outIsDeleted, null);
+                                if (revID != null) {
+                                    value.put("rev", revID);
+                                    value.put("deleted", true);
+                                }
+                            }
+                            change = new QueryRow((value != null ? docID : null), 0, docID, value, null, null);
+                        }
+                        // TODO add options.filter
+                        rows.add(change);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
+        }
+
+        result.put("rows", rows);
+        result.put("total_rows", rows.size());
+        result.put("offset", options.getSkip());
+        if (updateSeq != 0) {
+            result.put("update_seq", updateSeq);
+        }
+
+        return result;
+    }
+
+    @Override
+    public CloseableIterator<QueryRow> getAllDocsIterator(QueryOptions options)
+            throws CouchbaseLiteException {
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        if (options.getKeys() != null) {
+            // The rows have to come out in the order of the keys, so they're collected first:
+            List<QueryRow> rows = (List<QueryRow>) getAllDocs(options).get("rows");
+            return new ListIterator<QueryRow>(rows);
+        }
+        try {
+            return new AllDocsIterator(options, !canStream());
+        } catch (SQLException e) {
+            Log.e(TAG, "Error getting all docs", e);
+            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    /**
+     * Generates the SELECT statement for getAllDocs(), based on the options, and its arguments.
+     * The rows start at the document fromDocID, if it isn't null, and the limit and skip are
+     * given separately, so that a later page of the results can be read.
+     */
+    private String allDocsSQL(QueryOptions options, String fromDocID, int limit, int skip,
+                              List<Object> args) {
+        boolean includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+
         StringBuffer sql = new StringBuffer("SELECT revs.doc_id, docid, revid, sequence");
         if (options.isIncludeDocs()) {
             sql.append(", json, no_attachments");
@@ -1041,9 +1751,6 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
         sql.append(" FROM revs, docs WHERE");
         if (options.getKeys() != null) {
-            if (options.getKeys().size() == 0) {
-                return result;
-            }
             String commaSeperatedIds = TextUtils.joinQuotedObjects(options.getKeys());
             sql.append(String.format(" revs.doc_id IN (SELECT doc_id FROM docs WHERE docid IN (%s)) AND",
                     commaSeperatedIds));
@@ -1053,7 +1760,6 @@ public class SQLiteStore implements Store, EncryptableStore {
             sql.append(" AND deleted=0");
         }
 
-        List<String> args = new ArrayList<String>();
         Object minKey = options.getStartKey();
         Object maxKey = options.getEndKey();
         boolean inclusiveMin = true;
@@ -1075,6 +1781,10 @@ public class SQLiteStore implements Store, EncryptableStore {
             sql.append((inclusiveMax ? " AND docid <= ?" : " AND docid < ?"));
             args.add((String) maxKey);
         }
+        if (fromDocID != null) {
+            sql.append(options.isDescending() ? " AND docid <= ?" : " AND docid >= ?");
+            args.add(fromDocID);
+        }
 
         sql.append(
                 String.format(
@@ -1084,17 +1794,143 @@ public class SQLiteStore implements Store, EncryptableStore {
                 )
         );
 
-        args.add(Integer.toString(options.getLimit()));
-        args.add(Integer.toString(options.getSkip()));
+        args.add(limit);
+        args.add(skip);
+        return sql.toString();
+    }
 
-        // Now run the database query:
-        Cursor cursor = null;
-        Map<String, QueryRow> docs = new HashMap<String, QueryRow>();
-        try {
-            // Get row values now, before the code below advances 'cursor':
-            cursor = storageEngine.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+    /**
+     * Reads the rows of getAllDocs() from the cursor as it's advanced. A reader connection is
+     * held from construction until close(), so the iterator must be used and closed on the
+     * thread that created it.
+     * <p/>
+     * If paged, the rows are instead read ITERATOR_PAGE_SIZE documents at a time, closing the
+     * cursor and giving back the connection between pages, so that a slow consumer doesn't keep
+     * the writer connection busy. Each page picks up at the first document the last one didn't
+     * get to.
+     */
+    private class AllDocsIterator implements CloseableIterator<QueryRow> {
+        private final QueryOptions options;
+        private final boolean includeDeletedDocs;
+        private final BlobBuffer jsonBuffer;
+        private final ArrayDeque<QueryRow> page;
+        private SQLiteConnection connection;
+        private BlobCursor cursor;
+        private boolean keepGoing;
+        private QueryRow nextRow;
+        // SQL rows the limit still allows, and the document the next page starts at:
+        private int rowsLeft;
+        private String nextPageDocID;
+
+        AllDocsIterator(QueryOptions options, boolean paged) throws SQLException {
+            this.options = options;
+            this.includeDeletedDocs = (options.getAllDocsMode() == Query.AllDocsMode.INCLUDE_DELETED);
+            this.jsonBuffer = options.isIncludeDocs() ? new BlobBuffer(JSON_BUFFER_SIZE) : null;
+            this.rowsLeft = options.getLimit();
+            if (paged) {
+                page = new ArrayDeque<QueryRow>();
+                readPage();
+            } else {
+                page = null;
+                openCursor();
+            }
+        }
 
-            boolean keepGoing = cursor.moveToNext(); // Go to first result row
+        @Override
+        public boolean hasNext() {
+            if (nextRow == null) {
+                if (page != null) {
+                    if (page.isEmpty() && nextPageDocID != null)
+                        readPage();
+                    nextRow = page.poll();
+                } else if (cursor != null) {
+                    nextRow = readRow();
+                }
+                if (nextRow == null)
+                    close();
+            }
+            return nextRow != null;
+        }
+
+        @Override
+        public QueryRow next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            QueryRow row = nextRow;
+            nextRow = null;
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closeCursor();
+            if (page != null)
+                page.clear();
+            nextPageDocID = null;
+            nextRow = null;
+        }
+
+        private void openCursor() throws SQLException {
+            List<Object> args = new ArrayList<Object>();
+            // The skip only applies to the first page:
+            String sql = allDocsSQL(options, nextPageDocID, rowsLeft,
+                    nextPageDocID == null ? options.getSkip() : 0, args);
+            connection = acquireReader();
+            try {
+                cursor = connection.engine.rawQuery(sql, args.toArray());
+                keepGoing = moveToNext(); // Go to first result row
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void closeCursor() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+            if (connection != null) {
+                releaseReader(connection);
+                connection = null;
+            }
+        }
+
+        private void readPage() throws SQLException {
+            openCursor();
+            try {
+                for (int i = 0; i < ITERATOR_PAGE_SIZE; i++) {
+                    QueryRow row = readRow();
+                    if (row == null)
+                        break;
+                    page.add(row);
+                }
+                // The cursor is on the first row of the next document, if any; it's read again
+                // as part of the next page:
+                if (keepGoing) {
+                    nextPageDocID = cursor.getString(1);
+                    rowsLeft++;
+                } else {
+                    nextPageDocID = null;
+                }
+            } finally {
+                closeCursor();
+            }
+        }
+
+        private boolean moveToNext() {
+            if (!cursor.moveToNext())
+                return false;
+            rowsLeft--;
+            return true;
+        }
+
+        private QueryRow readRow() {
             while (keepGoing) {
                 long docNumericID = cursor.getLong(0);
                 String docID = cursor.getString(1);
@@ -1103,10 +1939,14 @@ public class SQLiteStore implements Store, EncryptableStore {
                 boolean deleted = includeDeletedDocs && cursor.getInt(getDeletedColumnIndex(options)) > 0;
                 RevisionInternal docRevision = null;
                 if (options.isIncludeDocs()) {
-                    //docRevision = revision(docID, revID, deleted, sequence, cursor.getBlob(4));
-                    byte[] json = cursor.getBlob(4);
-                    Map<String, Object> properties = documentPropertiesFromJSON(json, docID, revID,
-                            false, sequence);
+                    Map<String, Object> properties;
+                    if (cursor.isNull(4)) {
+                        properties = documentPropertiesFromJSON(null, docID, revID, false, sequence);
+                    } else {
+                        cursor.copyBlobToBuffer(4, jsonBuffer);
+                        properties = documentPropertiesFromJSON(jsonBuffer.data, 0,
+                                jsonBuffer.sizeCopied, docID, revID, false, sequence);
+                    }
                     docRevision = revision(
                             docID,    // docID
                             revID,    // revID
@@ -1119,7 +1959,7 @@ public class SQLiteStore implements Store, EncryptableStore {
                 // Iterate over following rows with the same doc_id -- these are conflicts.
                 // Skip them, but collect their revIDs if the 'conflicts' option is set:
                 List<String> conflicts = new ArrayList<String>();
-                while (((keepGoing = cursor.moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
+                while (((keepGoing = moveToNext()) == true) && cursor.getLong(0) == docNumericID) {
                     if (options.getAllDocsMode() == Query.AllDocsMode.SHOW_CONFLICTS ||
                             options.getAllDocsMode() == Query.AllDocsMode.ONLY_CONFLICTS) {
                         if (conflicts.isEmpty()) {
@@ -1144,55 +1984,15 @@ public class SQLiteStore implements Store, EncryptableStore {
                         value,
                         docRevision,
                         null);
-                if (options.getKeys() != null)
-                    docs.put(docID, change);
-                    // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
-                else if (options.getPostFilter() == null || options.getPostFilter().apply(change))
-                    rows.add(change);
-            }
-
-            // If given doc IDs, sort the output into that order, and add entries for missing docs:
-            if (options.getKeys() != null) {
-                for (Object docIdObject : options.getKeys()) {
-                    if (docIdObject instanceof String) {
-                        String docID = (String) docIdObject;
-                        QueryRow change = docs.get(docID);
-                        if (change == null) {
-                            Map<String, Object> value = new HashMap<String, Object>();
-                            long docNumericID = getDocNumericID(docID);
-                            if (docNumericID > 0) {
-                                boolean deleted;
-                                AtomicBoolean outIsDeleted = new AtomicBoolean(false);
-                                String revID = winningRevIDOfDocNumericID(docNumericID, outIsDeleted, null);
-                                if (revID != null) {
-                                    value.put("rev", revID);
-                                    value.put("deleted", true);
-                                }
-                            }
-                            change = new QueryRow((value != null ? docID : null), 0, docID, value, null, null);
-                        }
-                        // TODO add options.filter
-                        rows.add(change);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error getting all docs", e);
-            throw new CouchbaseLiteException("Error getting all docs", e, new Status(Status.INTERNAL_SERVER_ERROR));
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+                // TODO: In the future, we need to implement CBLRowPassesFilter() in CBLView+Querying.m
+                // (With keys, getAllDocs() reorders the rows and doesn't filter them.)
+                if (options.getKeys() == null && options.getPostFilter() != null &&
+                        !options.getPostFilter().apply(change))
+                    continue;
+                return change;
             }
+            return null;
         }
-
-        result.put("rows", rows);
-        result.put("total_rows", rows.size());
-        result.put("offset", options.getSkip());
-        if (updateSeq != 0) {
-            result.put("update_seq", updateSeq);
-        }
-
-        return result;
     }
 
     @Override
@@ -1200,62 +2000,255 @@ public class SQLiteStore implements Store, EncryptableStore {
                                      ChangesOptions options,
                                      ReplicationFilter filter,
                                      Map<String, Object> filterParams) {
+        if (options == null) {
+            options = new ChangesOptions();
+        }
+        RevisionList changes = new RevisionList();
+        CloseableIterator<RevisionInternal> iterator = null;
+        try {
+            iterator = new ChangesIterator(lastSequence, options, filter, filterParams, false);
+            while (iterator.hasNext())
+                changes.add(iterator.next());
+        } catch (SQLException e) {
+            Log.e(TAG, "Error looking for changes", e);
+        } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public CloseableIterator<RevisionInternal> changesSinceIterator(long lastSequence,
+                                                                    ChangesOptions options,
+                                                                    ReplicationFilter filter,
+                                                                    Map<String, Object> filterParams) {
         // http://wiki.apache.org/couchdb/HTTP_database_API#Changes
         if (options == null) {
             options = new ChangesOptions();
         }
+        return new ChangesIterator(lastSequence, options, filter, filterParams, !canStream());
+    }
 
-        boolean includeDocs = options.isIncludeDocs() || (filter != null);
-        String additionalSelectColumns = "";
-        if (includeDocs) {
-            additionalSelectColumns = ", json";
+    /**
+     * Reads the revisions of changesSince() from the cursor as it's advanced.
+     * <p/>
+     * In sequence order (the default) the query reads revs in sequence order and the limit is
+     * applied in SQL (or, with a filter, by stopping once enough revisions have passed it), so
+     * the cost is O(limit) rather than O(number of changes since lastSequence.) Without
+     * conflicts, each doc is reported once, with the highest revID among its changed leaves.
+     * <p/>
+     * A reader connection is held from construction until close(), so the iterator must be used
+     * and closed on the thread that created it.
+     * <p/>
+     * If paged, the revisions are instead read ITERATOR_PAGE_SIZE at a time, closing the cursor
+     * and giving back the connection between pages. Each page picks up after the last row the
+     * previous one looked at: by sequence, or in document order by (doc_id, revid).
+     */
+    private class ChangesIterator implements CloseableIterator<RevisionInternal> {
+        private final long lastSequence;
+        private final boolean sortBySequence;
+        private final boolean includeConflicts;
+        private final boolean includeDocs;
+        private final boolean skipConflicts;
+        private final int limit;
+        private final ReplicationFilter filter;
+        private final Map<String, Object> filterParams;
+        private final ArrayDeque<RevisionInternal> page;
+        private String sql;
+        private SQLiteConnection connection;
+        private SQLiteStatement statement;
+        private Cursor cursor;
+        private long lastDocId = 0;
+        private int count = 0;
+        private RevisionInternal nextRev;
+        // The last row looked at, and whether there may be more after it:
+        private long lastRowSequence;
+        private long lastRowDocId;
+        private String lastRowRevID;
+        private boolean morePages;
+
+        ChangesIterator(long lastSequence, ChangesOptions options,
+                        ReplicationFilter filter, Map<String, Object> filterParams,
+                        boolean paged)
+                throws SQLException {
+            this.lastSequence = lastSequence;
+            this.sortBySequence = options.isSortBySequence();
+            this.includeConflicts = options.isIncludeConflicts();
+            this.includeDocs = options.isIncludeDocs() || (filter != null);
+            this.limit = options.getLimit();
+            this.filter = filter;
+            this.filterParams = filterParams;
+            // (The NO_CONFLICTS queries only return one rev per doc already)
+            this.skipConflicts = !sortBySequence && !includeConflicts;
+            if (paged) {
+                page = new ArrayDeque<RevisionInternal>();
+                readPage();
+            } else {
+                page = null;
+                openCursor();
+            }
         }
 
-        String sql = "SELECT sequence, revs.doc_id, docid, revid, deleted" + additionalSelectColumns + " FROM revs, docs "
-                + "WHERE sequence > ? AND current=1 "
-                + "AND revs.doc_id = docs.doc_id "
-                + "ORDER BY revs.doc_id, revid DESC";
-        String[] args = {Long.toString(lastSequence)};
-        Cursor cursor = null;
-        RevisionList changes = null;
+        @Override
+        public boolean hasNext() {
+            if (nextRev == null && count < limit) {
+                if (page != null) {
+                    if (page.isEmpty() && morePages)
+                        readPage();
+                    nextRev = page.poll();
+                } else if (cursor != null) {
+                    nextRev = readRev();
+                }
+            }
+            if (nextRev == null)
+                close();
+            return nextRev != null;
+        }
 
-        try {
-            cursor = storageEngine.rawQuery(sql, args);
-            cursor.moveToNext();
-            changes = new RevisionList();
-            long lastDocId = 0;
-            while (!cursor.isAfterLast()) {
-                if (!options.isIncludeConflicts()) {
+        @Override
+        public RevisionInternal next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            RevisionInternal rev = nextRev;
+            nextRev = null;
+            count++;
+            return rev;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closeCursor();
+            if (page != null)
+                page.clear();
+            morePages = false;
+            nextRev = null;
+        }
+
+        private void openCursor() throws SQLException {
+            boolean resuming = lastRowRevID != null;
+            if (sortBySequence) {
+                if (includeConflicts)
+                    sql = includeDocs ? SQL_CHANGES_BY_SEQUENCE_WITH_BODY : SQL_CHANGES_BY_SEQUENCE;
+                else
+                    sql = includeDocs ? SQL_CHANGES_BY_SEQUENCE_NO_CONFLICTS_WITH_BODY :
+                            SQL_CHANGES_BY_SEQUENCE_NO_CONFLICTS;
+            } else if (resuming) {
+                sql = includeDocs ? SQL_CHANGES_AFTER_REV_WITH_BODY : SQL_CHANGES_AFTER_REV;
+            } else {
+                sql = includeDocs ? SQL_CHANGES_WITH_BODY : SQL_CHANGES;
+            }
+
+            connection = acquireReader();
+            try {
+                statement = acquireStatement(connection, sql);
+                int i = 1;
+                if (sortBySequence) {
+                    statement.bindLong(i++, resuming ? lastRowSequence : lastSequence);
+                    if (!includeConflicts)
+                        statement.bindLong(i++, lastSequence);
+                    // With a filter the limit applies to the revs that pass it; -1 is no limit
+                    statement.bindLong(i, filter == null ? limit - count : -1);
+                } else {
+                    statement.bindLong(i++, lastSequence);
+                    if (resuming) {
+                        statement.bindLong(i++, lastRowDocId);
+                        statement.bindLong(i++, lastRowDocId);
+                        statement.bindString(i, lastRowRevID);
+                    }
+                }
+                cursor = statement.query();
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void closeCursor() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+            if (connection != null) {
+                releaseStatement(connection, sql, statement);
+                statement = null;
+                releaseReader(connection);
+                connection = null;
+            }
+        }
+
+        private void readPage() throws SQLException {
+            openCursor();
+            try {
+                int n = Math.min(ITERATOR_PAGE_SIZE, limit - count);
+                RevisionInternal rev = null;
+                while (page.size() < n && (rev = readRev()) != null)
+                    page.add(rev);
+                // (A full page may have been the last; the next query would then find nothing.)
+                morePages = rev != null && page.size() < limit - count;
+            } finally {
+                closeCursor();
+            }
+        }
+
+        private RevisionInternal readRev() {
+            while (cursor.moveToNext()) {
+                lastRowSequence = cursor.getLong(0);
+                lastRowDocId = cursor.getLong(1);
+                lastRowRevID = cursor.getString(3);
+                if (skipConflicts) {
                     // Only count the first rev for a given doc (the rest will be losing conflicts):
-                    long docNumericId = cursor.getLong(1);
-                    if (docNumericId == lastDocId) {
-                        cursor.moveToNext();
+                    long docNumericId = lastRowDocId;
+                    if (docNumericId == lastDocId)
                         continue;
-                    }
                     lastDocId = docNumericId;
                 }
 
-                RevisionInternal rev = new RevisionInternal(cursor.getString(2), cursor.getString(3), (cursor.getInt(4) > 0));
-                rev.setSequence(cursor.getLong(0));
+                RevisionInternal rev = new RevisionInternal(cursor.getString(2), lastRowRevID, (cursor.getInt(4) > 0));
+                rev.setSequence(lastRowSequence);
                 if (includeDocs)
-                    rev.setJSON(cursor.getBlob(5));
+                    setRevisionBody(rev, decodeBody(cursor.getBlob(5)));
                 if (delegate.runFilter(filter, filterParams, rev))
-                    changes.add(rev);
-                cursor.moveToNext();
-            }
-        } catch (SQLException e) {
-            Log.e(TAG, "Error looking for changes", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+                    return rev;
             }
+            return null;
+        }
+    }
+
+    /**
+     * A CloseableIterator over rows that have already been read.
+     */
+    private static class ListIterator<T> implements CloseableIterator<T> {
+        private final Iterator<T> iterator;
+
+        ListIterator(List<T> list) {
+            this.iterator = list != null ? list.iterator() : Collections.<T>emptyList().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
         }
 
-        if (options.isSortBySequence()) {
-            changes.sortBySequence();
+        @Override
+        public T next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
         }
-        changes.limit(options.getLimit());
-        return changes;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -1292,6 +2285,149 @@ public class SQLiteStore implements Store, EncryptableStore {
             Status outStatus)
             throws CouchbaseLiteException {
 
+        if (shouldGroupCommit())
+            return addInGroupCommit(docID, prevRevID, properties, deleting, allowConflict,
+                    validationBlock, outStatus);
+
+        List<DocumentChange> changes = new ArrayList<DocumentChange>(1);
+        RevisionInternal newRev;
+
+        beginTransaction();
+        // try - finally for beginTransaction() and endTransaction()
+        try {
+            newRev = addRevision(docID, prevRevID, properties, deleting, allowConflict,
+                    validationBlock, outStatus, changes);
+        } finally {
+            endTransaction(outStatus.isSuccessful());
+        }
+
+        //// EPILOGUE: A change notification is sent...
+        for (DocumentChange change : changes)
+            delegate.databaseStorageChanged(change);
+
+        return newRev;
+    }
+
+    /**
+     * add() for when group commit is enabled: the revision is added on the committer thread,
+     * inside a transaction shared with other writers, and this waits until it's committed.
+     */
+    private RevisionInternal addInGroupCommit(
+            final String docID,
+            final String prevRevID,
+            final Map<String, Object> properties,
+            final boolean deleting,
+            final boolean allowConflict,
+            final StorageValidation validationBlock,
+            final Status outStatus)
+            throws CouchbaseLiteException {
+
+        final RevisionInternal[] newRev = new RevisionInternal[1];
+        final CouchbaseLiteException[] error = new CouchbaseLiteException[1];
+        boolean committed = groupCommitter.run(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                List<DocumentChange> changes = new ArrayList<DocumentChange>(1);
+                try {
+                    newRev[0] = addRevision(docID, prevRevID, properties, deleting,
+                            allowConflict, validationBlock, outStatus, changes);
+                } catch (CouchbaseLiteException e) {
+                    error[0] = e;
+                    return false;
+                }
+                if (!outStatus.isSuccessful())
+                    return false;
+                // Queued by the delegate until the shared transaction ends (or is dropped if
+                // it's rolled back):
+                for (DocumentChange change : changes)
+                    delegate.databaseStorageChanged(change);
+                return true;
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        if (!committed && outStatus.isSuccessful())
+            throw new CouchbaseLiteException("Failed to commit transaction", Status.DB_ERROR);
+        return newRev[0];
+    }
+
+    @Override
+    @InterfaceAudience.Private
+    public List<RevisionInternal> addDocuments(List<Map<String, Object>> docs,
+                                               boolean allowConflict,
+                                               StorageValidation validationBlock,
+                                               List<Status> outStatuses)
+            throws CouchbaseLiteException {
+
+        List<RevisionInternal> newRevs = new ArrayList<RevisionInternal>(docs.size());
+        List<DocumentChange> changes = new ArrayList<DocumentChange>(docs.size());
+        boolean success = false;
+
+        if (!beginTransaction())
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        // try - finally for beginTransaction() and endTransaction()
+        try {
+            List<DocumentChange> docChanges = new ArrayList<DocumentChange>(1);
+            for (Map<String, Object> properties : docs) {
+                String docID = (String) properties.get("_id");
+                String prevRevID = (String) properties.get("_rev");
+                boolean deleting = Boolean.TRUE.equals(properties.get("_deleted"));
+
+                Status status = new Status(Status.UNKNOWN);
+                RevisionInternal newRev = null;
+                // Each document gets its own savepoint, so a failure partway through writing it
+                // is rolled back without affecting the rest of the batch:
+                if (!beginTransaction())
+                    throw new CouchbaseLiteException(Status.DB_ERROR);
+                boolean added = false;
+                try {
+                    newRev = addRevision(docID, prevRevID, properties, deleting, allowConflict,
+                            validationBlock, status, docChanges);
+                    added = status.isSuccessful();
+                } catch (CouchbaseLiteException e) {
+                    status = e.getCBLStatus();
+                } catch (SQLException e) {
+                    Log.e(TAG, "Error adding document %s", e, docID);
+                    status = new Status(Status.DB_ERROR);
+                } finally {
+                    endTransaction(added);
+                }
+                if (added)
+                    changes.addAll(docChanges);
+                docChanges.clear();
+                newRevs.add(added ? newRev : null);
+                outStatuses.add(status);
+            }
+
+            // Hand the changes over while still in the transaction, so that the delegate posts
+            // them all together when it ends:
+            for (DocumentChange change : changes)
+                delegate.databaseStorageChanged(change);
+
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+
+        return newRevs;
+    }
+
+    /**
+     * The body of add(). It doesn't begin a transaction, so the caller must already be in one,
+     * and it doesn't notify the delegate; instead the DocumentChange for the new revision, if
+     * any, is added to outChanges, to be passed on by the caller.
+     */
+    private RevisionInternal addRevision(
+            String docID,
+            String prevRevID,
+            Map<String, Object> properties,
+            boolean deleting,
+            boolean allowConflict,
+            StorageValidation validationBlock,
+            Status outStatus,
+            List<DocumentChange> outChanges)
+            throws CouchbaseLiteException {
+
         byte[] json;
         if (properties != null && properties.size() > 0) {
             json = RevisionUtils.asCanonicalJSON(properties);
@@ -1305,183 +2441,189 @@ public class SQLiteStore implements Store, EncryptableStore {
         String winningRevID = null;
         boolean inConflict = false;
 
-        beginTransaction();
-        // try - finally for beginTransaction() and endTransaction()
-        try {
-            //// PART I: In which are performed lookups and validations prior to the insert...
-
-            // Get the doc's numeric ID (doc_id) and its current winning revision:
-            AtomicBoolean isNewDoc = new AtomicBoolean(prevRevID == null);
-            long docNumericID = -1;
-            if (docID != null) {
-                docNumericID = createOrGetDocNumericID(docID, isNewDoc);
-                if (docNumericID <= 0)
-                    // TODO: error
-                    throw new CouchbaseLiteException(Status.UNKNOWN);
-            } else {
-                docNumericID = 0;
-                isNewDoc.set(true);
-            }
+        //// PART I: In which are performed lookups and validations prior to the insert...
 
-            AtomicBoolean oldWinnerWasDeletion = new AtomicBoolean(false);
-            AtomicBoolean wasConflicted = new AtomicBoolean(false);
-            String oldWinningRevID = null;
-            if (!isNewDoc.get()) {
-                // Look up which rev is the winner, before this insertion
-                //OPT: This rev ID could be cached in the 'docs' row
-                oldWinningRevID = winningRevIDOfDocNumericID(docNumericID, oldWinnerWasDeletion, wasConflicted);
-            }
+        // Get the doc's numeric ID (doc_id) and its current winning revision:
+        AtomicBoolean isNewDoc = new AtomicBoolean(prevRevID == null);
+        long docNumericID = -1;
+        if (docID != null) {
+            docNumericID = createOrGetDocNumericID(docID, isNewDoc);
+            if (docNumericID <= 0)
+                // TODO: error
+                throw new CouchbaseLiteException(Status.UNKNOWN);
+        } else {
+            docNumericID = 0;
+            isNewDoc.set(true);
+        }
 
-            long parentSequence = 0;
-            if (prevRevID != null) {
-                // Replacing: make sure given prevRevID is current & find its sequence number:
-                if (isNewDoc.get())
-                    throw new CouchbaseLiteException(Status.NOT_FOUND);
+        AtomicBoolean oldWinnerWasDeletion = new AtomicBoolean(false);
+        AtomicBoolean wasConflicted = new AtomicBoolean(false);
+        String oldWinningRevID = null;
+        if (!isNewDoc.get()) {
+            // Look up which rev is the winner, before this insertion
+            oldWinningRevID = winningRevIDOfDocNumericID(docNumericID, oldWinnerWasDeletion, wasConflicted);
+        }
 
-                parentSequence = getSequenceOfDocument(docNumericID, prevRevID, !allowConflict);
-                if (parentSequence <= 0) { // -1 if not found
-                    // Not found: either a 404 or a 409, depending on whether there is any current revision
-                    if (!allowConflict && existsDocument(docID, null)) {
-                        throw new CouchbaseLiteException(Status.CONFLICT);
-                    } else {
-                        throw new CouchbaseLiteException(Status.NOT_FOUND);
-                    }
-                }
-            } else {
-                // Inserting first revision.
-                if (deleting && docID != null) {
-                    // Didn't specify a revision to delete: 404 or a 409, depending
-                    if (existsDocument(docID, null))
-                        throw new CouchbaseLiteException(Status.CONFLICT);
-                    else
-                        throw new CouchbaseLiteException(Status.NOT_FOUND);
-                }
+        long parentSequence = 0;
+        if (prevRevID != null) {
+            // Replacing: make sure given prevRevID is current & find its sequence number:
+            if (isNewDoc.get())
+                throw new CouchbaseLiteException(Status.NOT_FOUND);
 
-                if (docID != null) {
-                    // Inserting first revision, with docID given (PUT):
-                    // Doc ID exists; check whether current winning revision is deleted:
-                    if (oldWinnerWasDeletion.get() == true) {
-                        prevRevID = oldWinningRevID;
-                        parentSequence = getSequenceOfDocument(docNumericID, prevRevID, false);
-                    } else if (oldWinningRevID != null) {
-                        // The current winning revision is not deleted, so this is a conflict
-                        throw new CouchbaseLiteException(Status.CONFLICT);
-                    }
+            parentSequence = getSequenceOfDocument(docNumericID, prevRevID, !allowConflict);
+            if (parentSequence <= 0) { // -1 if not found
+                // Not found: either a 404 or a 409, depending on whether there is any current revision
+                if (!allowConflict && existsDocument(docID, null)) {
+                    throw new CouchbaseLiteException(Status.CONFLICT);
                 } else {
-                    // Inserting first revision, with no docID given (POST): generate a unique docID:
-                    docID = Misc.CreateUUID();
-                    docNumericID = createOrGetDocNumericID(docID, isNewDoc);
-                    if (docNumericID <= 0)
-                        return null;
+                    throw new CouchbaseLiteException(Status.NOT_FOUND);
                 }
             }
-
-            // There may be a conflict if (a) the document was already in conflict, or
-            // (b) a conflict is created by adding a non-deletion child of a non-winning rev.
-            inConflict = wasConflicted.get() ||
-                    (!deleting &&
-                            prevRevID != null &&
-                            oldWinningRevID != null &&
-                            !prevRevID.equals(oldWinningRevID));
-
-            //// PART II: In which we prepare for insertion...
-
-            // Bump the revID and update the JSON:
-            String newRevId = delegate.generateRevID(json, deleting, prevRevID);
-            if (newRevId == null)
-                throw new CouchbaseLiteException(Status.BAD_ID); // invalid previous revID (no numeric prefix)
-            assert (docID != null);
-            newRev = new RevisionInternal(docID, newRevId, deleting);
-            if (properties != null) {
-                properties.put("_id", docID);
-                properties.put("_rev", newRevId);
-                newRev.setProperties(properties);
+        } else {
+            // Inserting first revision.
+            if (deleting && docID != null) {
+                // Didn't specify a revision to delete: 404 or a 409, depending
+                if (existsDocument(docID, null))
+                    throw new CouchbaseLiteException(Status.CONFLICT);
+                else
+                    throw new CouchbaseLiteException(Status.NOT_FOUND);
             }
 
-            // Validate:
-            if (validationBlock != null) {
-                // Fetch the previous revision and validate the new one against it:
-                RevisionInternal prevRev = null;
-                if (prevRevID != null)
-                    prevRev = new RevisionInternal(docID, prevRevID, false);
-                Status status = validationBlock.validate(newRev, prevRev, prevRevID);
-                if (status.isError()) {
-                    outStatus.setCode(status.getCode());
-                    throw new CouchbaseLiteException(status);
+            if (docID != null) {
+                // Inserting first revision, with docID given (PUT):
+                // Doc ID exists; check whether current winning revision is deleted:
+                if (oldWinnerWasDeletion.get() == true) {
+                    prevRevID = oldWinningRevID;
+                    parentSequence = getSequenceOfDocument(docNumericID, prevRevID, false);
+                } else if (oldWinningRevID != null) {
+                    // The current winning revision is not deleted, so this is a conflict
+                    throw new CouchbaseLiteException(Status.CONFLICT);
                 }
+            } else {
+                // Inserting first revision, with no docID given (POST): generate a unique docID:
+                docID = Misc.CreateUUID();
+                docNumericID = createOrGetDocNumericID(docID, isNewDoc);
+                if (docNumericID <= 0)
+                    return null;
             }
+        }
 
-            // Don't store a SQL null in the 'json' column -- I reserve it to mean that the revision data
-            // is missing due to compaction or replication.
-            // Instead, store an empty zero-length blob.
-            if (json == null)
-                json = new byte[0];
+        // There may be a conflict if (a) the document was already in conflict, or
+        // (b) a conflict is created by adding a non-deletion child of a non-winning rev.
+        inConflict = wasConflicted.get() ||
+                (!deleting &&
+                        prevRevID != null &&
+                        oldWinningRevID != null &&
+                        !prevRevID.equals(oldWinningRevID));
+
+        //// PART II: In which we prepare for insertion...
+
+        // Bump the revID and update the JSON:
+        String newRevId = delegate.generateRevID(json, deleting, prevRevID);
+        if (newRevId == null)
+            throw new CouchbaseLiteException(Status.BAD_ID); // invalid previous revID (no numeric prefix)
+        assert (docID != null);
+        newRev = new RevisionInternal(docID, newRevId, deleting);
+        if (properties != null) {
+            properties.put("_id", docID);
+            properties.put("_rev", newRevId);
+            newRev.setProperties(properties);
+        }
 
-            //// PART III: In which the actual insertion finally takes place:
-            boolean hasAttachments = properties == null ? false : properties.get("_attachments") != null;
-            String docType = properties == null ? null : (String) properties.get("type");
-            long sequence = 0;
-            try {
-                sequence = insertRevision(newRev,
-                        docNumericID,
-                        parentSequence,
-                        true,
-                        hasAttachments,
-                        json,
-                        docType);
-            }catch(SQLException ex){
-                // The insert failed. If it was due to a constraint violation, that means a revision
-                // already exists with identical contents and the same parent rev. We can ignore this
-                // insert call, then.
-                if(ex.getCode() != SQLException.SQLITE_CONSTRAINT) {
-                    Log.e(TAG, "Error inserting revision: ", ex);
-                    throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
-                }
-                Log.w(TAG, "Duplicate rev insertion: " + docID + " / " + newRevId);
-                newRev.setBody(null);
-                // don't return yet; update the parent's current just to be sure (see #316 (iOS #509))
+        // Validate:
+        if (validationBlock != null) {
+            // Fetch the previous revision and validate the new one against it:
+            RevisionInternal prevRev = null;
+            if (prevRevID != null)
+                prevRev = new RevisionInternal(docID, prevRevID, false);
+            Status status = validationBlock.validate(newRev, prevRev, prevRevID);
+            if (status.isError()) {
+                outStatus.setCode(status.getCode());
+                throw new CouchbaseLiteException(status);
             }
+        }
 
+        // Don't store a SQL null in the 'json' column -- I reserve it to mean that the revision data
+        // is missing due to compaction or replication.
+        // Instead, store an empty zero-length blob.
+        if (json == null)
+            json = new byte[0];
 
-            // Make replaced rev non-current:
-            if (parentSequence > 0) {
-                try {
-                    ContentValues args = new ContentValues();
-                    args.put("current", 0);
-                    args.put("doc_type", (String) null);
-                    storageEngine.update("revs", args, "sequence=?", new String[]{String.valueOf(parentSequence)});
-                } catch (SQLException e) {
-                    Log.e(TAG, "Error setting parent rev non-current", e);
-                    storageEngine.delete("revs", "sequence=?", new String[]{String.valueOf(sequence)});
-                    throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
-                }
+        //// PART III: In which the actual insertion finally takes place:
+        boolean hasAttachments = properties == null ? false : properties.get("_attachments") != null;
+        String docType = properties == null ? null : (String) properties.get("type");
+        long sequence = 0;
+        try {
+            sequence = insertRevision(newRev,
+                    docNumericID,
+                    parentSequence,
+                    true,
+                    hasAttachments,
+                    json,
+                    docType);
+        }catch(SQLException ex){
+            // The insert failed. If it was due to a constraint violation, that means a revision
+            // already exists with identical contents and the same parent rev. We can ignore this
+            // insert call, then.
+            if(ex.getCode() != SQLException.SQLITE_CONSTRAINT) {
+                Log.e(TAG, "Error inserting revision: ", ex);
+                throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
             }
+            Log.w(TAG, "Duplicate rev insertion: " + docID + " / " + newRevId);
+            newRev.setBody(null);
+            // don't return yet; update the parent's current just to be sure (see #316 (iOS #509))
+        }
 
-            if (sequence <= 0) {
-                // duplicate rev; see above
-                outStatus.setCode(Status.OK);
-                if (newRev.getSequence() != 0)
-                    delegate.databaseStorageChanged(new DocumentChange(newRev, winningRevID, inConflict, null));
-                return newRev;
+
+        // Make replaced rev non-current:
+        if (parentSequence > 0) {
+            SQLiteStatement statement = null;
+            try {
+                statement = acquireStatement(SQL_MAKE_REV_NON_CURRENT);
+                statement.bindLong(1, parentSequence);
+                statement.executeUpdateDelete();
+            } catch (SQLException e) {
+                Log.e(TAG, "Error setting parent rev non-current", e);
+                revsChanged("sequence=?", new Object[]{sequence}, true);
+                storageEngine.delete("revs", "sequence=?", new String[]{String.valueOf(sequence)});
+                throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+            } finally {
+                releaseStatement(SQL_MAKE_REV_NON_CURRENT, statement);
             }
+        }
 
-            // Figure out what the new winning rev ID is:
-            winningRevID = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(), newRev);
+        if (sequence <= 0) {
+            // duplicate rev; see above
+            if (parentSequence > 0)
+                updateWinningRevID(docNumericID, new AtomicBoolean(false), new AtomicBoolean(false));
+            outStatus.setCode(Status.OK);
+            if (newRev.getSequence() != 0)
+                outChanges.add(new DocumentChange(newRev, winningRevID, inConflict, null));
+            return newRev;
+        }
 
-            // Success!
-            if (deleting) {
-                outStatus.setCode(Status.OK);
-            } else {
-                outStatus.setCode(Status.CREATED);
-            }
+        // Figure out what the new winning rev ID is:
+        AtomicBoolean isConflicted = new AtomicBoolean(false);
+        winningRevID = winner(docNumericID, oldWinningRevID, isConflicted);
+        inConflict = isConflicted.get();
 
-        } finally {
-            endTransaction(outStatus.isSuccessful());
+        // Keep the revision tree from growing past maxRevTreeDepth:
+        try {
+            pruneRevTreeAfterInsert(docNumericID, newRev.getGeneration());
+        } catch (SQLException e) {
+            Log.e(TAG, "Error pruning revision tree", e);
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        }
+
+        // Success!
+        if (deleting) {
+            outStatus.setCode(Status.OK);
+        } else {
+            outStatus.setCode(Status.CREATED);
         }
 
-        //// EPILOGUE: A change notification is sent...
         if (newRev.getSequence() != 0)
-            delegate.databaseStorageChanged(new DocumentChange(newRev, winningRevID, inConflict, null));
+            outChanges.add(new DocumentChange(newRev, winningRevID, inConflict, null));
 
         return newRev;
     }
@@ -1608,23 +2750,26 @@ public class SQLiteStore implements Store, EncryptableStore {
             }
             // Mark the latest local rev as no longer current:
             else if (localParentSequence > 0) {
-                ContentValues args = new ContentValues();
-                args.put("current", 0);
-                args.put("doc_type", (String) null);
-                String[] whereArgs = {Long.toString(localParentSequence)};
+                SQLiteStatement statement = null;
                 int numRowsChanged = 0;
                 try {
-                    numRowsChanged = storageEngine.update("revs", args, "sequence=? AND current!=0", whereArgs);
+                    statement = acquireStatement(SQL_MAKE_LEAF_REV_NON_CURRENT);
+                    statement.bindLong(1, localParentSequence);
+                    numRowsChanged = statement.executeUpdateDelete();
                     if (numRowsChanged == 0)
                         inConflict.set(true);  // local parent wasn't a leaf, ergo we just created a branch
                 } catch (SQLException e) {
                     throw new CouchbaseLiteException(Status.INTERNAL_SERVER_ERROR);
+                } finally {
+                    releaseStatement(SQL_MAKE_LEAF_REV_NON_CURRENT, statement);
                 }
             }
 
             if (!success) {
                 // Figure out what the new winning rev ID is:
-                winningRevID = winner(docNumericID, oldWinningRevID, oldWinnerWasDeletion.get(), rev);
+                winningRevID = winner(docNumericID, oldWinningRevID, inConflict);
+                // Keep the revision tree from growing past maxRevTreeDepth:
+                pruneRevTreeAfterInsert(docNumericID, rev.getGeneration());
                 success = true;
                 status.setCode(Status.CREATED);
             }
@@ -1657,9 +2802,11 @@ public class SQLiteStore implements Store, EncryptableStore {
             public boolean run() {
                 for (String docID : docsToRevs.keySet()) {
                     long docNumericID = getDocNumericID(docID);
-                    if (docNumericID == -1) {
+                    if (docNumericID <= 0) {
                         continue; // no such document, skip it
                     }
+                    docIDs.remove(docID);
+                    revTreeChanged(docNumericID);
                     List<String> revsPurged = new ArrayList<String>();
                     List<String> revIDs = (List<String>) docsToRevs.get(docID);
                     if (revIDs == null) {
@@ -1669,7 +2816,8 @@ public class SQLiteStore implements Store, EncryptableStore {
                     } else if (revIDs.contains("*")) {
                         // Delete all revisions if magic "*" revision ID is given:
                         try {
-                            String[] args = {Long.toString(docNumericID)};
+                            Object[] args = {docNumericID};
+                            revsChanged("doc_id=?", args, true);
                             storageEngine.execSQL("DELETE FROM revs WHERE doc_id=?", args);
                         } catch (SQLException e) {
                             Log.e(TAG, "Error deleting revisions", e);
@@ -1684,7 +2832,7 @@ public class SQLiteStore implements Store, EncryptableStore {
                         Cursor cursor = null;
 
                         try {
-                            String[] args = {Long.toString(docNumericID)};
+                            Object[] args = {docNumericID};
                             String queryString = "SELECT revid, sequence, parent FROM revs WHERE doc_id=? ORDER BY sequence DESC";
                             cursor = storageEngine.rawQuery(queryString, args);
                             if (!cursor.moveToNext()) {
@@ -1724,6 +2872,7 @@ public class SQLiteStore implements Store, EncryptableStore {
                                 String seqsToPurgeList = TextUtils.join(",", seqsToPurge);
                                 String sql = String.format("DELETE FROM revs WHERE sequence in (%s)", seqsToPurgeList);
                                 try {
+                                    revsChanged(String.format("sequence in (%s)", seqsToPurgeList), null, true);
                                     storageEngine.execSQL(sql);
                                 } catch (SQLException e) {
                                     Log.e(TAG, "Error deleting revisions via: " + sql, e);
@@ -1741,6 +2890,14 @@ public class SQLiteStore implements Store, EncryptableStore {
                             }
                         }
                     }
+                    if (revsPurged.size() > 0) {
+                        try {
+                            updateWinningRevID(docNumericID, new AtomicBoolean(false),
+                                    new AtomicBoolean(false));
+                        } catch (CouchbaseLiteException e) {
+                            return false;
+                        }
+                    }
                     result.put(docID, revsPurged);
                 }
                 return true;
@@ -1902,10 +3059,69 @@ public class SQLiteStore implements Store, EncryptableStore {
     // Internal (PROTECTED & PRIVATE) METHODS
     ///////////////////////////////////////////////////////////////////////////
 
-    protected SQLiteStorageEngine getStorageEngine() {
+    protected StatementStorageEngine getStorageEngine() {
         return storageEngine;
     }
 
+    /**
+     * Checks out a compiled statement for the SQL from the statement cache, compiling it on a miss.
+     * Every call must be balanced by releaseStatement() once any cursor on it has been closed.
+     */
+    protected SQLiteStatement acquireStatement(String sql) throws SQLException {
+        return acquireStatement(writer, sql);
+    }
+
+    SQLiteStatement acquireStatement(SQLiteConnection connection, String sql)
+            throws SQLException {
+        if (connection == null)
+            throw new SQLException("Database is not open");
+        return connection.statements.acquire(sql);
+    }
+
+    /**
+     * Returns a statement obtained from acquireStatement() to the statement cache.
+     * A null statement (acquire failed) is ignored.
+     */
+    protected void releaseStatement(String sql, SQLiteStatement statement) {
+        releaseStatement(writer, sql, statement);
+    }
+
+    void releaseStatement(SQLiteConnection connection, String sql, SQLiteStatement statement) {
+        if (statement == null)
+            return;
+        if (connection != null)
+            connection.statements.release(sql, statement);
+        else
+            statement.close();
+    }
+
+    /**
+     * Returns the connection the calling thread should read from: one from the reader pool, if
+     * the database is in WAL mode, so it doesn't wait for another thread's transaction. A thread
+     * inside a transaction gets the writer instead, so that it sees its own changes.
+     * Every call must be balanced by releaseReader().
+     */
+    SQLiteConnection acquireReader() {
+        SQLiteReaderPool pool = readers;
+        if (pool == null || transactionLevel.get() > 0)
+            return writer;
+        return pool.acquire();
+    }
+
+    /**
+     * True if an iterator may keep a cursor open for as long as its caller takes to consume it:
+     * only if it gets a pooled reader connection, so that it doesn't hold up the writer.
+     */
+    private boolean canStream() {
+        return readers != null && transactionLevel.get() == 0;
+    }
+
+    void releaseReader(SQLiteConnection connection) {
+        SQLiteReaderPool pool = readers;
+        if (pool != null && connection != null && connection != writer)
+            pool.release(connection);
+    }
+
     private boolean existsDocument(String docID, String revID) {
         return getDocument(docID, revID, false) != null;
     }
@@ -1939,6 +3155,7 @@ public class SQLiteStore implements Store, EncryptableStore {
 
     /**
      * Returns the rev ID of the 'winning' revision of this document, and whether it's deleted.
+     * This is read from the winning_* columns of the document's 'docs' row.
      * <p/>
      * in CBLDatabase+Internal.m
      * - (NSString*) winningRevIDOfDocNumericID: (SInt64)docNumericID
@@ -1950,23 +3167,27 @@ public class SQLiteStore implements Store, EncryptableStore {
                                                 AtomicBoolean outIsDeleted,
                                                 AtomicBoolean outIsConflict) // optional
             throws CouchbaseLiteException {
+        return winningRevIDOfDocNumericID(writer, docNumericId, outIsDeleted, outIsConflict);
+    }
+
+    private String winningRevIDOfDocNumericID(SQLiteConnection connection,
+                                              long docNumericId,
+                                              AtomicBoolean outIsDeleted,
+                                              AtomicBoolean outIsConflict) // optional
+            throws CouchbaseLiteException {
         assert (docNumericId > 0);
+        SQLiteStatement statement = null;
         Cursor cursor = null;
-        String sql = "SELECT revid, deleted FROM revs" +
-                " WHERE doc_id=? and current=1" +
-                " ORDER BY deleted asc, revid desc LIMIT ?";
-
-        long limit = (outIsConflict != null && outIsConflict.get()) ? 2 : 1;
-        String[] args = {Long.toString(docNumericId), Long.toString(limit)};
         String revID = null;
         try {
-            cursor = storageEngine.rawQuery(sql, args);
-            if (cursor.moveToNext()) {
+            statement = acquireStatement(connection, SQL_GET_WINNING_REV);
+            statement.bindLong(1, docNumericId);
+            cursor = statement.query();
+            if (cursor.moveToNext() && !cursor.isNull(0)) {
                 revID = cursor.getString(0);
                 outIsDeleted.set(cursor.getInt(1) > 0);
-                // The document is in conflict if there are two+ result rows that are not deletions.
                 if (outIsConflict != null) {
-                    outIsConflict.set(!outIsDeleted.get() && cursor.moveToNext() && !(cursor.getInt(1) > 0));
+                    outIsConflict.set(cursor.getInt(2) > 0);
                 }
             } else {
                 outIsDeleted.set(false);
@@ -1981,10 +3202,88 @@ public class SQLiteStore implements Store, EncryptableStore {
             if (cursor != null) {
                 cursor.close();
             }
+            releaseStatement(connection, SQL_GET_WINNING_REV, statement);
         }
         return revID;
     }
 
+    /**
+     * Works out the winning revision of a document from its current (leaf) revisions, and stores
+     * it in the document's 'docs' row. Must be called, inside the same transaction, after any
+     * change to the document's revisions.
+     *
+     * @return the winning rev ID, or null if the document has no revisions left.
+     */
+    private String updateWinningRevID(long docNumericId,
+                                      AtomicBoolean outIsDeleted,
+                                      AtomicBoolean outIsConflict)
+            throws CouchbaseLiteException {
+        assert (docNumericId > 0);
+        AtomicBoolean oldIsDeleted = new AtomicBoolean(false);
+        AtomicBoolean oldIsConflict = new AtomicBoolean(false);
+        String oldRevID = winningRevIDOfDocNumericID(docNumericId, oldIsDeleted, oldIsConflict);
+
+        String revID = null;
+        long sequence = 0;
+        outIsDeleted.set(false);
+        outIsConflict.set(false);
+
+        SQLiteStatement statement = null;
+        Cursor cursor = null;
+        try {
+            statement = acquireStatement(SQL_FIND_WINNING_REV);
+            statement.bindLong(1, docNumericId);
+            cursor = statement.query();
+            if (cursor.moveToNext()) {
+                revID = cursor.getString(0);
+                outIsDeleted.set(cursor.getInt(1) > 0);
+                sequence = cursor.getLong(2);
+                // The document is in conflict if there are two+ result rows that are not deletions.
+                outIsConflict.set(!outIsDeleted.get() && cursor.moveToNext() && !(cursor.getInt(1) > 0));
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error finding winning revision", e);
+            throw new CouchbaseLiteException("Error finding winning revision", e,
+                    new Status(Status.INTERNAL_SERVER_ERROR));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseStatement(SQL_FIND_WINNING_REV, statement);
+        }
+
+        statement = null;
+        try {
+            statement = acquireStatement(SQL_SET_WINNING_REV);
+            if (revID != null) {
+                statement.bindString(1, revID);
+                statement.bindLong(2, sequence);
+            } else {
+                statement.bindNull(1);
+                statement.bindNull(2);
+            }
+            statement.bindLong(3, outIsDeleted.get() ? 1 : 0);
+            statement.bindLong(4, outIsConflict.get() ? 1 : 0);
+            statement.bindLong(5, docNumericId);
+            statement.executeUpdateDelete();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error updating winning revision", e);
+            throw new CouchbaseLiteException("Error updating winning revision", e,
+                    new Status(Status.INTERNAL_SERVER_ERROR));
+        } finally {
+            releaseStatement(SQL_SET_WINNING_REV, statement);
+        }
+
+        // Move the document between the counters:
+        if (oldRevID != null)
+            stats.add(oldIsDeleted.get() ? StatsCounters.DELETED_DOCS : StatsCounters.DOCS, -1);
+        if (revID != null)
+            stats.add(outIsDeleted.get() ? StatsCounters.DELETED_DOCS : StatsCounters.DOCS, 1);
+        stats.add(StatsCounters.CONFLICTED_DOCS,
+                (outIsConflict.get() ? 1 : 0) - (oldIsConflict.get() ? 1 : 0));
+        return revID;
+    }
+
     /**
      * https://github.com/couchbase/couchbase-lite-ios/issues/615
      */
@@ -2031,7 +3330,17 @@ public class SQLiteStore implements Store, EncryptableStore {
         try {
             // Outer (level 0)  transaction. Use SQLiteDatabase.beginTransaction()
             if (tLevel == 0) {
-                storageEngine.beginTransaction();
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        storageEngine.beginTransaction();
+                        break;
+                    } catch (SQLException e) {
+                        if (!e.isBusy() || !busyRetryPolicy.shouldRetry(attempt))
+                            throw e;
+                        Log.w(TAG, "Database busy; retrying beginTransaction (attempt %d)",
+                                attempt + 1);
+                    }
+                }
             }
             // Inner (level 1 or higher) transaction. Use SQLite's SAVEPOINT
             else {
@@ -2039,10 +3348,13 @@ public class SQLiteStore implements Store, EncryptableStore {
             }
             Log.v(Log.TAG_DATABASE, "%s Begin transaction (level %d)", Thread.currentThread().getName(), tLevel);
             transactionLevel.set(++tLevel);
+            stats.beginTransaction();
         } catch (SQLException e) {
             Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling beginTransaction()", e);
             return false;
         }
+        if (delegate != null)
+            delegate.storageEnteredTransaction();
         return true;
     }
 
@@ -2061,64 +3373,279 @@ public class SQLiteStore implements Store, EncryptableStore {
 
         transactionLevel.set(--tLevel);
 
-        // Outer (level 0) transaction. Use SQLiteDatabase.setTransactionSuccessful() and SQLiteDatabase.endTransaction()
-        if (tLevel == 0) {
-            if (commit) {
-                Log.v(Log.TAG_DATABASE, "%s Committing transaction (level %d)", Thread.currentThread().getName(), tLevel);
-                storageEngine.setTransactionSuccessful();
-                storageEngine.endTransaction();
-            } else {
-                Log.v(Log.TAG_DATABASE, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), tLevel);
+        // Whether the transaction's changes (and so its changes to the counters) stand:
+        boolean kept = false;
+        try {
+            // Outer (level 0) transaction. Use SQLiteDatabase.setTransactionSuccessful() and SQLiteDatabase.endTransaction()
+            if (tLevel == 0) {
+                try {
+                    if (commit) {
+                        Log.v(Log.TAG_DATABASE, "%s Committing transaction (level %d)", Thread.currentThread().getName(), tLevel);
+                        try {
+                            saveStats();
+                            saveLastSequence();
+                            storageEngine.setTransactionSuccessful();
+                            storageEngine.endTransaction();
+                        } catch (SQLException e) {
+                            // A failed COMMIT (e.g. SQLITE_BUSY) can leave the transaction open on
+                            // the connection; roll it back so the next BEGIN starts afresh:
+                            rollbackAfterFailedCommit();
+                            throw e;
+                        }
+                        kept = true;
+                    } else {
+                        Log.v(Log.TAG_DATABASE, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), tLevel);
+                        try {
+                            storageEngine.endTransaction();
+                        } catch (SQLException e) {
+                            Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling endTransaction()", e);
+                            return false;
+                        }
+                    }
+                } finally {
+                    // The transaction's changes are now visible to other connections, or gone:
+                    revTrees.transactionEnded();
+                }
+            }
+            // Inner (level 1 or higher) transaction: Use SQLite's ROLLBACK and RELEASE
+            else {
+                if (commit) {
+                    Log.v(Log.TAG_DATABASE, "%s Committing transaction (level %d)", Thread.currentThread().getName(), tLevel);
+                } else {
+                    Log.v(Log.TAG_DATABASE, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), tLevel);
+                    try {
+                        storageEngine.execSQL(";ROLLBACK TO cbl_" + Integer.toString(tLevel));
+                    } catch (SQLException e) {
+                        Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling endTransaction()", e);
+                        return false;
+                    }
+                }
+                kept = commit;
                 try {
-                    storageEngine.endTransaction();
+                    storageEngine.execSQL("RELEASE cbl_" + Integer.toString(tLevel));
                 } catch (SQLException e) {
                     Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling endTransaction()", e);
                     return false;
                 }
             }
+        } finally {
+            stats.endTransaction(kept);
+
+            // Rows inserted into 'docs' during the transaction are gone now, and their row IDs
+            // may be handed out again, so don't trust any cached doc_id:
+            if (!kept)
+                docIDs.evictAll();
+
+            // Every storageEnteredTransaction() is matched, however the transaction ended:
+            if (delegate != null)
+                delegate.storageExitedTransaction(kept);
         }
-        // Inner (level 1 or higher) transaction: Use SQLite's ROLLBACK and RELEASE
-        else {
-            if (commit) {
-                Log.v(Log.TAG_DATABASE, "%s Committing transaction (level %d)", Thread.currentThread().getName(), tLevel);
-            } else {
-                Log.v(Log.TAG_DATABASE, "%s CANCEL transaction (level %d)", Thread.currentThread().getName(), tLevel);
+
+        return true;
+    }
+
+    private void rollbackAfterFailedCommit() {
+        try {
+            storageEngine.execSQL("ROLLBACK");
+        } catch (SQLException e) {
+            // Expected if the failed commit already ended the transaction.
+            Log.v(Log.TAG_DATABASE, "ROLLBACK after failed commit: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * True if a top-level transaction on this thread should be handed to the group committer.
+     * Transactions nested in another one, and ones started on the committer thread itself (from
+     * a task, or from a change listener notified at the end of a group), run directly.
+     */
+    private boolean shouldGroupCommit() {
+        return groupCommitter != null && transactionLevel.get() == 0
+                && !groupCommitter.isCommitterThread();
+    }
+
+    /**
+     * Runs on the group committer thread: runs every job's task in its own nested transaction,
+     * all inside one outer transaction, so they're made durable by a single commit.
+     */
+    @Override
+    public void commitGroup(List<GroupCommitter.Job> jobs) {
+        boolean[] results = new boolean[jobs.size()];
+        RuntimeException[] errors = new RuntimeException[jobs.size()];
+        boolean committed = false;
+        if (!beginTransaction())
+            throw new SQLException("Unable to begin transaction");
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                boolean shouldCommit = false;
+                if (!beginTransaction())
+                    throw new SQLException("Unable to begin nested transaction");
                 try {
-                    storageEngine.execSQL(";ROLLBACK TO cbl_" + Integer.toString(tLevel));
-                } catch (SQLException e) {
-                    Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling endTransaction()", e);
-                    return false;
+                    shouldCommit = jobs.get(i).task.run();
+                } catch (Exception e) {
+                    Log.e(TAG, e.toString(), e);
+                    errors[i] = new RuntimeException(e);
+                } finally {
+                    if (!endTransaction(shouldCommit))
+                        shouldCommit = false;
                 }
+                results[i] = shouldCommit;
             }
+            committed = true;
+        } finally {
+            // If the loop itself failed, everything in the group is rolled back:
             try {
-                storageEngine.execSQL("RELEASE cbl_" + Integer.toString(tLevel));
+                if (!endTransaction(committed))
+                    committed = false;
             } catch (SQLException e) {
-                Log.e(Log.TAG_DATABASE, Thread.currentThread().getName() + " Error calling endTransaction()", e);
-                return false;
+                Log.e(TAG, "Error committing group of %d transactions", e, jobs.size());
+                committed = false;
+                docIDs.evictAll();
             }
         }
 
-        if (delegate != null)
-            delegate.storageExitedTransaction(commit);
+        for (int i = 0; i < jobs.size(); i++)
+            jobs.get(i).complete(committed && results[i], errors[i]);
+    }
 
-        return true;
+    ///////////////////////////////////////////////////////////////////////////
+    // REVISION BODY COMPRESSION:
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Loads the database's body encoding and compression dictionary. If body compression is enabled and there's no
+     * dictionary yet, builds one from the most recent documents, once there are enough of them;
+     * until then bodies are compressed without a dictionary.
+     */
+    private void openBodyCodec() {
+        // Databases created before body encodings existed have no key, and use JSON:
+        String encoding = getInfo(BODY_ENCODING_KEY);
+        bodyEncoding = BodyEncoding.forName(encoding != null ? encoding : BodyEncoding.JSON.getName());
+        if (bodyEncoding == null) {
+            Log.w(TAG, "Unknown body encoding '%s'; storing bodies as JSON", encoding);
+            bodyEncoding = BodyEncoding.JSON;
+        }
+
+        compressBodies = manager.isEnableBodyCompression();
+        bodyCodec = new RevisionBodyCodec(null);
+        byte[] dictionary = null;
+        String saved = getInfo(BODY_DICTIONARY_KEY);
+        if (saved != null) {
+            try {
+                dictionary = Base64.decode(saved);
+            } catch (IOException e) {
+                Log.e(TAG, "Invalid body compression dictionary", e);
+            }
+        } else if (compressBodies) {
+            dictionary = trainBodyDictionary();
+        }
+        if (dictionary != null)
+            bodyCodec = new RevisionBodyCodec(dictionary);
+    }
+
+    private byte[] trainBodyDictionary() {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(SQL_GET_BODY_SAMPLES,
+                    new Object[]{BODY_DICTIONARY_SAMPLE_SIZE});
+            while (cursor.moveToNext()) {
+                byte[] json = decodeBody(cursor.getBlob(0));
+                if (json != null && json.length > 0)
+                    samples.add(json);
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to sample documents for body compression", e);
+            return null;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (samples.size() < BODY_DICTIONARY_MIN_SAMPLES)
+            return null;
+
+        byte[] dictionary = RevisionBodyCodec.trainDictionary(samples, BODY_DICTIONARY_SIZE);
+        if (dictionary == null)
+            return null;
+        if (setInfo(BODY_DICTIONARY_KEY, Base64.encodeBytes(dictionary)) != Status.OK)
+            return null;
+        Log.i(TAG, "Built a %d-byte body compression dictionary from %d documents",
+                dictionary.length, samples.size());
+        return dictionary;
+    }
+
+    /**
+     * Converts a revision's canonical JSON to the form stored in revs.json.
+     */
+    private byte[] encodeBody(byte[] json) {
+        byte[] body = bodyEncoding.encode(json);
+        return compressBodies ? bodyCodec.encode(body) : body;
+    }
+
+    /**
+     * Returns a body read from revs.json, decompressed if necessary. It may still be in a binary
+     * encoding; use setRevisionBody() or documentPropertiesFromJSON() to read it.
+     * Returns null if the body is missing or can't be decompressed.
+     */
+    byte[] decodeBody(byte[] body) {
+        if (!RevisionBodyCodec.isEncoded(body, 0, body != null ? body.length : 0))
+            return body;
+        return bodyCodec.decode(body, 0, body.length);
+    }
+
+    /**
+     * Sets a revision's body from a decodeBody() result. A body in another encoding than JSON
+     * is parsed into the same properties the JSON would have been, and the revision only
+     * converts those back to JSON if it's asked for it.
+     */
+    private void setRevisionBody(RevisionInternal rev, byte[] body) {
+        if (!BodyEncoding.isSmile(body, 0, body != null ? body.length : 0)) {
+            rev.setJSON(body);
+            return;
+        }
+        Map<String, Object> properties = null;
+        try {
+            properties = BodyEncoding.readProperties(body, 0, body.length);
+        } catch (IOException e) {
+            Log.e(TAG, "Unparseable body for doc=%s, rev=%s", e, rev.getDocID(), rev.getRevID());
+        }
+        rev.setBody(new Body(properties, rev.getDocID(), rev.getRevID(), rev.isDeleted()));
     }
 
     protected Map<String, Object> documentPropertiesFromJSON(byte[] json, String docID,
                                                              String revID, boolean deleted,
                                                              long sequence) {
+        return documentPropertiesFromJSON(json, 0, json != null ? json.length : 0,
+                docID, revID, deleted, sequence);
+    }
+
+    /**
+     * Same as above, but parses only json[offset, offset+length), so that a reusable buffer
+     * filled by Cursor.copyBlobToBuffer() can be passed in. A null json means the body is missing.
+     * The body may be compressed or in a binary encoding, as stored in revs.json.
+     */
+    protected Map<String, Object> documentPropertiesFromJSON(byte[] json, int offset, int length,
+                                                             String docID, String revID,
+                                                             boolean deleted, long sequence) {
+
+        if (RevisionBodyCodec.isEncoded(json, offset, length)) {
+            json = bodyCodec.decode(json, offset, length);
+            offset = 0;
+            length = json != null ? json.length : 0;
+        }
 
         RevisionInternal rev = new RevisionInternal(docID, revID, deleted);
         rev.setSequence(sequence);
         rev.setMissing(json == null);
         Map<String, Object> docProperties = null;
-        if (json == null || json.length == 0 || (json.length == 2 && json.equals("{}"))) {
+        if (json == null || length == 0 ||
+                (length == 2 && json[offset] == '{' && json[offset + 1] == '}')) {
             docProperties = new HashMap<String, Object>();
         } else {
             try {
-                docProperties = Manager.getObjectMapper().readValue(json, Map.class);
+                docProperties = BodyEncoding.readProperties(json, offset, length);
             } catch (IOException e) {
-                Log.e(TAG, String.format("Unparseable JSON for doc=%s, rev=%s: %s", docID, revID, new String(json)), e);
+                Log.e(TAG, String.format("Unparseable JSON for doc=%s, rev=%s: %s", docID, revID,
+                        new String(json, offset, length)), e);
                 docProperties = new HashMap<String, Object>();
             }
         }
@@ -2135,38 +3662,50 @@ public class SQLiteStore implements Store, EncryptableStore {
      * Prune revisions to the given max depth.  Eg, remove revisions older than that max depth,
      * which will reduce storage requirements.
      * <p/>
-     * TODO: This implementation is a bit simplistic. It won't do quite the right thing in
-     * histories with branches, if one branch stops much earlier than another. The shorter branch
-     * will be deleted entirely except for its leaf revision. A more accurate pruning
-     * would require an expensive full tree traversal. Hopefully this way is good enough.
+     * (add() and forceInsert() already prune the tree of each document they change, so this only
+     * has work to do for documents last changed while a larger maxRevTreeDepth was in effect.)
      */
     protected int pruneRevsToMaxDepth(int maxDepth) throws CouchbaseLiteException {
         if (maxDepth == 0) {
             maxDepth = getMaxRevTreeDepth();
         }
 
-        // First find which docs need pruning, and by how much:
-        long docNumericID = -1;
-        int minGen = 0;
-        int maxGen = 0;
-        Map<Long, Integer> toPrune = new HashMap<Long, Integer>();
+        int outPruned = 0;
+        boolean shouldCommit = false;
+        try {
+            beginTransaction();
+            outPruned = pruneRevsToMaxDepth(0, Long.MAX_VALUE, maxDepth);
+            shouldCommit = true;
+        } catch (Throwable e) {
+            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            endTransaction(shouldCommit);
+        }
+        return outPruned;
+    }
+
+    /**
+     * Prunes the revisions of the docs whose doc_id is in [minDocID, maxDocID] to the given max
+     * depth. Must be called in a transaction.
+     */
+    private int pruneRevsToMaxDepth(long minDocID, long maxDocID, int maxDepth)
+            throws SQLException {
+        // First find which docs may need pruning:
+        // (CAST takes the numeric generation prefix of the revID, so "10-x" sorts after "9-y")
+        List<Long> toPrune = new ArrayList<Long>();
         Cursor cursor = null;
         try {
-            String[] args = {};
             cursor = storageEngine.rawQuery(
-                    "SELECT doc_id, MIN(revid), MAX(revid) FROM revs GROUP BY doc_id", args);
+                    "SELECT doc_id, MIN(CAST(revid AS INTEGER)), MAX(CAST(revid AS INTEGER)) " +
+                            "FROM revs WHERE doc_id BETWEEN ? AND ? GROUP BY doc_id",
+                    new Object[]{minDocID, maxDocID});
             while (cursor.moveToNext()) {
-                docNumericID = cursor.getLong(0);
-                String minGenRevId = cursor.getString(1);
-                String maxGenRevId = cursor.getString(2);
-                minGen = Revision.generationFromRevID(minGenRevId);
-                maxGen = Revision.generationFromRevID(maxGenRevId);
+                int minGen = cursor.getInt(1);
+                int maxGen = cursor.getInt(2);
                 if ((maxGen - minGen + 1) > maxDepth) {
-                    toPrune.put(docNumericID, (maxGen - minGen));
+                    toPrune.add(cursor.getLong(0));
                 }
             }
-        } catch (Exception e) {
-            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -2174,26 +3713,99 @@ public class SQLiteStore implements Store, EncryptableStore {
         }
 
         int outPruned = 0;
-        boolean shouldCommit = false;
+        for (long docNumericID : toPrune) {
+            outPruned += pruneRevTree(docNumericID, maxDepth);
+        }
+        return outPruned;
+    }
+
+    /**
+     * Prunes a document's revision tree to the given depth: a revision is kept only if it's
+     * one of the maxDepth most recent revisions on the path to some leaf, so each branch keeps
+     * its own history no matter how long the other branches are. Leaves are never removed.
+     * Must be called in a transaction.
+     *
+     * @return the number of revisions deleted.
+     */
+    private int pruneRevTree(long docNumericID, int maxDepth) throws SQLException {
+        if (maxDepth <= 0 || maxDepth == Integer.MAX_VALUE)
+            return 0;
+
+        // Load the tree: parent of each revision, and the leaves
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        Map<Long, Long> bodySizes = new HashMap<Long, Long>();
+        List<Long> leaves = new ArrayList<Long>();
+        SQLiteStatement statement = acquireStatement(SQL_GET_REV_TREE);
+        Cursor cursor = null;
         try {
-            beginTransaction();
-            if (toPrune.size() == 0) {
-                return 0;
+            statement.bindLong(1, docNumericID);
+            cursor = statement.query();
+            while (cursor.moveToNext()) {
+                long sequence = cursor.getLong(0);
+                parents.put(sequence, cursor.isNull(1) ? 0 : cursor.getLong(1));
+                if (cursor.getInt(2) != 0)
+                    leaves.add(sequence);
+                bodySizes.put(sequence, cursor.getLong(3));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            releaseStatement(SQL_GET_REV_TREE, statement);
+        }
+        if (parents.size() <= maxDepth)
+            return 0;
+
+        // Keep the last maxDepth revisions of each branch:
+        Set<Long> keep = new HashSet<Long>();
+        for (Long leaf : leaves) {
+            Long sequence = leaf;
+            for (int depth = 0; depth < maxDepth && sequence != null && sequence > 0; depth++) {
+                keep.add(sequence);
+                sequence = parents.get(sequence);
             }
-            for (Long docNumericIDLong : toPrune.keySet()) {
-                String minIDToKeep = String.format("%d-", toPrune.get(docNumericIDLong).intValue() + 1);
-                String[] deleteArgs = {Long.toString(docNumericID), minIDToKeep};
-                int rowsDeleted = storageEngine.delete(
-                        "revs", "doc_id=? AND revid < ? AND current=0", deleteArgs);
-                outPruned += rowsDeleted;
+        }
+
+        int nPruned = 0;
+        revTreeChanged(docNumericID);
+        statement = acquireStatement(SQL_DELETE_REV);
+        try {
+            for (Long sequence : parents.keySet()) {
+                if (!keep.contains(sequence)) {
+                    statement.bindLong(1, sequence);
+                    if (statement.executeUpdateDelete() > 0) {
+                        nPruned++;
+                        stats.add(StatsCounters.BODY_SIZE, -bodySizes.get(sequence));
+                    }
+                }
             }
-            shouldCommit = true;
-        } catch (Throwable e) {
-            throw new CouchbaseLiteException(e, Status.INTERNAL_SERVER_ERROR);
         } finally {
-            endTransaction(shouldCommit);
+            releaseStatement(SQL_DELETE_REV, statement);
         }
-        return outPruned;
+        stats.add(StatsCounters.REVS, -nPruned);
+        if (nPruned > 0)
+            Log.v(TAG, "Pruned %d revisions of doc_id %d", nPruned, docNumericID);
+        return nPruned;
+    }
+
+    /**
+     * Called by add() and forceInsert() after inserting revisions of a document whose newest
+     * revision has the given generation. The tree is only loaded if it could be too deep.
+     */
+    private void pruneRevTreeAfterInsert(long docNumericID, int newGeneration)
+            throws SQLException {
+        int maxDepth = getMaxRevTreeDepth();
+        if (maxDepth <= 0 || newGeneration <= maxDepth)
+            return;
+        SQLiteStatement statement = acquireStatement(SQL_GET_MIN_GENERATION);
+        long minGeneration;
+        try {
+            statement.bindLong(1, docNumericID);
+            minGeneration = statement.simpleQueryForLong();
+        } finally {
+            releaseStatement(SQL_GET_MIN_GENERATION, statement);
+        }
+        if (newGeneration - minGeneration + 1 > maxDepth)
+            pruneRevTree(docNumericID, maxDepth);
     }
 
     protected void runStatements(String statements) throws SQLException {
@@ -2224,15 +3836,222 @@ public class SQLiteStore implements Store, EncryptableStore {
         return 0;
     }
 
-    private boolean sequenceHasAttachments(long sequence) {
-        String args[] = {Long.toString(sequence)};
-        return SQLiteUtils.booleanForQuery(storageEngine, "SELECT no_attachments=0 FROM revs WHERE sequence=?", args);
+    /**
+     * Returns a document's revision tree, in descending sequence order, from revTrees if it's
+     * cached there.
+     */
+    private List<RevTreeCache.Node> getRevTree(long docNumericID) throws SQLException {
+        List<RevTreeCache.Node> tree = revTrees.get(docNumericID);
+        if (tree != null)
+            return tree;
+
+        long generation = revTrees.getGeneration();
+        tree = new ArrayList<RevTreeCache.Node>();
+        SQLiteStatement statement = null;
+        Cursor cursor = null;
+        try {
+            statement = acquireStatement(SQL_GET_REV_HISTORY);
+            statement.bindLong(1, docNumericID);
+            cursor = statement.query();
+            while (cursor.moveToNext()) {
+                tree.add(new RevTreeCache.Node(
+                        cursor.getLong(0),
+                        cursor.isNull(1) ? 0 : cursor.getLong(1),
+                        cursor.getString(2),
+                        cursor.getInt(3) > 0,
+                        cursor.getInt(4) > 0,
+                        cursor.getInt(5) == 0));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+            releaseStatement(SQL_GET_REV_HISTORY, statement);
+        }
+        tree = Collections.unmodifiableList(tree);
+        revTrees.put(docNumericID, tree, generation);
+        return tree;
+    }
+
+    /**
+     * Brings the attachments table and the docs' winning_* columns up to date with the revisions
+     * an older version, which doesn't maintain them, has added since this database was last
+     * written by this one. This has to happen before anything relies on them, such as
+     * garbageCollectAttachments() or getDocument().
+     */
+    private void catchUpWithOlderWriters() throws CouchbaseLiteException {
+        long savedSequence = 0;
+        String saved = getInfo(LAST_SEQUENCE_KEY);
+        if (saved != null) {
+            try {
+                savedSequence = Long.parseLong(saved);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid %s '%s'", LAST_SEQUENCE_KEY, saved);
+            }
+        }
+        savedLastSequence = savedSequence;
+        long lastSequence = getLastSequence(writer);
+        if (lastSequence <= savedSequence)
+            return;
+
+        Log.i(TAG, "Sequences %d to %d were added by an older version; updating indexes",
+                savedLastSequence + 1, lastSequence);
+        if (!beginTransaction())
+            throw new CouchbaseLiteException(Status.DB_ERROR);
+        boolean isSuccessful = false;
+        try {
+            // Start over on any revisions of ours among them (if saving the sequence failed):
+            storageEngine.execSQL("DELETE FROM attachments WHERE sequence > ?",
+                    new Object[]{savedLastSequence});
+            indexAttachmentsAfter(savedLastSequence);
+
+            // Their documents' winners, and those of documents whose winner was purged:
+            List<Long> docNumericIDs = new ArrayList<Long>();
+            Cursor cursor = null;
+            try {
+                cursor = storageEngine.rawQuery(SQL_GET_DOCS_CHANGED_AFTER,
+                        new Object[]{savedLastSequence});
+                while (cursor.moveToNext())
+                    docNumericIDs.add(cursor.getLong(0));
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+            for (long docNumericID : docNumericIDs)
+                updateWinningRevID(docNumericID, new AtomicBoolean(false),
+                        new AtomicBoolean(false));
+            isSuccessful = true;
+        } catch (SQLException e) {
+            String message = "Cannot update indexes of revisions added by an older version";
+            Log.e(TAG, message, e);
+            throw new CouchbaseLiteException(message, e, Status.DB_ERROR);
+        } finally {
+            // Committing saves the new last sequence:
+            endTransaction(isSuccessful);
+        }
+    }
+
+    /**
+     * Records the last sequence, if it's changed, in the transaction being committed; the
+     * attachments table is up to date with every revision up to there.
+     */
+    private void saveLastSequence() {
+        if (savedLastSequence < 0)
+            return;
+        long lastSequence = getLastSequence(writer);
+        if (lastSequence == savedLastSequence)
+            return;
+        try {
+            if (setInfo(LAST_SEQUENCE_KEY, Long.toString(lastSequence)) == Status.OK)
+                savedLastSequence = lastSequence;
+            else
+                Log.w(TAG, "Unable to save the last sequence");
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to save the last sequence", e);
+        }
+    }
+
+    /**
+     * Loads the counters behind getStats(), counting them the first time the database is opened
+     * by a version that keeps them, or if revisions have been added or removed since they were
+     * saved (by an older version, which doesn't update them).
+     */
+    private void openStats() {
+        long lastSequence = getLastSequence(writer);
+        long[] values = StatsCounters.parse(getInfo(STATS_KEY), lastSequence);
+        if (values != null) {
+            stats.load(values);
+            return;
+        }
+        Log.v(TAG, "Counting documents and revisions for database statistics...");
+        values = new long[5];
+        Cursor cursor = null;
+        try {
+            cursor = storageEngine.rawQuery(SQL_COUNT_STATS, (String[]) null);
+            if (cursor.moveToNext()) {
+                values[StatsCounters.DOCS] = cursor.getLong(0);
+                values[StatsCounters.DELETED_DOCS] = cursor.getLong(1);
+                values[StatsCounters.CONFLICTED_DOCS] = cursor.getLong(2);
+                values[StatsCounters.REVS] = cursor.getLong(3);
+                values[StatsCounters.BODY_SIZE] = cursor.getLong(4);
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error counting documents", e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        stats.load(values);
+        if (setInfo(STATS_KEY, stats.format(lastSequence)) != Status.OK)
+            Log.w(TAG, "Unable to save database statistics");
+    }
+
+    /**
+     * Saves the counters, if they've changed, in the current transaction; or right away if there
+     * isn't one.
+     */
+    private void saveStats() {
+        if (!stats.isChanged())
+            return;
+        try {
+            if (setInfo(STATS_KEY, stats.format(getLastSequence(writer))) == Status.OK)
+                stats.saved();
+            else
+                Log.w(TAG, "Unable to save database statistics");
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to save database statistics", e);
+        }
+    }
+
+    /**
+     * Adjusts the counters for the revisions matching the WHERE clause, which are about to be
+     * deleted, or if deleted is false, to lose their bodies.
+     */
+    private void revsChanged(String where, Object[] args, boolean deleted) throws SQLException {
+        Cursor cursor = null;
+        try {
+            String sql = "SELECT COUNT(*), IFNULL(SUM(LENGTH(json)), 0) FROM revs WHERE " + where;
+            cursor = args != null ? storageEngine.rawQuery(sql, args) :
+                    storageEngine.rawQuery(sql, (String[]) null);
+            if (cursor.moveToNext()) {
+                if (deleted)
+                    stats.add(StatsCounters.REVS, -cursor.getLong(0));
+                stats.add(StatsCounters.BODY_SIZE, -cursor.getLong(1));
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (!inTransaction())
+            saveStats();
+    }
+
+    /**
+     * Must be called after changing any of a document's rows in the revs table.
+     */
+    private void revTreeChanged(long docNumericID) {
+        revTrees.invalidate(docNumericID, inTransaction());
     }
 
     protected long getDocNumericID(String docID) {
-        return SQLiteUtils.longForQuery(storageEngine,
-                "SELECT doc_id FROM docs WHERE docid=?",
-                new String[]{docID});
+        return getDocNumericID(writer, docID);
+    }
+
+    private long getDocNumericID(SQLiteConnection connection, String docID) {
+        Long cached = docIDs.get(docID);
+        if (cached != null)
+            return cached;
+
+        long docNumericID;
+        SQLiteStatement statement = acquireStatement(connection, SQL_GET_DOC_NUMERIC_ID);
+        try {
+            statement.bindString(1, docID);
+            docNumericID = statement.simpleQueryForLong();
+        } finally {
+            releaseStatement(connection, SQL_GET_DOC_NUMERIC_ID, statement);
+        }
+        if (docNumericID > 0)
+            docIDs.put(docID, docNumericID);
+        return docNumericID;
     }
 
     // Registers a docID and returns its numeric row ID in the 'docs' table.
@@ -2240,7 +4059,11 @@ public class SQLiteStore implements Store, EncryptableStore {
     // On return, *ioIsNew will be YES iff the docID is newly-created (was not known before.)
     // Return value is the positive row ID of this doc, or <= 0 on error.
     private long createOrGetDocNumericID(String docID, AtomicBoolean isNew) {
-        // TODO: cache
+        Long cached = docIDs.get(docID);
+        if (cached != null) {
+            isNew.set(false);
+            return cached;
+        }
 
         long row = isNew.get() ? createDocNumericID(docID, isNew) : getDocNumericID(docID);
         if (row < 0)
@@ -2250,7 +4073,8 @@ public class SQLiteStore implements Store, EncryptableStore {
             row = isNew.get() ? createDocNumericID(docID, isNew) : getDocNumericID(docID);
         }
 
-        // TODO: cache
+        if (row > 0)
+            docIDs.put(docID, row);
 
         return row;
     }
@@ -2269,12 +4093,15 @@ public class SQLiteStore implements Store, EncryptableStore {
 
     private long insertDocumentID(String docID) {
         long rowId = -1;
+        SQLiteStatement statement = null;
         try {
-            ContentValues args = new ContentValues();
-            args.put("docid", docID);
-            rowId = storageEngine.insert("docs", null, args);
+            statement = acquireStatement(SQL_INSERT_DOC_ID);
+            statement.bindString(1, docID);
+            rowId = statement.executeInsert();
         } catch (Exception e) {
             Log.e(TAG, "Error inserting document id", e);
+        } finally {
+            releaseStatement(SQL_INSERT_DOC_ID, statement);
         }
         return rowId;
     }
@@ -2290,29 +4117,53 @@ public class SQLiteStore implements Store, EncryptableStore {
             throws SQLException
     {
         long rowId = 0;
-        ContentValues args = new ContentValues();
-        args.put("doc_id", docNumericID);
-        args.put("revid", rev.getRevID());
-        if (parentSequence != 0) {
-            args.put("parent", parentSequence);
-        }
-        args.put("current", current);
-        args.put("deleted", rev.isDeleted());
-        args.put("no_attachments", !hasAttachments);
-        args.put("json", json);
-        args.put("doc_type", docType);
-        rowId = storageEngine.insertOrThrow("revs", null, args);
+        SQLiteStatement statement = acquireStatement(SQL_INSERT_REV);
+        try {
+            statement.bindLong(1, docNumericID);
+            statement.bindString(2, rev.getRevID());
+            if (parentSequence != 0)
+                statement.bindLong(3, parentSequence);
+            else
+                statement.bindNull(3);
+            statement.bindLong(4, current ? 1 : 0);
+            statement.bindLong(5, rev.isDeleted() ? 1 : 0);
+            statement.bindLong(6, hasAttachments ? 0 : 1);
+            byte[] body = json != null ? encodeBody(json) : null;
+            if (body != null)
+                statement.bindBlob(7, body);
+            else
+                statement.bindNull(7);
+            if (docType != null)
+                statement.bindString(8, docType);
+            else
+                statement.bindNull(8);
+            rowId = statement.executeInsert();
+            if (rowId > 0) {
+                stats.add(StatsCounters.REVS, 1);
+                stats.add(StatsCounters.BODY_SIZE, body != null ? body.length : 0);
+            }
+        } finally {
+            releaseStatement(SQL_INSERT_REV, statement);
+            revTreeChanged(docNumericID);
+        }
         rev.setSequence(rowId);
 
+        if (hasAttachments && json != null && rowId > 0)
+            insertAttachmentRefs(rowId, rev.getAttachments());
+
         return rowId;
     }
 
     private long getSequenceOfDocument(long docNumericID, String revID, boolean onlyCurrent) {
-        String sql = String.format(
-                "SELECT sequence FROM revs WHERE doc_id=? AND revid=? %s LIMIT 1",
-                (onlyCurrent ? "AND current=1" : ""));
-        String[] args = {Long.toString(docNumericID), revID};
-        return SQLiteUtils.longForQuery(storageEngine, sql, args);
+        String sql = onlyCurrent ? SQL_GET_CURRENT_SEQUENCE : SQL_GET_SEQUENCE;
+        SQLiteStatement statement = acquireStatement(sql);
+        try {
+            statement.bindLong(1, docNumericID);
+            statement.bindString(2, revID);
+            return statement.simpleQueryForLong();
+        } finally {
+            releaseStatement(sql, statement);
+        }
     }
 
     /**
@@ -2333,21 +4184,24 @@ public class SQLiteStore implements Store, EncryptableStore {
         // Now get its revID and deletion status:
         RevisionInternal rev = null;
 
-        String[] args = {Long.toString(sequence)};
-        String queryString = "SELECT revid, deleted, json FROM revs WHERE sequence=?";
+        SQLiteStatement statement = null;
         Cursor cursor = null;
         try {
-            cursor = storageEngine.rawQuery(queryString, args);
+            statement = acquireStatement(SQL_GET_REV_BY_SEQUENCE);
+            statement.bindLong(1, sequence);
+            cursor = statement.query();
             if (cursor.moveToNext()) {
                 String revID = cursor.getString(0);
                 boolean deleted = (cursor.getInt(1) > 0);
-                byte[] json = cursor.getBlob(2);
+                byte[] json = decodeBody(cursor.getBlob(2));
                 rev = new RevisionInternal(docID, revID, deleted);
                 rev.setSequence(sequence);
-                rev.setJSON(json);
+                setRevisionBody(rev, json);
             }
         } finally {
-            cursor.close();
+            if (cursor != null)
+                cursor.close();
+            releaseStatement(SQL_GET_REV_BY_SEQUENCE, statement);
         }
         return rev;
     }
@@ -2357,7 +4211,7 @@ public class SQLiteStore implements Store, EncryptableStore {
         RevisionInternal rev = new RevisionInternal(docID, revID, deleted);
         rev.setSequence(sequence);
         if (json != null)
-            rev.setJSON(json);
+            setRevisionBody(rev, json);
         return rev;
     }
 
@@ -2371,29 +4225,18 @@ public class SQLiteStore implements Store, EncryptableStore {
         return rev;
     }
 
+    /**
+     * Updates the document's winning revision after an insertion, and returns the new winning
+     * rev ID, or null if it didn't change.
+     */
     private String winner(long docNumericID,
                           String oldWinningRevID,
-                          boolean oldWinnerWasDeletion,
-                          RevisionInternal newRev)
+                          AtomicBoolean outIsConflict)
             throws CouchbaseLiteException {
-
-        String newRevID = newRev.getRevID();
-        if (oldWinningRevID == null) {
-            return newRevID;
-        }
-        if (!newRev.isDeleted()) {
-            if (oldWinnerWasDeletion || RevisionInternal.CBLCompareRevIDs(newRevID, oldWinningRevID) > 0)
-                return newRevID; // this is now the winning live revision
-        } else if (oldWinnerWasDeletion) {
-            if (RevisionInternal.CBLCompareRevIDs(newRevID, oldWinningRevID) > 0)
-                return newRevID; // doc still deleted, but this beats previous deletion rev
-        } else {
-            // Doc was alive. How does this deletion affect the winning rev ID?
-            AtomicBoolean outIsDeleted = new AtomicBoolean(false);
-            String winningRevID = winningRevIDOfDocNumericID(docNumericID, outIsDeleted, null);
-            if (!winningRevID.equals(oldWinningRevID))
-                return winningRevID;
-        }
+        AtomicBoolean outIsDeleted = new AtomicBoolean(false);
+        String winningRevID = updateWinningRevID(docNumericID, outIsDeleted, outIsConflict);
+        if (winningRevID != null && !winningRevID.equals(oldWinningRevID))
+            return winningRevID;
         return null; // no change
     }
 }
\ No newline at end of file
@@ -9,43 +9,64 @@ package com.couchbase.lite.store;
 import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Emitter;
 import com.couchbase.lite.Manager;
+import com.couchbase.lite.Mapper;
 import com.couchbase.lite.Predicate;
 import com.couchbase.lite.QueryOptions;
 import com.couchbase.lite.QueryRow;
 import com.couchbase.lite.Reducer;
 import com.couchbase.lite.Status;
+import com.couchbase.lite.ThreadSafeMapper;
 import com.couchbase.lite.TransactionalTask;
 import com.couchbase.lite.View;
 import com.couchbase.lite.internal.InterfaceAudience;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.BlobBuffer;
+import com.couchbase.lite.storage.BlobCursor;
 import com.couchbase.lite.storage.ContentValues;
 import com.couchbase.lite.storage.Cursor;
 import com.couchbase.lite.storage.SQLException;
-import com.couchbase.lite.storage.SQLiteStorageEngine;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.StatementStorageEngine;
 import com.couchbase.lite.support.JsonDocument;
 import com.couchbase.lite.util.CountDown;
 import com.couchbase.lite.util.Log;
 import com.couchbase.lite.util.SQLiteUtils;
+import com.couchbase.lite.util.TextUtils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
     public static String TAG = Log.TAG_VIEW;
 
-    private abstract class AbstractMapEmitBlock implements Emitter {
-        protected long sequence = 0;
+    private static final int REDUCE_BATCH_SIZE = 100;
 
-        void setSequence(long sequence) {
-            this.sequence = sequence;
-        }
-    }
+    private static final int EMIT_BUFFER_SIZE = 1000;
 
-    private static final int REDUCE_BATCH_SIZE = 100;
+    // Limits on the documents in each batch given to a ParallelMapper:
+    private static final int MAP_BATCH_SIZE = 100;
+    private static final int MAP_BATCH_MAX_BYTES = 4 * 1024 * 1024;
+
+    // Limits on the documents whose bodies updateIndex() reads in one query:
+    private static final int INDEX_CHUNK_SIZE = 500;
+    private static final int INDEX_CHUNK_MAX_BYTES = 1024 * 1024;
+
+    // The current revisions of some documents, winners first:
+    private static final String SQL_GET_CURRENT_REVS =
+            "SELECT doc_id, revid, sequence, deleted, doc_type FROM revs "
+                    + "WHERE doc_id IN (%s) AND current!=0 "
+                    + "ORDER BY doc_id, revid DESC";
 
     // public
     private String name;
@@ -135,7 +156,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         // Update the version column in the database. This is a little weird looking because we want
         // to avoid modifying the database if the version didn't change, and because the row might
         // not exist yet.
-        SQLiteStorageEngine storage = store.getStorageEngine();
+        StatementStorageEngine storage = store.getStorageEngine();
         boolean hasView;
         Cursor cursor = null;
         try {
@@ -176,7 +197,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
     @Override
     public int getTotalRows() {
-        SQLiteStorageEngine storageEngine = store.getStorageEngine();
+        StatementStorageEngine storageEngine = store.getStorageEngine();
         String sql = "SELECT total_docs FROM views WHERE name=?";
         String[] args = {name};
         int totalRows = SQLiteUtils.intForQuery(storageEngine, sql, args);
@@ -189,7 +210,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     }
 
     private int countTotalRows() {
-        SQLiteStorageEngine storageEngine = store.getStorageEngine();
+        StatementStorageEngine storageEngine = store.getStorageEngine();
         String sql = queryString("SELECT COUNT(*) FROM 'maps_#'");
         return SQLiteUtils.intForQuery(storageEngine, sql, null);
     }
@@ -232,47 +253,75 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
     @Override
     @InterfaceAudience.Private
     public void updateIndex() throws CouchbaseLiteException {
-        Log.v(Log.TAG_VIEW, "Re-indexing view: %s", name);
-        assert (delegate.getMap() != null);
+        updateIndexes(Collections.<ViewStore>singletonList(this));
+    }
 
-        if (getViewID() <= 0) {
-            String msg = String.format("getViewID() < 0");
-            throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
-        }
+    /**
+     * Updates the indexes of several views of this database in one pass: each document changed
+     * since the least recently updated of them is read and parsed once, and given to the map
+     * function of each view that hasn't indexed it yet. Views that are up to date are skipped.
+     */
+    @Override
+    @InterfaceAudience.Private
+    public void updateIndexes(List<ViewStore> inputViews) throws CouchbaseLiteException {
+        Log.v(Log.TAG_VIEW, "Re-indexing views: %s", viewNames(inputViews));
 
         store.beginTransaction();
         Status result = new Status(Status.INTERNAL_SERVER_ERROR);
         Cursor cursor = null;
+        ParallelMapper parallelMapper = null;
 
         try {
-            long last = getLastSequenceIndexed();
             long dbMaxSequence = store.getLastSequence();
             long minLastSequence = dbMaxSequence;
+            long maxLastSequence = 0;
+            boolean allThreadSafe = true;
+
+            // Emitted rows are buffered, and inserted EMIT_BUFFER_SIZE at a time:
+            EmitBuffer.Serializer serializer = new EmitBuffer.Serializer();
+            List<IndexUpdate> updates = new ArrayList<IndexUpdate>(inputViews.size());
+
+            for (ViewStore inputView : inputViews) {
+                SQLiteViewStore view = (SQLiteViewStore) inputView;
+                Mapper mapper = view.delegate.getMap();
+                assert (mapper != null);
+
+                if (view.getViewID() <= 0) {
+                    String msg = String.format("getViewID() < 0");
+                    throw new CouchbaseLiteException(msg, new Status(Status.NOT_FOUND));
+                }
+
+                long last = view.getLastSequenceIndexed();
 
-            // First remove obsolete emitted results from the 'maps' table:
-            if (last < 0) {
-                String msg = String.format("last < 0 (%s)", last);
-                throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
-            } else if (last < dbMaxSequence) {
-
-                minLastSequence = Math.min(minLastSequence, last);
-
-                if (last == 0) {
-                    // If the lastSequence has been reset to 0, make sure to remove any leftover rows:
-                    store.getStorageEngine().execSQL(queryString("DELETE FROM 'maps_#'"));
-                } else {
-                    store.optimizeSQLIndexes();
-                    // Delete all obsolete map results (ones from since-replaced revisions):
-                    String[] args = {Long.toString(last), Long.toString(last)};
-                    store.getStorageEngine().execSQL(
-                            queryString("DELETE FROM 'maps_#' WHERE sequence IN ("
-                                    + "SELECT parent FROM revs WHERE sequence>? "
-                                    + "AND +parent>0 AND +parent<=?)"), args);
+                // First remove obsolete emitted results from the 'maps' table:
+                if (last < 0) {
+                    String msg = String.format("last < 0 (%s)", last);
+                    throw new CouchbaseLiteException(msg, new Status(Status.INTERNAL_SERVER_ERROR));
+                } else if (last < dbMaxSequence) {
 
+                    minLastSequence = Math.min(minLastSequence, last);
+                    maxLastSequence = Math.max(maxLastSequence, last);
+
+                    if (last == 0) {
+                        // If the lastSequence has been reset to 0, make sure to remove any leftover rows:
+                        store.getStorageEngine().execSQL(view.queryString("DELETE FROM 'maps_#'"));
+                    } else {
+                        store.optimizeSQLIndexes();
+                        // Delete all obsolete map results (ones from since-replaced revisions):
+                        Object[] args = {last, last};
+                        store.getStorageEngine().execSQL(
+                                view.queryString("DELETE FROM 'maps_#' WHERE sequence IN ("
+                                        + "SELECT parent FROM revs WHERE sequence>? "
+                                        + "AND +parent>0 AND +parent<=?)"), args);
+
+                    }
+
+                    updates.add(new IndexUpdate(view, mapper, last, serializer));
+                    allThreadSafe = allThreadSafe && mapper instanceof ThreadSafeMapper;
                 }
             }
 
-            if (minLastSequence == dbMaxSequence) {
+            if (updates.isEmpty()) {
                 // nothing to do (eg,  kCBLStatusNotModified)
                 Log.v(Log.TAG_VIEW, "minLastSequence (%s) == dbMaxSequence (%s), nothing to do",
                         minLastSequence, dbMaxSequence);
@@ -280,33 +329,14 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                 return;
             }
 
-            // This is the emit() block, which gets called from within the
-            // user-defined map() block
-            // that's called down below.
-            AbstractMapEmitBlock emitBlock = new AbstractMapEmitBlock() {
-                @Override
-                public void emit(Object key, Object value) {
-                    try {
-                        String valueJson;
-                        String keyJson = Manager.getObjectMapper().writeValueAsString(key);
-                        if (value == null) {
-                            valueJson = null;
-                        } else {
-                            valueJson = Manager.getObjectMapper().writeValueAsString(value);
-                        }
-
-                        // NOTE: execSQL() is little faster than insert()
-                        String[] args = {Long.toString(sequence), keyJson, valueJson};
-                        store.getStorageEngine().execSQL(queryString(
-                                "INSERT INTO 'maps_#' (sequence, key, value) VALUES(?,?,?)"), args);
-                    } catch (Exception e) {
-                        Log.e(Log.TAG_VIEW, "Error emitting", e);
-                        // find a better way to propagate this back
-                    }
-                }
-            };
+            // Thread-safe map functions are run on several documents at once:
+            if (allThreadSafe) {
+                ExecutorService executor = store.getMapExecutor();
+                if (executor != null)
+                    parallelMapper = new ParallelMapper(executor, updates);
+            }
 
-            // Now scan every revision added since the last time the view was indexed:
+            // Now scan every revision added since the last time the views were indexed:
 
             // NOTE: Below is original Query. In case query result uses a lot of memory,
             //       Android SQLiteDatabase causes null value column. Then it causes the missing
@@ -315,21 +345,48 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             //       Because json field could be large, maximum size is 2MB.
             // StringBuffer sql = new StringBuffer( "SELECT revs.doc_id, sequence, docid, revid,
             // json, no_attachments, deleted FROM revs, docs WHERE sequence>? AND current!=0 ");
+            //       So the bodies are read by mapChunk(), a chunk of documents at a time, with
+            //       each chunk's bodies adding up to at most INDEX_CHUNK_MAX_BYTES.
+
+            // Views with a document type only map documents whose 'type' property (recorded in
+            // revs.doc_type) matches it. If all of them have one, the others aren't scanned:
+            Set<String> docTypes = new HashSet<String>();
+            boolean allDocTypes = true;
+            for (IndexUpdate update : updates) {
+                if (update.docType != null)
+                    docTypes.add(update.docType);
+                else
+                    allDocTypes = false;
+            }
+            boolean checkDocTypes = !docTypes.isEmpty();
+            boolean filterDocTypes = allDocTypes && checkDocTypes;
 
-            //TODO: boolean checkDocTypes = docTypes.count > 1 || (allDocTypes && docTypes.count > 0);
-            boolean checkDocTypes = false;
             StringBuffer sql = new StringBuffer(
-                    "SELECT revs.doc_id, sequence, docid, revid, no_attachments, deleted ");
+                    "SELECT revs.doc_id, sequence, docid, revid, no_attachments, deleted, " +
+                            "LENGTH(json) ");
             if (checkDocTypes)
                 sql.append(", doc_type ");
             sql.append("FROM revs, docs WHERE sequence>? AND current!=0 ");
-            if (minLastSequence == 0) {
+            if (maxLastSequence == 0) {
                 sql.append("AND deleted=0 ");
             }
+            List<Object> selectArgs = new ArrayList<Object>();
+            selectArgs.add(minLastSequence);
+            if (filterDocTypes) {
+                sql.append("AND doc_type IN (");
+                for (String docType : docTypes) {
+                    sql.append(selectArgs.size() > 1 ? ",?" : "?");
+                    selectArgs.add(docType);
+                }
+                sql.append(") ");
+            }
             sql.append("AND revs.doc_id = docs.doc_id ORDER BY revs.doc_id, revid DESC");
-            String[] selectArgs = {Long.toString(minLastSequence)};
-            cursor = store.getStorageEngine().rawQuery(sql.toString(), selectArgs);
+            cursor = store.getStorageEngine().rawQuery(sql.toString(), selectArgs.toArray());
 
+            // Bodies are read into one buffer reused for every document:
+            BlobBuffer jsonBuffer = new BlobBuffer(SQLiteStore.JSON_BUFFER_SIZE);
+            List<ChangedRev> chunk = new ArrayList<ChangedRev>();
+            long chunkBytes = 0;
             boolean keepGoing = cursor.moveToNext();
             while (keepGoing) {
 
@@ -353,7 +410,8 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
                 boolean noAttachments = cursor.getInt(4) > 0;
                 boolean deleted = cursor.getInt(5) > 0;
-                String docType = checkDocTypes ? cursor.getString(6) : null;
+                long length = cursor.getLong(6);
+                String docType = checkDocTypes ? cursor.getString(7) : null;
 
                 while ((keepGoing = cursor.moveToNext()) &&
                         (cursor.isNull(0) || cursor.getLong(0) == docID)) {
@@ -362,82 +420,65 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                     // https://github.com/couchbase/couchbase-lite-java-core/issues/497
                 }
 
-                if (minLastSequence > 0) {
-                    // Find conflicts with documents from previous indexings.
-                    String[] selectArgs2 = {Long.toString(docID), Long.toString(minLastSequence)};
-
-                    Cursor cursor2 = null;
-                    try {
-                        cursor2 = store.getStorageEngine().rawQuery(
-                                "SELECT revid, sequence FROM revs "
-                                        + "WHERE doc_id=? AND sequence<=? AND current!=0 AND deleted=0 "
-                                        + "ORDER BY revID DESC "
-                                        + "LIMIT 1", selectArgs2);
-
-                        if (cursor2.moveToNext()) {
-                            String oldRevId = cursor2.getString(0);
-                            // This is the revision that used to be the 'winner'.
-                            // Remove its emitted rows:
-                            long oldSequence = cursor2.getLong(1);
-                            String[] args = {Long.toString(oldSequence)};
-                            store.getStorageEngine().execSQL(
-                                    queryString("DELETE FROM 'maps_#' WHERE sequence=?"), args);
-                            if (deleted || RevisionInternal.CBLCompareRevIDs(oldRevId, revId) > 0) {
-                                // It still 'wins' the conflict, so it's the one that
-                                // should be mapped [again], not the current revision!
-                                revId = oldRevId;
-                                sequence = oldSequence;
-                                deleted = false;
-                            }
-                        }
-                    } finally {
-                        if (cursor2 != null) {
-                            cursor2.close();
-                        }
-                    }
+                chunk.add(new ChangedRev(docID, sequence, docId, revId, docType,
+                        updates.size()));
+                chunkBytes += length;
+                if (chunk.size() >= INDEX_CHUNK_SIZE || chunkBytes >= INDEX_CHUNK_MAX_BYTES) {
+                    mapChunk(chunk, updates, maxLastSequence > 0 || filterDocTypes,
+                            parallelMapper, jsonBuffer);
+                    chunk.clear();
+                    chunkBytes = 0;
                 }
-
-                if (deleted) {
-                    continue;
-                }
-
-                String[] selectArgs3 = {Long.toString(sequence)};
-                byte[] json = SQLiteUtils.byteArrayResultForQuery(store.getStorageEngine(),
-                        "SELECT json FROM revs WHERE sequence=?", selectArgs3);
-
-                // Get the document properties, to pass to the map function:
-                Map<String, Object> properties = store.documentPropertiesFromJSON(
-                        json,
-                        docId,
-                        revId,
-                        false,
-                        sequence
-                );
-                if (properties != null) {
-                    //TODO checkDocTypes here
-
-                    // Call the user-defined map() to emit new key/value
-                    // pairs from this revision:
-                    emitBlock.setSequence(sequence);
-                    delegate.getMap().map(properties, emitBlock);
-
-                    properties.clear();
+            }
+            if (!chunk.isEmpty())
+                mapChunk(chunk, updates, maxLastSequence > 0 || filterDocTypes,
+                        parallelMapper, jsonBuffer);
+            chunk.clear();
+
+            if (filterDocTypes && maxLastSequence > 0) {
+                // A conflicted document whose new revisions are all of other types didn't turn
+                // up, but if one of them now wins, the rows of the old winner (still current on
+                // its own branch) have to go. findWinners() works out which revision to map:
+                cursor.close();
+                cursor = null;
+                cursor = store.getStorageEngine().rawQuery(
+                        otherDocTypesSQL(docTypes.size()),
+                        otherDocTypesArgs(docTypes, minLastSequence, maxLastSequence));
+                while (cursor.moveToNext()) {
+                    String docId = cursor.getString(1);
+                    if (docId.startsWith("_design/"))
+                        continue;
+                    chunk.add(new ChangedRev(cursor.getLong(0), 0, docId, null, null,
+                            updates.size()));
+                    if (chunk.size() >= INDEX_CHUNK_SIZE) {
+                        mapChunk(chunk, updates, true, parallelMapper, jsonBuffer);
+                        chunk.clear();
+                    }
                 }
+                if (!chunk.isEmpty())
+                    mapChunk(chunk, updates, true, parallelMapper, jsonBuffer);
             }
+            for (IndexUpdate update : updates)
+                update.flush();
+            if (parallelMapper != null)
+                parallelMapper.finish();
 
             // Finally, record the last revision sequence number that was indexed and update #rows:
-            finishCreatingIndex();
-            int newTotalRows = countTotalRows();
-
-            ContentValues updateValues = new ContentValues();
-            updateValues.put("lastSequence", dbMaxSequence);
-            updateValues.put("total_docs", newTotalRows);
-            String[] whereArgs = {Integer.toString(getViewID())};
-            store.getStorageEngine().update("views", updateValues, "view_id=?", whereArgs);
+            for (IndexUpdate update : updates) {
+                SQLiteViewStore view = update.view;
+                view.finishCreatingIndex();
+                int newTotalRows = view.countTotalRows();
+
+                ContentValues updateValues = new ContentValues();
+                updateValues.put("lastSequence", dbMaxSequence);
+                updateValues.put("total_docs", newTotalRows);
+                String[] whereArgs = {Integer.toString(view.getViewID())};
+                store.getStorageEngine().update("views", updateValues, "view_id=?", whereArgs);
+            }
 
             // FIXME actually count number added :)
-            Log.v(Log.TAG_VIEW, "Finished re-indexing view: %s " + " up to sequence %s",
-                    name, dbMaxSequence);
+            Log.v(Log.TAG_VIEW, "Finished re-indexing views: %s " + " up to sequence %s",
+                    viewNames(inputViews), dbMaxSequence);
             result.setCode(Status.OK);
         } catch (SQLException ex) {
             throw new CouchbaseLiteException(ex, new Status(Status.DB_ERROR));
@@ -445,9 +486,12 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             if (cursor != null) {
                 cursor.close();
             }
+            if (parallelMapper != null) {
+                parallelMapper.cancel();
+            }
             if (!result.isSuccessful()) {
-                Log.w(Log.TAG_VIEW, "Failed to rebuild view %s.  Result code: %d",
-                        name, result.getCode());
+                Log.w(Log.TAG_VIEW, "Failed to rebuild views %s.  Result code: %d",
+                        viewNames(inputViews), result.getCode());
             }
             if (store != null) {
                 store.endTransaction(result.isSuccessful());
@@ -480,13 +524,15 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         final CountDown limit = new CountDown(tmpLimit);
 
         final List<QueryRow> rows = new ArrayList<QueryRow>();
+        final BlobBuffer jsonBuffer = options.isIncludeDocs() ?
+                new BlobBuffer(SQLiteStore.JSON_BUFFER_SIZE) : null;
 
         Status status = runQuery(options, new QueryRowBlock() {
             @Override
-            public Status onRow(byte[] keyData, byte[] valueData, String docID, Cursor cursor) {
+            public Status onRow(byte[] keyData, byte[] valueData, String docID, BlobCursor cursor) {
                 JsonDocument keyDoc = new JsonDocument(keyData);
                 JsonDocument valueDoc = new JsonDocument(valueData);
-                long sequence = Long.valueOf(cursor.getString(3));
+                long sequence = cursor.getLong(3);
                 RevisionInternal docRevision = null;
                 if (options.isIncludeDocs()) {
                     Object valueObject = valueDoc.jsonObject();
@@ -500,9 +546,13 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                         sequence = docRevision.getSequence();
                     } else {
                         String revID = cursor.getString(4);
-                        byte[] json = cursor.getBlob(5);
+                        boolean hasJson = !cursor.isNull(5);
+                        if (hasJson)
+                            cursor.copyBlobToBuffer(5, jsonBuffer);
                         Map<String, Object> properties = store.documentPropertiesFromJSON(
-                                json,
+                                hasJson ? jsonBuffer.data : null,
+                                0,
+                                hasJson ? jsonBuffer.sizeCopied : 0,
                                 docID,
                                 revID,
                                 false,
@@ -602,7 +652,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
 
         Status status = runQuery(options, new QueryRowBlock() {
             @Override
-            public Status onRow(byte[] keyData, byte[] valueData, String docID, Cursor cursor) {
+            public Status onRow(byte[] keyData, byte[] valueData, String docID, BlobCursor cursor) {
                 JsonDocument keyDoc = new JsonDocument(keyData);
                 JsonDocument valueDoc = new JsonDocument(valueData);
                 assert (keyDoc != null);
@@ -629,7 +679,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
                 Object valueOrData = valueData;
                 if(reduce != null && rowValueIsEntireDoc(valueData)){
                     // map fn emitted 'doc' as value, which was stored as a "*" placeholder; expand now:
-                    long sequence = Long.valueOf(cursor.getString(3));
+                    long sequence = cursor.getLong(3);
                     RevisionInternal rev = store.getDocument(docID, sequence);
                     if(rev == null)
                         Log.w(TAG, String.format("%s: Couldn't load doc for row value", this));
@@ -758,7 +808,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         sql.append(String.format(" FROM 'maps_%s', revs, docs", mapTableName()));
         sql.append(" WHERE 1");
 
-        List<String> argsList = new ArrayList<String>();
+        List<Object> argsList = new ArrayList<Object>();
 
         if (options.getKeys() != null) {
             sql.append(" AND key in (");
@@ -824,16 +874,16 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         sql.append(options.isDescending() ? ", docid DESC" : ", docid");
 
         sql.append(" LIMIT ? OFFSET ?");
-        argsList.add(Integer.toString(options.getLimit()));
-        argsList.add(Integer.toString(options.getSkip()));
+        argsList.add(options.getLimit());
+        argsList.add(options.getSkip());
 
         Log.v(Log.TAG_VIEW, "Query %s: %s | args: %s", name, sql.toString(), argsList);
 
         Status status = new Status(Status.OK);
-        Cursor cursor = null;
+        SQLiteConnection connection = store.acquireReader();
+        BlobCursor cursor = null;
         try {
-            cursor = store.getStorageEngine().rawQuery(sql.toString(),
-                    argsList.toArray(new String[argsList.size()]));
+            cursor = connection.engine.rawQuery(sql.toString(), argsList.toArray());
             // regular query
             cursor.moveToNext();
             while (!cursor.isAfterLast()) {
@@ -853,6 +903,7 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
         } finally {
             if (cursor != null)
                 cursor.close();
+            store.releaseReader(connection);
         }
         return status;
     }
@@ -889,7 +940,16 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
      * with the view ID in a query string.
      */
     private String queryString(String sql) {
-        return sql.replaceAll("#", mapTableName());
+        // (Not String.replaceAll(), which compiles a regular expression on every call.)
+        String tableName = mapTableName();
+        StringBuilder sb = new StringBuilder(sql.length() + 16);
+        int start = 0;
+        int pos;
+        while ((pos = sql.indexOf('#', start)) >= 0) {
+            sb.append(sql, start, pos).append(tableName);
+            start = pos + 1;
+        }
+        return sb.append(sql, start, sql.length()).toString();
     }
 
     private boolean runStatements(final String sql) {
@@ -916,15 +976,516 @@ public class SQLiteViewStore implements ViewStore, QueryRowStore {
             Log.w(TAG, "Couldn't create view _index `%s`", name);
     }
 
+    /**
+     * One of the views updateIndexes() is updating. It is also the Emitter given to the view's
+     * map function when that's called on the indexing thread.
+     */
+    private static final class IndexUpdate implements Emitter {
+        final SQLiteViewStore view;
+        final Mapper mapper;
+        final long lastSequence;
+        final String docType;  // the only type of document the view maps, or null
+        final String insertSql;
+        private final EmitBuffer emitted;
+        private long sequence;  // of the revision being mapped
+
+        IndexUpdate(SQLiteViewStore view, Mapper mapper, long lastSequence,
+                    EmitBuffer.Serializer serializer) {
+            this.view = view;
+            this.mapper = mapper;
+            this.lastSequence = lastSequence;
+            this.docType = view.delegate.getDocumentType();
+            this.insertSql = view.queryString(
+                    "INSERT INTO 'maps_#' (sequence, key, value) VALUES(?,?,?)");
+            this.emitted = new EmitBuffer(serializer);
+        }
+
+        void map(Map<String, Object> properties, long sequence) {
+            this.sequence = sequence;
+            mapper.map(properties, this);
+        }
+
+        @Override
+        public void emit(Object key, Object value) {
+            try {
+                emitted.add(sequence, key, value);
+                if (emitted.size() >= EMIT_BUFFER_SIZE)
+                    flush();
+            } catch (Exception e) {
+                Log.e(Log.TAG_VIEW, "Error emitting", e);
+                // find a better way to propagate this back
+            }
+        }
+
+        /**
+         * Inserts the buffered rows through one prepared statement.
+         */
+        void flush() {
+            if (emitted.size() == 0)
+                return;
+            SQLiteStatement statement = view.store.acquireStatement(insertSql);
+            try {
+                emitted.insertInto(statement);
+            } finally {
+                view.store.releaseStatement(insertSql, statement);
+            }
+        }
+    }
+
+    /**
+     * The SELECT statement for the documents updateIndexes() has to look at besides the ones
+     * its scan filtered by type: those with a new current revision of another type (or none)
+     * and an older current revision that isn't deleted, and no new revision of the types.
+     * Its arguments come from otherDocTypesArgs().
+     */
+    private static String otherDocTypesSQL(int nDocTypes) {
+        String docTypes = TextUtils.join(",", Collections.nCopies(nDocTypes, "?"));
+        return "SELECT DISTINCT revs.doc_id, docid FROM revs, docs " +
+                "WHERE sequence>? AND current!=0 " +
+                "AND (doc_type IS NULL OR doc_type NOT IN (" + docTypes + ")) " +
+                "AND revs.doc_id = docs.doc_id " +
+                "AND EXISTS (SELECT 1 FROM revs AS old WHERE old.doc_id=revs.doc_id " +
+                "    AND old.current!=0 AND old.sequence<=? AND old.deleted=0) " +
+                "AND NOT EXISTS (SELECT 1 FROM revs AS typed WHERE typed.doc_id=revs.doc_id " +
+                "    AND typed.current!=0 AND typed.sequence>? " +
+                "    AND typed.doc_type IN (" + docTypes + ")) " +
+                "ORDER BY revs.doc_id";
+    }
+
+    private static Object[] otherDocTypesArgs(Set<String> docTypes, long minLastSequence,
+                                              long maxLastSequence) {
+        List<Object> args = new ArrayList<Object>();
+        args.add(minLastSequence);
+        args.addAll(docTypes);
+        args.add(maxLastSequence);
+        args.add(minLastSequence);
+        args.addAll(docTypes);
+        return args.toArray();
+    }
+
+    /**
+     * A document updateIndexes() found changed, and the revision of it each view is to map.
+     */
+    private static final class ChangedRev {
+        final long docNumericID;
+        final String docID;
+        // The current revision the scan found:
+        final long sequence;
+        final String revID;
+        final String docType;
+        // For each view, the revision to map; sequence 0 if none:
+        final long[] sequences;
+        final String[] revIDs;
+
+        ChangedRev(long docNumericID, long sequence, String docID, String revID,
+                   String docType, int nViews) {
+            this.docNumericID = docNumericID;
+            this.sequence = sequence;
+            this.docID = docID;
+            this.revID = revID;
+            this.docType = docType;
+            this.sequences = new long[nViews];
+            this.revIDs = new String[nViews];
+        }
+    }
+
+    /**
+     * Maps a chunk of the documents found by updateIndexes(), looking up their winning
+     * revisions and reading their bodies with one query each instead of one per document.
+     * Each body is parsed once, for all the views that map it.
+     */
+    private void mapChunk(List<ChangedRev> chunk, List<IndexUpdate> updates,
+                          boolean lookUpWinners, ParallelMapper parallelMapper,
+                          BlobBuffer jsonBuffer) throws CouchbaseLiteException {
+        int nViews = updates.size();
+        if (lookUpWinners) {
+            findWinners(chunk, updates);
+        } else {
+            // None of the views has been indexed yet, and the scan saw all current revisions,
+            // so each view maps the one it found (which isn't deleted, as the scan skipped
+            // those) if it's of the view's type:
+            for (ChangedRev rev : chunk) {
+                for (int i = 0; i < nViews; i++) {
+                    if (matchesDocType(updates.get(i), rev.docType)) {
+                        rev.sequences[i] = rev.sequence;
+                        rev.revIDs[i] = rev.revID;
+                    }
+                }
+            }
+        }
+
+        Map<Long, ChangedRev> revsBySequence = new HashMap<Long, ChangedRev>();
+        for (ChangedRev rev : chunk) {
+            for (int i = 0; i < nViews; i++) {
+                if (rev.sequences[i] > 0)
+                    revsBySequence.put(rev.sequences[i], rev);
+            }
+        }
+        if (revsBySequence.isEmpty())
+            return;
+        List<Long> sequences = new ArrayList<Long>(revsBySequence.keySet());
+        Collections.sort(sequences);
+
+        String sql = String.format("SELECT sequence, json FROM revs WHERE sequence IN (%s) " +
+                "ORDER BY sequence", TextUtils.join(",", sequences));
+        BlobCursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(sql, (String[]) null);
+            boolean hasRow = cursor.moveToNext();
+            for (long sequence : sequences) {
+                ChangedRev rev = revsBySequence.get(sequence);
+                while (hasRow && cursor.getLong(0) < sequence)
+                    hasRow = cursor.moveToNext();
+                boolean hasJson = hasRow && cursor.getLong(0) == sequence && !cursor.isNull(1);
+
+                boolean[] mapFor = new boolean[nViews];
+                String revID = null;
+                for (int i = 0; i < nViews; i++) {
+                    if (rev.sequences[i] == sequence) {
+                        mapFor[i] = true;
+                        revID = rev.revIDs[i];
+                    }
+                }
+
+                if (parallelMapper != null) {
+                    parallelMapper.add(sequence, rev.docID, revID,
+                            hasJson ? cursor.getBlob(1) : null, mapFor);
+                    continue;
+                }
+
+                if (hasJson)
+                    cursor.copyBlobToBuffer(1, jsonBuffer);
+
+                // Get the document properties, to pass to the map functions:
+                Map<String, Object> properties = store.documentPropertiesFromJSON(
+                        hasJson ? jsonBuffer.data : null,
+                        0,
+                        hasJson ? jsonBuffer.sizeCopied : 0,
+                        rev.docID,
+                        revID,
+                        false,
+                        sequence
+                );
+                if (properties != null) {
+                    // Call the user-defined map() to emit new key/value
+                    // pairs from this revision:
+                    int nLeft = countTrue(mapFor);
+                    for (int i = 0; i < nViews; i++) {
+                        if (mapFor[i])
+                            updates.get(i).map(propertiesFor(properties, --nLeft), sequence);
+                    }
+
+                    properties.clear();
+                }
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    /**
+     * Decides which revision of each document in the chunk each view maps, by comparing the
+     * document's current revisions with the view's lastSequence: the new winning revision,
+     * unless a revision that was current when the view was last indexed still wins the
+     * conflict. Either way, the rows that old winner emitted are removed.
+     */
+    private void findWinners(List<ChangedRev> chunk, List<IndexUpdate> updates) {
+        Map<Long, ChangedRev> revsByDoc = new HashMap<Long, ChangedRev>();
+        for (ChangedRev rev : chunk)
+            revsByDoc.put(rev.docNumericID, rev);
+
+        List<List<Long>> oldSequences = new ArrayList<List<Long>>(updates.size());
+        for (int i = 0; i < updates.size(); i++)
+            oldSequences.add(new ArrayList<Long>());
+
+        // Each document's current revisions, winner first:
+        List<String> revIDs = new ArrayList<String>();
+        List<Long> sequences = new ArrayList<Long>();
+        List<Boolean> deleted = new ArrayList<Boolean>();
+        List<String> docTypes = new ArrayList<String>();
+
+        String sql = String.format(SQL_GET_CURRENT_REVS, TextUtils.join(",", revsByDoc.keySet()));
+        Cursor cursor = null;
+        try {
+            cursor = store.getStorageEngine().rawQuery(sql, (String[]) null);
+            long docID = 0;
+            boolean hasRow = cursor.moveToNext();
+            while (hasRow || docID > 0) {
+                if (docID > 0 && (!hasRow || cursor.getLong(0) != docID)) {
+                    chooseRevsToMap(revsByDoc.get(docID), revIDs, sequences, deleted, docTypes,
+                            updates, oldSequences);
+                    revIDs.clear();
+                    sequences.clear();
+                    deleted.clear();
+                    docTypes.clear();
+                    docID = 0;
+                }
+                if (hasRow) {
+                    docID = cursor.getLong(0);
+                    revIDs.add(cursor.getString(1));
+                    sequences.add(cursor.getLong(2));
+                    deleted.add(cursor.getInt(3) > 0);
+                    docTypes.add(cursor.getString(4));
+                    hasRow = cursor.moveToNext();
+                }
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        for (int i = 0; i < updates.size(); i++) {
+            if (!oldSequences.get(i).isEmpty()) {
+                store.getStorageEngine().execSQL(updates.get(i).view.queryString(String.format(
+                        "DELETE FROM 'maps_#' WHERE sequence IN (%s)",
+                        TextUtils.join(",", oldSequences.get(i)))));
+            }
+        }
+    }
+
+    private static void chooseRevsToMap(ChangedRev rev, List<String> revIDs,
+                                        List<Long> sequences, List<Boolean> deleted,
+                                        List<String> docTypes, List<IndexUpdate> updates,
+                                        List<List<Long>> oldSequences) {
+        for (int i = 0; i < updates.size(); i++) {
+            long last = updates.get(i).lastSequence;
+            int newWinner = -1;
+            int oldWinner = -1;
+            for (int j = 0; j < revIDs.size(); j++) {
+                if (sequences.get(j) > last) {
+                    // (Deleted revisions only matter if there are rows of the doc to remove.)
+                    if (newWinner < 0 && (last > 0 || !deleted.get(j)))
+                        newWinner = j;
+                } else if (oldWinner < 0 && !deleted.get(j)) {
+                    oldWinner = j;
+                }
+            }
+            if (newWinner < 0)
+                continue;  // the view is up to date with this document
+
+            int winner = newWinner;
+            if (oldWinner >= 0) {
+                // This is the revision that used to be the 'winner'.
+                // Remove its emitted rows:
+                oldSequences.get(i).add(sequences.get(oldWinner));
+                if (deleted.get(newWinner) ||
+                        RevisionInternal.CBLCompareRevIDs(revIDs.get(oldWinner),
+                                revIDs.get(newWinner)) > 0) {
+                    // It still 'wins' the conflict, so it's the one that
+                    // should be mapped [again], not the current revision!
+                    winner = oldWinner;
+                }
+            }
+            if (!deleted.get(winner) && matchesDocType(updates.get(i), docTypes.get(winner))) {
+                rev.sequences[i] = sequences.get(winner);
+                rev.revIDs[i] = revIDs.get(winner);
+            }
+        }
+    }
+
+    /**
+     * Runs the ThreadSafeMappers of the views updateIndexes() is updating on an executor, a
+     * batch of documents at a time. Each document is parsed once and given to every view that
+     * maps it. While one batch is being mapped, the indexing thread reads the next one, then
+     * inserts the rows the first one emitted. Rows are inserted by the indexing thread, which
+     * owns the transaction, in the order the documents were added.
+     */
+    private class ParallelMapper {
+        private final ExecutorService executor;
+        private final List<IndexUpdate> updates;
+        private final List<MapTask> batch = new ArrayList<MapTask>();
+        // Each pool thread reuses one serializer for all the documents it maps:
+        private final ThreadLocal<EmitBuffer.Serializer> serializers =
+                new ThreadLocal<EmitBuffer.Serializer>() {
+                    @Override
+                    protected EmitBuffer.Serializer initialValue() {
+                        return new EmitBuffer.Serializer();
+                    }
+                };
+        private int batchBytes = 0;
+        private List<Future<MapTask>> mapping = new ArrayList<Future<MapTask>>();
+
+        ParallelMapper(ExecutorService executor, List<IndexUpdate> updates) {
+            this.executor = executor;
+            this.updates = updates;
+        }
+
+        /**
+         * Maps a revision. json is its body as stored, or null if it has none; mapFor tells
+         * which of the views map it.
+         */
+        void add(long sequence, String docID, String revID, byte[] json, boolean[] mapFor)
+                throws CouchbaseLiteException {
+            batch.add(new MapTask(sequence, docID, revID, json, mapFor));
+            batchBytes += json != null ? json.length : 0;
+            if (batch.size() >= MAP_BATCH_SIZE || batchBytes >= MAP_BATCH_MAX_BYTES)
+                flush();
+        }
+
+        /**
+         * Maps the remaining revisions, and inserts all the rows not inserted yet.
+         */
+        void finish() throws CouchbaseLiteException {
+            if (!batch.isEmpty())
+                flush();
+            List<Future<MapTask>> previous = mapping;
+            mapping = new ArrayList<Future<MapTask>>();
+            insertRows(previous);
+        }
+
+        /**
+         * Drops the revisions not mapped yet, after a failure.
+         */
+        void cancel() {
+            for (Future<MapTask> future : mapping)
+                future.cancel(false);
+            mapping.clear();
+            batch.clear();
+        }
+
+        private void flush() throws CouchbaseLiteException {
+            List<Future<MapTask>> submitted = new ArrayList<Future<MapTask>>(batch.size());
+            for (MapTask task : batch)
+                submitted.add(executor.submit(task));
+            batch.clear();
+            batchBytes = 0;
+            List<Future<MapTask>> previous = mapping;
+            mapping = submitted;
+            insertRows(previous);
+        }
+
+        private void insertRows(List<Future<MapTask>> futures) throws CouchbaseLiteException {
+            if (futures.isEmpty())
+                return;
+            SQLiteStatement[] statements = new SQLiteStatement[updates.size()];
+            try {
+                for (int i = 0; i < statements.length; i++)
+                    statements[i] = store.acquireStatement(updates.get(i).insertSql);
+                for (Future<MapTask> future : futures) {
+                    MapTask task = getResult(future);
+                    for (int i = 0; i < statements.length; i++) {
+                        if (task.rows[i] != null)
+                            task.rows[i].insertInto(statements[i]);
+                    }
+                }
+            } finally {
+                for (int i = 0; i < statements.length; i++)
+                    store.releaseStatement(updates.get(i).insertSql, statements[i]);
+            }
+        }
+
+        private MapTask getResult(Future<MapTask> future) throws CouchbaseLiteException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CouchbaseLiteException("Interrupted while indexing", e,
+                        Status.INTERNAL_SERVER_ERROR);
+            } catch (ExecutionException e) {
+                // Let exceptions thrown by the map function propagate as they do when
+                // it's called on the indexing thread:
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new CouchbaseLiteException(cause, Status.EXCEPTION);
+            }
+        }
+
+        /**
+         * Parses one revision and maps it on a pool thread, collecting the JSON of the keys
+         * and values each view emits.
+         */
+        private class MapTask implements Callable<MapTask>, Emitter {
+            final long sequence;
+            final String docID;
+            final String revID;
+            byte[] json;
+            final boolean[] mapFor;
+            final EmitBuffer[] rows;
+            private int viewIndex;  // of the view being mapped
+
+            MapTask(long sequence, String docID, String revID, byte[] json, boolean[] mapFor) {
+                this.sequence = sequence;
+                this.docID = docID;
+                this.revID = revID;
+                this.json = json;
+                this.mapFor = mapFor;
+                this.rows = new EmitBuffer[mapFor.length];
+            }
+
+            @Override
+            public MapTask call() {
+                Map<String, Object> properties = store.documentPropertiesFromJSON(
+                        json, docID, revID, false, sequence);
+                json = null;
+                if (properties == null)
+                    return this;
+                EmitBuffer.Serializer serializer = serializers.get();
+                int nLeft = countTrue(mapFor);
+                for (int i = 0; i < mapFor.length; i++) {
+                    if (mapFor[i]) {
+                        rows[i] = new EmitBuffer(serializer);
+                        viewIndex = i;
+                        updates.get(i).mapper.map(propertiesFor(properties, --nLeft), this);
+                    }
+                }
+                return this;
+            }
+
+            @Override
+            public void emit(Object key, Object value) {
+                try {
+                    rows[viewIndex].add(sequence, key, value);
+                } catch (Exception e) {
+                    Log.e(Log.TAG_VIEW, "Error emitting", e);
+                }
+            }
+        }
+    }
 
     ///////////////////////////////////////////////////////////////////////////
     // Internal (Private) Static Methods
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * The properties to give the map function of one of the views that map a document, when
+     * nLeft more views map it after this one: a copy, so that a map function that changes them
+     * doesn't change what the next view is given, except for the last view.
+     */
+    private static Map<String, Object> propertiesFor(Map<String, Object> properties, int nLeft) {
+        return nLeft > 0 ? new HashMap<String, Object>(properties) : properties;
+    }
+
+    private static int countTrue(boolean[] flags) {
+        int n = 0;
+        for (boolean flag : flags) {
+            if (flag)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Whether the view maps documents of the given type (a revision's doc_type).
+     */
+    private static boolean matchesDocType(IndexUpdate update, String docType) {
+        return update.docType == null || update.docType.equals(docType);
+    }
+
+    private static List<String> viewNames(List<ViewStore> views) {
+        List<String> names = new ArrayList<String>(views.size());
+        for (ViewStore view : views)
+            names.add(view.getName());
+        return names;
+    }
+
     /**
      * Are key1 and key2 grouped together at this groupLevel?
      */
-    private static boolean groupTogether(Object key1, Object key2, int groupLevel) {
+    static boolean groupTogether(Object key1, Object key2, int groupLevel) {
         if (groupLevel == 0 || !(key1 instanceof List) || !(key2 instanceof List)) {
             return key1.equals(key2);
         }
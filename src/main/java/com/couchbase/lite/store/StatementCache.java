@@ -0,0 +1,84 @@
+//
+//  StatementCache.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.storage.SQLException;
+import com.couchbase.lite.storage.SQLiteStatement;
+import com.couchbase.lite.storage.StatementStorageEngine;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.LruCache;
+
+/**
+ * LRU cache of compiled statements for one storage engine connection, keyed by SQL text.
+ * <p/>
+ * A statement is checked out with acquire() and must be handed back with release() once its
+ * cursor (if any) has been closed. While a statement is checked out it is not in the cache, so
+ * another thread asking for the same SQL compiles its own copy instead of sharing it.
+ */
+class StatementCache {
+    private static final String TAG = Log.TAG_DATABASE;
+
+    private final StatementStorageEngine storageEngine;
+    private final LruCache<String, SQLiteStatement> statements;
+    private boolean closed;  // set by clear(); guarded by this
+
+    StatementCache(StatementStorageEngine storageEngine, int maxSize) {
+        this.storageEngine = storageEngine;
+        this.statements = new LruCache<String, SQLiteStatement>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String sql,
+                                        SQLiteStatement oldValue, SQLiteStatement newValue) {
+                // A plain remove() is a check-out; the statement is still in use.
+                if (evicted || (newValue != null && newValue != oldValue))
+                    oldValue.close();
+            }
+        };
+    }
+
+    /**
+     * Returns a compiled statement for the SQL, with its bindings cleared.
+     */
+    SQLiteStatement acquire(String sql) throws SQLException {
+        SQLiteStatement statement = statements.remove(sql);
+        if (statement == null)
+            statement = storageEngine.compileStatement(sql);
+        else
+            statement.clearBindings();
+        return statement;
+    }
+
+    /**
+     * Returns a statement obtained from acquire() to the cache.
+     */
+    void release(String sql, SQLiteStatement statement) {
+        if (statement == null)
+            return;
+        try {
+            statement.reset();
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to reset statement, discarding it: %s", e, sql);
+            statement.close();
+            return;
+        }
+        synchronized (this) {
+            // A statement checked out before clear() must not outlive the connection:
+            if (!closed) {
+                statements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Closes every cached statement. Must be called before the connection is closed; statements
+     * released after this are closed instead of being cached.
+     */
+    synchronized void clear() {
+        closed = true;
+        statements.evictAll();
+    }
+}
@@ -0,0 +1,167 @@
+//
+//  StatsCounters.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.DatabaseStats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The counters behind SQLiteStore.getStats(), adjusted by each write so that reading them
+ * doesn't need a table scan.
+ * <p/>
+ * Changes made in a transaction are kept apart, per thread, until the outermost transaction
+ * commits, so they're only visible to other threads from then on, and rolling it back doesn't
+ * undo other threads' changes. They're saved in the info table (as comma-separated numbers,
+ * followed by the database's last sequence) as part of that transaction.
+ */
+class StatsCounters {
+    static final int DOCS = 0;
+    static final int DELETED_DOCS = 1;
+    static final int CONFLICTED_DOCS = 2;
+    static final int REVS = 3;
+    static final int BODY_SIZE = 4;
+
+    private static final int N_COUNTERS = 5;
+
+    /**
+     * The changes made by a thread's transaction in progress.
+     */
+    private static class Transaction {
+        long[] changes = new long[N_COUNTERS];
+        // Changes as of the start of each open (nested) transaction:
+        final List<long[]> savepoints = new ArrayList<long[]>();
+    }
+
+    // Values as of the last commit, including changes made outside a transaction:
+    private volatile long[] committed = new long[N_COUNTERS];
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+    private boolean changed;
+
+    synchronized void load(long[] values) {
+        committed = values.clone();
+        changed = false;
+    }
+
+    /**
+     * Parses counters saved by format(), or returns null if they're missing or malformed, or were
+     * saved at another last sequence than the given one, so that they may be out of date.
+     */
+    static long[] parse(String saved, long lastSequence) {
+        if (saved == null)
+            return null;
+        String[] fields = saved.split(",");
+        if (fields.length != N_COUNTERS + 1)
+            return null;
+        long[] values = new long[N_COUNTERS];
+        try {
+            for (int i = 0; i < N_COUNTERS; i++)
+                values[i] = Long.parseLong(fields[i]);
+            if (Long.parseLong(fields[N_COUNTERS]) != lastSequence)
+                return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * Formats the values the calling thread sees, along with the database's last sequence.
+     */
+    String format(long lastSequence) {
+        long[] values = current();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < N_COUNTERS; i++)
+            sb.append(values[i]).append(',');
+        sb.append(lastSequence);
+        return sb.toString();
+    }
+
+    void add(int counter, long delta) {
+        if (delta == 0)
+            return;
+        Transaction t = transaction.get();
+        synchronized (this) {
+            if (t != null) {
+                t.changes[counter] += delta;
+            } else {
+                long[] values = committed.clone();
+                values[counter] += delta;
+                committed = values;
+            }
+            changed = true;
+        }
+    }
+
+    void beginTransaction() {
+        Transaction t = transaction.get();
+        if (t == null) {
+            t = new Transaction();
+            transaction.set(t);
+        }
+        t.savepoints.add(t.changes.clone());
+    }
+
+    /**
+     * @param commit false if the transaction's changes were rolled back.
+     */
+    void endTransaction(boolean commit) {
+        Transaction t = transaction.get();
+        long[] saved = t.savepoints.remove(t.savepoints.size() - 1);
+        if (!commit)
+            t.changes = saved;
+        if (!t.savepoints.isEmpty())
+            return;
+        transaction.remove();
+        synchronized (this) {
+            long[] values = committed.clone();
+            for (int i = 0; i < N_COUNTERS; i++)
+                values[i] += t.changes[i];
+            committed = values;
+        }
+    }
+
+    /**
+     * True if the counters have changed since they were loaded or last saved.
+     */
+    synchronized boolean isChanged() {
+        return changed;
+    }
+
+    synchronized void saved() {
+        changed = false;
+    }
+
+    /**
+     * @param inTransaction whether the caller is in the transaction in progress, and should see
+     *                      its changes.
+     */
+    long get(int counter, boolean inTransaction) {
+        return (inTransaction ? current() : committed)[counter];
+    }
+
+    DatabaseStats getStats(boolean inTransaction) {
+        long[] values = inTransaction ? current() : committed;
+        return new DatabaseStats(values[DOCS], values[DELETED_DOCS], values[CONFLICTED_DOCS],
+                values[REVS], values[BODY_SIZE]);
+    }
+
+    /**
+     * The committed values plus the changes of the calling thread's transaction, if any.
+     */
+    private long[] current() {
+        Transaction t = transaction.get();
+        synchronized (this) {
+            long[] values = committed.clone();
+            if (t != null) {
+                for (int i = 0; i < N_COUNTERS; i++)
+                    values[i] += t.changes[i];
+            }
+            return values;
+        }
+    }
+}
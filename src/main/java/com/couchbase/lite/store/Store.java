@@ -8,13 +8,17 @@ package com.couchbase.lite.store;
 
 import com.couchbase.lite.BlobKey;
 import com.couchbase.lite.ChangesOptions;
+import com.couchbase.lite.CompactionListener;
 import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.DatabaseStats;
 import com.couchbase.lite.QueryOptions;
+import com.couchbase.lite.QueryRow;
 import com.couchbase.lite.ReplicationFilter;
 import com.couchbase.lite.RevisionList;
 import com.couchbase.lite.Status;
 import com.couchbase.lite.TransactionalTask;
 import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.util.CloseableIterator;
 
 import java.net.URL;
 import java.util.List;
@@ -89,6 +93,12 @@ public interface Store {
      */
     int getDocumentCount();
 
+    /**
+     * Counts of the documents and revisions in the database, and the size of the revision
+     * bodies. Should be cheap enough to call often.
+     */
+    DatabaseStats getStats();
+
     /**
      * The last sequence number allocated to a revision.
      */
@@ -104,6 +114,16 @@ public interface Store {
      */
     void compact() throws CouchbaseLiteException;
 
+    /**
+     * Compacts document storage in chunks of docsPerChunk documents, committing after each
+     * chunk and reporting progress to the listener, which can stop it. A stopped compaction
+     * resumes where it left off the next time this is called.
+     *
+     * @return true if the compaction is complete, false if the listener stopped it.
+     */
+    boolean compactIncrementally(int docsPerChunk, CompactionListener listener)
+            throws CouchbaseLiteException;
+
     /**
      * Executes the block within a database transaction.
      * If the block returns a non-OK status, the transaction is aborted/rolled back.
@@ -204,6 +224,16 @@ public interface Store {
     //List<QueryRow> getAllDocs(QueryOptions options) throws CouchbaseLiteException;
     Map<String, Object> getAllDocs(QueryOptions options) throws CouchbaseLiteException;
 
+    /**
+     * Like getAllDocs(), but returns the rows through an iterator that reads them from the
+     * database as it advances, instead of collecting them all first. (With options.keys the
+     * rows are still collected first, since they're returned in the order of the keys.)
+     * If keeping a cursor open would hold up writers, the rows may be read a page at a time.
+     * The iterator must be closed, on the thread that created it.
+     */
+    CloseableIterator<QueryRow> getAllDocsIterator(QueryOptions options)
+            throws CouchbaseLiteException;
+
     /**
      * Returns all database changes with sequences greater than `lastSequence`.
      *
@@ -220,6 +250,17 @@ public interface Store {
                               ReplicationFilter filter,
                               Map<String, Object> filterParams);
 
+    /**
+     * Like changesSince(), but returns the revisions through an iterator that reads them from
+     * the database as it advances, instead of collecting them all first.
+     * If keeping a cursor open would hold up writers, the revisions may be read a page at a time.
+     * The iterator must be closed, on the thread that created it.
+     */
+    CloseableIterator<RevisionInternal> changesSinceIterator(long lastSequence,
+                                                             ChangesOptions options,
+                                                             ReplicationFilter filter,
+                                                             Map<String, Object> filterParams);
+
 
     ///////////////////////////////////////////////////////////////////////////
     // INSERTION / DELETION:
@@ -252,6 +293,28 @@ public interface Store {
                          Status outStatus)
             throws CouchbaseLiteException;
 
+    /**
+     * Creates new revisions of many documents in a single transaction. Each document is handled
+     * as by add(), but the delegate's -databaseStorageChanged: method is only called once the
+     * whole batch has been inserted, still inside the transaction, so that the changes are
+     * posted together.
+     *
+     * @param docs            The new revisions' properties. "_id" is the document ID (generated
+     *                        at random if missing), "_rev" the parent revision ID (missing for a
+     *                        new document) and "_deleted" marks a deletion.
+     * @param allowConflict   YES if these operations are allowed to create conflicts.
+     * @param validationBlock If non-nil, this block will be called before each revision is added.
+     * @param outStatuses     On return, holds one status per document, in the same order.
+     * @return The new revisions, in the same order as docs, with nil for each document that
+     * could not be added.
+     * @throws CouchbaseLiteException if the batch failed as a whole; nothing is inserted then.
+     */
+    List<RevisionInternal> addDocuments(List<Map<String, Object>> docs,
+                                        boolean allowConflict,
+                                        StorageValidation validationBlock,
+                                        List<Status> outStatuses)
+            throws CouchbaseLiteException;
+
     /**
      * Inserts an already-existing revision (with its revID), plus its ancestry, into a document.
      * This is called by the pull replicator to add the revisions received from the server.
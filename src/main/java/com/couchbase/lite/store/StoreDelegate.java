@@ -18,9 +18,16 @@ import java.util.Map;
  */
 public interface StoreDelegate {
     /**
-     * Called whenever the outermost transaction completes.
+     * Called whenever a transaction begins, including nested transactions.
+     */
+    void storageEnteredTransaction();
+
+    /**
+     * Called whenever a transaction completes, including nested transactions. Only the
+     * completion of the outermost transaction makes its changes durable.
      *
-     * @param committed YES on commit, NO if the transaction was aborted.
+     * @param committed YES on commit, NO if the transaction was aborted; only the changes made
+     *                  since the matching storageEnteredTransaction call were undone.
      */
     void storageExitedTransaction(boolean committed);
 
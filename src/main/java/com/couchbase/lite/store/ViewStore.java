@@ -67,10 +67,15 @@ public interface ViewStore {
     /**
      * Updates the indexes of one or more views in parallel.
      *
-     * @param views An array of CBL_ViewStorage instances, always including the receiver.
+     * @param views A list of ViewStore instances of the same Store, always including the
+     *              receiver.
      * @throws CouchbaseLiteException
      */
-    //void updateIndexes(List<ViewStorage> views) throws CouchbaseLiteException;
+    void updateIndexes(List<ViewStore> views) throws CouchbaseLiteException;
+
+    /**
+     * Updates the view's _index (incrementally) if necessary.
+     */
     void updateIndex() throws CouchbaseLiteException;
 
     /**
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.util;
+
+import java.util.Iterator;
+
+/**
+ * An Iterator over results that are read as it advances, e.g. from an open database cursor.
+ * It holds on to its underlying resources until close() is called, so it must always be closed,
+ * typically in a finally block. It closes itself once hasNext() has returned false, but closing
+ * it again is harmless.
+ */
+public interface CloseableIterator<T> extends Iterator<T> {
+    /**
+     * Releases the underlying resources. After this, hasNext() returns false.
+     */
+    void close();
+}
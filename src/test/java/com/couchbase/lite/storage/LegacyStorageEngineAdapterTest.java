@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2015 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.couchbase.lite.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LegacyStorageEngineAdapterTest {
+
+    private static final String SQL_INSERT_REV =
+            "INSERT INTO revs (doc_id, revid, parent, current, deleted, no_attachments, json) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    @Test
+    public void testInsertGoesThroughInsertOrThrow() {
+        FakeEngine engine = new FakeEngine();
+        SQLiteStatement statement = LegacyStorageEngineAdapter.adapt(engine)
+                .compileStatement(SQL_INSERT_REV);
+        bindRev(statement, "1-abcd");
+
+        assertEquals(1, statement.executeInsert());
+        assertEquals(1, engine.inserts.size());
+        ContentValues values = engine.inserts.get(0);
+        assertEquals(Long.valueOf(7), values.getAsLong("doc_id"));
+        assertEquals("1-abcd", values.getAsString("revid"));
+        assertTrue(values.containsKey("parent") && values.get("parent") == null);
+        assertEquals(3, values.getAsByteArray("json").length);
+        // One call to the engine, with no follow-up queries:
+        assertEquals(0, engine.nQueries);
+        assertEquals(0, engine.nExecs);
+    }
+
+    @Test
+    public void testInsertSameRevisionTwice() {
+        FakeEngine engine = new FakeEngine();
+        SQLiteStatement statement = LegacyStorageEngineAdapter.adapt(engine)
+                .compileStatement(SQL_INSERT_REV);
+        bindRev(statement, "1-abcd");
+        statement.executeInsert();
+        statement.reset();
+        bindRev(statement, "1-abcd");
+        try {
+            statement.executeInsert();
+            fail("Duplicate insert should have failed");
+        } catch (SQLException e) {
+            // SQLiteStore relies on the code to treat this as a duplicate, not as an error:
+            assertEquals(SQLException.SQLITE_CONSTRAINT, e.getCode());
+        }
+        assertEquals(1, engine.inserts.size());
+    }
+
+    @Test
+    public void testInsertOrIgnoreIntoQuotedTable() {
+        FakeEngine engine = new FakeEngine();
+        SQLiteStatement statement = LegacyStorageEngineAdapter.adapt(engine).compileStatement(
+                "INSERT OR IGNORE INTO 'maps_3' (sequence, key, value) VALUES(?,?,?)");
+        statement.bindLong(1, 12);
+        statement.bindString(2, "\"key\"");
+        statement.bindNull(3);
+
+        assertEquals(1, statement.executeInsert());
+        assertEquals("maps_3", engine.insertTable);
+        assertEquals(SQLiteStorageEngine.CONFLICT_IGNORE, engine.insertConflictAlgorithm);
+    }
+
+    @Test
+    public void testConstraintMessageGetsConstraintCode() {
+        FakeEngine engine = new FakeEngine();
+        SQLiteStatement statement = LegacyStorageEngineAdapter.adapt(engine)
+                .compileStatement("UPDATE revs SET revid=? WHERE sequence=?");
+        engine.execError = new SQLException("UNIQUE constraint failed: revs.doc_id, revs.revid");
+        statement.bindString(1, "1-abcd");
+        statement.bindLong(2, 1);
+        try {
+            statement.execute();
+            fail("Update should have failed");
+        } catch (SQLException e) {
+            assertEquals(SQLException.SQLITE_CONSTRAINT, e.getCode());
+        }
+    }
+
+    private static void bindRev(SQLiteStatement statement, String revID) {
+        statement.bindLong(1, 7);
+        statement.bindString(2, revID);
+        statement.bindNull(3);
+        statement.bindLong(4, 1);
+        statement.bindLong(5, 0);
+        statement.bindLong(6, 1);
+        statement.bindBlob(7, new byte[]{'{', '}', ' '});
+    }
+
+    /**
+     * An engine that only implements the original SQLiteStorageEngine methods. Inserts are
+     * recorded; one with the same doc_id and revid as an earlier one fails as SQLite's UNIQUE
+     * constraint would, with a message but no code.
+     */
+    private static final class FakeEngine implements SQLiteStorageEngine {
+        final List<ContentValues> inserts = new ArrayList<ContentValues>();
+        final Set<String> keys = new HashSet<String>();
+        String insertTable;
+        int insertConflictAlgorithm = -1;
+        int nQueries, nExecs;
+        SQLException execError;
+
+        @Override
+        public long insertOrThrow(String table, String nullColumnHack, ContentValues values)
+                throws SQLException {
+            return insertWithOnConflict(table, nullColumnHack, values, CONFLICT_NONE);
+        }
+
+        @Override
+        public long insertWithOnConflict(String table, String nullColumnHack,
+                                         ContentValues values, int conflictAlgorithm) {
+            insertTable = table;
+            insertConflictAlgorithm = conflictAlgorithm;
+            if (values.containsKey("revid")) {
+                String key = values.getAsLong("doc_id") + "/" + values.getAsString("revid");
+                if (!keys.add(key)) {
+                    if (conflictAlgorithm == CONFLICT_IGNORE)
+                        return -1;
+                    throw new SQLException("UNIQUE constraint failed: revs.doc_id, revs.revid");
+                }
+            }
+            inserts.add(values);
+            return inserts.size();
+        }
+
+        @Override
+        public long insert(String table, String nullColumnHack, ContentValues values) {
+            return insertWithOnConflict(table, nullColumnHack, values, CONFLICT_NONE);
+        }
+
+        @Override
+        public void execSQL(String sql) throws SQLException {
+            execSQL(sql, null);
+        }
+
+        @Override
+        public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+            nExecs++;
+            if (execError != null)
+                throw execError;
+        }
+
+        @Override
+        public Cursor rawQuery(String sql, String[] selectionArgs) {
+            nQueries++;
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean open(String path) throws SQLException {
+            return true;
+        }
+
+        @Override
+        public int getVersion() {
+            return 0;
+        }
+
+        @Override
+        public void setVersion(int version) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void beginTransaction() {
+        }
+
+        @Override
+        public void endTransaction() {
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+        }
+
+        @Override
+        public int update(String table, ContentValues values, String whereClause,
+                          String[] whereArgs) {
+            return 0;
+        }
+
+        @Override
+        public int delete(String table, String whereClause, String[] whereArgs) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean supportEncryption() {
+            return false;
+        }
+
+        @Override
+        public byte[] derivePBKDF2SHA256Key(String password, byte[] salt, int rounds) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+//
+//  LogStoreTest.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.internal.RevisionInternal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String directory;
+    private LogStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.getRoot().getAbsolutePath();
+        store = openStore();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null)
+            store.close();
+    }
+
+    @Test
+    public void testReplayAfterReopen() throws Exception {
+        RevisionInternal rev1 = putDoc("doc1", null, 1);
+        RevisionInternal rev2 = putDoc("doc1", rev1.getRevID(), 2);
+        putDoc("doc2", null, 3);
+        store.setInfo("privateUUID", "1234");
+        RevisionInternal local = new RevisionInternal("_local/checkpoint", null, false);
+        local.setProperties(properties(4));
+        store.putLocalRevision(local, null, true);
+        long lastSequence = store.getLastSequence();
+
+        reopenStore();
+
+        assertEquals(2, store.getDocumentCount());
+        assertEquals(lastSequence, store.getLastSequence());
+        RevisionInternal doc1 = store.getDocument("doc1", null, true);
+        assertEquals(rev2.getRevID(), doc1.getRevID());
+        assertEquals(2, doc1.getProperties().get("n"));
+        assertEquals(2, store.getRevisionHistory(doc1).size());
+        assertEquals(3, store.getDocument("doc2", null, true).getProperties().get("n"));
+        assertEquals("1234", store.getInfo("privateUUID"));
+        assertEquals(4, store.getLocalDocument("_local/checkpoint", null).getProperties().get("n"));
+    }
+
+    @Test
+    public void testTruncatedTailDiscardsTransaction() throws Exception {
+        putDoc("doc1", null, 1);
+        long lastSequence = store.getLastSequence();
+        long committedSize = logFile().length();
+        assertTrue(store.runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                putDocInTask("doc2", 2);
+                putDocInTask("doc3", 3);
+                return true;
+            }
+        }));
+        store.close();
+        store = null;
+
+        // Lose the last byte, as if the process died while the transaction was being written:
+        truncateLog(logFile().length() - 1);
+        store = openStore();
+
+        // Neither of the transaction's records is applied, though only its last one is damaged:
+        assertEquals(1, store.getDocumentCount());
+        assertNull(store.getDocument("doc2", null, true));
+        assertNull(store.getDocument("doc3", null, true));
+        assertEquals(lastSequence, store.getLastSequence());
+        assertEquals(committedSize, logFile().length());
+
+        // The log can be appended to again:
+        putDoc("doc4", null, 4);
+        reopenStore();
+        assertEquals(2, store.getDocumentCount());
+        assertEquals(4, store.getDocument("doc4", null, true).getProperties().get("n"));
+    }
+
+    @Test
+    public void testCorruptRecordDiscardsRestOfLog() throws Exception {
+        putDoc("doc1", null, 1);
+        long committedSize = logFile().length();
+        putDoc("doc2", null, 2);
+        putDoc("doc3", null, 3);
+        store.close();
+        store = null;
+
+        // Flip a byte inside the payload of the first record after doc1:
+        RandomAccessFile file = new RandomAccessFile(logFile(), "rw");
+        try {
+            long offset = committedSize + 12;
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xFF);
+        } finally {
+            file.close();
+        }
+        store = openStore();
+
+        assertEquals(1, store.getDocumentCount());
+        assertNotNull(store.getDocument("doc1", null, true));
+        assertNull(store.getDocument("doc2", null, true));
+        assertNull(store.getDocument("doc3", null, true));
+        assertEquals(committedSize, logFile().length());
+    }
+
+    @Test
+    public void testNestedTransactionRollback() throws Exception {
+        assertTrue(store.runInTransaction(new TransactionalTask() {
+            @Override
+            public boolean run() {
+                putDocInTask("outer1", 1);
+                boolean committed = store.runInTransaction(new TransactionalTask() {
+                    @Override
+                    public boolean run() {
+                        putDocInTask("inner", 2);
+                        return false;
+                    }
+                });
+                assertTrue(!committed);
+                putDocInTask("outer2", 3);
+                return true;
+            }
+        }));
+        assertNull(store.getDocument("inner", null, true));
+
+        reopenStore();
+
+        assertEquals(2, store.getDocumentCount());
+        assertNotNull(store.getDocument("outer1", null, true));
+        assertNotNull(store.getDocument("outer2", null, true));
+        assertNull(store.getDocument("inner", null, true));
+    }
+
+    @Test
+    public void testRewriteLogConcurrentWithWrites() throws Exception {
+        final int nDocs = 500;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < nDocs; i++) {
+                        RevisionInternal rev = putDoc("doc" + i, null, 1);
+                        // Replace it, so that the log has dead records to drop:
+                        putDoc("doc" + i, rev.getRevID(), 2);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        writer.start();
+        int nRewrites = 0;
+        while (writer.isAlive()) {
+            store.compact();
+            nRewrites++;
+        }
+        writer.join();
+        assertNull(error.get());
+        assertTrue(nRewrites > 0);
+        long lastSequence = store.getLastSequence();
+
+        reopenStore();
+
+        assertEquals(nDocs, store.getDocumentCount());
+        assertEquals(lastSequence, store.getLastSequence());
+        for (int i = 0; i < nDocs; i++) {
+            RevisionInternal rev = store.getDocument("doc" + i, null, true);
+            assertEquals(2, rev.getProperties().get("n"));
+            List<RevisionInternal> history = store.getRevisionHistory(rev);
+            assertEquals(2, history.size());
+        }
+    }
+
+    private LogStore openStore() throws CouchbaseLiteException {
+        LogStore logStore = new LogStore(directory, null, new TestStoreDelegate());
+        logStore.open();
+        return logStore;
+    }
+
+    private void reopenStore() throws CouchbaseLiteException {
+        store.close();
+        store = null;
+        store = openStore();
+    }
+
+    private File logFile() {
+        return new File(directory, LogStore.kLogFilename);
+    }
+
+    private void truncateLog(long size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile(), "rw");
+        try {
+            file.setLength(size);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static Map<String, Object> properties(int n) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("n", n);
+        return properties;
+    }
+
+    private RevisionInternal putDoc(String docID, String prevRevID, int n)
+            throws CouchbaseLiteException {
+        Status status = new Status();
+        RevisionInternal rev = store.add(docID, prevRevID, properties(n), false, false, null,
+                status);
+        assertTrue(status.isSuccessful());
+        return rev;
+    }
+
+    private void putDocInTask(String docID, int n) {
+        try {
+            putDoc(docID, null, n);
+        } catch (CouchbaseLiteException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
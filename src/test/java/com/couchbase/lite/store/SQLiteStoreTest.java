@@ -0,0 +1,167 @@
+//
+//  SQLiteStoreTest.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.BlobKey;
+import com.couchbase.lite.ChangesOptions;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.QueryOptions;
+import com.couchbase.lite.QueryRow;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+import com.couchbase.lite.util.CloseableIterator;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SQLiteStore tests. They need a storage engine, named by -Dcbl.storageEngineFactory, and are
+ * skipped without one.
+ */
+public class SQLiteStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private Manager manager;
+    private SQLiteStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        SQLiteStorageEngineFactory factory = TestContext.getStorageEngineFactory();
+        Assume.assumeTrue(factory != null);
+        directory = folder.newFolder("db");
+        manager = new Manager(new TestContext(directory, factory), new ManagerOptions());
+        store = openStore();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null)
+            store.close();
+        if (manager != null)
+            manager.close();
+    }
+
+    @Test
+    public void testAddSameRevisionTwice() throws Exception {
+        RevisionInternal rev1 = add("doc1", null, properties(1), false);
+        RevisionInternal rev2 = add("doc1", rev1.getRevID(), properties(2), false);
+        long lastSequence = store.getLastSequence();
+
+        // The same change to the same parent gets the same revID; inserting it again is a no-op:
+        RevisionInternal again = add("doc1", rev1.getRevID(), properties(2), true);
+        assertEquals(rev2.getRevID(), again.getRevID());
+        assertEquals(lastSequence, store.getLastSequence());
+        assertEquals(2, store.getAllRevisions("doc1", false).size());
+        assertEquals(rev2.getRevID(), store.getDocument("doc1", null, true).getRevID());
+    }
+
+    @Test
+    public void testIndexAttachmentsAddedByOlderVersion() throws Exception {
+        add("doc1", null, properties(1), false);
+
+        // An older version adds a revision without indexing its attachments:
+        String digest = "sha1-AAAAAAAAAAAAAAAAAAAAAAAAAAA=";
+        String json = "{\"_attachments\":{\"a.txt\":{\"digest\":\"" + digest +
+                "\",\"length\":1,\"stub\":true}}}";
+        store.getStorageEngine().execSQL("INSERT INTO docs (docid) VALUES ('doc2')");
+        store.getStorageEngine().execSQL("INSERT INTO revs " +
+                "(doc_id, revid, parent, current, deleted, no_attachments, json) " +
+                "SELECT doc_id, '1-abcd', NULL, 1, 0, 0, ? FROM docs WHERE docid='doc2'",
+                new Object[]{json.getBytes("UTF-8")});
+        assertFalse(store.findAllAttachmentKeys().contains(new BlobKey(digest)));
+
+        // Reopening catches up before anything can garbage-collect the attachment:
+        store.close();
+        store = openStore();
+        assertTrue(store.findAllAttachmentKeys().contains(new BlobKey(digest)));
+    }
+
+    @Test
+    public void testUpdateWinnersOfRevisionsAddedByOlderVersion() throws Exception {
+        RevisionInternal rev1 = add("doc1", null, properties(1), false);
+
+        // An older version adds a revision without updating the docs row's winner:
+        store.getStorageEngine().execSQL("UPDATE revs SET current=0 WHERE revid=?",
+                new Object[]{rev1.getRevID()});
+        store.getStorageEngine().execSQL("INSERT INTO revs " +
+                "(doc_id, revid, parent, current, deleted, no_attachments, json) " +
+                "SELECT doc_id, '2-abcd', sequence, 1, 0, 1, ? FROM revs WHERE revid=?",
+                new Object[]{"{\"n\":2}".getBytes("UTF-8"), rev1.getRevID()});
+
+        store.close();
+        store = openStore();
+        assertEquals("2-abcd", store.getDocument("doc1", null, true).getRevID());
+    }
+
+    @Test
+    public void testIteratorsReadInPages() throws Exception {
+        int nDocs = SQLiteStore.ITERATOR_PAGE_SIZE * 2 + 1;
+        for (int i = 0; i < nDocs; i++)
+            add(String.format("doc%04d", i), null, properties(i), false);
+
+        CloseableIterator<QueryRow> rows = store.getAllDocsIterator(new QueryOptions());
+        int n = 0;
+        try {
+            while (rows.hasNext())
+                assertEquals(String.format("doc%04d", n++), rows.next().getDocumentId());
+        } finally {
+            rows.close();
+        }
+        assertEquals(nDocs, n);
+
+        ChangesOptions options = new ChangesOptions();
+        options.setLimit(nDocs - 1);
+        CloseableIterator<RevisionInternal> changes =
+                store.changesSinceIterator(1, options, null, null);
+        long sequence = 1;
+        try {
+            while (changes.hasNext())
+                assertEquals(++sequence, changes.next().getSequence());
+        } finally {
+            changes.close();
+        }
+        assertEquals(nDocs, sequence);
+    }
+
+    private SQLiteStore openStore() throws Exception {
+        SQLiteStore sqliteStore = new SQLiteStore(directory.getAbsolutePath(), manager,
+                new TestStoreDelegate());
+        sqliteStore.open();
+        return sqliteStore;
+    }
+
+    static Map<String, Object> properties(int n) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("n", n);
+        return properties;
+    }
+
+    private RevisionInternal add(String docID, String prevRevID, Map<String, Object> properties,
+                                 boolean allowConflict) throws Exception {
+        Status status = new Status();
+        RevisionInternal rev = store.add(docID, prevRevID, properties, false, allowConflict, null,
+                status);
+        assertTrue(status.isSuccessful());
+        return rev;
+    }
+}
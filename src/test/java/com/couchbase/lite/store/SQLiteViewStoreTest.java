@@ -0,0 +1,156 @@
+//
+//  SQLiteViewStoreTest.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.QueryOptions;
+import com.couchbase.lite.QueryRow;
+import com.couchbase.lite.Reducer;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.View;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SQLiteViewStore tests. Like SQLiteStoreTest, they need a storage engine, named by
+ * -Dcbl.storageEngineFactory, and are skipped without one.
+ */
+public class SQLiteViewStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Manager manager;
+    private SQLiteStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        SQLiteStorageEngineFactory factory = TestContext.getStorageEngineFactory();
+        Assume.assumeTrue(factory != null);
+        File directory = folder.newFolder("db");
+        manager = new Manager(new TestContext(directory, factory), new ManagerOptions());
+        store = new SQLiteStore(directory.getAbsolutePath(), manager, new TestStoreDelegate());
+        store.open();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null)
+            store.close();
+        if (manager != null)
+            manager.close();
+    }
+
+    @Test
+    public void testNewWinnerOfAnotherType() throws Exception {
+        ViewStore view = openView("typeA", "A");
+
+        RevisionInternal rev1 = add("doc1", null, typed("A", 1), false);
+        add("doc1", rev1.getRevID(), typed("A", 2), false);
+        view.updateIndex();
+        List<QueryRow> rows = view.regularQuery(new QueryOptions());
+        assertEquals(1, rows.size());
+        assertEquals(2, ((Number) rows.get(0).getKey()).intValue());
+
+        // A longer branch of type B wins the conflict, so the document is no longer in the view,
+        // although the old winner is still a current revision:
+        RevisionInternal rev2b = add("doc1", rev1.getRevID(), typed("B", 3), true);
+        add("doc1", rev2b.getRevID(), typed("B", 4), false);
+        view.updateIndex();
+        assertEquals(0, view.regularQuery(new QueryOptions()).size());
+    }
+
+    @Test
+    public void testViewsDontSeeEachOthersChanges() throws Exception {
+        // A map function that changes the document it's given:
+        ViewStore view1 = openView("remover", null, new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.remove("n"), null);
+            }
+        });
+        ViewStore view2 = openView("byN", null);
+
+        add("doc1", null, typed("A", 1), false);
+        view1.updateIndexes(Arrays.asList(view1, view2));
+        assertEquals(1, ((Number) view1.regularQuery(new QueryOptions()).get(0).getKey())
+                .intValue());
+        assertEquals(1, ((Number) view2.regularQuery(new QueryOptions()).get(0).getKey())
+                .intValue());
+    }
+
+    private ViewStore openView(String name, String docType) {
+        return openView(name, docType, new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("n"), null);
+            }
+        });
+    }
+
+    private ViewStore openView(String name, final String docType, final Mapper mapper) {
+        ViewStore view = store.getViewStorage(name, true);
+        view.setCollation(View.TDViewCollation.TDViewCollationUnicode);
+        view.setDelegate(new ViewStoreDelegate() {
+            @Override
+            public Mapper getMap() {
+                return mapper;
+            }
+
+            @Override
+            public Reducer getReduce() {
+                return null;
+            }
+
+            @Override
+            public String getMapVersion() {
+                return "1";
+            }
+
+            @Override
+            public String getDocumentType() {
+                return docType;
+            }
+        });
+        view.setVersion("1");
+        return view;
+    }
+
+    private static Map<String, Object> typed(String type, int n) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("type", type);
+        properties.put("n", n);
+        return properties;
+    }
+
+    private RevisionInternal add(String docID, String prevRevID, Map<String, Object> properties,
+                                 boolean allowConflict) throws Exception {
+        Status status = new Status();
+        RevisionInternal rev = store.add(docID, prevRevID, properties, false, allowConflict, null,
+                status);
+        assertTrue(status.isSuccessful());
+        return rev;
+    }
+}
@@ -0,0 +1,71 @@
+//
+//  StatsCountersTest.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StatsCountersTest {
+
+    @Test
+    public void testRollback() {
+        StatsCounters stats = new StatsCounters();
+        stats.add(StatsCounters.DOCS, 1);
+        stats.beginTransaction();
+        stats.add(StatsCounters.DOCS, 1);
+        stats.beginTransaction();
+        stats.add(StatsCounters.DOCS, 1);
+        assertEquals(3, stats.get(StatsCounters.DOCS, true));
+        assertEquals(1, stats.get(StatsCounters.DOCS, false));
+        stats.endTransaction(false);
+        assertEquals(2, stats.get(StatsCounters.DOCS, true));
+        stats.endTransaction(true);
+        assertEquals(2, stats.get(StatsCounters.DOCS, false));
+    }
+
+    @Test
+    public void testRollbackKeepsOtherThreadsChanges() throws Exception {
+        final StatsCounters stats = new StatsCounters();
+        stats.beginTransaction();
+        stats.add(StatsCounters.REVS, 5);
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stats.add(StatsCounters.REVS, 2);
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(2, stats.get(StatsCounters.REVS, false));
+        assertEquals(7, stats.get(StatsCounters.REVS, true));
+
+        stats.endTransaction(false);
+        assertEquals(2, stats.get(StatsCounters.REVS, false));
+    }
+
+    @Test
+    public void testParse() {
+        StatsCounters stats = new StatsCounters();
+        stats.add(StatsCounters.DOCS, 3);
+        stats.add(StatsCounters.BODY_SIZE, 100);
+        String saved = stats.format(42);
+
+        long[] values = StatsCounters.parse(saved, 42);
+        assertNotNull(values);
+        assertEquals(3, values[StatsCounters.DOCS]);
+        assertEquals(100, values[StatsCounters.BODY_SIZE]);
+
+        // Revisions were added or removed since they were saved:
+        assertNull(StatsCounters.parse(saved, 43));
+        // Saved without a sequence:
+        assertNull(StatsCounters.parse("3,0,0,0,100", 42));
+        assertNull(StatsCounters.parse(null, 42));
+    }
+}
@@ -0,0 +1,175 @@
+//
+//  StoreBenchmark.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.ManagerOptions;
+import com.couchbase.lite.Misc;
+import com.couchbase.lite.RevisionList;
+import com.couchbase.lite.Status;
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times Store operations. Benchmarks only run when asked for, with
+ * -Dcbl.benchmark=true; the SQLiteStore ones also need a storage engine, named by
+ * -Dcbl.storageEngineFactory=(a SQLiteStorageEngineFactory class on the test classpath.)
+ */
+public class StoreBenchmark {
+
+    private static final int N_DOCS = 10000;
+    private static final int DOCS_PER_TRANSACTION = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Manager manager;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("cbl.benchmark"));
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.close();
+    }
+
+    @Test
+    public void testLogStoreIngest() throws Exception {
+        String directory = folder.newFolder("log").getAbsolutePath();
+        LogStore store = new LogStore(directory, null, new TestStoreDelegate());
+        store.open();
+        try {
+            ingest("LogStore", store);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testSQLiteStoreIngest() throws Exception {
+        SQLiteStore store = openSQLiteStore();
+        try {
+            ingest("SQLiteStore", store);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testSQLiteStoreFindMissingRevisions() throws Exception {
+        SQLiteStore store = openSQLiteStore();
+        try {
+            ingest("SQLiteStore", store);
+            findMissingRevisions("SQLiteStore", store);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Looks for one revision of every document, as a push replication's _revs_diff would: the
+     * current one for half of them, and a new one for the others.
+     */
+    private void findMissingRevisions(String name, Store store) {
+        RevisionList revs = new RevisionList();
+        for (int i = 0; i < N_DOCS; i++) {
+            String docID = String.format("doc-%06d", i);
+            String revID = store.getDocument(docID, null, false).getRevID();
+            if (i % 2 == 1)
+                revID = "2-" + Misc.CreateUUID().replace("-", "");
+            revs.add(new RevisionInternal(docID, revID, false));
+        }
+        long start = System.nanoTime();
+        int nFound = store.findMissingRevisions(revs);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(N_DOCS / 2, nFound);
+        assertEquals(N_DOCS - N_DOCS / 2, revs.size());
+        System.out.println(String.format("%s: findMissingRevisions of %d revisions in %d ms",
+                name, N_DOCS, elapsedMs));
+    }
+
+    /**
+     * Adds N_DOCS new documents, DOCS_PER_TRANSACTION per transaction, as a pull replication
+     * would.
+     */
+    private void ingest(String name, final Store store) {
+        final Map<String, Object> properties = sampleProperties();
+        long start = System.nanoTime();
+        for (int i = 0; i < N_DOCS; i += DOCS_PER_TRANSACTION) {
+            final int first = i;
+            assertTrue(store.runInTransaction(new TransactionalTask() {
+                @Override
+                public boolean run() {
+                    for (int j = first; j < first + DOCS_PER_TRANSACTION; j++) {
+                        Status status = new Status();
+                        try {
+                            store.add(String.format("doc-%06d", j), null, properties, false,
+                                    false, null, status);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        if (!status.isSuccessful())
+                            return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(N_DOCS, store.getDocumentCount());
+        System.out.println(String.format("%s: added %d docs (%d per transaction) in %d ms " +
+                        "(%.0f docs/sec)", name, N_DOCS, DOCS_PER_TRANSACTION, elapsedMs,
+                N_DOCS * 1000.0 / Math.max(1, elapsedMs)));
+    }
+
+    private SQLiteStore openSQLiteStore() throws Exception {
+        SQLiteStorageEngineFactory factory = TestContext.getStorageEngineFactory();
+        Assume.assumeTrue(factory != null);
+        File directory = folder.newFolder("sqlite");
+        manager = new Manager(new TestContext(directory, factory), new ManagerOptions());
+        SQLiteStore store = new SQLiteStore(directory.getAbsolutePath(), manager,
+                new TestStoreDelegate());
+        store.open();
+        return store;
+    }
+
+    private static Map<String, Object> sampleProperties() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("type", "order");
+        properties.put("customer", "Ada Lovelace");
+        properties.put("status", "shipped");
+        properties.put("total", 129.95);
+        List<Object> items = new ArrayList<Object>();
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> item = new HashMap<String, Object>();
+            item.put("sku", "SKU-" + i);
+            item.put("quantity", i + 1);
+            items.add(item);
+        }
+        properties.put("items", items);
+        return properties;
+    }
+}
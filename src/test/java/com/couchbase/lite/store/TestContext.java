@@ -0,0 +1,72 @@
+//
+//  TestContext.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.Context;
+import com.couchbase.lite.NetworkReachabilityManager;
+import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
+
+import java.io.File;
+
+/**
+ * A Context for testing SQLiteStore outside of an app. The storage engine comes from the
+ * SQLiteStorageEngineFactory class named by -Dcbl.storageEngineFactory, since this library
+ * doesn't include one.
+ */
+class TestContext implements Context {
+    private final File directory;
+    private final SQLiteStorageEngineFactory factory;
+    private NetworkReachabilityManager networkReachabilityManager =
+            new NetworkReachabilityManager() {
+                @Override
+                public void startListening() {
+                }
+
+                @Override
+                public void stopListening() {
+                }
+            };
+
+    /**
+     * @return the factory named by -Dcbl.storageEngineFactory, or null if there's none.
+     */
+    static SQLiteStorageEngineFactory getStorageEngineFactory() throws Exception {
+        String factoryClassName = System.getProperty("cbl.storageEngineFactory");
+        if (factoryClassName == null)
+            return null;
+        return (SQLiteStorageEngineFactory) Class.forName(factoryClassName).newInstance();
+    }
+
+    TestContext(File directory, SQLiteStorageEngineFactory factory) {
+        this.directory = directory;
+        this.factory = factory;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return directory;
+    }
+
+    @Override
+    public File getTempDir() {
+        return directory;
+    }
+
+    @Override
+    public void setNetworkReachabilityManager(NetworkReachabilityManager manager) {
+        this.networkReachabilityManager = manager;
+    }
+
+    @Override
+    public NetworkReachabilityManager getNetworkReachabilityManager() {
+        return networkReachabilityManager;
+    }
+
+    @Override
+    public SQLiteStorageEngineFactory getSQLiteStorageEngineFactory() {
+        return factory;
+    }
+}
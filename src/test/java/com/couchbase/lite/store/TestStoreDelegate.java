@@ -0,0 +1,42 @@
+//
+//  TestStoreDelegate.java
+//
+//  Copyright (c) 2015 Couchbase, Inc All rights reserved.
+//
+package com.couchbase.lite.store;
+
+import com.couchbase.lite.DocumentChange;
+import com.couchbase.lite.ReplicationFilter;
+import com.couchbase.lite.internal.RevisionInternal;
+import com.couchbase.lite.support.RevisionUtils;
+
+import java.util.Map;
+
+/**
+ * A StoreDelegate for testing a Store without a Database: it generates revision IDs as the
+ * Database does and ignores everything else.
+ */
+class TestStoreDelegate implements StoreDelegate {
+    @Override
+    public void storageEnteredTransaction() {
+    }
+
+    @Override
+    public void storageExitedTransaction(boolean committed) {
+    }
+
+    @Override
+    public void databaseStorageChanged(DocumentChange change) {
+    }
+
+    @Override
+    public String generateRevID(byte[] json, boolean deleted, String prevRevID) {
+        return RevisionUtils.generateRevID(json, deleted, prevRevID);
+    }
+
+    @Override
+    public boolean runFilter(ReplicationFilter filter, Map<String, Object> filterParams,
+                             RevisionInternal rev) {
+        return true;
+    }
+}